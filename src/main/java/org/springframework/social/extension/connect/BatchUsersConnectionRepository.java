@@ -0,0 +1,62 @@
+/*
+ * Copyright 2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.social.extension.connect;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+import org.springframework.social.connect.Connection;
+import org.springframework.social.connect.ConnectionKey;
+import org.springframework.social.connect.ConnectionSignUp;
+import org.springframework.social.connect.UsersConnectionRepository;
+
+/**
+ * {@link UsersConnectionRepository} able to resolve many connections to local
+ * users at once, for jobs such as account imports and merges which would
+ * otherwise call {@link #findUserIdsWithConnection(Connection)} once per
+ * connection.
+ * 
+ * @author Michael Lavelle
+ */
+public interface BatchUsersConnectionRepository extends
+		UsersConnectionRepository {
+
+	/**
+	 * Batch variant of {@link #findUserIdsWithConnection(Connection)}: the
+	 * configured {@link ConnectionSignUp}, if any, is executed for the
+	 * connections found for no user only.
+	 * 
+	 * @return the ids of the users connected with each of the given
+	 *         connections, keyed by {@link ConnectionKey} in the order the
+	 *         connections were given; the list is empty for connections no
+	 *         user holds
+	 */
+	Map<ConnectionKey, List<String>> findUserIdsWithConnections(
+			Collection<? extends Connection<?>> connections);
+
+	/**
+	 * Variant of {@link #findUserIdsWithConnections(Collection)} for callers
+	 * holding connection keys only, which never executes a
+	 * {@link ConnectionSignUp}
+	 * 
+	 * @return the ids of the users connected with each of the given keys, in
+	 *         the order the keys were given
+	 */
+	Map<ConnectionKey, List<String>> findUserIdsWithConnectionKeys(
+			Collection<ConnectionKey> connectionKeys);
+
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright 2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.social.extension.connect;
+
+import java.util.List;
+
+import org.springframework.social.connect.Connection;
+import org.springframework.social.connect.ConnectionKey;
+import org.springframework.social.connect.ConnectionRepository;
+import org.springframework.util.MultiValueMap;
+
+/**
+ * {@link ConnectionRepository} forwarding every call to a delegate, as the
+ * base of decorators overriding some of them.
+ * 
+ * @author Michael Lavelle
+ */
+public class DelegatingConnectionRepository implements ConnectionRepository {
+
+	protected final ConnectionRepository delegate;
+
+	public DelegatingConnectionRepository(ConnectionRepository delegate) {
+		if (delegate == null) {
+			throw new IllegalArgumentException("delegate cannot be null");
+		}
+		this.delegate = delegate;
+	}
+
+	public ConnectionRepository getDelegate() {
+		return delegate;
+	}
+
+	public MultiValueMap<String, Connection<?>> findAllConnections() {
+		return delegate.findAllConnections();
+	}
+
+	public List<Connection<?>> findConnections(String providerId) {
+		return delegate.findConnections(providerId);
+	}
+
+	public <A> List<Connection<A>> findConnections(Class<A> apiType) {
+		return delegate.findConnections(apiType);
+	}
+
+	public MultiValueMap<String, Connection<?>> findConnectionsToUsers(
+			MultiValueMap<String, String> providerUserIds) {
+		return delegate.findConnectionsToUsers(providerUserIds);
+	}
+
+	public Connection<?> getConnection(ConnectionKey connectionKey) {
+		return delegate.getConnection(connectionKey);
+	}
+
+	public <A> Connection<A> getConnection(Class<A> apiType,
+			String providerUserId) {
+		return delegate.getConnection(apiType, providerUserId);
+	}
+
+	public <A> Connection<A> getPrimaryConnection(Class<A> apiType) {
+		return delegate.getPrimaryConnection(apiType);
+	}
+
+	public <A> Connection<A> findPrimaryConnection(Class<A> apiType) {
+		return delegate.findPrimaryConnection(apiType);
+	}
+
+	public void addConnection(Connection<?> connection) {
+		delegate.addConnection(connection);
+	}
+
+	public void updateConnection(Connection<?> connection) {
+		delegate.updateConnection(connection);
+	}
+
+	public void removeConnections(String providerId) {
+		delegate.removeConnections(providerId);
+	}
+
+	public void removeConnection(ConnectionKey connectionKey) {
+		delegate.removeConnection(connectionKey);
+	}
+
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright 2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.social.extension.connect;
+
+import java.util.List;
+import java.util.Set;
+
+import org.springframework.social.connect.Connection;
+import org.springframework.social.connect.ConnectionRepository;
+import org.springframework.social.connect.UsersConnectionRepository;
+
+/**
+ * {@link UsersConnectionRepository} forwarding every call to a delegate, as
+ * the base of decorators overriding some of them.
+ * 
+ * @author Michael Lavelle
+ */
+public class DelegatingUsersConnectionRepository implements
+		UsersConnectionRepository {
+
+	protected final UsersConnectionRepository delegate;
+
+	public DelegatingUsersConnectionRepository(
+			UsersConnectionRepository delegate) {
+		if (delegate == null) {
+			throw new IllegalArgumentException("delegate cannot be null");
+		}
+		this.delegate = delegate;
+	}
+
+	public UsersConnectionRepository getDelegate() {
+		return delegate;
+	}
+
+	public List<String> findUserIdsWithConnection(Connection<?> connection) {
+		return delegate.findUserIdsWithConnection(connection);
+	}
+
+	public Set<String> findUserIdsConnectedTo(String providerId,
+			Set<String> providerUserIds) {
+		return delegate.findUserIdsConnectedTo(providerId, providerUserIds);
+	}
+
+	public ConnectionRepository createConnectionRepository(String userId) {
+		return delegate.createConnectionRepository(userId);
+	}
+
+}
@@ -0,0 +1,51 @@
+/*
+ * Copyright 2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.social.extension.connect.cache;
+
+import org.springframework.social.connect.Connection;
+import org.springframework.social.connect.ConnectionKey;
+import org.springframework.social.connect.ConnectionRepository;
+import org.springframework.social.extension.connect.DelegatingConnectionRepository;
+
+/**
+ * {@link ConnectionRepository} of a
+ * {@link BloomFilterUsersConnectionRepository}, registering the connections
+ * added in its filter.
+ * 
+ * @author Michael Lavelle
+ */
+class BloomFilterConnectionRepository extends DelegatingConnectionRepository {
+
+	private final BloomFilterUsersConnectionRepository usersConnectionRepository;
+
+	BloomFilterConnectionRepository(ConnectionRepository delegate,
+			BloomFilterUsersConnectionRepository usersConnectionRepository) {
+		super(delegate);
+		this.usersConnectionRepository = usersConnectionRepository;
+	}
+
+	@Override
+	public void addConnection(Connection<?> connection) {
+		ConnectionKey connectionKey = connection.getKey();
+		usersConnectionRepository.register(connectionKey);
+		try {
+			delegate.addConnection(connection);
+		} finally {
+			usersConnectionRepository.registered(connectionKey);
+		}
+	}
+
+}
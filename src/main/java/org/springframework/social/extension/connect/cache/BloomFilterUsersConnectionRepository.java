@@ -0,0 +1,286 @@
+/*
+ * Copyright 2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.social.extension.connect.cache;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.springframework.social.connect.Connection;
+import org.springframework.social.connect.ConnectionKey;
+import org.springframework.social.connect.ConnectionRepository;
+import org.springframework.social.connect.ConnectionSignUp;
+import org.springframework.social.connect.UsersConnectionRepository;
+import org.springframework.social.extension.connect.DelegatingUsersConnectionRepository;
+
+/**
+ * Negative cache in front of any {@link UsersConnectionRepository}, such as a
+ * JdbcUsersConnectionRepository: a {@link ConnectionKeyBloomFilter} over the
+ * keys of the stored connections lets lookups of connections certainly not
+ * stored, typically first-time sign-ins, return without querying the
+ * delegate.
+ * 
+ * The filter is only maintained on connections added through this
+ * repository, so it must be {@link #rebuild(Iterable) rebuilt} from the
+ * store on startup, every lookup being passed to the delegate until then,
+ * and again after connections were added other than through this
+ * repository, lookups of which find no user until then. For the same reason
+ * the {@link ConnectionSignUp} must be set on this repository rather than on
+ * the delegate, so that the connections it adds are registered in the
+ * filter.
+ * 
+ * Removed connections stay in the filter, as false positives, until it is
+ * rebuilt. {@link #getObservedFalsePositiveRate()} reports how often lookups
+ * of connections not stored were not short-circuited, which should be
+ * compared with the target false positive probability to decide when to
+ * rebuild, possibly with a larger expected number of connections.
+ * 
+ * @author Michael Lavelle
+ */
+public class BloomFilterUsersConnectionRepository extends
+		DelegatingUsersConnectionRepository {
+
+	private final long expectedConnections;
+
+	private final double falsePositiveProbability;
+
+	/**
+	 * Null until first rebuilt
+	 */
+	private volatile ConnectionKeyBloomFilter filter;
+
+	/**
+	 * The filter being rebuilt, which connections added meanwhile must also
+	 * be registered in, or null
+	 */
+	private ConnectionKeyBloomFilter rebuildingFilter;
+
+	/**
+	 * The number of additions in progress of each key registered, which a
+	 * rebuild starting meanwhile may not find stored
+	 */
+	private final Map<ConnectionKey, Integer> pendingConnectionKeys = new HashMap<ConnectionKey, Integer>();
+
+	/**
+	 * Guards registrations against the filters being swapped
+	 */
+	private final Object registrationLock = new Object();
+
+	private ConnectionSignUp connectionSignUp;
+
+	private final AtomicLong shortCircuitedLookups = new AtomicLong();
+
+	private final AtomicLong delegatedLookups = new AtomicLong();
+
+	private final AtomicLong falsePositives = new AtomicLong();
+
+	/**
+	 * @param expectedConnections
+	 *            the number of connections the filter is sized for
+	 * @param falsePositiveProbability
+	 *            the target probability of a lookup of a connection not
+	 *            stored being delegated, once the expected number of
+	 *            connections are stored
+	 */
+	public BloomFilterUsersConnectionRepository(
+			UsersConnectionRepository delegate, long expectedConnections,
+			double falsePositiveProbability) {
+		super(delegate);
+		this.expectedConnections = expectedConnections;
+		this.falsePositiveProbability = falsePositiveProbability;
+	}
+
+	/**
+	 * The command to execute to create a new local user profile in the event no
+	 * user id could be mapped to a connection, in place of the delegate's.
+	 * Defaults to null, indicating explicit sign-up will be required to
+	 * complete the provider sign-in attempt.
+	 */
+	public void setConnectionSignUp(ConnectionSignUp connectionSignUp) {
+		this.connectionSignUp = connectionSignUp;
+	}
+
+	/**
+	 * Replaces the filter by one holding the given keys, typically those of
+	 * every connection stored by the delegate. Lookups keep using the current
+	 * filter until the new one is complete, and connections added meanwhile
+	 * are registered in both, as are those being added when it starts; the
+	 * given keys should therefore be read from the store once iterated, as a
+	 * connection added after they were read and before this call would be
+	 * missing from the new filter.
+	 */
+	public synchronized void rebuild(Iterable<ConnectionKey> storedConnectionKeys) {
+		ConnectionKeyBloomFilter rebuiltFilter = new ConnectionKeyBloomFilter(
+				expectedConnections, falsePositiveProbability);
+		synchronized (registrationLock) {
+			rebuildingFilter = rebuiltFilter;
+			for (ConnectionKey connectionKey : pendingConnectionKeys.keySet()) {
+				rebuiltFilter.add(connectionKey);
+			}
+		}
+		try {
+			for (ConnectionKey connectionKey : storedConnectionKeys) {
+				rebuiltFilter.add(connectionKey);
+			}
+			synchronized (registrationLock) {
+				filter = rebuiltFilter;
+			}
+		} finally {
+			synchronized (registrationLock) {
+				rebuildingFilter = null;
+			}
+		}
+	}
+
+	@Override
+	public List<String> findUserIdsWithConnection(Connection<?> connection) {
+		ConnectionKeyBloomFilter filter = this.filter;
+		List<String> userIds;
+		if (filter == null) {
+			delegatedLookups.incrementAndGet();
+			userIds = delegate.findUserIdsWithConnection(connection);
+		} else if (filter.mightContain(connection.getKey())) {
+			delegatedLookups.incrementAndGet();
+			userIds = delegate.findUserIdsWithConnection(connection);
+			if (userIds.isEmpty()) {
+				falsePositives.incrementAndGet();
+			}
+		} else {
+			shortCircuitedLookups.incrementAndGet();
+			userIds = Collections.emptyList();
+		}
+		if (userIds.isEmpty() && connectionSignUp != null) {
+			String newUserId = connectionSignUp.execute(connection);
+			if (newUserId != null) {
+				createConnectionRepository(newUserId).addConnection(connection);
+				return Arrays.asList(newUserId);
+			}
+		}
+		return userIds;
+	}
+
+	/**
+	 * Delegates the lookup of the providerUserIds possibly stored only
+	 */
+	@Override
+	public Set<String> findUserIdsConnectedTo(String providerId,
+			Set<String> providerUserIds) {
+		ConnectionKeyBloomFilter filter = this.filter;
+		if (filter == null) {
+			return delegate.findUserIdsConnectedTo(providerId, providerUserIds);
+		}
+		Set<String> storedProviderUserIds = new HashSet<String>();
+		for (String providerUserId : providerUserIds) {
+			if (filter.mightContain(new ConnectionKey(providerId,
+					providerUserId))) {
+				storedProviderUserIds.add(providerUserId);
+			}
+		}
+		if (storedProviderUserIds.isEmpty()) {
+			return new HashSet<String>();
+		}
+		return delegate.findUserIdsConnectedTo(providerId,
+				storedProviderUserIds);
+	}
+
+	@Override
+	public ConnectionRepository createConnectionRepository(String userId) {
+		if (userId == null) {
+			throw new IllegalArgumentException("userId cannot be null");
+		}
+		return new BloomFilterConnectionRepository(
+				delegate.createConnectionRepository(userId), this);
+	}
+
+	/**
+	 * @return the number of connection lookups answered without querying the
+	 *         delegate
+	 */
+	public long getShortCircuitedLookups() {
+		return shortCircuitedLookups.get();
+	}
+
+	/**
+	 * @return the number of connection lookups passed to the delegate
+	 */
+	public long getDelegatedLookups() {
+		return delegatedLookups.get();
+	}
+
+	/**
+	 * @return the number of connection lookups passed to the delegate which
+	 *         found no user
+	 */
+	public long getFalsePositives() {
+		return falsePositives.get();
+	}
+
+	/**
+	 * @return the proportion of the lookups of connections not stored which
+	 *         were passed to the delegate, or 0 if there were none
+	 */
+	public double getObservedFalsePositiveRate() {
+		long falsePositives = this.falsePositives.get();
+		long negatives = falsePositives + shortCircuitedLookups.get();
+		return negatives == 0 ? 0 : (double) falsePositives / negatives;
+	}
+
+	/**
+	 * @return the false positive probability of the current filter, estimated
+	 *         from its proportion of bits set, or 1 until first rebuilt
+	 */
+	public double getExpectedFalsePositiveProbability() {
+		ConnectionKeyBloomFilter filter = this.filter;
+		return filter == null ? 1 : filter.getExpectedFalsePositiveProbability();
+	}
+
+	/**
+	 * Registers the key of a connection about to be added, ahead of the
+	 * delegate storing it, so that a lookup never misses a stored connection;
+	 * {@link #registered(ConnectionKey)} must be called once the delegate has
+	 * stored it, or failed to
+	 */
+	void register(ConnectionKey connectionKey) {
+		synchronized (registrationLock) {
+			if (filter != null) {
+				filter.add(connectionKey);
+			}
+			if (rebuildingFilter != null) {
+				rebuildingFilter.add(connectionKey);
+			}
+			Integer pending = pendingConnectionKeys.get(connectionKey);
+			pendingConnectionKeys.put(connectionKey, pending == null ? 1
+					: pending + 1);
+		}
+	}
+
+	void registered(ConnectionKey connectionKey) {
+		synchronized (registrationLock) {
+			Integer pending = pendingConnectionKeys.get(connectionKey);
+			if (pending == 1) {
+				pendingConnectionKeys.remove(connectionKey);
+			} else {
+				pendingConnectionKeys.put(connectionKey, pending - 1);
+			}
+		}
+	}
+
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright 2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.social.extension.connect.cache;
+
+import java.util.List;
+
+import org.springframework.social.connect.Connection;
+import org.springframework.social.connect.ConnectionKey;
+import org.springframework.social.connect.ConnectionRepository;
+import org.springframework.social.extension.connect.DelegatingConnectionRepository;
+import org.springframework.social.extension.connect.inmemory.InMemoryConnectionRepository;
+import org.springframework.util.MultiValueMap;
+
+/**
+ * {@link ConnectionRepository} of a {@link CachingUsersConnectionRepository}:
+ * reads are served by the user's cached connections, while writes go to the
+ * delegate and then evict them.
+ * 
+ * @author Michael Lavelle
+ */
+class CachingConnectionRepository extends DelegatingConnectionRepository {
+
+	private final String userId;
+
+	private final CachingUsersConnectionRepository usersConnectionRepository;
+
+	CachingConnectionRepository(String userId, ConnectionRepository delegate,
+			CachingUsersConnectionRepository usersConnectionRepository) {
+		super(delegate);
+		this.userId = userId;
+		this.usersConnectionRepository = usersConnectionRepository;
+	}
+
+	@Override
+	public MultiValueMap<String, Connection<?>> findAllConnections() {
+		return getCachedConnectionRepository().findAllConnections();
+	}
+
+	@Override
+	public List<Connection<?>> findConnections(String providerId) {
+		return getCachedConnectionRepository().findConnections(providerId);
+	}
+
+	@Override
+	public <A> List<Connection<A>> findConnections(Class<A> apiType) {
+		return getCachedConnectionRepository().findConnections(apiType);
+	}
+
+	@Override
+	public MultiValueMap<String, Connection<?>> findConnectionsToUsers(
+			MultiValueMap<String, String> providerUserIds) {
+		return getCachedConnectionRepository().findConnectionsToUsers(
+				providerUserIds);
+	}
+
+	@Override
+	public Connection<?> getConnection(ConnectionKey connectionKey) {
+		return getCachedConnectionRepository().getConnection(connectionKey);
+	}
+
+	@Override
+	public <A> Connection<A> getConnection(Class<A> apiType,
+			String providerUserId) {
+		return getCachedConnectionRepository().getConnection(apiType,
+				providerUserId);
+	}
+
+	@Override
+	public <A> Connection<A> getPrimaryConnection(Class<A> apiType) {
+		return getCachedConnectionRepository().getPrimaryConnection(apiType);
+	}
+
+	@Override
+	public <A> Connection<A> findPrimaryConnection(Class<A> apiType) {
+		return getCachedConnectionRepository().findPrimaryConnection(apiType);
+	}
+
+	@Override
+	public void addConnection(Connection<?> connection) {
+		try {
+			delegate.addConnection(connection);
+		} finally {
+			usersConnectionRepository.evict(userId);
+		}
+	}
+
+	@Override
+	public void updateConnection(Connection<?> connection) {
+		try {
+			delegate.updateConnection(connection);
+		} finally {
+			usersConnectionRepository.evict(userId);
+		}
+	}
+
+	@Override
+	public void removeConnections(String providerId) {
+		try {
+			delegate.removeConnections(providerId);
+		} finally {
+			usersConnectionRepository.evict(userId);
+		}
+	}
+
+	@Override
+	public void removeConnection(ConnectionKey connectionKey) {
+		try {
+			delegate.removeConnection(connectionKey);
+		} finally {
+			usersConnectionRepository.evict(userId);
+		}
+	}
+
+	private InMemoryConnectionRepository getCachedConnectionRepository() {
+		return usersConnectionRepository.getCachedConnectionRepository(userId,
+				delegate);
+	}
+
+}
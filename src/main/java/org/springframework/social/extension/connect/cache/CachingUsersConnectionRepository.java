@@ -0,0 +1,327 @@
+/*
+ * Copyright 2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.social.extension.connect.cache;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.springframework.social.connect.Connection;
+import org.springframework.social.connect.ConnectionFactoryLocator;
+import org.springframework.social.connect.ConnectionKey;
+import org.springframework.social.connect.ConnectionRepository;
+import org.springframework.social.connect.UsersConnectionRepository;
+import org.springframework.social.extension.connect.DelegatingUsersConnectionRepository;
+import org.springframework.social.extension.connect.inmemory.InMemoryConnectionRepository;
+import org.springframework.social.extension.connect.inmemory.InMemoryProviderConnectionRepository;
+import org.springframework.social.extension.connect.metrics.CacheStatistics;
+
+/**
+ * Read-through cache in front of any {@link UsersConnectionRepository}, such
+ * as a JdbcUsersConnectionRepository: the first read of a user's connections
+ * loads all of them from the delegate into an
+ * {@link InMemoryConnectionRepository}, which serves the user's reads from
+ * the heap until it is evicted.
+ *
+ * Writes go through to the delegate, and evict the user's cached
+ * connections. Cached users are also evicted once more than the maximum
+ * number of users are cached, least recently used first, and are reloaded
+ * once older than the time to live, which bounds how stale a user's
+ * connections may be after a write made other than through this repository.
+ *
+ * @author Michael Lavelle
+ */
+public class CachingUsersConnectionRepository extends
+		DelegatingUsersConnectionRepository implements CacheStatistics {
+
+	private static final int MAX_SEGMENTS = 16;
+
+	private final ConnectionFactoryLocator connectionFactoryLocator;
+
+	private final Segment[] segments;
+
+	private volatile long timeToLive;
+
+	public CachingUsersConnectionRepository(UsersConnectionRepository delegate,
+			ConnectionFactoryLocator connectionFactoryLocator) {
+		this(delegate, connectionFactoryLocator, 10000);
+	}
+
+	/**
+	 * @param maximumUsers
+	 *            the approximate maximum number of users whose connections are
+	 *            cached, spread evenly over independently locked segments
+	 */
+	public CachingUsersConnectionRepository(UsersConnectionRepository delegate,
+			ConnectionFactoryLocator connectionFactoryLocator, int maximumUsers) {
+		super(delegate);
+		if (maximumUsers <= 0) {
+			throw new IllegalArgumentException(
+					"maximumUsers must be greater than 0");
+		}
+		this.connectionFactoryLocator = connectionFactoryLocator;
+		int segmentCount = Integer.highestOneBit(Math.min(MAX_SEGMENTS,
+				maximumUsers));
+		segments = new Segment[segmentCount];
+		for (int i = 0; i < segments.length; i++) {
+			segments[i] = new Segment(maximumUsers / segmentCount);
+		}
+	}
+
+	/**
+	 * The time in milliseconds after which a user's cached connections are
+	 * reloaded from the delegate. Defaults to 0, keeping them until evicted.
+	 */
+	public void setTimeToLive(long timeToLive) {
+		this.timeToLive = TimeUnit.MILLISECONDS.toNanos(timeToLive);
+	}
+
+	/**
+	 * Delegated; a user found to hold the connection, which the user's cached
+	 * connections do not, is evicted, as the connection may have been added
+	 * by the delegate's ConnectionSignUp.
+	 */
+	@Override
+	public List<String> findUserIdsWithConnection(Connection<?> connection) {
+		List<String> userIds = delegate.findUserIdsWithConnection(connection);
+		ConnectionKey key = connection.getKey();
+		for (String userId : userIds) {
+			CacheEntry entry = segmentFor(userId).get(userId);
+			if (entry != null) {
+				InMemoryProviderConnectionRepository providerConnectionRepository = entry.connectionRepository
+						.findInMemoryProviderConnectionRepository(key
+								.getProviderId());
+				if (providerConnectionRepository == null
+						|| !providerConnectionRepository.hasProviderUserId(key
+								.getProviderUserId())) {
+					evict(userId);
+				}
+			}
+		}
+		return userIds;
+	}
+
+	@Override
+	public ConnectionRepository createConnectionRepository(String userId) {
+		if (userId == null) {
+			throw new IllegalArgumentException("userId cannot be null");
+		}
+		return new CachingConnectionRepository(userId,
+				delegate.createConnectionRepository(userId), this);
+	}
+
+	/**
+	 * Discards the cached connections of the given user, for instance after
+	 * they were modified other than through this repository
+	 */
+	public void evict(String userId) {
+		segmentFor(userId).remove(userId);
+	}
+
+	public void evictAll() {
+		for (Segment segment : segments) {
+			segment.clear();
+		}
+	}
+
+	/**
+	 * @return the number of reads served from cached connections
+	 */
+	public long getHitCount() {
+		long hits = 0;
+		for (Segment segment : segments) {
+			hits += segment.getHits();
+		}
+		return hits;
+	}
+
+	/**
+	 * @return the number of reads which loaded the user's connections from
+	 *         the delegate
+	 */
+	public long getMissCount() {
+		long misses = 0;
+		for (Segment segment : segments) {
+			misses += segment.getMisses();
+		}
+		return misses;
+	}
+
+	/**
+	 * @return the number of entries discarded to keep within the maximum
+	 *         size
+	 */
+	public long getEvictionCount() {
+		long evictions = 0;
+		for (Segment segment : segments) {
+			evictions += segment.getCapacityEvictions();
+		}
+		return evictions;
+	}
+
+	/**
+	 * @return the cached connections of the given user, loaded from the given
+	 *         delegate repository of the user unless cached and still live
+	 */
+	InMemoryConnectionRepository getCachedConnectionRepository(String userId,
+			ConnectionRepository delegateConnectionRepository) {
+		Segment segment = segmentFor(userId);
+		long now = System.nanoTime();
+		CacheEntry entry = segment.getLive(userId, now, timeToLive);
+		if (entry != null) {
+			return entry.connectionRepository;
+		}
+		long evictions = segment.getEvictions();
+		InMemoryConnectionRepository connectionRepository = load(userId,
+				delegateConnectionRepository);
+		segment.put(userId, new CacheEntry(connectionRepository, now),
+				evictions);
+		return connectionRepository;
+	}
+
+	/**
+	 * Copies every connection of the user into a new in-memory repository,
+	 * ranked in the delegate's order
+	 */
+	private InMemoryConnectionRepository load(String userId,
+			ConnectionRepository delegateConnectionRepository) {
+		InMemoryConnectionRepository connectionRepository = new InMemoryConnectionRepository(
+				userId, connectionFactoryLocator);
+		for (List<Connection<?>> connections : delegateConnectionRepository
+				.findAllConnections().values()) {
+			int rank = 1;
+			for (Connection<?> connection : connections) {
+				connectionRepository.addConnectionData(connection.createData(),
+						rank++);
+			}
+		}
+		return connectionRepository;
+	}
+
+	private Segment segmentFor(String userId) {
+		int hash = userId.hashCode();
+		hash ^= (hash >>> 16);
+		return segments[hash & (segments.length - 1)];
+	}
+
+	private static class Segment {
+
+		private final Map<String, CacheEntry> entries;
+
+		/**
+		 * Counts evictions, so that a load racing a write does not cache the
+		 * connections read before the write
+		 */
+		private long evictions;
+
+		private long hits;
+
+		private long misses;
+
+		private long capacityEvictions;
+
+		Segment(final int maximumSize) {
+			entries = new LinkedHashMap<String, CacheEntry>(16, 0.75f, true) {
+
+				private static final long serialVersionUID = 1L;
+
+				@Override
+				protected boolean removeEldestEntry(
+						Map.Entry<String, CacheEntry> eldest) {
+					if (size() > maximumSize) {
+						capacityEvictions++;
+						return true;
+					}
+					return false;
+				}
+			};
+		}
+
+		synchronized CacheEntry get(String userId) {
+			return entries.get(userId);
+		}
+
+		/**
+		 * @return the entry of the given user unless absent or older than
+		 *         the given time to live, counting a hit or a miss
+		 */
+		synchronized CacheEntry getLive(String userId, long now,
+				long timeToLive) {
+			CacheEntry entry = entries.get(userId);
+			if (entry != null
+					&& (timeToLive <= 0 || now - entry.loadTime < timeToLive)) {
+				hits++;
+				return entry;
+			}
+			misses++;
+			return null;
+		}
+
+		synchronized long getHits() {
+			return hits;
+		}
+
+		synchronized long getMisses() {
+			return misses;
+		}
+
+		synchronized long getCapacityEvictions() {
+			return capacityEvictions;
+		}
+
+		synchronized long getEvictions() {
+			return evictions;
+		}
+
+		/**
+		 * Caches the given entry, unless an eviction happened since the
+		 * given count of evictions was read
+		 */
+		synchronized void put(String userId, CacheEntry entry,
+				long expectedEvictions) {
+			if (evictions == expectedEvictions) {
+				entries.put(userId, entry);
+			}
+		}
+
+		synchronized void remove(String userId) {
+			evictions++;
+			entries.remove(userId);
+		}
+
+		synchronized void clear() {
+			evictions++;
+			entries.clear();
+		}
+
+	}
+
+	private static class CacheEntry {
+
+		private final InMemoryConnectionRepository connectionRepository;
+
+		private final long loadTime;
+
+		CacheEntry(InMemoryConnectionRepository connectionRepository,
+				long loadTime) {
+			this.connectionRepository = connectionRepository;
+			this.loadTime = loadTime;
+		}
+
+	}
+
+}
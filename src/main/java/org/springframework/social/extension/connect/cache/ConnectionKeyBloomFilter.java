@@ -0,0 +1,163 @@
+/*
+ * Copyright 2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.social.extension.connect.cache;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.springframework.social.connect.ConnectionKey;
+
+/**
+ * Bloom filter over {@link ConnectionKey}s: {@link #mightContain(ConnectionKey)}
+ * never returns false for a key added, and returns true for a key never added
+ * with a probability growing with the number of keys added, which is the
+ * configured false positive probability once the expected number of keys
+ * were added.
+ * 
+ * Keys are hashed once to 64 bits, from which a second hash is derived, and
+ * the bit positions are combinations of the two hashes. Safe for concurrent
+ * use without locking: bits are set by compare-and-set, and never cleared, so
+ * keys cannot be removed.
+ * 
+ * @author Michael Lavelle
+ */
+public class ConnectionKeyBloomFilter {
+
+	private final AtomicLongArray bits;
+
+	private final long bitCount;
+
+	private final int hashCount;
+
+	private final AtomicLong bitsSet = new AtomicLong();
+
+	/**
+	 * @param expectedKeys
+	 *            the number of keys expected to be added
+	 * @param falsePositiveProbability
+	 *            the probability of a key never added being reported as
+	 *            possibly contained, once the expected number of keys were
+	 *            added
+	 */
+	public ConnectionKeyBloomFilter(long expectedKeys,
+			double falsePositiveProbability) {
+		if (expectedKeys <= 0) {
+			throw new IllegalArgumentException(
+					"expectedKeys must be greater than 0");
+		}
+		if (falsePositiveProbability <= 0 || falsePositiveProbability >= 1) {
+			throw new IllegalArgumentException(
+					"falsePositiveProbability must be between 0 and 1");
+		}
+		long optimalBitCount = (long) Math.ceil(-expectedKeys
+				* Math.log(falsePositiveProbability)
+				/ (Math.log(2) * Math.log(2)));
+		int wordCount = (int) Math.min(Integer.MAX_VALUE,
+				(optimalBitCount + 63) / 64);
+		this.bits = new AtomicLongArray(wordCount);
+		this.bitCount = (long) wordCount * 64;
+		this.hashCount = Math.max(1,
+				(int) Math.round((double) bitCount / expectedKeys * Math.log(2)));
+	}
+
+	public void add(ConnectionKey connectionKey) {
+		long hash1 = hash(connectionKey);
+		long hash2 = mix(hash1 ^ 0x9e3779b97f4a7c15L);
+		for (int i = 1; i <= hashCount; i++) {
+			setBit(index(hash1, hash2, i));
+		}
+	}
+
+	/**
+	 * @return false if the given key was certainly never added, true if it
+	 *         may have been
+	 */
+	public boolean mightContain(ConnectionKey connectionKey) {
+		long hash1 = hash(connectionKey);
+		long hash2 = mix(hash1 ^ 0x9e3779b97f4a7c15L);
+		for (int i = 1; i <= hashCount; i++) {
+			long index = index(hash1, hash2, i);
+			if ((bits.get((int) (index >>> 6)) & (1L << index)) == 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	public long getBitCount() {
+		return bitCount;
+	}
+
+	public int getHashCount() {
+		return hashCount;
+	}
+
+	/**
+	 * @return the probability of a key never added being reported as possibly
+	 *         contained, estimated from the proportion of bits set
+	 */
+	public double getExpectedFalsePositiveProbability() {
+		return Math.pow((double) bitsSet.get() / bitCount, hashCount);
+	}
+
+	private long index(long hash1, long hash2, int i) {
+		return ((hash1 + i * hash2) & Long.MAX_VALUE) % bitCount;
+	}
+
+	private void setBit(long index) {
+		int word = (int) (index >>> 6);
+		long mask = 1L << index;
+		while (true) {
+			long current = bits.get(word);
+			if ((current & mask) != 0) {
+				return;
+			}
+			if (bits.compareAndSet(word, current, current | mask)) {
+				bitsSet.incrementAndGet();
+				return;
+			}
+		}
+	}
+
+	/**
+	 * 64 bit FNV-1a hash of the providerId and providerUserId, finalized with
+	 * the MurmurHash3 mix so that every bit of the result is well distributed
+	 */
+	private static long hash(ConnectionKey connectionKey) {
+		long hash = 0xcbf29ce484222325L;
+		hash = hash(hash, connectionKey.getProviderId());
+		hash = (hash ^ 0xFFFF) * 0x100000001b3L;
+		hash = hash(hash, connectionKey.getProviderUserId());
+		return mix(hash);
+	}
+
+	private static long mix(long hash) {
+		hash ^= hash >>> 33;
+		hash *= 0xff51afd7ed558ccdL;
+		hash ^= hash >>> 33;
+		hash *= 0xc4ceb9fe1a85ec53L;
+		hash ^= hash >>> 33;
+		return hash;
+	}
+
+	private static long hash(long hash, String value) {
+		for (int i = 0; i < value.length(); i++) {
+			hash = (hash ^ value.charAt(i)) * 0x100000001b3L;
+		}
+		return hash;
+	}
+
+}
@@ -0,0 +1,226 @@
+/*
+ * Copyright 2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.social.extension.connect.inmemory;
+
+import java.nio.charset.Charset;
+
+import org.springframework.social.connect.ConnectionData;
+
+/**
+ * {@link ConnectionData} stored in compact form by an
+ * {@link InMemoryConnectionDataInterner}: the providerId and providerUserId,
+ * read on every lookup, are held as strings, while the other string fields
+ * are encoded as UTF-8 into one byte array, each preceded by its length plus
+ * one as a variable-length int (0 for null), and decoded on every read. The
+ * prefixes of the profile and image URLs are shared between connections, and
+ * only their remainder encoded. The fields inherited are all null.
+ * 
+ * Serialized as a plain {@link ConnectionData}.
+ * 
+ * @author Michael Lavelle
+ */
+final class CompactConnectionData extends ConnectionData {
+
+	private static final long serialVersionUID = 1L;
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	static final int DISPLAY_NAME = 0;
+
+	static final int PROFILE_URL = 1;
+
+	static final int IMAGE_URL = 2;
+
+	static final int ACCESS_TOKEN = 3;
+
+	static final int SECRET = 4;
+
+	static final int REFRESH_TOKEN = 5;
+
+	static final int FIELD_COUNT = 6;
+
+	static final long NO_EXPIRE_TIME = Long.MIN_VALUE;
+
+	private final String providerId;
+
+	private final String providerUserId;
+
+	private final String profileUrlPrefix;
+
+	private final String imageUrlPrefix;
+
+	private final byte[] fields;
+
+	private final long expireTime;
+
+	CompactConnectionData(String providerId, ConnectionData connectionData,
+			InMemoryConnectionDataInterner connectionDataInterner) {
+		super(null, null, null, null, null, null, null, null, null);
+		this.providerId = providerId;
+		this.providerUserId = connectionData.getProviderUserId();
+		String profileUrl = connectionData.getProfileUrl();
+		String imageUrl = connectionData.getImageUrl();
+		this.profileUrlPrefix = urlPrefix(profileUrl, connectionDataInterner);
+		this.imageUrlPrefix = urlPrefix(imageUrl, connectionDataInterner);
+		byte[][] encodedFields = new byte[FIELD_COUNT][];
+		encodedFields[DISPLAY_NAME] = encode(connectionData.getDisplayName());
+		encodedFields[PROFILE_URL] = encode(urlSuffix(profileUrl,
+				profileUrlPrefix));
+		encodedFields[IMAGE_URL] = encode(urlSuffix(imageUrl, imageUrlPrefix));
+		encodedFields[ACCESS_TOKEN] = encode(connectionData.getAccessToken());
+		encodedFields[SECRET] = encode(connectionData.getSecret());
+		encodedFields[REFRESH_TOKEN] = encode(connectionData.getRefreshToken());
+		this.fields = pack(encodedFields);
+		Long expireTime = connectionData.getExpireTime();
+		this.expireTime = expireTime != null ? expireTime : NO_EXPIRE_TIME;
+	}
+
+	@Override
+	public String getProviderId() {
+		return providerId;
+	}
+
+	@Override
+	public String getProviderUserId() {
+		return providerUserId;
+	}
+
+	@Override
+	public String getDisplayName() {
+		return decode(fields, DISPLAY_NAME);
+	}
+
+	@Override
+	public String getProfileUrl() {
+		return decodeUrl(PROFILE_URL, profileUrlPrefix);
+	}
+
+	@Override
+	public String getImageUrl() {
+		return decodeUrl(IMAGE_URL, imageUrlPrefix);
+	}
+
+	@Override
+	public String getAccessToken() {
+		return decode(fields, ACCESS_TOKEN);
+	}
+
+	@Override
+	public String getSecret() {
+		return decode(fields, SECRET);
+	}
+
+	@Override
+	public String getRefreshToken() {
+		return decode(fields, REFRESH_TOKEN);
+	}
+
+	@Override
+	public Long getExpireTime() {
+		return expireTime != NO_EXPIRE_TIME ? expireTime : null;
+	}
+
+	private Object writeReplace() {
+		return new ConnectionData(getProviderId(), getProviderUserId(),
+				getDisplayName(), getProfileUrl(), getImageUrl(),
+				getAccessToken(), getSecret(), getRefreshToken(),
+				getExpireTime());
+	}
+
+	private String decodeUrl(int field, String urlPrefix) {
+		String urlSuffix = decode(fields, field);
+		return urlPrefix == null ? urlSuffix : urlPrefix + urlSuffix;
+	}
+
+	/**
+	 * @return the given field of the given packed fields
+	 * @see #pack(byte[][])
+	 */
+	static String decode(byte[] fields, int field) {
+		int offset = 0;
+		for (int i = 0;; i++) {
+			int length = 0;
+			int shift = 0;
+			byte b;
+			do {
+				b = fields[offset++];
+				length |= (b & 0x7f) << shift;
+				shift += 7;
+			} while (b < 0);
+			if (i == field) {
+				return length == 0 ? null : new String(fields, offset,
+						length - 1, UTF_8);
+			}
+			offset += Math.max(0, length - 1);
+		}
+	}
+
+	private static String urlPrefix(String url,
+			InMemoryConnectionDataInterner connectionDataInterner) {
+		if (url == null) {
+			return null;
+		}
+		int end = url.lastIndexOf('/') + 1;
+		return end > 0 ? connectionDataInterner.internUrlPrefix(url.substring(
+				0, end)) : null;
+	}
+
+	private static String urlSuffix(String url, String urlPrefix) {
+		return urlPrefix == null ? url : url.substring(urlPrefix.length());
+	}
+
+	static byte[] encode(String field) {
+		return field == null ? null : field.getBytes(UTF_8);
+	}
+
+	/**
+	 * @return the given UTF-8 encoded fields, null for null, each preceded by
+	 *         its length plus one
+	 */
+	static byte[] pack(byte[][] encodedFields) {
+		int size = 0;
+		for (byte[] encodedField : encodedFields) {
+			int length = encodedField == null ? 0 : encodedField.length + 1;
+			size += varIntSize(length) + Math.max(0, length - 1);
+		}
+		byte[] packed = new byte[size];
+		int offset = 0;
+		for (byte[] encodedField : encodedFields) {
+			int length = encodedField == null ? 0 : encodedField.length + 1;
+			while ((length & ~0x7f) != 0) {
+				packed[offset++] = (byte) ((length & 0x7f) | 0x80);
+				length >>>= 7;
+			}
+			packed[offset++] = (byte) length;
+			if (encodedField != null) {
+				System.arraycopy(encodedField, 0, packed, offset,
+						encodedField.length);
+				offset += encodedField.length;
+			}
+		}
+		return packed;
+	}
+
+	private static int varIntSize(int value) {
+		int size = 1;
+		while ((value & ~0x7f) != 0) {
+			value >>>= 7;
+			size++;
+		}
+		return size;
+	}
+
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright 2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.social.extension.connect.inmemory;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import org.springframework.social.connect.ConnectionData;
+
+/**
+ * {@link RankedConnectionStorage} for the few connections most users hold to
+ * a provider: a sorted array of int ranks in parallel with an array of
+ * {@link ConnectionData}, never modified but replaced on every mutation, so
+ * that readers always see a consistent pair without locking.
+ * 
+ * Lookups by providerUserId scan the array, which for a handful of
+ * connections is faster than hashing. Past {@link #MAXIMUM_SIZE}
+ * connections, a mutation returns a {@link TreeRankedConnectionStorage}
+ * instead.
+ * 
+ * @author Michael Lavelle
+ */
+final class CompactRankedConnectionStorage implements RankedConnectionStorage {
+
+	/**
+	 * The number of connections beyond which copying the arrays on every
+	 * mutation and scanning them costs more than a tree
+	 */
+	static final int MAXIMUM_SIZE = 8;
+
+	static final CompactRankedConnectionStorage EMPTY = new CompactRankedConnectionStorage(
+			new int[0], new ConnectionData[0]);
+
+	private final int[] ranks;
+
+	private final ConnectionData[] connectionData;
+
+	private CompactRankedConnectionStorage(int[] ranks,
+			ConnectionData[] connectionData) {
+		this.ranks = ranks;
+		this.connectionData = connectionData;
+	}
+
+	/**
+	 * @return a compact storage holding the given connections
+	 */
+	static CompactRankedConnectionStorage copyOf(
+			SortedMap<Integer, ConnectionData> connectionDataByRank) {
+		int[] ranks = new int[connectionDataByRank.size()];
+		ConnectionData[] connectionData = new ConnectionData[ranks.length];
+		int i = 0;
+		for (SortedMap.Entry<Integer, ConnectionData> connection : connectionDataByRank
+				.entrySet()) {
+			ranks[i] = connection.getKey();
+			connectionData[i++] = connection.getValue();
+		}
+		return new CompactRankedConnectionStorage(ranks, connectionData);
+	}
+
+	public int size() {
+		return ranks.length;
+	}
+
+	public ConnectionData findByRank(int rank) {
+		int index = Arrays.binarySearch(ranks, rank);
+		return index >= 0 ? connectionData[index] : null;
+	}
+
+	public int findRank(String providerUserId) {
+		int index = indexOf(providerUserId);
+		return index >= 0 ? ranks[index] : NO_RANK;
+	}
+
+	public ConnectionData findByProviderUserId(String providerUserId) {
+		int index = indexOf(providerUserId);
+		return index >= 0 ? connectionData[index] : null;
+	}
+
+	public List<ConnectionData> findAll() {
+		return Collections.unmodifiableList(Arrays.asList(connectionData));
+	}
+
+	public SortedMap<Integer, ConnectionData> findAllByRank() {
+		SortedMap<Integer, ConnectionData> connectionDataByRank = new TreeMap<Integer, ConnectionData>();
+		for (int i = 0; i < ranks.length; i++) {
+			connectionDataByRank.put(ranks[i], connectionData[i]);
+		}
+		return connectionDataByRank;
+	}
+
+	public RankedConnectionStorage put(int rank, ConnectionData connectionData) {
+		int index = Arrays.binarySearch(ranks, rank);
+		if (index >= 0) {
+			ConnectionData[] updatedConnectionData = this.connectionData
+					.clone();
+			updatedConnectionData[index] = connectionData;
+			return new CompactRankedConnectionStorage(ranks,
+					updatedConnectionData);
+		}
+		if (ranks.length == MAXIMUM_SIZE) {
+			return new TreeRankedConnectionStorage(findAllByRank()).put(rank,
+					connectionData);
+		}
+		int insertionPoint = -index - 1;
+		int[] updatedRanks = new int[ranks.length + 1];
+		ConnectionData[] updatedConnectionData = new ConnectionData[ranks.length + 1];
+		System.arraycopy(ranks, 0, updatedRanks, 0, insertionPoint);
+		System.arraycopy(this.connectionData, 0, updatedConnectionData, 0,
+				insertionPoint);
+		updatedRanks[insertionPoint] = rank;
+		updatedConnectionData[insertionPoint] = connectionData;
+		System.arraycopy(ranks, insertionPoint, updatedRanks,
+				insertionPoint + 1, ranks.length - insertionPoint);
+		System.arraycopy(this.connectionData, insertionPoint,
+				updatedConnectionData, insertionPoint + 1, ranks.length
+						- insertionPoint);
+		return new CompactRankedConnectionStorage(updatedRanks,
+				updatedConnectionData);
+	}
+
+	public RankedConnectionStorage remove(int rank) {
+		int index = Arrays.binarySearch(ranks, rank);
+		if (index < 0) {
+			return this;
+		}
+		if (ranks.length == 1) {
+			return EMPTY;
+		}
+		int[] updatedRanks = new int[ranks.length - 1];
+		ConnectionData[] updatedConnectionData = new ConnectionData[ranks.length - 1];
+		System.arraycopy(ranks, 0, updatedRanks, 0, index);
+		System.arraycopy(connectionData, 0, updatedConnectionData, 0, index);
+		System.arraycopy(ranks, index + 1, updatedRanks, index, ranks.length
+				- index - 1);
+		System.arraycopy(connectionData, index + 1, updatedConnectionData,
+				index, ranks.length - index - 1);
+		return new CompactRankedConnectionStorage(updatedRanks,
+				updatedConnectionData);
+	}
+
+	private int indexOf(String providerUserId) {
+		for (int i = 0; i < connectionData.length; i++) {
+			if (providerUserId.equals(connectionData[i].getProviderUserId())) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+}
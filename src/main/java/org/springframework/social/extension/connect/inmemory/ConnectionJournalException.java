@@ -0,0 +1,33 @@
+/*
+ * Copyright 2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.social.extension.connect.inmemory;
+
+import org.springframework.social.connect.ConnectionRepositoryException;
+
+/**
+ * Thrown when an {@link InMemoryConnectionJournal} fails to make a mutation
+ * durable. The mutation has already been applied in memory.
+ * 
+ * @author Michael Lavelle
+ */
+@SuppressWarnings("serial")
+public class ConnectionJournalException extends ConnectionRepositoryException {
+
+	public ConnectionJournalException(String message, Throwable cause) {
+		super(message, cause);
+	}
+
+}
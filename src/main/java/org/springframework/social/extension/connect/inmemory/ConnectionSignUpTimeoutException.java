@@ -0,0 +1,51 @@
+/*
+ * Copyright 2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.social.extension.connect.inmemory;
+
+import org.springframework.social.connect.ConnectionKey;
+import org.springframework.social.connect.ConnectionRepositoryException;
+
+/**
+ * Thrown when a sign-in gives up waiting for a concurrent
+ * {@link org.springframework.social.connect.ConnectionSignUp} of the same
+ * connection to complete.
+ * 
+ * @author Michael Lavelle
+ */
+@SuppressWarnings("serial")
+public class ConnectionSignUpTimeoutException extends
+		ConnectionRepositoryException {
+
+	private final ConnectionKey connectionKey;
+
+	public ConnectionSignUpTimeoutException(ConnectionKey connectionKey) {
+		super("Timed out waiting for the sign-up of connection "
+				+ connectionKey);
+		this.connectionKey = connectionKey;
+	}
+
+	public ConnectionSignUpTimeoutException(ConnectionKey connectionKey,
+			Throwable cause) {
+		super("Interrupted waiting for the sign-up of connection "
+				+ connectionKey, cause);
+		this.connectionKey = connectionKey;
+	}
+
+	public ConnectionKey getConnectionKey() {
+		return connectionKey;
+	}
+
+}
@@ -0,0 +1,247 @@
+/*
+ * Copyright 2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.social.extension.connect.inmemory;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.springframework.social.connect.Connection;
+import org.springframework.social.connect.ConnectionData;
+import org.springframework.social.connect.ConnectionKey;
+import org.springframework.social.extension.connect.metrics.CacheStatistics;
+
+/**
+ * Bounded, least-recently-used cache of the {@link Connection}s materialized
+ * by {@link InMemoryConnectionRepository}, so that repeated reads of a user's
+ * connections reuse them instead of rebuilding each connection and its API
+ * binding.
+ *
+ * Each entry remembers the {@link ConnectionData} instance it was created
+ * from, and is only returned for that same instance: a connection whose
+ * stored data has since been replaced is never served, even if it was not
+ * explicitly evicted.
+ *
+ * Cached connections are shared between callers, including their mutable
+ * state, which is why caching is opt-in.
+ *
+ * @author Michael Lavelle
+ */
+public class InMemoryConnectionCache implements CacheStatistics {
+
+	private static final int SEGMENTS = 16;
+
+	private final Segment[] segments = new Segment[SEGMENTS];
+
+	/**
+	 * @param maximumSize
+	 *            the approximate maximum number of connections held, spread
+	 *            evenly over independently locked segments
+	 */
+	public InMemoryConnectionCache(int maximumSize) {
+		if (maximumSize <= 0) {
+			throw new IllegalArgumentException(
+					"maximumSize must be greater than 0");
+		}
+		int segmentSize = Math.max(1, maximumSize / SEGMENTS);
+		for (int i = 0; i < segments.length; i++) {
+			segments[i] = new Segment(segmentSize);
+		}
+	}
+
+	/**
+	 * @return the connection cached for the given user's connection data, or
+	 *         null if none was cached for this exact instance
+	 */
+	public Connection<?> get(String userId, ConnectionData connectionData) {
+		CacheKey key = new CacheKey(userId, connectionData.getProviderId(),
+				connectionData.getProviderUserId());
+		return segmentFor(key).get(key, connectionData);
+	}
+
+	public void put(String userId, ConnectionData connectionData,
+			Connection<?> connection) {
+		CacheKey key = new CacheKey(userId, connectionData.getProviderId(),
+				connectionData.getProviderUserId());
+		segmentFor(key).put(key, new CacheEntry(connectionData, connection));
+	}
+
+	public void evict(String userId, ConnectionKey connectionKey) {
+		CacheKey key = new CacheKey(userId, connectionKey.getProviderId(),
+				connectionKey.getProviderUserId());
+		segmentFor(key).remove(key);
+	}
+
+	public void clear() {
+		for (Segment segment : segments) {
+			segment.clear();
+		}
+	}
+
+	public long getHitCount() {
+		long hits = 0;
+		for (Segment segment : segments) {
+			hits += segment.getHits();
+		}
+		return hits;
+	}
+
+	public long getMissCount() {
+		long misses = 0;
+		for (Segment segment : segments) {
+			misses += segment.getMisses();
+		}
+		return misses;
+	}
+
+	/**
+	 * @return the number of entries discarded to keep within the maximum
+	 *         size
+	 */
+	public long getEvictionCount() {
+		long evictions = 0;
+		for (Segment segment : segments) {
+			evictions += segment.getCapacityEvictions();
+		}
+		return evictions;
+	}
+
+	private Segment segmentFor(CacheKey key) {
+		int hash = key.hashCode();
+		hash ^= (hash >>> 16);
+		return segments[hash & (SEGMENTS - 1)];
+	}
+
+	private static class Segment {
+
+		private final Map<CacheKey, CacheEntry> entries;
+
+		private long hits;
+
+		private long misses;
+
+		private long capacityEvictions;
+
+		Segment(final int maximumSize) {
+			entries = new LinkedHashMap<CacheKey, CacheEntry>(16, 0.75f, true) {
+
+				private static final long serialVersionUID = 1L;
+
+				@Override
+				protected boolean removeEldestEntry(
+						Map.Entry<CacheKey, CacheEntry> eldest) {
+					if (size() > maximumSize) {
+						capacityEvictions++;
+						return true;
+					}
+					return false;
+				}
+			};
+		}
+
+		/**
+		 * @return the connection cached for the given data, counting a hit,
+		 *         or null if none is, counting a miss
+		 */
+		synchronized Connection<?> get(CacheKey key,
+				ConnectionData connectionData) {
+			CacheEntry entry = entries.get(key);
+			if (entry != null && entry.connectionData == connectionData) {
+				hits++;
+				return entry.connection;
+			}
+			misses++;
+			return null;
+		}
+
+		synchronized long getHits() {
+			return hits;
+		}
+
+		synchronized long getMisses() {
+			return misses;
+		}
+
+		synchronized long getCapacityEvictions() {
+			return capacityEvictions;
+		}
+
+		synchronized void put(CacheKey key, CacheEntry entry) {
+			entries.put(key, entry);
+		}
+
+		synchronized void remove(CacheKey key) {
+			entries.remove(key);
+		}
+
+		synchronized void clear() {
+			entries.clear();
+		}
+
+	}
+
+	private static class CacheEntry {
+
+		private final ConnectionData connectionData;
+
+		private final Connection<?> connection;
+
+		CacheEntry(ConnectionData connectionData, Connection<?> connection) {
+			this.connectionData = connectionData;
+			this.connection = connection;
+		}
+
+	}
+
+	private static class CacheKey {
+
+		private final String userId;
+
+		private final String providerId;
+
+		private final String providerUserId;
+
+		CacheKey(String userId, String providerId, String providerUserId) {
+			this.userId = userId;
+			this.providerId = providerId;
+			this.providerUserId = providerUserId;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (this == o) {
+				return true;
+			}
+			if (!(o instanceof CacheKey)) {
+				return false;
+			}
+			CacheKey other = (CacheKey) o;
+			return userId.equals(other.userId)
+					&& providerId.equals(other.providerId)
+					&& (providerUserId == null ? other.providerUserId == null
+							: providerUserId.equals(other.providerUserId));
+		}
+
+		@Override
+		public int hashCode() {
+			int hash = userId.hashCode();
+			hash = 31 * hash + providerId.hashCode();
+			return 31 * hash
+					+ (providerUserId == null ? 0 : providerUserId.hashCode());
+		}
+
+	}
+
+}
@@ -0,0 +1,178 @@
+/*
+ * Copyright 2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.social.extension.connect.inmemory;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.springframework.social.connect.ConnectionData;
+import org.springframework.social.connect.ConnectionFactoryLocator;
+
+/**
+ * Reduces the heap held by the {@link ConnectionData} stored in an
+ * {@link InMemoryUsersConnectionRepository}, which with millions of
+ * connections is mostly made of duplicated strings.
+ * 
+ * The providerId of every connection stored is replaced by the instance
+ * registered with the {@link ConnectionFactoryLocator}, so that all the
+ * connections to a provider share one string. Optionally, connections are
+ * also stored in a compact form: their other fields are encoded as UTF-8 into
+ * a single byte array, sharing the URL prefixes (up to the last '/') of their
+ * profile and image URLs, and decoded whenever read. Compact connections are
+ * {@link ConnectionData} themselves, so that nothing else changes for their
+ * readers, at the cost of decoding on every getter call. Connections may
+ * instead be stored off the heap, in an {@link OffHeapConnectionStore}.
+ * 
+ * @author Michael Lavelle
+ */
+public class InMemoryConnectionDataInterner {
+
+	private final ConnectionFactoryLocator connectionFactoryLocator;
+
+	private final ConcurrentMap<String, String> providerIds = new ConcurrentHashMap<String, String>();
+
+	private final ConcurrentMap<String, String> urlPrefixes = new ConcurrentHashMap<String, String>();
+
+	private volatile int maximumUrlPrefixes = 4096;
+
+	private volatile boolean compact;
+
+	private volatile OffHeapConnectionStore offHeapConnectionStore;
+
+	public InMemoryConnectionDataInterner(
+			ConnectionFactoryLocator connectionFactoryLocator) {
+		this.connectionFactoryLocator = connectionFactoryLocator;
+	}
+
+	/**
+	 * Whether connections are stored in their compact form. Applies to the
+	 * connections stored from then on. Defaults to false.
+	 */
+	public void setCompact(boolean compact) {
+		this.compact = compact;
+	}
+
+	public boolean isCompact() {
+		return compact;
+	}
+
+	/**
+	 * The store to store connections in, taking precedence over their
+	 * compact form. Applies to the connections stored from then on. Defaults
+	 * to null, storing connections on the heap.
+	 */
+	public void setOffHeapConnectionStore(
+			OffHeapConnectionStore offHeapConnectionStore) {
+		this.offHeapConnectionStore = offHeapConnectionStore;
+	}
+
+	public OffHeapConnectionStore getOffHeapConnectionStore() {
+		return offHeapConnectionStore;
+	}
+
+	/**
+	 * The maximum number of distinct URL prefixes shared, beyond which new
+	 * prefixes are stored with each connection, so that URLs without a common
+	 * prefix do not grow the table without bound. Defaults to 4096.
+	 */
+	public void setMaximumUrlPrefixes(int maximumUrlPrefixes) {
+		this.maximumUrlPrefixes = maximumUrlPrefixes;
+	}
+
+	/**
+	 * @return the number of distinct URL prefixes shared
+	 */
+	public int getUrlPrefixCount() {
+		return urlPrefixes.size();
+	}
+
+	/**
+	 * @return the registered instance of the given providerId, or the given
+	 *         providerId if it is not registered
+	 */
+	public String internProviderId(String providerId) {
+		String registeredProviderId = providerIds.get(providerId);
+		if (registeredProviderId == null) {
+			// providers may have been registered since
+			for (String id : connectionFactoryLocator.registeredProviderIds()) {
+				providerIds.putIfAbsent(id, id);
+			}
+			registeredProviderId = providerIds.get(providerId);
+		}
+		return registeredProviderId != null ? registeredProviderId
+				: providerId;
+	}
+
+	/**
+	 * @return the connection to store in place of the given one: the given
+	 *         connection itself if already interned, otherwise an equivalent
+	 *         connection holding the registered providerId, off the heap or
+	 *         in compact form if enabled
+	 */
+	public ConnectionData intern(ConnectionData connectionData) {
+		OffHeapConnectionStore offHeapConnectionStore = this.offHeapConnectionStore;
+		if (offHeapConnectionStore != null) {
+			// each record is freed once, so never shared by two repositories
+			return offHeapConnectionStore.store(
+					internProviderId(connectionData.getProviderId()),
+					connectionData);
+		}
+		if (connectionData instanceof CompactConnectionData) {
+			return connectionData;
+		}
+		String providerId = internProviderId(connectionData.getProviderId());
+		if (compact) {
+			return new CompactConnectionData(providerId, connectionData, this);
+		}
+		if (providerId == connectionData.getProviderId()) {
+			return connectionData;
+		}
+		return new ConnectionData(providerId,
+				connectionData.getProviderUserId(),
+				connectionData.getDisplayName(),
+				connectionData.getProfileUrl(), connectionData.getImageUrl(),
+				connectionData.getAccessToken(), connectionData.getSecret(),
+				connectionData.getRefreshToken(),
+				connectionData.getExpireTime());
+	}
+
+	/**
+	 * Releases the resources held by the given connection returned by
+	 * {@link #intern(ConnectionData)}, once no longer stored
+	 */
+	public void release(ConnectionData connectionData) {
+		if (connectionData instanceof OffHeapConnectionData) {
+			((OffHeapConnectionData) connectionData).free();
+		}
+	}
+
+	/**
+	 * @return the shared instance of the given URL prefix, or the given prefix
+	 *         if the maximum number of prefixes are shared already
+	 */
+	String internUrlPrefix(String urlPrefix) {
+		String sharedUrlPrefix = urlPrefixes.get(urlPrefix);
+		if (sharedUrlPrefix != null) {
+			return sharedUrlPrefix;
+		}
+		if (urlPrefixes.size() >= maximumUrlPrefixes) {
+			return urlPrefix;
+		}
+		sharedUrlPrefix = urlPrefixes.putIfAbsent(urlPrefix, urlPrefix);
+		return sharedUrlPrefix != null ? sharedUrlPrefix : urlPrefix;
+	}
+
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright 2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.social.extension.connect.inmemory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+import org.springframework.social.connect.ConnectionData;
+import org.springframework.social.connect.ConnectionKey;
+
+/**
+ * Index of the connections which can be refreshed, ordered by expireTime, so
+ * that the connections expiring within a time window are found without
+ * visiting every user's connections. Maintained by the
+ * {@link InMemoryProviderConnectionRepository}s sharing it on every add,
+ * update and removal; connections without an expireTime or a refresh token
+ * are not indexed.
+ * 
+ * The index is safe for concurrent use without locking.
+ * 
+ * @author Michael Lavelle
+ */
+public class InMemoryConnectionExpiryIndex {
+
+	private final ConcurrentSkipListSet<ExpiringConnection> expiringConnections = new ConcurrentSkipListSet<ExpiringConnection>();
+
+	public void add(String userId, ConnectionData connectionData) {
+		if (isRefreshable(connectionData)) {
+			expiringConnections.add(new ExpiringConnection(userId,
+					connectionData));
+		}
+	}
+
+	public void remove(String userId, ConnectionData connectionData) {
+		if (isRefreshable(connectionData)) {
+			expiringConnections.remove(new ExpiringConnection(userId,
+					connectionData));
+		}
+	}
+
+	/**
+	 * @return the connections expiring before the given time, in milliseconds
+	 *         since the epoch, soonest first
+	 */
+	public List<ExpiringConnection> findExpiringBefore(long expireTime) {
+		return new ArrayList<ExpiringConnection>(
+				expiringConnections.headSet(new ExpiringConnection("",
+						new ConnectionKey("", ""), expireTime)));
+	}
+
+	public int size() {
+		return expiringConnections.size();
+	}
+
+	private static boolean isRefreshable(ConnectionData connectionData) {
+		return connectionData.getExpireTime() != null
+				&& connectionData.getRefreshToken() != null;
+	}
+
+	/**
+	 * The key of an indexed connection, with the user holding it and the
+	 * expireTime it was indexed with
+	 */
+	public static class ExpiringConnection implements
+			Comparable<ExpiringConnection> {
+
+		private final String userId;
+
+		private final ConnectionKey connectionKey;
+
+		private final long expireTime;
+
+		ExpiringConnection(String userId, ConnectionData connectionData) {
+			this(userId, new ConnectionKey(connectionData.getProviderId(),
+					connectionData.getProviderUserId()), connectionData
+					.getExpireTime());
+		}
+
+		ExpiringConnection(String userId, ConnectionKey connectionKey,
+				long expireTime) {
+			this.userId = userId;
+			this.connectionKey = connectionKey;
+			this.expireTime = expireTime;
+		}
+
+		public String getUserId() {
+			return userId;
+		}
+
+		public ConnectionKey getConnectionKey() {
+			return connectionKey;
+		}
+
+		public long getExpireTime() {
+			return expireTime;
+		}
+
+		public int compareTo(ExpiringConnection other) {
+			if (expireTime != other.expireTime) {
+				return expireTime < other.expireTime ? -1 : 1;
+			}
+			int comparison = userId.compareTo(other.userId);
+			if (comparison == 0) {
+				comparison = connectionKey.getProviderId().compareTo(
+						other.connectionKey.getProviderId());
+			}
+			if (comparison == 0) {
+				comparison = connectionKey.getProviderUserId().compareTo(
+						other.connectionKey.getProviderUserId());
+			}
+			return comparison;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			return o instanceof ExpiringConnection
+					&& compareTo((ExpiringConnection) o) == 0;
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * (31 * userId.hashCode() + connectionKey.hashCode())
+					+ (int) (expireTime ^ (expireTime >>> 32));
+		}
+
+	}
+
+}
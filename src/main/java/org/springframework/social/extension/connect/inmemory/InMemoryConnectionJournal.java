@@ -0,0 +1,660 @@
+/*
+ * Copyright 2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.social.extension.connect.inmemory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.social.connect.ConnectionData;
+import org.springframework.social.connect.ConnectionKey;
+
+/**
+ * Optional durability for an {@link InMemoryUsersConnectionRepository}: every
+ * mutation is appended to a write-ahead log, and the repository is written
+ * to a compact snapshot which replaces the log, on demand or periodically.
+ * Opening the journal on an empty repository at startup restores the state
+ * left by the previous run, by loading the snapshot and replaying the log
+ * written since.
+ *
+ * How often the log is forced to disk is set by its {@link FsyncPolicy}. A
+ * record torn by a crash at the tail of the log is discarded on recovery.
+ *
+ * The journal directory holds the latest {@link InMemoryConnectionSnapshot},
+ * named <code>snapshot</code>, and the log of mutations since, named
+ * <code>log-</code> followed by the generation of the snapshot. Taking a
+ * snapshot starts the log of the next generation, then writes the snapshot
+ * to a temporary file which replaces the previous one, so that a crash while
+ * writing it leaves the previous snapshot and both logs, which are replayed
+ * in turn. The logs the snapshot replaces are only deleted once its
+ * replacement is forced to disk.
+ *
+ * A listener the repository already has when the journal is opened, such as
+ * a {@link UsersConnectionRepositoryConnectionLoader} writing mutations
+ * through, keeps being notified of every mutation, before it is journaled.
+ * The repository may then be bounded by an {@link InMemoryUserCache} once
+ * the journal is opened: snapshots include the users it evicted, read from
+ * its loader.
+ *
+ * @author Michael Lavelle
+ */
+public class InMemoryConnectionJournal implements InMemoryConnectionListener {
+
+	/**
+	 * When appended mutations are forced to disk
+	 */
+	public enum FsyncPolicy {
+
+		/**
+		 * Every mutation is forced to disk before it returns
+		 */
+		PER_WRITE,
+
+		/**
+		 * Every mutation is forced to disk before it returns, mutations
+		 * appended concurrently sharing a single force
+		 */
+		GROUPED,
+
+		/**
+		 * The log is forced to disk in the background every fsync interval,
+		 * so that the mutations of up to one interval may be lost by a crash
+		 */
+		PERIODIC
+
+	}
+
+	private static final Log logger = LogFactory
+			.getLog(InMemoryConnectionJournal.class);
+
+	private static final String SNAPSHOT = "snapshot";
+
+	private static final String LOG_PREFIX = "log-";
+
+	/**
+	 * Records longer than this can only be read from a corrupt log
+	 */
+	private static final int MAX_RECORD_LENGTH = 1 << 24;
+
+	private static final byte CONNECTION_ADDED = 1;
+
+	private static final byte CONNECTION_UPDATED = 2;
+
+	private static final byte CONNECTION_REMOVED = 3;
+
+	private static final byte CONNECTIONS_REMOVED = 4;
+
+	private final File directory;
+
+	private final InMemoryConnectionSnapshot snapshot;
+
+	private FsyncPolicy fsyncPolicy = FsyncPolicy.GROUPED;
+
+	private long fsyncInterval = 1000;
+
+	private long snapshotInterval;
+
+	private InMemoryUsersConnectionRepository usersConnectionRepository;
+
+	private ScheduledExecutorService scheduler;
+
+	/**
+	 * Serializes appends, and guards the log and its sequence numbers
+	 */
+	private final Object appendLock = new Object();
+
+	/**
+	 * Serializes forcing the log to disk, and is held before the append lock
+	 * when both are needed
+	 */
+	private final Object syncLock = new Object();
+
+	/**
+	 * Serializes snapshots, and is held before the other locks
+	 */
+	private final Object snapshotLock = new Object();
+
+	private long generation;
+
+	private FileOutputStream logFile;
+
+	private DataOutputStream log;
+
+	private long appended;
+
+	private volatile long synced;
+
+	private volatile boolean recovering;
+
+	/**
+	 * The listener the repository had when the journal was opened, notified
+	 * of every mutation before it is journaled
+	 */
+	private InMemoryConnectionListener connectionListener;
+
+	public InMemoryConnectionJournal(File directory) {
+		this.directory = directory;
+		this.snapshot = new InMemoryConnectionSnapshot(new File(directory,
+				SNAPSHOT));
+	}
+
+	/**
+	 * Must be set before the journal is opened. Defaults to
+	 * {@link FsyncPolicy#GROUPED}.
+	 */
+	public void setFsyncPolicy(FsyncPolicy fsyncPolicy) {
+		this.fsyncPolicy = fsyncPolicy;
+	}
+
+	/**
+	 * The interval in milliseconds at which the log is forced to disk under
+	 * {@link FsyncPolicy#PERIODIC}. Must be set before the journal is
+	 * opened. Defaults to 1 second.
+	 */
+	public void setFsyncInterval(long fsyncInterval) {
+		this.fsyncInterval = fsyncInterval;
+	}
+
+	/**
+	 * The interval in milliseconds at which a snapshot is taken in the
+	 * background. Must be set before the journal is opened. Defaults to 0,
+	 * taking snapshots only when {@link #snapshot()} is called.
+	 */
+	public void setSnapshotInterval(long snapshotInterval) {
+		this.snapshotInterval = snapshotInterval;
+	}
+
+	/**
+	 * Restores the state journaled in the directory into the given empty
+	 * repository, then journals its mutations from now on. Must be called
+	 * before the repository is used.
+	 */
+	public void open(InMemoryUsersConnectionRepository usersConnectionRepository)
+			throws IOException {
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Unable to create journal directory "
+					+ directory);
+		}
+		this.usersConnectionRepository = usersConnectionRepository;
+		InMemoryConnectionListener connectionListener = usersConnectionRepository
+				.getConnectionListener();
+		this.connectionListener = connectionListener == this ? null
+				: connectionListener;
+		usersConnectionRepository.setConnectionListener(this);
+		synchronized (appendLock) {
+			recovering = true;
+			try {
+				long snapshotGeneration = snapshot.recover() ? snapshot
+						.read(usersConnectionRepository) : 0;
+				generation = snapshotGeneration;
+				// a snapshot interrupted by a crash leaves the logs started
+				// since the previous snapshot, replayed in order
+				File currentLogFile = getLogFile(generation);
+				while (currentLogFile.exists()) {
+					replayLog(currentLogFile);
+					File nextLogFile = getLogFile(generation + 1);
+					if (!nextLogFile.exists()) {
+						break;
+					}
+					generation++;
+					currentLogFile = nextLogFile;
+				}
+				deleteObsoleteFiles(snapshotGeneration, generation);
+			} finally {
+				recovering = false;
+			}
+			openLog();
+		}
+		startScheduler();
+	}
+
+	/**
+	 * Starts a new, empty log, then writes the whole repository to a new
+	 * snapshot and deletes the logs it replaces. Mutations carry on while the
+	 * snapshot is written, appended to the new log.
+	 */
+	public void snapshot() throws IOException {
+		synchronized (snapshotLock) {
+			long snapshotGeneration;
+			synchronized (syncLock) {
+				synchronized (appendLock) {
+					assertOpen();
+					log.flush();
+					logFile.getFD().sync();
+					synced = appended;
+					log.close();
+					generation++;
+					openLog();
+					snapshotGeneration = generation;
+				}
+			}
+			// mutations applied meanwhile may or may not be included, and
+			// are replayed from the new log over the snapshot on recovery;
+			// until the snapshot replaces the previous one, recovery replays
+			// the previous logs as well
+			snapshot.write(usersConnectionRepository, snapshotGeneration);
+			deleteObsoleteFiles(snapshotGeneration, snapshotGeneration);
+		}
+	}
+
+	/**
+	 * Forces every mutation appended so far to disk
+	 */
+	public void flush() throws IOException {
+		long sequence;
+		synchronized (appendLock) {
+			sequence = appended;
+		}
+		sync(sequence);
+	}
+
+	/**
+	 * Forces the log to disk and closes it. The repository must not be
+	 * mutated afterwards.
+	 */
+	public void close() throws IOException {
+		if (scheduler != null) {
+			scheduler.shutdown();
+		}
+		synchronized (syncLock) {
+			synchronized (appendLock) {
+				if (log != null) {
+					log.flush();
+					logFile.getFD().sync();
+					synced = appended;
+					log.close();
+					log = null;
+					logFile = null;
+				}
+			}
+		}
+	}
+
+	public void connectionAdded(String userId, ConnectionData connectionData,
+			int rank) {
+		if (recovering) {
+			return;
+		}
+		if (connectionListener != null) {
+			connectionListener.connectionAdded(userId, connectionData, rank);
+		}
+		try {
+			ByteArrayOutputStream record = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(record);
+			out.writeByte(CONNECTION_ADDED);
+			out.writeUTF(userId);
+			out.writeInt(rank);
+			writeConnectionData(out, connectionData);
+			append(record.toByteArray());
+		} catch (IOException e) {
+			throw new ConnectionJournalException(
+					"Unable to journal added connection", e);
+		}
+	}
+
+	public void connectionUpdated(String userId, String providerUserId,
+			ConnectionData connectionData) {
+		if (recovering) {
+			return;
+		}
+		if (connectionListener != null) {
+			connectionListener.connectionUpdated(userId, providerUserId,
+					connectionData);
+		}
+		try {
+			ByteArrayOutputStream record = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(record);
+			out.writeByte(CONNECTION_UPDATED);
+			out.writeUTF(userId);
+			writeString(out, providerUserId);
+			writeConnectionData(out, connectionData);
+			append(record.toByteArray());
+		} catch (IOException e) {
+			throw new ConnectionJournalException(
+					"Unable to journal updated connection", e);
+		}
+	}
+
+	public void connectionRemoved(String userId, ConnectionKey connectionKey) {
+		if (recovering) {
+			return;
+		}
+		if (connectionListener != null) {
+			connectionListener.connectionRemoved(userId, connectionKey);
+		}
+		try {
+			ByteArrayOutputStream record = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(record);
+			out.writeByte(CONNECTION_REMOVED);
+			out.writeUTF(userId);
+			out.writeUTF(connectionKey.getProviderId());
+			writeString(out, connectionKey.getProviderUserId());
+			append(record.toByteArray());
+		} catch (IOException e) {
+			throw new ConnectionJournalException(
+					"Unable to journal removed connection", e);
+		}
+	}
+
+	public void connectionsRemoved(String userId, String providerId) {
+		if (recovering) {
+			return;
+		}
+		if (connectionListener != null) {
+			connectionListener.connectionsRemoved(userId, providerId);
+		}
+		try {
+			ByteArrayOutputStream record = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(record);
+			out.writeByte(CONNECTIONS_REMOVED);
+			out.writeUTF(userId);
+			out.writeUTF(providerId);
+			append(record.toByteArray());
+		} catch (IOException e) {
+			throw new ConnectionJournalException(
+					"Unable to journal removed connections", e);
+		}
+	}
+
+	private void append(byte[] record) throws IOException {
+		long sequence;
+		synchronized (appendLock) {
+			assertOpen();
+			log.writeInt(record.length);
+			log.writeLong(checksum(record));
+			log.write(record);
+			sequence = ++appended;
+			if (fsyncPolicy == FsyncPolicy.PER_WRITE) {
+				log.flush();
+				logFile.getFD().sync();
+				synced = sequence;
+			}
+		}
+		if (fsyncPolicy == FsyncPolicy.GROUPED) {
+			sync(sequence);
+		}
+	}
+
+	/**
+	 * Forces the log to disk unless the given append already was, by a force
+	 * covering every append made until then; appends carry on meanwhile.
+	 */
+	private void sync(long sequence) throws IOException {
+		synchronized (syncLock) {
+			if (synced >= sequence) {
+				return;
+			}
+			FileOutputStream file;
+			long target;
+			synchronized (appendLock) {
+				assertOpen();
+				log.flush();
+				file = logFile;
+				target = appended;
+			}
+			file.getFD().sync();
+			synced = target;
+		}
+	}
+
+	private void assertOpen() throws IOException {
+		if (log == null) {
+			throw new IOException("Journal " + directory + " is not open");
+		}
+	}
+
+	private void openLog() throws IOException {
+		logFile = new FileOutputStream(getLogFile(generation), true);
+		log = new DataOutputStream(new BufferedOutputStream(logFile));
+	}
+
+	private File getLogFile(long generation) {
+		return new File(directory, LOG_PREFIX + generation);
+	}
+
+	/**
+	 * Deletes the logs outside the given range of generations, and any
+	 * snapshot left unfinished
+	 */
+	private void deleteObsoleteFiles(long firstGeneration, long lastGeneration) {
+		File[] files = directory.listFiles();
+		if (files == null) {
+			return;
+		}
+		for (File file : files) {
+			String name = file.getName();
+			boolean obsolete;
+			if (name.startsWith(LOG_PREFIX)) {
+				long logGeneration = getLogGeneration(name);
+				obsolete = logGeneration < firstGeneration
+						|| logGeneration > lastGeneration;
+			} else {
+				obsolete = name.equals(snapshot.getTemporaryFile().getName());
+			}
+			if (obsolete && !file.delete()) {
+				logger.warn("Unable to delete obsolete journal file " + file);
+			}
+		}
+	}
+
+	/**
+	 * @return the generation of the log of the given name, or -1 if it is
+	 *         not a log name
+	 */
+	private static long getLogGeneration(String name) {
+		try {
+			return Long.parseLong(name.substring(LOG_PREFIX.length()));
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	private void startScheduler() {
+		if (fsyncPolicy != FsyncPolicy.PERIODIC && snapshotInterval <= 0) {
+			return;
+		}
+		scheduler = Executors
+				.newSingleThreadScheduledExecutor(new ThreadFactory() {
+					public Thread newThread(Runnable runnable) {
+						Thread thread = new Thread(runnable,
+								"InMemoryConnectionJournal " + directory);
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+		if (fsyncPolicy == FsyncPolicy.PERIODIC) {
+			scheduler.scheduleWithFixedDelay(new Runnable() {
+				public void run() {
+					try {
+						flush();
+					} catch (IOException e) {
+						logger.error("Unable to force journal " + directory
+								+ " to disk", e);
+					}
+				}
+			}, fsyncInterval, fsyncInterval, TimeUnit.MILLISECONDS);
+		}
+		if (snapshotInterval > 0) {
+			scheduler.scheduleWithFixedDelay(new Runnable() {
+				public void run() {
+					try {
+						snapshot();
+					} catch (IOException e) {
+						logger.error("Unable to snapshot journal "
+								+ directory, e);
+					}
+				}
+			}, snapshotInterval, snapshotInterval, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Replays every intact record of the given log, truncating it after the
+	 * last one so that appends do not follow a torn record
+	 */
+	private void replayLog(File file) throws IOException {
+		long intactLength = 0;
+		DataInputStream in = new DataInputStream(new BufferedInputStream(
+				new FileInputStream(file)));
+		try {
+			while (true) {
+				int length = in.readInt();
+				long checksum = in.readLong();
+				if (length < 0 || length > MAX_RECORD_LENGTH) {
+					break;
+				}
+				byte[] record = new byte[length];
+				in.readFully(record);
+				if (checksum(record) != checksum) {
+					break;
+				}
+				replay(record);
+				intactLength += 12 + length;
+			}
+		} catch (EOFException e) {
+			// the log ends here, possibly within a torn record
+		} finally {
+			in.close();
+		}
+		if (intactLength < file.length()) {
+			logger.warn("Discarding " + (file.length() - intactLength)
+					+ " bytes of incomplete records at the end of journal log "
+					+ file);
+			RandomAccessFile randomAccessFile = new RandomAccessFile(file,
+					"rw");
+			try {
+				randomAccessFile.setLength(intactLength);
+			} finally {
+				randomAccessFile.close();
+			}
+		}
+	}
+
+	/**
+	 * Applies a logged mutation. A mutation may already be reflected by the
+	 * snapshot it is replayed over, if it was applied while the snapshot was
+	 * taken, so replaying is idempotent.
+	 */
+	private void replay(byte[] record) throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(
+				record));
+		byte type = in.readByte();
+		String userId = in.readUTF();
+		InMemoryConnectionRepository connectionRepository = usersConnectionRepository
+				.createInMemoryConnectionRepository(userId);
+		switch (type) {
+		case CONNECTION_ADDED:
+			int rank = in.readInt();
+			ConnectionData connectionData = readConnectionData(in);
+			connectionRepository.removeConnection(new ConnectionKey(
+					connectionData.getProviderId(), connectionData
+							.getProviderUserId()));
+			usersConnectionRepository.addConnectionData(userId,
+					connectionData, rank);
+			break;
+		case CONNECTION_UPDATED:
+			String providerUserId = readString(in);
+			ConnectionData updatedConnectionData = readConnectionData(in);
+			InMemoryProviderConnectionRepository providerConnectionRepository = connectionRepository
+					.findInMemoryProviderConnectionRepository(updatedConnectionData
+							.getProviderId());
+			if (providerConnectionRepository != null) {
+				providerConnectionRepository.updateByProviderUserId(
+						updatedConnectionData, providerUserId);
+			}
+			break;
+		case CONNECTION_REMOVED:
+			String providerId = in.readUTF();
+			connectionRepository.removeConnection(new ConnectionKey(
+					providerId, readString(in)));
+			break;
+		case CONNECTIONS_REMOVED:
+			connectionRepository.removeConnections(in.readUTF());
+			break;
+		default:
+			throw new IOException("Unrecognized journal record type " + type);
+		}
+	}
+
+	private static long checksum(byte[] record) {
+		CRC32 crc = new CRC32();
+		crc.update(record);
+		return crc.getValue();
+	}
+
+	private static void writeConnectionData(DataOutput out,
+			ConnectionData connectionData) throws IOException {
+		out.writeUTF(connectionData.getProviderId());
+		writeString(out, connectionData.getProviderUserId());
+		writeString(out, connectionData.getDisplayName());
+		writeString(out, connectionData.getProfileUrl());
+		writeString(out, connectionData.getImageUrl());
+		writeString(out, connectionData.getAccessToken());
+		writeString(out, connectionData.getSecret());
+		writeString(out, connectionData.getRefreshToken());
+		out.writeBoolean(connectionData.getExpireTime() != null);
+		if (connectionData.getExpireTime() != null) {
+			out.writeLong(connectionData.getExpireTime());
+		}
+	}
+
+	private static ConnectionData readConnectionData(DataInput in)
+			throws IOException {
+		String providerId = in.readUTF();
+		String providerUserId = readString(in);
+		String displayName = readString(in);
+		String profileUrl = readString(in);
+		String imageUrl = readString(in);
+		String accessToken = readString(in);
+		String secret = readString(in);
+		String refreshToken = readString(in);
+		Long expireTime = in.readBoolean() ? in.readLong() : null;
+		return new ConnectionData(providerId, providerUserId, displayName,
+				profileUrl, imageUrl, accessToken, secret, refreshToken,
+				expireTime);
+	}
+
+	private static void writeString(DataOutput out, String value)
+			throws IOException {
+		out.writeBoolean(value != null);
+		if (value != null) {
+			out.writeUTF(value);
+		}
+	}
+
+	private static String readString(DataInput in) throws IOException {
+		return in.readBoolean() ? in.readUTF() : null;
+	}
+
+}
@@ -0,0 +1,184 @@
+/*
+ * Copyright 2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.social.extension.connect.inmemory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.springframework.social.connect.ConnectionKey;
+
+/**
+ * Reverse index from {@link ConnectionKey} to the ids of the local users
+ * holding a connection with that key. Maintained by the
+ * {@link InMemoryProviderConnectionRepository}s sharing it, so that provider
+ * sign-in lookups do not need to visit every user's connections.
+ * 
+ * Entries are partitioned by providerId, so that lookups of many
+ * providerUserIds of the same provider resolve the provider partition once.
+ * 
+ * The index is safe for concurrent use without locking: the userIds of each
+ * key are held in a sorted array which is replaced, never modified, by
+ * compare-and-set on the provider partition, so readers always see a
+ * consistent set of userIds.
+ *
+ * @author Michael Lavelle
+ */
+public class InMemoryConnectionKeyIndex {
+
+	private final ConcurrentMap<String, ConcurrentMap<String, String[]>> userIdsByProviderUserIdByProviderId = new ConcurrentHashMap<String, ConcurrentMap<String, String[]>>();
+
+	public void add(ConnectionKey connectionKey, String userId) {
+		ConcurrentMap<String, String[]> userIdsByProviderUserId = getOrCreateProviderPartition(connectionKey
+				.getProviderId());
+		String providerUserId = connectionKey.getProviderUserId();
+		while (true) {
+			String[] userIds = userIdsByProviderUserId.get(providerUserId);
+			if (userIds == null) {
+				if (userIdsByProviderUserId.putIfAbsent(providerUserId,
+						new String[] { userId }) == null) {
+					return;
+				}
+			} else {
+				int index = Arrays.binarySearch(userIds, userId);
+				if (index >= 0) {
+					return;
+				}
+				int insertionPoint = -index - 1;
+				String[] updatedUserIds = new String[userIds.length + 1];
+				System.arraycopy(userIds, 0, updatedUserIds, 0, insertionPoint);
+				updatedUserIds[insertionPoint] = userId;
+				System.arraycopy(userIds, insertionPoint, updatedUserIds,
+						insertionPoint + 1, userIds.length - insertionPoint);
+				if (userIdsByProviderUserId.replace(providerUserId, userIds,
+						updatedUserIds)) {
+					return;
+				}
+			}
+		}
+	}
+
+	public void remove(ConnectionKey connectionKey, String userId) {
+		ConcurrentMap<String, String[]> userIdsByProviderUserId = userIdsByProviderUserIdByProviderId
+				.get(connectionKey.getProviderId());
+		if (userIdsByProviderUserId == null) {
+			return;
+		}
+		String providerUserId = connectionKey.getProviderUserId();
+		while (true) {
+			String[] userIds = userIdsByProviderUserId.get(providerUserId);
+			if (userIds == null) {
+				return;
+			}
+			int index = Arrays.binarySearch(userIds, userId);
+			if (index < 0) {
+				return;
+			}
+			if (userIds.length == 1) {
+				if (userIdsByProviderUserId.remove(providerUserId, userIds)) {
+					return;
+				}
+			} else {
+				String[] updatedUserIds = new String[userIds.length - 1];
+				System.arraycopy(userIds, 0, updatedUserIds, 0, index);
+				System.arraycopy(userIds, index + 1, updatedUserIds, index,
+						userIds.length - index - 1);
+				if (userIdsByProviderUserId.replace(providerUserId, userIds,
+						updatedUserIds)) {
+					return;
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return the ids of the users connected with the given key, in userId
+	 *         order
+	 */
+	public List<String> findUserIds(ConnectionKey connectionKey) {
+		ConcurrentMap<String, String[]> userIdsByProviderUserId = userIdsByProviderUserIdByProviderId
+				.get(connectionKey.getProviderId());
+		if (userIdsByProviderUserId == null) {
+			return new ArrayList<String>();
+		}
+		String[] userIds = userIdsByProviderUserId.get(connectionKey
+				.getProviderUserId());
+		if (userIds == null) {
+			return new ArrayList<String>();
+		}
+		return new ArrayList<String>(Arrays.asList(userIds));
+	}
+
+	/**
+	 * @return the ids of the users connected to any of the given provider
+	 *         users, looked up once per providerUserId
+	 */
+	public Set<String> findUserIds(String providerId,
+			Iterable<String> providerUserIds) {
+		Set<String> userIds = new HashSet<String>();
+		ConcurrentMap<String, String[]> userIdsByProviderUserId = userIdsByProviderUserIdByProviderId
+				.get(providerId);
+		if (userIdsByProviderUserId == null) {
+			return userIds;
+		}
+		for (String providerUserId : providerUserIds) {
+			String[] userIdsForProviderUser = userIdsByProviderUserId
+					.get(providerUserId);
+			if (userIdsForProviderUser != null) {
+				userIds.addAll(Arrays.asList(userIdsForProviderUser));
+			}
+		}
+		return userIds;
+	}
+
+	/**
+	 * Creates the partition of the given provider sized for the given number
+	 * of providerUserIds, unless it already exists, so that bulk loading does
+	 * not repeatedly grow it
+	 */
+	public void presize(String providerId, int expectedProviderUserIds) {
+		if (!userIdsByProviderUserIdByProviderId.containsKey(providerId)) {
+			userIdsByProviderUserIdByProviderId.putIfAbsent(providerId,
+					new ConcurrentHashMap<String, String[]>(Math.max(16,
+							(int) (expectedProviderUserIds / 0.75f) + 1)));
+		}
+	}
+
+	/**
+	 * Provider partitions are never removed once created: their number is
+	 * bounded by the number of providers, and keeping them avoids racing
+	 * removal of an empty partition against a concurrent add.
+	 */
+	private ConcurrentMap<String, String[]> getOrCreateProviderPartition(
+			String providerId) {
+		ConcurrentMap<String, String[]> userIdsByProviderUserId = userIdsByProviderUserIdByProviderId
+				.get(providerId);
+		if (userIdsByProviderUserId == null) {
+			userIdsByProviderUserId = new ConcurrentHashMap<String, String[]>();
+			ConcurrentMap<String, String[]> existing = userIdsByProviderUserIdByProviderId
+					.putIfAbsent(providerId, userIdsByProviderUserId);
+			if (existing != null) {
+				userIdsByProviderUserId = existing;
+			}
+		}
+		return userIdsByProviderUserId;
+	}
+
+}
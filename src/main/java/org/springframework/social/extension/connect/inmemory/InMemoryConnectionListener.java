@@ -0,0 +1,49 @@
+/*
+ * Copyright 2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.social.extension.connect.inmemory;
+
+import org.springframework.social.connect.ConnectionData;
+import org.springframework.social.connect.ConnectionKey;
+
+/**
+ * Callback notified of every mutation of the connections held by an
+ * {@link InMemoryUsersConnectionRepository}.
+ * 
+ * Each callback is made by the {@link InMemoryProviderConnectionRepository}
+ * mutated, holding its lock, just before the mutation is applied, so that
+ * the mutations of a user's connections to a provider are notified in the
+ * order they are applied. Exceptions thrown by a listener propagate to the
+ * caller of the mutation, which is then not applied.
+ * 
+ * @author Michael Lavelle
+ */
+public interface InMemoryConnectionListener {
+
+	void connectionAdded(String userId, ConnectionData connectionData, int rank);
+
+	/**
+	 * @param providerUserId
+	 *            the providerUserId the connection was stored under before
+	 *            the update
+	 */
+	void connectionUpdated(String userId, String providerUserId,
+			ConnectionData connectionData);
+
+	void connectionRemoved(String userId, ConnectionKey connectionKey);
+
+	void connectionsRemoved(String userId, String providerId);
+
+}
@@ -0,0 +1,40 @@
+/*
+ * Copyright 2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.social.extension.connect.inmemory;
+
+import java.util.List;
+
+import org.springframework.social.connect.ConnectionData;
+
+/**
+ * Source the connections of the users evicted by an {@link InMemoryUserCache}
+ * are reloaded from, when next accessed. Must reflect every mutation made
+ * through the {@link InMemoryUsersConnectionRepository}, for instance by
+ * also being its {@link InMemoryConnectionListener}, as
+ * {@link UsersConnectionRepositoryConnectionLoader} is, since the
+ * connections of an evicted user are only held by the loader.
+ * 
+ * @author Michael Lavelle
+ */
+public interface InMemoryConnectionLoader {
+
+	/**
+	 * @return every connection of the given user, grouped by providerId and
+	 *         in rank order for each, or an empty list if the user has none
+	 */
+	List<ConnectionData> loadConnections(String userId);
+
+}
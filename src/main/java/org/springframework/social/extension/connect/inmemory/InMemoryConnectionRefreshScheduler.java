@@ -0,0 +1,251 @@
+/*
+ * Copyright 2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.social.extension.connect.inmemory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.social.connect.Connection;
+import org.springframework.social.connect.ConnectionData;
+import org.springframework.social.connect.ConnectionKey;
+import org.springframework.social.extension.connect.inmemory.InMemoryConnectionExpiryIndex.ExpiringConnection;
+
+/**
+ * Refreshes the connections of an {@link InMemoryUsersConnectionRepository}
+ * before they expire, so that token refresh happens off the request path.
+ * 
+ * Every refresh interval, the connections expiring within the refresh window
+ * are read from the repository's {@link InMemoryConnectionExpiryIndex},
+ * soonest first, and refreshed in batches of at most batchSize connections,
+ * each batch spread over a pool of at most parallelism threads and completed
+ * before the next one starts, which bounds the load put on the providers.
+ * Each refreshed connection is written back through
+ * {@link org.springframework.social.connect.ConnectionRepository#updateConnection(Connection)},
+ * so that a journal or cache in use sees the refresh.
+ * 
+ * Connections without a refresh token are not indexed, and so never looked
+ * at. Connections updated or removed since they were found expiring are
+ * skipped, and a connection updated while it is being refreshed is not
+ * overwritten by the refresh. A connection failing to refresh is logged and
+ * retried at the next refresh interval.
+ * 
+ * @author Michael Lavelle
+ */
+public class InMemoryConnectionRefreshScheduler {
+
+	private static final Log logger = LogFactory
+			.getLog(InMemoryConnectionRefreshScheduler.class);
+
+	private final InMemoryUsersConnectionRepository usersConnectionRepository;
+
+	private long refreshWindow = 600000;
+
+	private long refreshInterval = 60000;
+
+	private int batchSize = 100;
+
+	private int parallelism = 4;
+
+	private ScheduledExecutorService scheduler;
+
+	private volatile ExecutorService refreshExecutor;
+
+	public InMemoryConnectionRefreshScheduler(
+			InMemoryUsersConnectionRepository usersConnectionRepository) {
+		this.usersConnectionRepository = usersConnectionRepository;
+	}
+
+	/**
+	 * How far ahead, in milliseconds, connections are refreshed before they
+	 * expire. Defaults to 10 minutes.
+	 */
+	public void setRefreshWindow(long refreshWindow) {
+		this.refreshWindow = refreshWindow;
+	}
+
+	/**
+	 * The interval in milliseconds at which expiring connections are looked
+	 * for. Defaults to 1 minute; must be shorter than the refresh window.
+	 */
+	public void setRefreshInterval(long refreshInterval) {
+		this.refreshInterval = refreshInterval;
+	}
+
+	/**
+	 * The maximum number of connections refreshed concurrently in each batch.
+	 * Defaults to 100.
+	 */
+	public void setBatchSize(int batchSize) {
+		this.batchSize = batchSize;
+	}
+
+	/**
+	 * The number of threads refreshing connections. Defaults to 4.
+	 */
+	public void setParallelism(int parallelism) {
+		this.parallelism = parallelism;
+	}
+
+	/**
+	 * Starts refreshing expiring connections every refresh interval
+	 */
+	public synchronized void start() {
+		if (scheduler != null) {
+			throw new IllegalStateException("Refresh scheduler already started");
+		}
+		refreshExecutor = Executors.newFixedThreadPool(parallelism,
+				createThreadFactory("InMemoryConnectionRefresh"));
+		scheduler = Executors
+				.newSingleThreadScheduledExecutor(createThreadFactory("InMemoryConnectionRefreshScheduler"));
+		scheduler.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				try {
+					refreshExpiringConnections();
+				} catch (RuntimeException e) {
+					logger.error("Unable to refresh expiring connections", e);
+				}
+			}
+		}, refreshInterval, refreshInterval, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Stops refreshing, waiting for a refresh in progress to complete
+	 */
+	public synchronized void stop() {
+		if (scheduler != null) {
+			scheduler.shutdown();
+			try {
+				scheduler.awaitTermination(refreshInterval,
+						TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			refreshExecutor.shutdown();
+			scheduler = null;
+			refreshExecutor = null;
+		}
+	}
+
+	/**
+	 * Refreshes the connections currently expiring within the refresh window;
+	 * called every refresh interval once started, and may also be called
+	 * directly, refreshing them one at a time on the calling thread unless
+	 * started.
+	 * 
+	 * @return the number of connections refreshed
+	 */
+	public int refreshExpiringConnections() {
+		ExecutorService executor = refreshExecutor;
+		List<ExpiringConnection> expiringConnections = usersConnectionRepository
+				.getConnectionExpiryIndex().findExpiringBefore(
+						System.currentTimeMillis() + refreshWindow);
+		int refreshed = 0;
+		if (executor == null) {
+			for (ExpiringConnection expiringConnection : expiringConnections) {
+				if (refresh(expiringConnection)) {
+					refreshed++;
+				}
+			}
+			return refreshed;
+		}
+		for (int start = 0; start < expiringConnections.size(); start += batchSize) {
+			List<Callable<Boolean>> batch = new ArrayList<Callable<Boolean>>(
+					batchSize);
+			for (final ExpiringConnection expiringConnection : expiringConnections
+					.subList(start, Math.min(start + batchSize,
+							expiringConnections.size()))) {
+				batch.add(new Callable<Boolean>() {
+					public Boolean call() {
+						return refresh(expiringConnection);
+					}
+				});
+			}
+			try {
+				for (Future<Boolean> result : executor.invokeAll(batch)) {
+					if (result.get()) {
+						refreshed++;
+					}
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				break;
+			} catch (ExecutionException e) {
+				// refresh(ExpiringConnection) handles its own failures
+				throw new IllegalStateException(e.getCause());
+			}
+		}
+		return refreshed;
+	}
+
+	/**
+	 * @return true if the connection was refreshed and written back
+	 */
+	private boolean refresh(ExpiringConnection expiringConnection) {
+		ConnectionKey key = expiringConnection.getConnectionKey();
+		InMemoryConnectionRepository connectionRepository = usersConnectionRepository
+				.findInMemoryConnectionRepository(expiringConnection
+						.getUserId());
+		InMemoryProviderConnectionRepository providerConnectionRepository = connectionRepository == null ? null
+				: connectionRepository
+						.findInMemoryProviderConnectionRepository(key
+								.getProviderId());
+		ConnectionData connectionData = providerConnectionRepository == null ? null
+				: providerConnectionRepository.findByProviderUserId(key
+						.getProviderUserId());
+		if (connectionData == null
+				|| connectionData.getRefreshToken() == null
+				|| connectionData.getExpireTime() == null
+				|| connectionData.getExpireTime() != expiringConnection
+						.getExpireTime()) {
+			return false;
+		}
+		try {
+			Connection<?> connection = usersConnectionRepository.connectionFactoryLocator
+					.getConnectionFactory(key.getProviderId())
+					.createConnection(connectionData);
+			connection.refresh();
+			// written back only if not updated meanwhile, for instance by
+			// the user authorizing again
+			return connectionRepository.replaceConnection(connectionData,
+					connection);
+		} catch (RuntimeException e) {
+			logger.warn("Unable to refresh connection " + key + " of user "
+					+ expiringConnection.getUserId(), e);
+			return false;
+		}
+	}
+
+	private ThreadFactory createThreadFactory(final String name) {
+		return new ThreadFactory() {
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, name);
+				thread.setDaemon(true);
+				return thread;
+			}
+		};
+	}
+
+}
@@ -30,17 +30,16 @@ package org.springframework.social.extension.connect.inmemory;
  * limitations under the License.
  */
 
+import java.util.AbstractList;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
-import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
+import java.util.RandomAccess;
 import java.util.Set;
-import java.util.SortedMap;
-import java.util.TreeMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
 
 import org.springframework.social.connect.Connection;
 import org.springframework.social.connect.ConnectionData;
@@ -54,6 +53,19 @@ import org.springframework.util.LinkedMultiValueMap;
 import org.springframework.util.MultiValueMap;
 
 /**
+ * {@link ConnectionRepository} holding the connections of a single user in a
+ * map of {@link InMemoryProviderConnectionRepository}s by providerId. Safe
+ * for concurrent use: reads never block, while mutations are serialized per
+ * user, and per provider by {@link InMemoryProviderConnectionRepository}.
+ * 
+ * Reads never create state: a provider repository is only created by the
+ * first connection added to it, and is discarded again once its last
+ * connection is removed. A repository belonging to an
+ * {@link InMemoryUsersConnectionRepository} is likewise only registered
+ * there while it holds connections; until then, and after it has been
+ * emptied, it reads through to whichever repository is registered for its
+ * user.
+ * 
  * @author Michael Lavelle
  */
 public class InMemoryConnectionRepository implements ConnectionRepository {
@@ -62,62 +74,169 @@ public class InMemoryConnectionRepository implements ConnectionRepository {
 
 	protected final ConnectionFactoryLocator connectionFactoryLocator;
 
-	protected SortedMap<String, InMemoryProviderConnectionRepository> providerRepositories = new TreeMap<String, InMemoryProviderConnectionRepository>();
+	protected final InMemoryConnectionKeyIndex connectionKeyIndex;
 
+	/**
+	 * The expiry index shared with the owning users repository, or null for
+	 * a standalone repository
+	 */
+	protected final InMemoryConnectionExpiryIndex connectionExpiryIndex;
+
+	/**
+	 * The interner shared with the owning users repository, or null for a
+	 * standalone repository
+	 */
+	protected final InMemoryConnectionDataInterner connectionDataInterner;
+
+	/**
+	 * The owning users repository, or null for a standalone repository
+	 */
+	protected final InMemoryUsersConnectionRepository usersConnectionRepository;
+
+	protected final ConcurrentNavigableMap<String, InMemoryProviderConnectionRepository> providerRepositories = new ConcurrentSkipListMap<String, InMemoryProviderConnectionRepository>();
+
+	private volatile InMemoryConnectionCache connectionCache;
+
+	private volatile boolean evicted;
+
+	/**
+	 * Returns the repository for the given provider, creating it if need be,
+	 * for callers about to add connections to it. Read-only callers should use
+	 * {@link #findInMemoryProviderConnectionRepository(String)} instead.
+	 * Adding through the returned repository is not guarded against a
+	 * concurrent removal of the user's connections discarding it, which
+	 * {@link #addConnection(Connection)} and
+	 * {@link #addConnectionData(ConnectionData, int)} are.
+	 */
 	public InMemoryProviderConnectionRepository getInMemoryProviderConnectionRepository(
 			String providerId) {
+		synchronized (getLock()) {
+			return attach().getOrCreateInMemoryProviderConnectionRepository(
+					providerId);
+		}
+	}
+
+	/**
+	 * @return the repository for the given provider, or null if this user has
+	 *         no connections to it
+	 */
+	public InMemoryProviderConnectionRepository findInMemoryProviderConnectionRepository(
+			String providerId) {
+		return resolve().providerRepositories.get(providerId);
+	}
+
+	private InMemoryProviderConnectionRepository getOrCreateInMemoryProviderConnectionRepository(
+			String providerId) {
 		InMemoryProviderConnectionRepository repository = providerRepositories
 				.get(providerId);
 		if (repository == null) {
+			if (connectionDataInterner != null) {
+				providerId = connectionDataInterner.internProviderId(providerId);
+			}
 			repository = new InMemoryProviderConnectionRepository(userId,
-					providerId);
-			providerRepositories.put(providerId, repository);
+					providerId, connectionKeyIndex, connectionExpiryIndex,
+					connectionDataInterner, getConnectionListener());
+			InMemoryProviderConnectionRepository existing = providerRepositories
+					.putIfAbsent(providerId, repository);
+			if (existing != null) {
+				repository = existing;
+			}
 		}
 		return repository;
 	}
 
 	public InMemoryConnectionRepository(String userId,
 			ConnectionFactoryLocator connectionFactoryLocator) {
+		this(userId, connectionFactoryLocator, new InMemoryConnectionKeyIndex());
+	}
+
+	/**
+	 * Sets the cache of materialized connections to consult before creating a
+	 * {@link Connection} from stored {@link ConnectionData}. Defaults to null,
+	 * creating a new connection on every read. Repositories belonging to an
+	 * {@link InMemoryUsersConnectionRepository} use its cache instead.
+	 */
+	public void setConnectionCache(InMemoryConnectionCache connectionCache) {
+		this.connectionCache = connectionCache;
+	}
+
+	/**
+	 * Creates a repository for a user of the given
+	 * {@link InMemoryUsersConnectionRepository}, sharing its
+	 * {@link InMemoryConnectionKeyIndex}, {@link InMemoryConnectionExpiryIndex}
+	 * and {@link InMemoryConnectionDataInterner}
+	 */
+	protected InMemoryConnectionRepository(String userId,
+			ConnectionFactoryLocator connectionFactoryLocator,
+			InMemoryUsersConnectionRepository usersConnectionRepository) {
+		this.userId = userId;
+		this.connectionFactoryLocator = connectionFactoryLocator;
+		this.connectionKeyIndex = usersConnectionRepository.connectionKeyIndex;
+		this.connectionExpiryIndex = usersConnectionRepository.connectionExpiryIndex;
+		this.connectionDataInterner = usersConnectionRepository.connectionDataInterner;
+		this.usersConnectionRepository = usersConnectionRepository;
+	}
+
+	/**
+	 * Creates a repository whose connections are registered in the given
+	 * {@link InMemoryConnectionKeyIndex}, shared with the other users'
+	 * repositories of an {@link InMemoryUsersConnectionRepository}.
+	 */
+	public InMemoryConnectionRepository(String userId,
+			ConnectionFactoryLocator connectionFactoryLocator,
+			InMemoryConnectionKeyIndex connectionKeyIndex) {
 		this.userId = userId;
 		this.connectionFactoryLocator = connectionFactoryLocator;
+		this.connectionKeyIndex = connectionKeyIndex;
+		this.connectionExpiryIndex = null;
+		this.connectionDataInterner = null;
+		this.usersConnectionRepository = null;
 	}
 	
 	
 
+	/**
+	 * The lists of connections returned are read-only views of the
+	 * connections held when called, each {@link Connection} being created
+	 * when first accessed, so that callers only checking which providers are
+	 * connected create none.
+	 */
 	@Override
 	public MultiValueMap<String, Connection<?>> findAllConnections() {
-
-		List<ConnectionData> connectionData = new ArrayList<ConnectionData>();
-
-		for (Map.Entry<String, InMemoryProviderConnectionRepository> providerConnectionRepository : providerRepositories
-				.entrySet()) {
-			connectionData.addAll(providerConnectionRepository.getValue()
-					.findAllOrderByRank());
-		}
-		List<Connection<?>> resultList = createConnections(connectionData);
-
-		MultiValueMap<String, Connection<?>> connections = new LinkedMultiValueMap<String, Connection<?>>();
+		Map<String, InMemoryProviderConnectionRepository> providerRepositories = resolve().providerRepositories;
 		Set<String> registeredProviderIds = connectionFactoryLocator
 				.registeredProviderIds();
+		for (String providerId : providerRepositories.keySet()) {
+			if (!registeredProviderIds.contains(providerId)) {
+				// fails as creating the connections would
+				connectionFactoryLocator.getConnectionFactory(providerId);
+			}
+		}
+		MultiValueMap<String, Connection<?>> connections = new LinkedMultiValueMap<String, Connection<?>>();
 		for (String registeredProviderId : registeredProviderIds) {
+			InMemoryProviderConnectionRepository providerConnectionRepository = providerRepositories
+					.get(registeredProviderId);
 			connections.put(registeredProviderId,
-					Collections.<Connection<?>> emptyList());
-		}
-		for (Connection<?> connection : resultList) {
-			String providerId = connection.getKey().getProviderId();
-			if (connections.get(providerId).size() == 0) {
-				connections.put(providerId, new LinkedList<Connection<?>>());
-			}
-			connections.add(providerId, connection);
+					providerConnectionRepository == null ? Collections
+							.<Connection<?>> emptyList()
+							: new LazyConnectionList(providerConnectionRepository
+									.findAllOrderByRank()));
 		}
-
 		return connections;
 	}
 
+	/**
+	 * The list returned is a read-only view of the connections held when
+	 * called, each {@link Connection} being created when first accessed.
+	 */
 	@Override
 	public List<Connection<?>> findConnections(String providerId) {
-		return createConnections(getInMemoryProviderConnectionRepository(providerId)
-				.findAllOrderByRank());
+		InMemoryProviderConnectionRepository providerConnectionRepository = findInMemoryProviderConnectionRepository(providerId);
+		if (providerConnectionRepository == null) {
+			return new ArrayList<Connection<?>>();
+		}
+		return new LazyConnectionList(
+				providerConnectionRepository.findAllOrderByRank());
 
 	}
 
@@ -136,50 +255,61 @@ public class InMemoryConnectionRepository implements ConnectionRepository {
 					"Unable to execute find: no providerUsers provided");
 		}
 
-		Map<String, List<String>> providerUserIdsByProviderId = new HashMap<String, List<String>>();
-		for (Iterator<Entry<String, List<String>>> it = providerUsers
-				.entrySet().iterator(); it.hasNext();) {
-			Entry<String, List<String>> entry = it.next();
-			String providerId = entry.getKey();
-			providerUserIdsByProviderId.put(providerId, entry.getValue());
-		}
-
-		List<ConnectionData> connectionDatas = new ArrayList<ConnectionData>();
-		for (Map.Entry<String, List<String>> entry : providerUserIdsByProviderId
-				.entrySet()) {
-			connectionDatas.addAll(getInMemoryProviderConnectionRepository(
-					entry.getKey())
-					.findByProviderUserIdsOrderByProviderIdAndRank(
-							entry.getValue()));
-		}
-
-		List<Connection<?>> resultList = createConnections(connectionDatas);
 		MultiValueMap<String, Connection<?>> connectionsForUsers = new LinkedMultiValueMap<String, Connection<?>>();
-		for (Connection<?> connection : resultList) {
-			String providerId = connection.getKey().getProviderId();
-			List<String> userIds = providerUsers.get(providerId);
-			List<Connection<?>> connections = connectionsForUsers
-					.get(providerId);
-			if (connections == null) {
-				connections = new ArrayList<Connection<?>>(userIds.size());
-				for (int i = 0; i < userIds.size(); i++) {
-					connections.add(null);
+		for (Map.Entry<String, List<String>> entry : providerUsers.entrySet()) {
+			String providerId = entry.getKey();
+			List<String> providerUserIds = entry.getValue();
+			InMemoryProviderConnectionRepository providerConnectionRepository = findInMemoryProviderConnectionRepository(providerId);
+			if (providerConnectionRepository == null) {
+				continue;
+			}
+			List<Connection<?>> connections = null;
+			for (Map.Entry<String, Integer> position : indexPositions(
+					providerUserIds).entrySet()) {
+				ConnectionData connectionData = providerConnectionRepository
+						.findByProviderUserId(position.getKey());
+				if (connectionData != null) {
+					if (connections == null) {
+						connections = new ArrayList<Connection<?>>(
+								providerUserIds.size());
+						for (int i = 0; i < providerUserIds.size(); i++) {
+							connections.add(null);
+						}
+						connectionsForUsers.put(providerId, connections);
+					}
+					connections.set(position.getValue(),
+							createConnection(connectionData));
 				}
-				connectionsForUsers.put(providerId, connections);
 			}
-			String providerUserId = connection.getKey().getProviderUserId();
-			int connectionIndex = userIds.indexOf(providerUserId);
-			connections.set(connectionIndex, connection);
 		}
 		return connectionsForUsers;
 	}
 
+	/**
+	 * @return the position of the first occurrence of each providerUserId in
+	 *         the given list
+	 */
+	private Map<String, Integer> indexPositions(List<String> providerUserIds) {
+		Map<String, Integer> positions = new HashMap<String, Integer>(
+				providerUserIds.size() * 2);
+		int position = 0;
+		for (String providerUserId : providerUserIds) {
+			if (!positions.containsKey(providerUserId)) {
+				positions.put(providerUserId, position);
+			}
+			position++;
+		}
+		return positions;
+	}
+
 	@Override
 	public Connection<?> getConnection(ConnectionKey connectionKey) {
 
-		ConnectionData connectionData = getInMemoryProviderConnectionRepository(
-				connectionKey.getProviderId()).findByProviderUserId(
-				connectionKey.getProviderUserId());
+		InMemoryProviderConnectionRepository providerConnectionRepository = findInMemoryProviderConnectionRepository(connectionKey
+				.getProviderId());
+		ConnectionData connectionData = providerConnectionRepository == null ? null
+				: providerConnectionRepository
+						.findByProviderUserId(connectionKey.getProviderUserId());
 
 		if (connectionData == null) {
 			throw new NoSuchConnectionException(connectionKey);
@@ -218,33 +348,91 @@ public class InMemoryConnectionRepository implements ConnectionRepository {
 
 	@Override
 	public void removeConnections(String providerId) {
-		getInMemoryProviderConnectionRepository(providerId).deleteAll();
+		synchronized (getLock()) {
+			InMemoryConnectionRepository repository = resolve();
+			InMemoryProviderConnectionRepository providerConnectionRepository = repository.providerRepositories
+					.get(providerId);
+			if (providerConnectionRepository != null) {
+				evictAll(providerConnectionRepository);
+				providerConnectionRepository.deleteAll();
+				repository.reclaimIfEmpty(providerConnectionRepository);
+			}
+		}
 	}
 
 	@Override
 	public void removeConnection(ConnectionKey connectionKey) {
-		getInMemoryProviderConnectionRepository(connectionKey.getProviderId())
-				.deleteByProviderUserId(connectionKey.getProviderUserId());
+		synchronized (getLock()) {
+			InMemoryConnectionRepository repository = resolve();
+			InMemoryProviderConnectionRepository providerConnectionRepository = repository.providerRepositories
+					.get(connectionKey.getProviderId());
+			if (providerConnectionRepository != null) {
+				providerConnectionRepository
+						.deleteByProviderUserId(connectionKey
+								.getProviderUserId());
+				evict(connectionKey);
+				repository.reclaimIfEmpty(providerConnectionRepository);
+			}
+		}
 	}
 
 	@Override
 	public void addConnection(Connection<?> connection) {
 		ConnectionData connectionData = connection.createData();
-		getInMemoryProviderConnectionRepository(connectionData.getProviderId())
-				.add(connectionData);
+		synchronized (getLock()) {
+			InMemoryConnectionRepository repository = attach();
+			InMemoryProviderConnectionRepository providerConnectionRepository = repository
+					.getOrCreateInMemoryProviderConnectionRepository(connectionData
+							.getProviderId());
+			try {
+				providerConnectionRepository.add(connectionData);
+			} finally {
+				repository.reclaimIfEmpty(providerConnectionRepository);
+			}
+		}
 	}
 
 	@Override
 	public void updateConnection(Connection<?> connection) {
 		ConnectionData data = connection.createData();
-		getInMemoryProviderConnectionRepository(data.getProviderId())
-				.updateByProviderUserId(data, data.getProviderUserId());
+		synchronized (getLock()) {
+			InMemoryProviderConnectionRepository providerConnectionRepository = findInMemoryProviderConnectionRepository(data
+					.getProviderId());
+			if (providerConnectionRepository != null) {
+				providerConnectionRepository.updateByProviderUserId(data,
+						data.getProviderUserId());
+				evict(connection.getKey());
+			}
+		}
+	}
+
+	/**
+	 * Updates the given connection as {@link #updateConnection(Connection)}
+	 * does, only if the connection it updates is still held as the given
+	 * ConnectionData, read before the update was prepared
+	 * 
+	 * @return true if the connection was updated
+	 */
+	boolean replaceConnection(ConnectionData expected,
+			Connection<?> connection) {
+		ConnectionData data = connection.createData();
+		synchronized (getLock()) {
+			InMemoryProviderConnectionRepository providerConnectionRepository = findInMemoryProviderConnectionRepository(data
+					.getProviderId());
+			if (providerConnectionRepository == null
+					|| !providerConnectionRepository.replace(expected, data)) {
+				return false;
+			}
+			evict(connection.getKey());
+			return true;
+		}
 	}
 
 	private Connection<?> findPrimaryConnection(String providerId) {
 
-		ConnectionData connectionData = getInMemoryProviderConnectionRepository(
-				providerId).findByRank(1);
+		InMemoryProviderConnectionRepository providerConnectionRepository = findInMemoryProviderConnectionRepository(providerId);
+		ConnectionData connectionData = providerConnectionRepository == null ? null
+				: providerConnectionRepository.findByRank(1);
 		if (connectionData != null) {
 			return createConnection(connectionData);
 		} else {
@@ -253,9 +441,54 @@ public class InMemoryConnectionRepository implements ConnectionRepository {
 	}
 
 	protected Connection<?> createConnection(ConnectionData connectionData) {
+		InMemoryConnectionCache connectionCache = getConnectionCache();
+		if (connectionCache != null) {
+			Connection<?> connection = connectionCache.get(userId,
+					connectionData);
+			if (connection != null) {
+				return connection;
+			}
+		}
 		ConnectionFactory<?> connectionFactory = connectionFactoryLocator
 				.getConnectionFactory(connectionData.getProviderId());
-		return connectionFactory.createConnection(connectionData);
+		Connection<?> connection = connectionFactory
+				.createConnection(connectionData);
+		if (connectionCache != null) {
+			connectionCache.put(userId, connectionData, connection);
+		}
+		return connection;
+	}
+
+	protected InMemoryConnectionCache getConnectionCache() {
+		return usersConnectionRepository == null ? connectionCache
+				: usersConnectionRepository.getConnectionCache();
+	}
+
+	/**
+	 * @return the listener to notify of mutations of this user's connections,
+	 *         which is the owning users repository's, or null
+	 */
+	protected InMemoryConnectionListener getConnectionListener() {
+		return usersConnectionRepository == null ? null
+				: usersConnectionRepository.getConnectionListener();
+	}
+
+	private void evict(ConnectionKey connectionKey) {
+		InMemoryConnectionCache connectionCache = getConnectionCache();
+		if (connectionCache != null) {
+			connectionCache.evict(userId, connectionKey);
+		}
+	}
+
+	private void evictAll(
+			InMemoryProviderConnectionRepository providerConnectionRepository) {
+		if (getConnectionCache() != null) {
+			for (ConnectionData connectionData : providerConnectionRepository
+					.findAllOrderByRank()) {
+				evict(new ConnectionKey(connectionData.getProviderId(),
+						connectionData.getProviderUserId()));
+			}
+		}
 	}
 
 	protected List<Connection<?>> createConnections(
@@ -267,6 +500,40 @@ public class InMemoryConnectionRepository implements ConnectionRepository {
 		return connections;
 	}
 
+	/**
+	 * Read-only list of the connections of the given data, each created on
+	 * first access and then kept, so that repeated accesses return the same
+	 * instance
+	 */
+	private class LazyConnectionList extends AbstractList<Connection<?>>
+			implements RandomAccess {
+
+		private final List<ConnectionData> connectionData;
+
+		private final Connection<?>[] connections;
+
+		LazyConnectionList(List<ConnectionData> connectionData) {
+			this.connectionData = connectionData;
+			this.connections = new Connection<?>[connectionData.size()];
+		}
+
+		@Override
+		public Connection<?> get(int index) {
+			Connection<?> connection = connections[index];
+			if (connection == null) {
+				connection = createConnection(connectionData.get(index));
+				connections[index] = connection;
+			}
+			return connection;
+		}
+
+		@Override
+		public int size() {
+			return connections.length;
+		}
+
+	}
+
 	private <A> String getProviderId(Class<A> apiType) {
 		return connectionFactoryLocator.getConnectionFactory(apiType)
 				.getProviderId();
@@ -274,15 +541,114 @@ public class InMemoryConnectionRepository implements ConnectionRepository {
 
 
 	public void addConnectionData(ConnectionData connectionData, int rank) {
-		getInMemoryProviderConnectionRepository(connectionData.getProviderId())
-				.add(connectionData, rank);
+		synchronized (getLock()) {
+			InMemoryConnectionRepository repository = attach();
+			InMemoryProviderConnectionRepository providerConnectionRepository = repository
+					.getOrCreateInMemoryProviderConnectionRepository(connectionData
+							.getProviderId());
+			try {
+				providerConnectionRepository.add(connectionData, rank);
+			} finally {
+				repository.reclaimIfEmpty(providerConnectionRepository);
+			}
+		}
 	}
 
 	protected boolean hasConnection(ConnectionKey key) {
-		InMemoryProviderConnectionRepository providerConnectionRepository = getInMemoryProviderConnectionRepository(key
+		InMemoryProviderConnectionRepository providerConnectionRepository = findInMemoryProviderConnectionRepository(key
 				.getProviderId());
-		return providerConnectionRepository.hasProviderUserId(key
-				.getProviderUserId());
+		return providerConnectionRepository != null
+				&& providerConnectionRepository.hasProviderUserId(key
+						.getProviderUserId());
+	}
+
+	/**
+	 * @return true if this repository holds no connections
+	 */
+	public boolean isEmpty() {
+		return resolve().providerRepositories.isEmpty();
+	}
+
+	/**
+	 * @return the lock serializing mutations of this user's connections,
+	 *         shared by every repository instance for the user
+	 */
+	protected Object getLock() {
+		return usersConnectionRepository == null ? this
+				: usersConnectionRepository.getLock(userId);
+	}
+
+	/**
+	 * @return the repository currently registered for this user, or this
+	 *         repository if none is
+	 */
+	protected InMemoryConnectionRepository resolve() {
+		if (usersConnectionRepository == null) {
+			return this;
+		}
+		InMemoryConnectionRepository repository = usersConnectionRepository
+				.findInMemoryConnectionRepository(userId);
+		return repository == null ? this : repository;
+	}
+
+	/**
+	 * Registers this repository for its user unless another one already is;
+	 * must be called holding {@link #getLock()}.
+	 * 
+	 * @return the repository registered for this user, to be written to
+	 */
+	protected InMemoryConnectionRepository attach() {
+		if (usersConnectionRepository == null) {
+			return this;
+		}
+		return usersConnectionRepository.attach(this);
+	}
+
+	/**
+	 * Restores the given connections, grouped by providerId and in rank order
+	 * for each, into this repository not yet registered
+	 */
+	void restore(List<ConnectionData> connectionDatas) {
+		for (ConnectionData connectionData : connectionDatas) {
+			InMemoryProviderConnectionRepository providerConnectionRepository = getOrCreateInMemoryProviderConnectionRepository(connectionData
+					.getProviderId());
+			providerConnectionRepository.restore(connectionData,
+					providerConnectionRepository.getNextRank());
+		}
+	}
+
+	/**
+	 * Releases the connections of this repository, unregistered as its user
+	 * is evicted by an {@link InMemoryUserCache}; must be called holding
+	 * {@link #getLock()}.
+	 */
+	void evict() {
+		evicted = true;
+		for (InMemoryProviderConnectionRepository providerConnectionRepository : providerRepositories
+				.values()) {
+			providerConnectionRepository.evict();
+		}
+	}
+
+	boolean isEvicted() {
+		return evicted;
+	}
+
+	/**
+	 * Discards the given provider repository once emptied, and this repository
+	 * once it holds no provider repositories; must be called holding
+	 * {@link #getLock()}.
+	 */
+	private void reclaimIfEmpty(
+			InMemoryProviderConnectionRepository providerConnectionRepository) {
+		if (providerConnectionRepository.isEmpty()) {
+			providerRepositories.remove(
+					providerConnectionRepository.getProviderId(),
+					providerConnectionRepository);
+		}
+		if (providerRepositories.isEmpty() && usersConnectionRepository != null) {
+			usersConnectionRepository.detach(this);
+		}
 	}
 
 }
\ No newline at end of file
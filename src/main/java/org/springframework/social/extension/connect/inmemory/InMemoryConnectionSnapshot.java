@@ -0,0 +1,559 @@
+/*
+ * Copyright 2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.social.extension.connect.inmemory;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Array;
+import java.lang.reflect.InvocationTargetException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.springframework.social.connect.ConnectionData;
+
+/**
+ * Compact binary image of the connections held by an
+ * {@link InMemoryUsersConnectionRepository}, written by
+ * {@link #write(InMemoryUsersConnectionRepository, long)} and loaded back by
+ * {@link #read(InMemoryUsersConnectionRepository)}, as the snapshot of an
+ * {@link InMemoryConnectionJournal} or standalone to warm a repository.
+ *
+ * Users are stored in partitions of {@link #setUsersPerPartition(int)
+ * usersPerPartition} users, located by an index at the end of the file which
+ * also holds the number of connections to each provider. Loading maps each
+ * partition into memory and decodes the partitions in parallel, straight
+ * into the repository's maps, after pre-sizing the connection key index
+ * from the provider counts.
+ *
+ * File layout, all numbers big-endian:
+ *
+ * <pre>
+ * header:    magic int, version int, generation long, index offset long
+ * partition: per user: userId, provider count int,
+ *              per provider: providerId, connection count int,
+ *                per connection: rank int, providerUserId, displayName,
+ *                  profileUrl, imageUrl, accessToken, secret, refreshToken,
+ *                  expireTime long (Long.MIN_VALUE if null)
+ * index:     partition count int, per partition: offset long, length long,
+ *            provider count int, per provider: providerId, connection count int,
+ *            magic int
+ * </pre>
+ *
+ * Strings are stored as their UTF-8 byte length, or -1 for null, followed by
+ * their bytes.
+ *
+ * @author Michael Lavelle
+ */
+public class InMemoryConnectionSnapshot {
+
+	private static final int MAGIC = 0x434F4E4E;
+
+	private static final int VERSION = 2;
+
+	private static final int HEADER_LENGTH = 24;
+
+	private static final long NULL_EXPIRE_TIME = Long.MIN_VALUE;
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	private final File file;
+
+	private int usersPerPartition = 1024;
+
+	private int loadThreads = Runtime.getRuntime().availableProcessors();
+
+	public InMemoryConnectionSnapshot(File file) {
+		this.file = file;
+	}
+
+	/**
+	 * The number of users written to each partition, the unit of parallel
+	 * loading. Defaults to 1024.
+	 */
+	public void setUsersPerPartition(int usersPerPartition) {
+		this.usersPerPartition = usersPerPartition;
+	}
+
+	/**
+	 * The number of threads partitions are loaded on. Defaults to the number
+	 * of available processors.
+	 */
+	public void setLoadThreads(int loadThreads) {
+		this.loadThreads = loadThreads;
+	}
+
+	public boolean exists() {
+		return file.exists();
+	}
+
+	/**
+	 * Completes the replacement of this snapshot if it was interrupted
+	 * between the deletion of the previous file and the renaming of the
+	 * temporary file, which is then complete; a temporary file left
+	 * incomplete is deleted.
+	 * 
+	 * @return true if the snapshot exists
+	 */
+	public boolean recover() throws IOException {
+		File temporaryFile = getTemporaryFile();
+		if (!file.exists() && temporaryFile.exists()) {
+			if (isComplete(temporaryFile)) {
+				replace(temporaryFile);
+			} else if (!temporaryFile.delete()) {
+				throw new IOException("Unable to delete incomplete snapshot "
+						+ temporaryFile);
+			}
+		}
+		return file.exists();
+	}
+
+	/**
+	 * Writes every connection held by the given repository to a temporary
+	 * file, forced to disk, which then replaces this snapshot's file: the
+	 * previous file is deleted before the temporary file is renamed, as a
+	 * rename over an existing file is not portable, and the directory is
+	 * forced to disk once renamed. A replacement interrupted in between is
+	 * completed by {@link #recover()}. The users evicted by the repository's
+	 * {@link InMemoryUserCache} are read from its loader. Mutations applied
+	 * concurrently may or may not be included.
+	 *
+	 * @param generation
+	 *            a number to store with the snapshot, returned when it is read
+	 */
+	public void write(
+			InMemoryUsersConnectionRepository usersConnectionRepository,
+			long generation) throws IOException {
+		File temporaryFile = getTemporaryFile();
+		FileOutputStream fileOutputStream = new FileOutputStream(temporaryFile);
+		try {
+			FileChannel channel = fileOutputStream.getChannel();
+			DataOutputStream out = new DataOutputStream(
+					new BufferedOutputStream(fileOutputStream, 1 << 16));
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeLong(generation);
+			out.writeLong(0);
+
+			List<long[]> partitions = new ArrayList<long[]>();
+			Map<String, int[]> connectionCountsByProviderId = new LinkedHashMap<String, int[]>();
+			int partitionUsers = 0;
+			long partitionOffset = HEADER_LENGTH;
+			Set<String> offloadedUserIds = usersConnectionRepository
+					.getOffloadedUserIds();
+			Set<String> writtenOffloadedUserIds = new HashSet<String>();
+			for (InMemoryConnectionRepository connectionRepository : usersConnectionRepository.connectionRepositoriesByUserId
+					.values()) {
+				if (writeUser(out, connectionRepository,
+						connectionCountsByProviderId)) {
+					if (offloadedUserIds.contains(connectionRepository.userId)) {
+						writtenOffloadedUserIds.add(connectionRepository.userId);
+					}
+					if (++partitionUsers == usersPerPartition) {
+						partitionOffset = endPartition(out, channel,
+								partitions, partitionOffset);
+						partitionUsers = 0;
+					}
+				}
+			}
+			// the users evicted by a user cache, read from its loader unless
+			// written above
+			for (String userId : offloadedUserIds) {
+				if (!writtenOffloadedUserIds.contains(userId)
+						&& writeOffloadedUser(out, usersConnectionRepository,
+								userId, connectionCountsByProviderId)
+						&& ++partitionUsers == usersPerPartition) {
+					partitionOffset = endPartition(out, channel, partitions,
+							partitionOffset);
+					partitionUsers = 0;
+				}
+			}
+			if (partitionUsers > 0) {
+				endPartition(out, channel, partitions, partitionOffset);
+			}
+			out.flush();
+			long indexOffset = channel.position();
+
+			out.writeInt(partitions.size());
+			for (long[] partition : partitions) {
+				out.writeLong(partition[0]);
+				out.writeLong(partition[1]);
+			}
+			out.writeInt(connectionCountsByProviderId.size());
+			for (Map.Entry<String, int[]> connectionCount : connectionCountsByProviderId
+					.entrySet()) {
+				writeString(out, connectionCount.getKey());
+				out.writeInt(connectionCount.getValue()[0]);
+			}
+			out.writeInt(MAGIC);
+			out.flush();
+
+			ByteBuffer indexOffsetBuffer = ByteBuffer.allocate(8);
+			indexOffsetBuffer.putLong(indexOffset).flip();
+			channel.write(indexOffsetBuffer, HEADER_LENGTH - 8);
+			channel.force(true);
+		} finally {
+			fileOutputStream.close();
+		}
+		if (file.exists() && !file.delete()) {
+			throw new IOException("Unable to replace snapshot " + file);
+		}
+		replace(temporaryFile);
+	}
+
+	private void replace(File temporaryFile) throws IOException {
+		if (!temporaryFile.renameTo(file)) {
+			throw new IOException("Unable to rename snapshot " + temporaryFile
+					+ " to " + file);
+		}
+		forceDirectory(file.getAbsoluteFile().getParentFile());
+	}
+
+	/**
+	 * @return true if the given file holds a snapshot written to its end
+	 */
+	private static boolean isComplete(File file) throws IOException {
+		RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+		try {
+			long length = randomAccessFile.length();
+			if (length < HEADER_LENGTH + 4 || randomAccessFile.readInt() != MAGIC
+					|| randomAccessFile.readInt() != VERSION) {
+				return false;
+			}
+			randomAccessFile.readLong();
+			long indexOffset = randomAccessFile.readLong();
+			if (indexOffset < HEADER_LENGTH || indexOffset > length - 4) {
+				return false;
+			}
+			randomAccessFile.seek(length - 4);
+			return randomAccessFile.readInt() == MAGIC;
+		} finally {
+			randomAccessFile.close();
+		}
+	}
+
+	/**
+	 * Forces the entries of the given directory to disk, so that a file
+	 * renamed in it stays renamed after a crash. Directories can only be
+	 * opened from Java 7, through reflection as this module targets Java 6,
+	 * and not on Windows, where this does nothing.
+	 */
+	static void forceDirectory(File directory) throws IOException {
+		FileChannel channel;
+		try {
+			Object path = File.class.getMethod("toPath").invoke(directory);
+			Class<?> openOptionClass = Class
+					.forName("java.nio.file.OpenOption");
+			Object openOptions = Array.newInstance(openOptionClass, 1);
+			Array.set(openOptions, 0,
+					Class.forName("java.nio.file.StandardOpenOption")
+							.getField("READ").get(null));
+			channel = (FileChannel) FileChannel.class.getMethod("open",
+					Class.forName("java.nio.file.Path"),
+					openOptions.getClass()).invoke(null, path, openOptions);
+		} catch (NoSuchMethodException e) {
+			return;
+		} catch (InvocationTargetException e) {
+			if (e.getCause() instanceof IOException
+					&& !System.getProperty("os.name").startsWith("Windows")) {
+				throw (IOException) e.getCause();
+			}
+			return;
+		} catch (Exception e) {
+			throw new IllegalStateException(e);
+		}
+		try {
+			channel.force(true);
+		} finally {
+			channel.close();
+		}
+	}
+
+	/**
+	 * @return the file a snapshot is written to before replacing this one
+	 */
+	public File getTemporaryFile() {
+		return new File(file.getPath() + ".tmp");
+	}
+
+	/**
+	 * Loads every connection of this snapshot into the given repository,
+	 * which must hold no connections, nor be used until loading completes.
+	 *
+	 * @return the generation the snapshot was written with
+	 */
+	public long read(
+			final InMemoryUsersConnectionRepository usersConnectionRepository)
+			throws IOException {
+		RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+		try {
+			final FileChannel channel = randomAccessFile.getChannel();
+			ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+					HEADER_LENGTH);
+			if (header.getInt() != MAGIC || header.getInt() != VERSION) {
+				throw new IOException("Unrecognized snapshot " + file);
+			}
+			long generation = header.getLong();
+			long indexOffset = header.getLong();
+			ByteBuffer index = channel.map(FileChannel.MapMode.READ_ONLY,
+					indexOffset, channel.size() - indexOffset);
+			List<long[]> partitions = new ArrayList<long[]>();
+			for (int i = index.getInt(); i > 0; i--) {
+				partitions.add(new long[] { index.getLong(), index.getLong() });
+			}
+			for (int i = index.getInt(); i > 0; i--) {
+				usersConnectionRepository.connectionKeyIndex.presize(
+						readString(index), index.getInt());
+			}
+			if (index.getInt() != MAGIC) {
+				throw new IOException("Incomplete snapshot " + file);
+			}
+
+			ExecutorService executor = Executors.newFixedThreadPool(Math.max(
+					1, Math.min(loadThreads, partitions.size())));
+			try {
+				List<Future<Void>> loads = new ArrayList<Future<Void>>();
+				for (final long[] partition : partitions) {
+					loads.add(executor.submit(new Callable<Void>() {
+						public Void call() throws IOException {
+							MappedByteBuffer buffer = channel.map(
+									FileChannel.MapMode.READ_ONLY,
+									partition[0], partition[1]);
+							while (buffer.hasRemaining()) {
+								readUser(buffer, usersConnectionRepository);
+							}
+							return null;
+						}
+					}));
+				}
+				for (Future<Void> load : loads) {
+					load.get();
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted loading snapshot " + file);
+			} catch (ExecutionException e) {
+				if (e.getCause() instanceof IOException) {
+					throw (IOException) e.getCause();
+				}
+				if (e.getCause() instanceof RuntimeException) {
+					throw (RuntimeException) e.getCause();
+				}
+				throw new IllegalStateException(e.getCause());
+			} finally {
+				executor.shutdownNow();
+			}
+			return generation;
+		} finally {
+			randomAccessFile.close();
+		}
+	}
+
+	/**
+	 * Ends the partition started at the given offset at the current position
+	 * 
+	 * @return the offset of the next partition
+	 */
+	private static long endPartition(DataOutputStream out, FileChannel channel,
+			List<long[]> partitions, long partitionOffset) throws IOException {
+		out.flush();
+		long position = channel.position();
+		partitions.add(new long[] { partitionOffset,
+				position - partitionOffset });
+		return position;
+	}
+
+	/**
+	 * Writes the given user evicted by the repository's user cache, from the
+	 * repository if the user is held again, or else from the cache's loader,
+	 * ranking each provider's connections from 1 as reloading them would
+	 * 
+	 * @return true if the user has any connections, and so was written
+	 */
+	private boolean writeOffloadedUser(DataOutputStream out,
+			InMemoryUsersConnectionRepository usersConnectionRepository,
+			String userId, Map<String, int[]> connectionCountsByProviderId)
+			throws IOException {
+		while (true) {
+			InMemoryConnectionRepository connectionRepository = usersConnectionRepository.connectionRepositoriesByUserId
+					.get(userId);
+			if (connectionRepository != null) {
+				return writeUser(out, connectionRepository,
+						connectionCountsByProviderId);
+			}
+			List<ConnectionData> connectionDatas = usersConnectionRepository
+					.loadOffloadedConnections(userId);
+			if (connectionDatas != null) {
+				Map<String, List<Map.Entry<Integer, ConnectionData>>> connectionsByProviderId = new LinkedHashMap<String, List<Map.Entry<Integer, ConnectionData>>>();
+				for (ConnectionData connectionData : connectionDatas) {
+					List<Map.Entry<Integer, ConnectionData>> connections = connectionsByProviderId
+							.get(connectionData.getProviderId());
+					if (connections == null) {
+						connections = new ArrayList<Map.Entry<Integer, ConnectionData>>();
+						connectionsByProviderId.put(
+								connectionData.getProviderId(), connections);
+					}
+					connections
+							.add(new AbstractMap.SimpleEntry<Integer, ConnectionData>(
+									connections.size() + 1, connectionData));
+				}
+				return writeUser(out, userId,
+						new ArrayList<String>(connectionsByProviderId.keySet()),
+						new ArrayList<List<Map.Entry<Integer, ConnectionData>>>(
+								connectionsByProviderId.values()),
+						connectionCountsByProviderId);
+			}
+			// held again since it was looked up
+		}
+	}
+
+	/**
+	 * @return true if the user held any connections, and so was written
+	 */
+	private boolean writeUser(DataOutputStream out,
+			InMemoryConnectionRepository connectionRepository,
+			Map<String, int[]> connectionCountsByProviderId) throws IOException {
+		List<String> providerIds = new ArrayList<String>();
+		List<List<Map.Entry<Integer, ConnectionData>>> connectionsByProvider = new ArrayList<List<Map.Entry<Integer, ConnectionData>>>();
+		for (InMemoryProviderConnectionRepository providerConnectionRepository : connectionRepository.providerRepositories
+				.values()) {
+			List<Map.Entry<Integer, ConnectionData>> connections;
+			// waits for a mutation being applied, which the journal may
+			// already have appended to a log this snapshot replaces
+			synchronized (providerConnectionRepository) {
+				connections = new ArrayList<Map.Entry<Integer, ConnectionData>>(
+						providerConnectionRepository.findAllByRank().entrySet());
+			}
+			if (!connections.isEmpty()) {
+				providerIds.add(providerConnectionRepository.getProviderId());
+				connectionsByProvider.add(connections);
+			}
+		}
+		return writeUser(out, connectionRepository.userId, providerIds,
+				connectionsByProvider, connectionCountsByProviderId);
+	}
+
+	/**
+	 * Writes the given connections of a user, by provider and in rank order
+	 * 
+	 * @return true if the user has any connections, and so was written
+	 */
+	private static boolean writeUser(DataOutputStream out, String userId,
+			List<String> providerIds,
+			List<List<Map.Entry<Integer, ConnectionData>>> connectionsByProvider,
+			Map<String, int[]> connectionCountsByProviderId) throws IOException {
+		if (connectionsByProvider.isEmpty()) {
+			return false;
+		}
+		writeString(out, userId);
+		out.writeInt(connectionsByProvider.size());
+		for (int i = 0; i < connectionsByProvider.size(); i++) {
+			String providerId = providerIds.get(i);
+			List<Map.Entry<Integer, ConnectionData>> connections = connectionsByProvider
+					.get(i);
+			writeString(out, providerId);
+			out.writeInt(connections.size());
+			for (Map.Entry<Integer, ConnectionData> connection : connections) {
+				ConnectionData connectionData = connection.getValue();
+				out.writeInt(connection.getKey());
+				writeString(out, connectionData.getProviderUserId());
+				writeString(out, connectionData.getDisplayName());
+				writeString(out, connectionData.getProfileUrl());
+				writeString(out, connectionData.getImageUrl());
+				writeString(out, connectionData.getAccessToken());
+				writeString(out, connectionData.getSecret());
+				writeString(out, connectionData.getRefreshToken());
+				out.writeLong(connectionData.getExpireTime() == null ? NULL_EXPIRE_TIME
+						: connectionData.getExpireTime());
+			}
+			int[] connectionCount = connectionCountsByProviderId
+					.get(providerId);
+			if (connectionCount == null) {
+				connectionCount = new int[1];
+				connectionCountsByProviderId.put(providerId, connectionCount);
+			}
+			connectionCount[0] += connections.size();
+		}
+		return true;
+	}
+
+	private static void readUser(ByteBuffer buffer,
+			InMemoryUsersConnectionRepository usersConnectionRepository) {
+		String userId = readString(buffer);
+		InMemoryConnectionRepository connectionRepository = usersConnectionRepository
+				.createInMemoryConnectionRepository(userId);
+		for (int providers = buffer.getInt(); providers > 0; providers--) {
+			String providerId = readString(buffer);
+			InMemoryProviderConnectionRepository providerConnectionRepository = connectionRepository
+					.getInMemoryProviderConnectionRepository(providerId);
+			for (int connections = buffer.getInt(); connections > 0; connections--) {
+				int rank = buffer.getInt();
+				String providerUserId = readString(buffer);
+				String displayName = readString(buffer);
+				String profileUrl = readString(buffer);
+				String imageUrl = readString(buffer);
+				String accessToken = readString(buffer);
+				String secret = readString(buffer);
+				String refreshToken = readString(buffer);
+				long expireTime = buffer.getLong();
+				providerConnectionRepository.restore(new ConnectionData(
+						providerId, providerUserId, displayName, profileUrl,
+						imageUrl, accessToken, secret, refreshToken,
+						expireTime == NULL_EXPIRE_TIME ? null : expireTime),
+						rank);
+			}
+		}
+	}
+
+	private static void writeString(DataOutputStream out, String value)
+			throws IOException {
+		if (value == null) {
+			out.writeInt(-1);
+		} else {
+			byte[] bytes = value.getBytes(UTF_8);
+			out.writeInt(bytes.length);
+			out.write(bytes);
+		}
+	}
+
+	private static String readString(ByteBuffer buffer) {
+		int length = buffer.getInt();
+		if (length < 0) {
+			return null;
+		}
+		byte[] bytes = new byte[length];
+		buffer.get(bytes);
+		return new String(bytes, UTF_8);
+	}
+
+}
@@ -17,132 +17,312 @@ package org.springframework.social.extension.connect.inmemory;
 
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Map;
 import java.util.SortedMap;
 import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.springframework.social.connect.ConnectionData;
 import org.springframework.social.connect.ConnectionKey;
 import org.springframework.social.connect.DuplicateConnectionException;
 
-
+/**
+ * The connections of one user to one provider, ordered by rank.
+ * 
+ * Safe for concurrent use: reads go straight to the storage and never block,
+ * while mutations are serialized on the repository itself so that rank
+ * allocation and duplicate detection are atomic for the user and provider.
+ * 
+ * Most users hold a handful of connections to a provider, so these are kept
+ * in a pair of sorted arrays, copied on every mutation, and only in concurrent
+ * maps once there are more than a few of them, which keeps the per-connection
+ * overhead small for repositories holding millions of users.
+ * 
+ * @author Michael Lavelle
+ */
 public class InMemoryProviderConnectionRepository {
 
-	protected SortedMap<Integer, ConnectionData> connectionDataByRank = new TreeMap<Integer, ConnectionData>();
+	/**
+	 * Replaced by the storage returned by every mutation
+	 */
+	private volatile RankedConnectionStorage connectionStorage = CompactRankedConnectionStorage.EMPTY;
+
+	/**
+	 * The rank the next connection added without an explicit rank will
+	 * receive: always above every rank in use, and back to 1 once the
+	 * repository is emptied, as the JDBC implementation would allocate
+	 */
+	private final AtomicInteger nextRank = new AtomicInteger(1);
 
 	private final String userId;
 	private final String providerId;
 
+	private final InMemoryConnectionKeyIndex connectionKeyIndex;
+
+	private final InMemoryConnectionExpiryIndex connectionExpiryIndex;
+
+	private final InMemoryConnectionListener connectionListener;
+
+	private final InMemoryConnectionDataInterner connectionDataInterner;
+
 	public InMemoryProviderConnectionRepository(String userId, String providerId) {
+		this(userId, providerId, new InMemoryConnectionKeyIndex());
+	}
+
+	public InMemoryProviderConnectionRepository(String userId,
+			String providerId, InMemoryConnectionKeyIndex connectionKeyIndex) {
+		this(userId, providerId, connectionKeyIndex, null, null, null);
+	}
+
+	/**
+	 * @param connectionExpiryIndex
+	 *            the index to register the expireTime of the connections in,
+	 *            or null
+	 * @param connectionDataInterner
+	 *            the interner the connections are stored through, or null
+	 *            to store them as given
+	 * @param connectionListener
+	 *            notified of every mutation of this repository, or null
+	 */
+	InMemoryProviderConnectionRepository(String userId, String providerId,
+			InMemoryConnectionKeyIndex connectionKeyIndex,
+			InMemoryConnectionExpiryIndex connectionExpiryIndex,
+			InMemoryConnectionDataInterner connectionDataInterner,
+			InMemoryConnectionListener connectionListener) {
 		this.userId = userId;
 		this.providerId = providerId;
+		this.connectionKeyIndex = connectionKeyIndex;
+		this.connectionExpiryIndex = connectionExpiryIndex;
+		this.connectionListener = connectionListener;
+		this.connectionDataInterner = connectionDataInterner;
+	}
+
+	public String getProviderId() {
+		return providerId;
+	}
+
+	public boolean isEmpty() {
+		return connectionStorage.size() == 0;
 	}
 
 	public boolean hasProviderUserId(String providerUserId) {
-		return findByProviderUserId(providerUserId) != null;
+		return connectionStorage.findRank(providerUserId) != RankedConnectionStorage.NO_RANK;
 	}
 
+	/**
+	 * @return a read-only list of the connections, in rank order
+	 */
 	public List<ConnectionData> findAllOrderByRank() {
-		List<ConnectionData> connectionDatas = new ArrayList<ConnectionData>();
-		connectionDatas.addAll(connectionDataByRank.values());
-		return connectionDatas;
+		return connectionStorage.findAll();
 	}
 
-	public ConnectionData findByProviderUserId(String providerUserId) {
-		for (ConnectionData connectionData : connectionDataByRank.values()) {
-			if (connectionData.getProviderUserId().equals(providerUserId)) {
-				return connectionData;
-			}
-		}
-		return null;
+	/**
+	 * @return a copy of the connections by rank
+	 */
+	public SortedMap<Integer, ConnectionData> findAllByRank() {
+		return connectionStorage.findAllByRank();
 	}
 
-	public ConnectionData findByRank(int rank) {
+	/**
+	 * @return the rank of the connection with the given providerUserId, or
+	 *         null if there is none
+	 */
+	public Integer findRank(String providerUserId) {
+		int rank = connectionStorage.findRank(providerUserId);
+		return rank != RankedConnectionStorage.NO_RANK ? rank : null;
+	}
 
-		return connectionDataByRank.get(rank);
+	public ConnectionData findByProviderUserId(String providerUserId) {
+		return connectionStorage.findByProviderUserId(providerUserId);
+	}
 
+	public ConnectionData findByRank(int rank) {
+		return connectionStorage.findByRank(rank);
 	}
 
-	public void deleteByProviderUserId(String providerUserId) {
-		Integer rankOfMatchingConnectionData = null;
-		for (Map.Entry<Integer, ConnectionData> connectionDataWithRank : connectionDataByRank
-				.entrySet()) {
-			if (connectionDataWithRank.getValue().getProviderUserId()
-					.equals(providerUserId)) {
-				rankOfMatchingConnectionData = connectionDataWithRank.getKey();
+	public synchronized void deleteByProviderUserId(String providerUserId) {
+		int rank = connectionStorage.findRank(providerUserId);
+		if (rank != RankedConnectionStorage.NO_RANK) {
+			if (connectionListener != null) {
+				connectionListener.connectionRemoved(userId,
+						createConnectionKey(providerUserId));
+			}
+			ConnectionData removed = connectionStorage.findByRank(rank);
+			connectionStorage = connectionStorage.remove(rank);
+			discard(removed);
+			connectionKeyIndex.remove(createConnectionKey(providerUserId),
+					userId);
+			if (connectionStorage.size() == 0) {
+				nextRank.set(1);
 			}
-		}
-		if (rankOfMatchingConnectionData != null) {
-			connectionDataByRank.remove(rankOfMatchingConnectionData);
 		}
 
 	}
 
-	public void deleteAll() {
-		connectionDataByRank = new TreeMap<Integer, ConnectionData>();
+	public synchronized void deleteAll() {
+		List<ConnectionData> connectionDatas = connectionStorage.findAll();
+		if (connectionListener != null && !connectionDatas.isEmpty()) {
+			connectionListener.connectionsRemoved(userId, providerId);
+		}
+		for (ConnectionData connectionData : connectionDatas) {
+			connectionKeyIndex.remove(
+					createConnectionKey(connectionData.getProviderUserId()),
+					userId);
+		}
+		connectionStorage = CompactRankedConnectionStorage.EMPTY;
+		for (ConnectionData connectionData : connectionDatas) {
+			discard(connectionData);
+		}
+		nextRank.set(1);
 	}
 
-	public void updateByProviderUserId(ConnectionData connection,
+	public synchronized void updateByProviderUserId(ConnectionData connection,
 			String providerUserId) {
-		for (Map.Entry<Integer, ConnectionData> cd : connectionDataByRank
-				.entrySet()) {
-			if (cd.getValue().getProviderUserId().equals(providerUserId)) {
-				connectionDataByRank.put(cd.getKey(), connection);
-			}
+		int rank = connectionStorage.findRank(providerUserId);
+		if (rank == RankedConnectionStorage.NO_RANK) {
+			return;
+		}
+		if (connectionListener != null) {
+			connectionListener.connectionUpdated(userId, providerUserId,
+					connection);
+		}
+		connection = intern(connection);
+		ConnectionData replaced = connectionStorage.findByRank(rank);
+		connectionStorage = connectionStorage.put(rank, connection);
+		discard(replaced);
+		indexExpiry(connection);
+		if (!providerUserId.equals(connection.getProviderUserId())) {
+			connectionKeyIndex.remove(createConnectionKey(providerUserId),
+					userId);
+			connectionKeyIndex.add(
+					createConnectionKey(connection.getProviderUserId()), userId);
 		}
 	}
 
-	
+	/**
+	 * Replaces the given connection, only if it is still held as is
+	 * 
+	 * @return true if the connection was replaced
+	 */
+	synchronized boolean replace(ConnectionData expected,
+			ConnectionData connection) {
+		if (connectionStorage.findByProviderUserId(expected
+				.getProviderUserId()) != expected) {
+			return false;
+		}
+		updateByProviderUserId(connection, expected.getProviderUserId());
+		return true;
+	}
 
 	public List<ConnectionData> findByProviderUserIdsOrderByProviderIdAndRank(
 			List<String> providerUserIdsByProviderId) {
-		List<ConnectionData> returnConnectionDatas = new ArrayList<ConnectionData>();
-		for (ConnectionData connectionData : connectionDataByRank.values()) {
-			if (providerUserIdsByProviderId.contains(connectionData
-					.getProviderUserId())) {
-				returnConnectionDatas.add(connectionData);
+		RankedConnectionStorage connectionStorage = this.connectionStorage;
+		SortedMap<Integer, ConnectionData> connectionDatasByRank = new TreeMap<Integer, ConnectionData>();
+		for (String providerUserId : providerUserIdsByProviderId) {
+			int rank = connectionStorage.findRank(providerUserId);
+			if (rank != RankedConnectionStorage.NO_RANK) {
+				connectionDatasByRank.put(rank,
+						connectionStorage.findByRank(rank));
 			}
 		}
-		return returnConnectionDatas;
+		return new ArrayList<ConnectionData>(connectionDatasByRank.values());
 	}
 
-	public void add(ConnectionData connectionData)
+	public synchronized void add(ConnectionData connectionData)
 			throws DuplicateConnectionException {
-		for (ConnectionData cd : connectionDataByRank.values()) {
-			if (cd.getProviderUserId().equals(
-					connectionData.getProviderUserId())) {
-				throw new DuplicateConnectionException(new ConnectionKey(
-						connectionData.getProviderId(),
-						connectionData.getProviderUserId()));
-			}
+		assertNotConnected(connectionData);
+		int rank = nextRank.get();
+		if (connectionListener != null) {
+			connectionListener.connectionAdded(userId, connectionData, rank);
 		}
-		connectionDataByRank.put(getNextRank(), connectionData);
+		put(intern(connectionData), rank);
+		nextRank.set(rank + 1);
+	}
 
+	public synchronized void add(ConnectionData connectionData, int rank)
+			throws DuplicateConnectionException {
+		assertNotConnected(connectionData);
+		if (connectionListener != null) {
+			connectionListener.connectionAdded(userId, connectionData, rank);
+		}
+		put(intern(connectionData), rank);
+		if (rank >= nextRank.get()) {
+			nextRank.set(rank + 1);
+		}
 	}
-	
 
-	public void add(ConnectionData connectionData, int rank)
+	/**
+	 * Unregisters and releases every connection but for the connection key
+	 * index, as the user's connections are evicted from memory, leaving them
+	 * readable by callers still holding this repository
+	 */
+	synchronized void evict() {
+		for (ConnectionData connectionData : connectionStorage.findAll()) {
+			discard(connectionData);
+		}
+	}
+
+	/**
+	 * Adds a connection at a rank, without checking for duplicates nor
+	 * notifying the listener, to bulk load a repository not yet in use
+	 */
+	synchronized void restore(ConnectionData connectionData, int rank) {
+		put(intern(connectionData), rank);
+		if (rank >= nextRank.get()) {
+			nextRank.set(rank + 1);
+		}
+	}
+
+	private void assertNotConnected(ConnectionData connectionData)
 			throws DuplicateConnectionException {
-		for (ConnectionData cd : connectionDataByRank.values()) {
-			if (cd.getProviderUserId().equals(
-					connectionData.getProviderUserId())) {
-				throw new DuplicateConnectionException(new ConnectionKey(
-						connectionData.getProviderId(),
-						connectionData.getProviderUserId()));
-			}
+		if (hasProviderUserId(connectionData.getProviderUserId())) {
+			throw new DuplicateConnectionException(new ConnectionKey(
+					connectionData.getProviderId(),
+					connectionData.getProviderUserId()));
 		}
-		connectionDataByRank.put(rank, connectionData);
+	}
 
+	private void put(ConnectionData connectionData, int rank) {
+		ConnectionData replaced = connectionStorage.findByRank(rank);
+		connectionStorage = connectionStorage.put(rank, connectionData);
+		if (replaced != null) {
+			discard(replaced);
+			connectionKeyIndex.remove(
+					createConnectionKey(replaced.getProviderUserId()), userId);
+		}
+		connectionKeyIndex.add(
+				createConnectionKey(connectionData.getProviderUserId()), userId);
+		indexExpiry(connectionData);
 	}
 
-	protected int getNextRank() {
-		Integer maxRank = null;
-		for (Integer rank : connectionDataByRank.keySet()) {
-			if (maxRank == null || rank.intValue() > maxRank.intValue()) {
-				maxRank = rank.intValue();
-			}
+	private ConnectionData intern(ConnectionData connectionData) {
+		return connectionDataInterner != null ? connectionDataInterner
+				.intern(connectionData) : connectionData;
+	}
+
+	private void indexExpiry(ConnectionData connectionData) {
+		if (connectionExpiryIndex != null) {
+			connectionExpiryIndex.add(userId, connectionData);
 		}
-		return maxRank == null ? 1 : (maxRank.intValue() + 1);
+	}
+
+	/**
+	 * Unregisters a connection no longer stored, and releases it
+	 */
+	private void discard(ConnectionData connectionData) {
+		if (connectionExpiryIndex != null) {
+			connectionExpiryIndex.remove(userId, connectionData);
+		}
+		if (connectionDataInterner != null) {
+			connectionDataInterner.release(connectionData);
+		}
+	}
+
+	protected int getNextRank() {
+		return nextRank.get();
+	}
+
+	private ConnectionKey createConnectionKey(String providerUserId) {
+		return new ConnectionKey(providerId, providerUserId);
 	}
 
 }
@@ -0,0 +1,293 @@
+/*
+ * Copyright 2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.social.extension.connect.inmemory;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.springframework.social.extension.connect.metrics.CacheStatistics;
+
+/**
+ * Bounds the users whose connections an
+ * {@link InMemoryUsersConnectionRepository} holds to its working set: once
+ * more than the maximum number of users are held, or once a user has not
+ * been accessed for longer than the idle timeout, the user's connections are
+ * evicted, and reloaded from the {@link InMemoryConnectionLoader} when next
+ * accessed.
+ * 
+ * The connection key index stays complete, so that sign-in and friend
+ * lookups keep finding evicted users, and the repository must therefore hold
+ * every user when this cache is set, for instance loaded from a snapshot or
+ * starting empty along with the loader's store. Recency is tracked in
+ * independently locked least-recently-used segments, and users are evicted
+ * approximately: evictions found while mutating a user's connections are
+ * deferred to the next call to
+ * {@link InMemoryUsersConnectionRepository#createConnectionRepository(String)}
+ * , and idle users are found while loading users or by
+ * {@link #evictIdleUsers()}.
+ * 
+ * Only evicted users are looked up from the loader: since every user is held
+ * when the cache is set, any other user not held has no connections. Counts
+ * accesses to held users as hits, and reloads of evicted users as misses,
+ * but not lookups of users with no connections, so that the cache may be
+ * registered with a
+ * {@link org.springframework.social.extension.connect.metrics.MetricsSink}.
+ * 
+ * @author Michael Lavelle
+ */
+public class InMemoryUserCache implements CacheStatistics {
+
+	private static final int MAX_SEGMENTS = 16;
+
+	private final InMemoryConnectionLoader connectionLoader;
+
+	private final Segment[] segments;
+
+	private final long idleTimeout;
+
+	private volatile InMemoryUsersConnectionRepository usersConnectionRepository;
+
+	/**
+	 * @param maximumUsers
+	 *            the approximate maximum number of users held, or 0 for no
+	 *            maximum
+	 * @param idleTimeout
+	 *            the time in milliseconds after which a user not accessed is
+	 *            evicted, or 0 for no timeout
+	 */
+	public InMemoryUserCache(InMemoryConnectionLoader connectionLoader,
+			int maximumUsers, long idleTimeout) {
+		if (maximumUsers < 0 || idleTimeout < 0) {
+			throw new IllegalArgumentException(
+					"maximumUsers and idleTimeout cannot be negative");
+		}
+		this.connectionLoader = connectionLoader;
+		this.idleTimeout = TimeUnit.MILLISECONDS.toNanos(idleTimeout);
+		int segmentCount = maximumUsers == 0 ? MAX_SEGMENTS : Integer
+				.highestOneBit(Math.min(MAX_SEGMENTS, maximumUsers));
+		segments = new Segment[segmentCount];
+		for (int i = 0; i < segments.length; i++) {
+			segments[i] = new Segment(maximumUsers == 0 ? Integer.MAX_VALUE
+					: maximumUsers / segmentCount);
+		}
+	}
+
+	public InMemoryConnectionLoader getConnectionLoader() {
+		return connectionLoader;
+	}
+
+	/**
+	 * Evicts every user not accessed for longer than the idle timeout
+	 * 
+	 * @return the number of users evicted
+	 */
+	public int evictIdleUsers() {
+		InMemoryUsersConnectionRepository usersConnectionRepository = this.usersConnectionRepository;
+		if (usersConnectionRepository == null || idleTimeout <= 0) {
+			return 0;
+		}
+		long now = System.nanoTime();
+		int evicted = 0;
+		for (Segment segment : segments) {
+			List<String> idleUserIds = new ArrayList<String>();
+			segment.removeEldest(now, idleTimeout, idleUserIds);
+			for (String userId : idleUserIds) {
+				if (usersConnectionRepository.evict(userId)) {
+					evicted++;
+				}
+			}
+		}
+		return evicted;
+	}
+
+	/**
+	 * @return the number of accesses to users held
+	 */
+	public long getHitCount() {
+		long hits = 0;
+		for (Segment segment : segments) {
+			hits += segment.getHits();
+		}
+		return hits;
+	}
+
+	/**
+	 * @return the number of evicted users reloaded from the loader
+	 */
+	public long getMissCount() {
+		long misses = 0;
+		for (Segment segment : segments) {
+			misses += segment.getMisses();
+		}
+		return misses;
+	}
+
+	/**
+	 * @return the number of users evicted
+	 */
+	public long getEvictionCount() {
+		long evictions = 0;
+		for (Segment segment : segments) {
+			evictions += segment.getEvictions();
+		}
+		return evictions;
+	}
+
+	/**
+	 * @return the number of users held
+	 */
+	public int size() {
+		int size = 0;
+		for (Segment segment : segments) {
+			size += segment.size();
+		}
+		return size;
+	}
+
+	void setUsersConnectionRepository(
+			InMemoryUsersConnectionRepository usersConnectionRepository) {
+		if (this.usersConnectionRepository != null
+				&& this.usersConnectionRepository != usersConnectionRepository) {
+			throw new IllegalStateException(
+					"InMemoryUserCache already used by another repository");
+		}
+		this.usersConnectionRepository = usersConnectionRepository;
+	}
+
+	/**
+	 * Records an access to the given user, held
+	 */
+	void hit(String userId) {
+		segmentFor(userId).hit(userId, System.nanoTime());
+	}
+
+	/**
+	 * Records the loading of the given user
+	 */
+	void miss(String userId) {
+		segmentFor(userId).miss();
+	}
+
+	/**
+	 * Starts tracking the given user, now held, adding the users to evict to
+	 * the given list
+	 */
+	void add(String userId, List<String> evictedUserIds) {
+		segmentFor(userId).add(userId, System.nanoTime(), idleTimeout,
+				evictedUserIds);
+	}
+
+	/**
+	 * Stops tracking the given user, no longer held
+	 */
+	void remove(String userId, boolean evicted) {
+		segmentFor(userId).remove(userId, evicted);
+	}
+
+	private Segment segmentFor(String userId) {
+		int hash = userId.hashCode();
+		hash ^= (hash >>> 16);
+		return segments[hash & (segments.length - 1)];
+	}
+
+	private static class Segment {
+
+		/**
+		 * The time of the last access to each user held, least recently
+		 * accessed first
+		 */
+		private final LinkedHashMap<String, Long> accessTimes = new LinkedHashMap<String, Long>(
+				16, 0.75f, true);
+
+		private final int maximumSize;
+
+		private long hits;
+
+		private long misses;
+
+		private long evictions;
+
+		Segment(int maximumSize) {
+			this.maximumSize = maximumSize;
+		}
+
+		synchronized void hit(String userId, long now) {
+			hits++;
+			accessTimes.put(userId, now);
+		}
+
+		synchronized void miss() {
+			misses++;
+		}
+
+		synchronized void add(String userId, long now, long idleTimeout,
+				List<String> evictedUserIds) {
+			accessTimes.put(userId, now);
+			removeEldest(now, idleTimeout, evictedUserIds);
+		}
+
+		/**
+		 * Removes the users beyond the maximum size, then those idle for
+		 * longer than the given timeout if positive, adding them to the given
+		 * list
+		 */
+		synchronized void removeEldest(long now, long idleTimeout,
+				List<String> evictedUserIds) {
+			Iterator<Map.Entry<String, Long>> entries = accessTimes.entrySet()
+					.iterator();
+			int size = accessTimes.size();
+			while (entries.hasNext()) {
+				Map.Entry<String, Long> entry = entries.next();
+				if (size <= maximumSize
+						&& (idleTimeout <= 0 || now - entry.getValue() < idleTimeout)) {
+					break;
+				}
+				evictedUserIds.add(entry.getKey());
+				entries.remove();
+				size--;
+			}
+		}
+
+		synchronized void remove(String userId, boolean evicted) {
+			accessTimes.remove(userId);
+			if (evicted) {
+				evictions++;
+			}
+		}
+
+		synchronized long getHits() {
+			return hits;
+		}
+
+		synchronized long getMisses() {
+			return misses;
+		}
+
+		synchronized long getEvictions() {
+			return evictions;
+		}
+
+		synchronized int size() {
+			return accessTimes.size();
+		}
+
+	}
+
+}
@@ -31,13 +31,17 @@ package org.springframework.social.extension.connect.inmemory;
  */
 
 import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.HashSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Queue;
 import java.util.Set;
-import java.util.SortedMap;
-import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
 
 import org.springframework.social.connect.Connection;
 import org.springframework.social.connect.ConnectionData;
@@ -46,21 +50,70 @@ import org.springframework.social.connect.ConnectionKey;
 import org.springframework.social.connect.ConnectionRepository;
 import org.springframework.social.connect.ConnectionSignUp;
 import org.springframework.social.connect.UsersConnectionRepository;
+import org.springframework.social.extension.connect.BatchUsersConnectionRepository;
 
 /**
  * {@link UsersConnectionRepository} that stores Connection data in a simple
- * in-memory map structure
+ * in-memory map structure.
+ * 
+ * Safe for concurrent use: lookups never block, and mutations are serialized
+ * per user by a striped lock, and per provider by
+ * {@link InMemoryProviderConnectionRepository}.
+ * 
+ * Only users holding connections occupy memory: the repository of an unknown
+ * user is registered by its first added connection, and discarded once its
+ * last connection is removed.
  * 
  * @author Michael Lavelle
  */
 public class InMemoryUsersConnectionRepository implements
-		UsersConnectionRepository {
+		BatchUsersConnectionRepository {
 
 	protected final ConnectionFactoryLocator connectionFactoryLocator;
 
-	private ConnectionSignUp connectionSignUp;
+	private final SingleFlightConnectionSignUp connectionSignUp = new SingleFlightConnectionSignUp() {
+
+		protected List<String> findUserIds(ConnectionKey key) {
+			return connectionKeyIndex.findUserIds(key);
+		}
+
+		protected void addConnection(String userId, Connection<?> connection) {
+			createConnectionRepository(userId).addConnection(connection);
+		}
+	};
 
-	protected SortedMap<String, InMemoryConnectionRepository> connectionRepositoriesByUserId;
+	private volatile InMemoryConnectionCache connectionCache;
+
+	private volatile InMemoryConnectionListener connectionListener;
+
+	private volatile InMemoryUserCache userCache;
+
+	/**
+	 * Users found to evict while holding a user's lock, evicted by the next
+	 * call to {@link #createConnectionRepository(String)}, so that no thread
+	 * ever holds two users' locks
+	 */
+	private final Queue<String> pendingEvictions = new ConcurrentLinkedQueue<String>();
+
+	/**
+	 * Users evicted with connections, held again or not, until they are found
+	 * to have none, guarded by each user's lock: any other user not held has
+	 * no connections, and is not looked up from the user cache's loader
+	 */
+	private final Set<String> offloadedUserIds = Collections
+			.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+	protected final ConcurrentNavigableMap<String, InMemoryConnectionRepository> connectionRepositoriesByUserId;
+
+	protected final InMemoryConnectionKeyIndex connectionKeyIndex;
+
+	protected final InMemoryConnectionExpiryIndex connectionExpiryIndex = new InMemoryConnectionExpiryIndex();
+
+	protected final InMemoryConnectionDataInterner connectionDataInterner;
+
+	private static final int LOCK_STRIPES = 64;
+
+	private final Object[] locks = new Object[LOCK_STRIPES];
 
 	public void addConnectionData(String userId, ConnectionData connectionData,
 			int rank) {
@@ -70,8 +123,39 @@ public class InMemoryUsersConnectionRepository implements
 
 	public InMemoryUsersConnectionRepository(
 			ConnectionFactoryLocator connectionFactoryLocator) {
+		this(connectionFactoryLocator, new InMemoryConnectionKeyIndex());
+	}
+
+	/**
+	 * Creates a repository registering its connections in the given
+	 * {@link InMemoryConnectionKeyIndex}, which may be shared with other
+	 * repositories holding distinct users, as the shards of a
+	 * {@link ShardedInMemoryUsersConnectionRepository} do.
+	 */
+	public InMemoryUsersConnectionRepository(
+			ConnectionFactoryLocator connectionFactoryLocator,
+			InMemoryConnectionKeyIndex connectionKeyIndex) {
+		this(connectionFactoryLocator, connectionKeyIndex,
+				new InMemoryConnectionDataInterner(connectionFactoryLocator));
+	}
+
+	/**
+	 * Creates a repository registering its connections in the given
+	 * {@link InMemoryConnectionKeyIndex}, and storing them through the given
+	 * {@link InMemoryConnectionDataInterner}, both of which may be shared with
+	 * other repositories holding distinct users.
+	 */
+	public InMemoryUsersConnectionRepository(
+			ConnectionFactoryLocator connectionFactoryLocator,
+			InMemoryConnectionKeyIndex connectionKeyIndex,
+			InMemoryConnectionDataInterner connectionDataInterner) {
 		this.connectionFactoryLocator = connectionFactoryLocator;
-		this.connectionRepositoriesByUserId = new TreeMap<String, InMemoryConnectionRepository>();
+		this.connectionKeyIndex = connectionKeyIndex;
+		this.connectionDataInterner = connectionDataInterner;
+		this.connectionRepositoriesByUserId = new ConcurrentSkipListMap<String, InMemoryConnectionRepository>();
+		for (int i = 0; i < locks.length; i++) {
+			locks[i] = new Object();
+		}
 	}
 
 	/**
@@ -84,61 +168,370 @@ public class InMemoryUsersConnectionRepository implements
 	 * @see #findUserIdsWithConnection(Connection)
 	 */
 	public void setConnectionSignUp(ConnectionSignUp connectionSignUp) {
-		this.connectionSignUp = connectionSignUp;
+		this.connectionSignUp.setConnectionSignUp(connectionSignUp);
 	}
 
+	/**
+	 * The maximum time in milliseconds a sign-in waits for a concurrent
+	 * execution of the {@link ConnectionSignUp} for the same connection to
+	 * complete, before failing with a
+	 * {@link ConnectionSignUpTimeoutException}. Defaults to 30 seconds.
+	 */
+	public void setConnectionSignUpTimeout(long connectionSignUpTimeout) {
+		this.connectionSignUp.setTimeout(connectionSignUpTimeout);
+	}
+
+	/**
+	 * The maximum number of materialized {@link Connection}s to cache across
+	 * all users, so that repeated reads reuse them rather than creating a new
+	 * connection and API binding each time. Cached connections are shared
+	 * between callers, and are discarded when their connection is updated or
+	 * removed. Defaults to 0, disabling the cache.
+	 * 
+	 * @see InMemoryConnectionCache
+	 */
+	public void setConnectionCacheSize(int connectionCacheSize) {
+		this.connectionCache = connectionCacheSize > 0 ? new InMemoryConnectionCache(
+				connectionCacheSize) : null;
+	}
+
+	/**
+	 * @return the cache of materialized connections, or null if disabled
+	 */
+	public InMemoryConnectionCache getConnectionCache() {
+		return connectionCache;
+	}
+
+	/**
+	 * The listener to notify of every mutation of the connections held, such
+	 * as an {@link InMemoryConnectionJournal}. Must be set before any
+	 * connection is added. Defaults to null.
+	 */
+	public void setConnectionListener(
+			InMemoryConnectionListener connectionListener) {
+		this.connectionListener = connectionListener;
+	}
+
+	/**
+	 * @return the listener notified of mutations, or null if none is set
+	 */
+	public InMemoryConnectionListener getConnectionListener() {
+		return connectionListener;
+	}
+
+	/**
+	 * Whether connections are stored in compact form, trading decoding on
+	 * every read for a smaller heap. Applies to the connections stored from
+	 * then on. Defaults to false.
+	 * 
+	 * @see InMemoryConnectionDataInterner#setCompact(boolean)
+	 */
+	public void setCompactConnectionData(boolean compactConnectionData) {
+		connectionDataInterner.setCompact(compactConnectionData);
+	}
+
+	/**
+	 * The store to keep connections in off the heap, to spare the garbage
+	 * collector from tens of millions of connections. Applies to the
+	 * connections stored from then on. Defaults to null, keeping them on the
+	 * heap.
+	 * 
+	 * @see InMemoryConnectionDataInterner#setOffHeapConnectionStore(OffHeapConnectionStore)
+	 */
+	public void setOffHeapConnectionStore(
+			OffHeapConnectionStore offHeapConnectionStore) {
+		connectionDataInterner
+				.setOffHeapConnectionStore(offHeapConnectionStore);
+	}
+
+	/**
+	 * @return the interner the connections held are stored through
+	 */
+	public InMemoryConnectionDataInterner getConnectionDataInterner() {
+		return connectionDataInterner;
+	}
+
+	/**
+	 * Bounds the users whose connections are held to a working set, evicting
+	 * the others, which are reloaded from the cache's
+	 * {@link InMemoryConnectionLoader} when next accessed. Should be set once
+	 * the repository is loaded, and the cache not shared with another
+	 * repository. Defaults to null, holding every user.
+	 */
+	public void setUserCache(InMemoryUserCache userCache) {
+		userCache.setUsersConnectionRepository(this);
+		List<String> evictedUserIds = new ArrayList<String>();
+		for (String userId : connectionRepositoriesByUserId.keySet()) {
+			userCache.add(userId, evictedUserIds);
+		}
+		this.userCache = userCache;
+		for (String userId : evictedUserIds) {
+			evict(userId);
+		}
+	}
+
+	/**
+	 * @return the cache bounding the users held, or null if none is set
+	 */
+	public InMemoryUserCache getUserCache() {
+		return userCache;
+	}
+
+	/**
+	 * @return the index of the connections held by expireTime, to find those
+	 *         expiring soon without visiting every user's connections
+	 * @see InMemoryConnectionRefreshScheduler
+	 */
+	public InMemoryConnectionExpiryIndex getConnectionExpiryIndex() {
+		return connectionExpiryIndex;
+	}
+
+	/**
+	 * Concurrent calls missing the same connection execute the
+	 * {@link ConnectionSignUp} once only: one caller executes it while the
+	 * others wait for, and share, its outcome.
+	 */
 	public List<String> findUserIdsWithConnection(Connection<?> connection) {
 		ConnectionKey key = connection.getKey();
-		List<String> localUserIds = new ArrayList<String>();
-		for (Map.Entry<String, InMemoryConnectionRepository> entry : connectionRepositoriesByUserId
-				.entrySet()) {
-			if (entry.getValue().hasConnection(key)) {
-				localUserIds.add(entry.getKey());
-			}
-		}
-		if (localUserIds.size() == 0 && connectionSignUp != null) {
-			String newUserId = connectionSignUp.execute(connection);
-			if (newUserId != null) {
-				createConnectionRepository(newUserId).addConnection(connection);
-				return Arrays.asList(newUserId);
-			}
+		List<String> localUserIds = connectionKeyIndex.findUserIds(key);
+		if (localUserIds.size() == 0 && connectionSignUp.isEnabled()) {
+			return connectionSignUp.signUp(connection);
 		}
 		return localUserIds;
 	}
 
-	public Set<String> findUserIdsConnectedTo(String providerId,
-			Set<String> providerUserIds) {
-		final Set<String> localUserIds = new HashSet<String>();
-		for (Map.Entry<String, InMemoryConnectionRepository> entry : connectionRepositoriesByUserId
-				.entrySet()) {
-			for (String providerUserId : providerUserIds) {
-				if (entry.getValue().hasConnection(
-						new ConnectionKey(providerId, providerUserId))) {
-					localUserIds.add(entry.getKey());
+	/**
+	 * Resolves every connection through the connection key index, before
+	 * executing the {@link ConnectionSignUp} for the misses only
+	 */
+	public Map<ConnectionKey, List<String>> findUserIdsWithConnections(
+			Collection<? extends Connection<?>> connections) {
+		Map<ConnectionKey, List<String>> userIdsByConnectionKey = new LinkedHashMap<ConnectionKey, List<String>>();
+		for (Connection<?> connection : connections) {
+			ConnectionKey key = connection.getKey();
+			userIdsByConnectionKey.put(key, connectionKeyIndex.findUserIds(key));
+		}
+		if (connectionSignUp.isEnabled()) {
+			for (Connection<?> connection : connections) {
+				ConnectionKey key = connection.getKey();
+				if (userIdsByConnectionKey.get(key).size() == 0) {
+					userIdsByConnectionKey.put(key,
+							connectionSignUp.signUp(connection));
 				}
 			}
 		}
-		return localUserIds;
+		return userIdsByConnectionKey;
+	}
+
+	public Map<ConnectionKey, List<String>> findUserIdsWithConnectionKeys(
+			Collection<ConnectionKey> connectionKeys) {
+		Map<ConnectionKey, List<String>> userIdsByConnectionKey = new LinkedHashMap<ConnectionKey, List<String>>();
+		for (ConnectionKey key : connectionKeys) {
+			userIdsByConnectionKey.put(key, connectionKeyIndex.findUserIds(key));
+		}
+		return userIdsByConnectionKey;
+	}
+
+	public Set<String> findUserIdsConnectedTo(String providerId,
+			Set<String> providerUserIds) {
+		return findUserIdsConnectedTo(providerId,
+				(Iterable<String>) providerUserIds);
+	}
+
+	/**
+	 * Variant of {@link #findUserIdsConnectedTo(String, Set)} accepting any
+	 * {@link Iterable} of providerUserIds, so that large friend lists may be
+	 * streamed without first being copied into a {@link Set}.
+	 */
+	public Set<String> findUserIdsConnectedTo(String providerId,
+			Iterable<String> providerUserIds) {
+		return connectionKeyIndex.findUserIds(providerId, providerUserIds);
 	}
 
 	public ConnectionRepository createConnectionRepository(String userId) {
 		if (userId == null) {
 			throw new IllegalArgumentException("userId cannot be null");
 		}
+		String evictedUserId;
+		while ((evictedUserId = pendingEvictions.poll()) != null) {
+			evict(evictedUserId);
+		}
 		return createInMemoryConnectionRepository(userId);
 	}
 
+	/**
+	 * @return the repository registered for the given user if any, or else a
+	 *         new repository which will register itself once a connection is
+	 *         added to it
+	 */
 	protected InMemoryConnectionRepository createInMemoryConnectionRepository(
 			String userId) {
+		InMemoryConnectionRepository connectionRepository = findInMemoryConnectionRepository(userId);
+		if (connectionRepository == null) {
+			connectionRepository = new InMemoryConnectionRepository(userId,
+					connectionFactoryLocator, this);
+		}
+		return connectionRepository;
+	}
+
+	/**
+	 * @return the repository registered for the given user, reloaded first if
+	 *         the user was evicted, or null if the user has no connections
+	 */
+	protected InMemoryConnectionRepository findInMemoryConnectionRepository(
+			String userId) {
 		InMemoryConnectionRepository connectionRepository = connectionRepositoriesByUserId
 				.get(userId);
-		if (connectionRepository == null) {
+		InMemoryUserCache userCache = this.userCache;
+		if (userCache == null) {
+			return connectionRepository;
+		}
+		if (connectionRepository != null) {
+			userCache.hit(userId);
+			return connectionRepository;
+		}
+		return load(userId, userCache);
+	}
+
+	/**
+	 * Loads the connections of the given user, not held, from the user
+	 * cache's loader if the user was evicted
+	 * 
+	 * @return the repository registered for the user, or null if the user has
+	 *         no connections
+	 */
+	private InMemoryConnectionRepository load(String userId,
+			InMemoryUserCache userCache) {
+		List<String> evictedUserIds = new ArrayList<String>();
+		InMemoryConnectionRepository connectionRepository;
+		synchronized (getLock(userId)) {
+			connectionRepository = connectionRepositoriesByUserId.get(userId);
+			if (connectionRepository != null) {
+				return connectionRepository;
+			}
+			if (!offloadedUserIds.contains(userId)) {
+				return null;
+			}
+			userCache.miss(userId);
+			List<ConnectionData> connectionDatas = userCache
+					.getConnectionLoader().loadConnections(userId);
+			if (connectionDatas.isEmpty()) {
+				offloadedUserIds.remove(userId);
+				return null;
+			}
 			connectionRepository = new InMemoryConnectionRepository(userId,
-					connectionFactoryLocator);
+					connectionFactoryLocator, this);
+			connectionRepository.restore(connectionDatas);
 			connectionRepositoriesByUserId.put(userId, connectionRepository);
+			userCache.add(userId, evictedUserIds);
 		}
+		pendingEvictions.addAll(evictedUserIds);
+		return connectionRepository;
+	}
+
+	/**
+	 * Evicts the connections of the given user from memory, keeping them in
+	 * the connection key index; must not be called holding any user's lock
+	 * 
+	 * @return true if the user's connections were held
+	 */
+	boolean evict(String userId) {
+		synchronized (getLock(userId)) {
+			InMemoryConnectionRepository connectionRepository = connectionRepositoriesByUserId
+					.remove(userId);
+			if (connectionRepository == null) {
+				return false;
+			}
+			offloadedUserIds.add(userId);
+			connectionRepository.evict();
+			userCache.remove(userId, true);
+			return true;
+		}
+	}
 
+	/**
+	 * @return the users evicted with connections, which may only be held by
+	 *         the user cache's loader
+	 */
+	Set<String> getOffloadedUserIds() {
+		return offloadedUserIds;
+	}
+
+	/**
+	 * Reads the connections of the given evicted user from the user cache's
+	 * loader, without holding them, unless the user is held again
+	 * 
+	 * @return the connections of the user, in the loader's order, or null if
+	 *         the user is held
+	 */
+	List<ConnectionData> loadOffloadedConnections(String userId) {
+		synchronized (getLock(userId)) {
+			if (connectionRepositoriesByUserId.containsKey(userId)) {
+				return null;
+			}
+			InMemoryUserCache userCache = this.userCache;
+			if (userCache == null || !offloadedUserIds.contains(userId)) {
+				return Collections.emptyList();
+			}
+			return userCache.getConnectionLoader().loadConnections(userId);
+		}
+	}
+
+	/**
+	 * @return the lock serializing mutations of the given user's connections
+	 */
+	protected Object getLock(String userId) {
+		int hash = userId.hashCode();
+		hash ^= (hash >>> 16);
+		return locks[hash & (locks.length - 1)];
+	}
+
+	/**
+	 * Registers the given repository for its user, unless another one already
+	 * is
+	 * 
+	 * @return the repository registered for the user
+	 */
+	InMemoryConnectionRepository attach(
+			InMemoryConnectionRepository connectionRepository) {
+		String userId = connectionRepository.userId;
+		InMemoryUserCache userCache = this.userCache;
+		if (userCache != null) {
+			InMemoryConnectionRepository existing = findInMemoryConnectionRepository(userId);
+			if (existing != null) {
+				return existing;
+			}
+			if (connectionRepository.isEvicted()) {
+				connectionRepository = new InMemoryConnectionRepository(userId,
+						connectionFactoryLocator, this);
+			}
+		}
+		InMemoryConnectionRepository existing = connectionRepositoriesByUserId
+				.putIfAbsent(userId, connectionRepository);
+		if (existing != null) {
+			return existing;
+		}
+		if (userCache != null) {
+			List<String> evictedUserIds = new ArrayList<String>();
+			userCache.add(userId, evictedUserIds);
+			pendingEvictions.addAll(evictedUserIds);
+		}
 		return connectionRepository;
 	}
 
-}
\ No newline at end of file
+	/**
+	 * Unregisters the given repository, if it is still registered for its
+	 * user
+	 */
+	void detach(InMemoryConnectionRepository connectionRepository) {
+		if (connectionRepositoriesByUserId.remove(connectionRepository.userId,
+				connectionRepository)) {
+			offloadedUserIds.remove(connectionRepository.userId);
+			InMemoryUserCache userCache = this.userCache;
+			if (userCache != null) {
+				userCache.remove(connectionRepository.userId, false);
+			}
+		}
+	}
+
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright 2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.social.extension.connect.inmemory;
+
+import org.springframework.social.connect.ConnectionData;
+
+/**
+ * Handle of a connection stored in an {@link OffHeapConnectionStore}: holds
+ * the providerId, providerUserId and expireTime, read on every lookup, and
+ * the location of the record of the other fields, decoded on every read.
+ * The fields inherited are all null.
+ * 
+ * Serialized as a plain {@link ConnectionData}.
+ * 
+ * @author Michael Lavelle
+ */
+final class OffHeapConnectionData extends ConnectionData {
+
+	private static final long serialVersionUID = 1L;
+
+	private final String providerId;
+
+	private final String providerUserId;
+
+	private final long expireTime;
+
+	private final transient OffHeapConnectionStore connectionStore;
+
+	/**
+	 * The index of the chunk of the record in the high int, and its offset in
+	 * the low int, updated when the record is moved
+	 */
+	volatile long location;
+
+	/**
+	 * A copy of the record, set when it is freed
+	 */
+	volatile byte[] detachedFields;
+
+	/**
+	 * The position of this handle among those of its chunk, guarded by the
+	 * store
+	 */
+	int slot;
+
+	OffHeapConnectionData(String providerId, String providerUserId,
+			Long expireTime, OffHeapConnectionStore connectionStore) {
+		super(null, null, null, null, null, null, null, null, null);
+		this.providerId = providerId;
+		this.providerUserId = providerUserId;
+		this.expireTime = expireTime != null ? expireTime
+				: CompactConnectionData.NO_EXPIRE_TIME;
+		this.connectionStore = connectionStore;
+	}
+
+	/**
+	 * Frees the record of this connection, once no longer stored
+	 */
+	void free() {
+		connectionStore.free(this);
+	}
+
+	@Override
+	public String getProviderId() {
+		return providerId;
+	}
+
+	@Override
+	public String getProviderUserId() {
+		return providerUserId;
+	}
+
+	@Override
+	public String getDisplayName() {
+		return decode(CompactConnectionData.DISPLAY_NAME);
+	}
+
+	@Override
+	public String getProfileUrl() {
+		return decode(CompactConnectionData.PROFILE_URL);
+	}
+
+	@Override
+	public String getImageUrl() {
+		return decode(CompactConnectionData.IMAGE_URL);
+	}
+
+	@Override
+	public String getAccessToken() {
+		return decode(CompactConnectionData.ACCESS_TOKEN);
+	}
+
+	@Override
+	public String getSecret() {
+		return decode(CompactConnectionData.SECRET);
+	}
+
+	@Override
+	public String getRefreshToken() {
+		return decode(CompactConnectionData.REFRESH_TOKEN);
+	}
+
+	@Override
+	public Long getExpireTime() {
+		return expireTime != CompactConnectionData.NO_EXPIRE_TIME ? expireTime
+				: null;
+	}
+
+	private Object writeReplace() {
+		return new ConnectionData(getProviderId(), getProviderUserId(),
+				getDisplayName(), getProfileUrl(), getImageUrl(),
+				getAccessToken(), getSecret(), getRefreshToken(),
+				getExpireTime());
+	}
+
+	private String decode(int field) {
+		return CompactConnectionData.decode(readFields(), field);
+	}
+
+	private byte[] readFields() {
+		while (true) {
+			byte[] fields = detachedFields;
+			if (fields != null) {
+				return fields;
+			}
+			// null if the record was moved, and its chunk released, since
+			// its location was read
+			fields = connectionStore.read(location);
+			if (fields != null) {
+				return fields;
+			}
+		}
+	}
+
+}
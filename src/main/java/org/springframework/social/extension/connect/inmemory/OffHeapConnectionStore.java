@@ -0,0 +1,325 @@
+/*
+ * Copyright 2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.social.extension.connect.inmemory;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.springframework.social.connect.ConnectionData;
+
+/**
+ * Off-heap backend of an {@link InMemoryUsersConnectionRepository}, keeping
+ * the bulk of every connection out of reach of the garbage collector: the
+ * fields of each connection other than its providerId, providerUserId and
+ * expireTime are encoded into a record appended to one of a series of direct
+ * {@link ByteBuffer} chunks, and the repository holds only a small
+ * {@link ConnectionData} handle locating the record, which decodes it on
+ * every read.
+ * 
+ * Records are never modified: updating a connection appends a new record and
+ * frees the previous one. Once less than the compaction threshold of the
+ * bytes written to a chunk belong to live records, its live records are
+ * moved to the chunk being appended to, and the chunk is released to the
+ * garbage collector, which frees its memory once no reader uses it anymore.
+ * Chunks, and their indexes in the locations of the records, are never
+ * reused, so that reads need no locking: a handle read while its record is
+ * being moved finds it at its new location, and a handle whose connection
+ * was removed keeps a copy of its record on the heap, for as long as readers
+ * still hold it.
+ * 
+ * @author Michael Lavelle
+ */
+public class OffHeapConnectionStore {
+
+	private final int chunkSize;
+
+	private final double compactionThreshold;
+
+	/**
+	 * The buffers of the chunks by index, null once released, replaced on
+	 * every change so that readers see a consistent array without locking
+	 */
+	private volatile ByteBuffer[] buffers = new ByteBuffer[0];
+
+	/**
+	 * The chunks by index, null once released, guarded by this store
+	 */
+	private final List<Chunk> chunks = new ArrayList<Chunk>();
+
+	private Chunk activeChunk;
+
+	private long allocatedBytes;
+
+	private long liveBytes;
+
+	private long liveRecords;
+
+	/**
+	 * Creates a store of 1MB chunks, compacted once less than half full
+	 */
+	public OffHeapConnectionStore() {
+		this(1 << 20, 0.5);
+	}
+
+	/**
+	 * @param chunkSize
+	 *            the size in bytes of the direct buffers allocated, records
+	 *            larger than which are given a buffer of their own
+	 * @param compactionThreshold
+	 *            the proportion of the bytes written to a chunk below which
+	 *            its live records are moved elsewhere, between 0 and 1
+	 */
+	public OffHeapConnectionStore(int chunkSize, double compactionThreshold) {
+		if (chunkSize <= 0) {
+			throw new IllegalArgumentException(
+					"chunkSize must be greater than 0");
+		}
+		if (compactionThreshold < 0 || compactionThreshold > 1) {
+			throw new IllegalArgumentException(
+					"compactionThreshold must be between 0 and 1");
+		}
+		this.chunkSize = chunkSize;
+		this.compactionThreshold = compactionThreshold;
+	}
+
+	/**
+	 * @return the number of bytes of direct buffers held
+	 */
+	public synchronized long getAllocatedBytes() {
+		return allocatedBytes;
+	}
+
+	/**
+	 * @return the number of bytes of the records of the connections held
+	 */
+	public synchronized long getLiveBytes() {
+		return liveBytes;
+	}
+
+	/**
+	 * @return the number of records of the connections held
+	 */
+	public synchronized long getLiveRecords() {
+		return liveRecords;
+	}
+
+	/**
+	 * @return the number of direct buffers held
+	 */
+	public synchronized int getChunkCount() {
+		int chunkCount = 0;
+		for (Chunk chunk : chunks) {
+			if (chunk != null) {
+				chunkCount++;
+			}
+		}
+		return chunkCount;
+	}
+
+	/**
+	 * Moves the live records of every chunk but the one being appended to
+	 * whose live bytes are below the compaction threshold
+	 * 
+	 * @return the number of records moved
+	 */
+	public synchronized int compact() {
+		int moved = 0;
+		for (int i = 0; i < chunks.size(); i++) {
+			Chunk chunk = chunks.get(i);
+			if (chunk != null && isSparse(chunk)) {
+				moved += evacuate(chunk);
+			}
+		}
+		return moved;
+	}
+
+	/**
+	 * @return a handle of the given connection, stored in a new record
+	 */
+	ConnectionData store(String providerId, ConnectionData connectionData) {
+		byte[][] encodedFields = new byte[CompactConnectionData.FIELD_COUNT][];
+		encodedFields[CompactConnectionData.DISPLAY_NAME] = CompactConnectionData
+				.encode(connectionData.getDisplayName());
+		encodedFields[CompactConnectionData.PROFILE_URL] = CompactConnectionData
+				.encode(connectionData.getProfileUrl());
+		encodedFields[CompactConnectionData.IMAGE_URL] = CompactConnectionData
+				.encode(connectionData.getImageUrl());
+		encodedFields[CompactConnectionData.ACCESS_TOKEN] = CompactConnectionData
+				.encode(connectionData.getAccessToken());
+		encodedFields[CompactConnectionData.SECRET] = CompactConnectionData
+				.encode(connectionData.getSecret());
+		encodedFields[CompactConnectionData.REFRESH_TOKEN] = CompactConnectionData
+				.encode(connectionData.getRefreshToken());
+		byte[] fields = CompactConnectionData.pack(encodedFields);
+		OffHeapConnectionData handle = new OffHeapConnectionData(providerId,
+				connectionData.getProviderUserId(),
+				connectionData.getExpireTime(), this);
+		synchronized (this) {
+			handle.location = append(fields, handle);
+			liveBytes += recordSize(fields.length);
+			liveRecords++;
+		}
+		return handle;
+	}
+
+	/**
+	 * Frees the record of the given handle, which keeps a copy of it on the
+	 * heap for its remaining readers and is no longer referenced by the
+	 * store, then compacts its chunk if it has become sparse
+	 */
+	synchronized void free(OffHeapConnectionData handle) {
+		if (handle.detachedFields != null) {
+			return;
+		}
+		byte[] fields = read(handle.location);
+		handle.detachedFields = fields;
+		Chunk chunk = chunks.get(chunkIndex(handle.location));
+		chunk.remove(handle);
+		int recordSize = recordSize(fields.length);
+		chunk.liveBytes -= recordSize;
+		liveBytes -= recordSize;
+		liveRecords--;
+		if (isSparse(chunk)) {
+			evacuate(chunk);
+		}
+	}
+
+	/**
+	 * @return the fields of the record at the given location, or null if its
+	 *         chunk has been released since the location was read
+	 */
+	byte[] read(long location) {
+		ByteBuffer buffer = buffers[chunkIndex(location)];
+		if (buffer == null) {
+			return null;
+		}
+		ByteBuffer record = buffer.duplicate();
+		record.position((int) location);
+		byte[] fields = new byte[record.getInt()];
+		record.get(fields);
+		return fields;
+	}
+
+	private boolean isSparse(Chunk chunk) {
+		return chunk != activeChunk
+				&& chunk.liveBytes < compactionThreshold
+						* chunk.buffer.position();
+	}
+
+	/**
+	 * Moves the live records of the given chunk to the active chunk, then
+	 * releases it
+	 * 
+	 * @return the number of records moved
+	 */
+	private int evacuate(Chunk chunk) {
+		for (OffHeapConnectionData handle : chunk.handles) {
+			handle.location = append(read(handle.location), handle);
+		}
+		release(chunk);
+		return chunk.handles.size();
+	}
+
+	/**
+	 * Appends a record of the given fields to the active chunk, allocating
+	 * another if it is full, and registers its handle there
+	 * 
+	 * @return the location of the record
+	 */
+	private long append(byte[] fields, OffHeapConnectionData handle) {
+		int recordSize = recordSize(fields.length);
+		if (activeChunk == null
+				|| activeChunk.buffer.remaining() < recordSize) {
+			activeChunk = allocate(Math.max(chunkSize, recordSize));
+		}
+		ByteBuffer buffer = activeChunk.buffer;
+		long location = ((long) activeChunk.index << 32) | buffer.position();
+		buffer.putInt(fields.length);
+		buffer.put(fields);
+		activeChunk.liveBytes += recordSize;
+		activeChunk.add(handle);
+		return location;
+	}
+
+	private Chunk allocate(int size) {
+		Chunk chunk = new Chunk(chunks.size(), ByteBuffer.allocateDirect(size));
+		chunks.add(chunk);
+		ByteBuffer[] buffers = new ByteBuffer[chunks.size()];
+		System.arraycopy(this.buffers, 0, buffers, 0, this.buffers.length);
+		buffers[chunk.index] = chunk.buffer;
+		this.buffers = buffers;
+		allocatedBytes += size;
+		return chunk;
+	}
+
+	private void release(Chunk chunk) {
+		chunks.set(chunk.index, null);
+		ByteBuffer[] buffers = this.buffers.clone();
+		buffers[chunk.index] = null;
+		this.buffers = buffers;
+		allocatedBytes -= chunk.buffer.capacity();
+	}
+
+	private static int chunkIndex(long location) {
+		return (int) (location >>> 32);
+	}
+
+	private static int recordSize(int fieldsLength) {
+		return 4 + fieldsLength;
+	}
+
+	private static class Chunk {
+
+		private final int index;
+
+		/**
+		 * Written at its position, read through duplicates
+		 */
+		private final ByteBuffer buffer;
+
+		/**
+		 * The handles of the live records of this chunk, so that they can be
+		 * moved, each at its slot
+		 */
+		private final List<OffHeapConnectionData> handles = new ArrayList<OffHeapConnectionData>();
+
+		private int liveBytes;
+
+		Chunk(int index, ByteBuffer buffer) {
+			this.index = index;
+			this.buffer = buffer;
+		}
+
+		void add(OffHeapConnectionData handle) {
+			handle.slot = handles.size();
+			handles.add(handle);
+		}
+
+		/**
+		 * Removes the given handle, replaced at its slot by the last handle
+		 */
+		void remove(OffHeapConnectionData handle) {
+			OffHeapConnectionData last = handles.remove(handles.size() - 1);
+			if (last != handle) {
+				last.slot = handle.slot;
+				handles.set(handle.slot, last);
+			}
+		}
+
+	}
+
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright 2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.social.extension.connect.inmemory;
+
+import java.util.List;
+import java.util.SortedMap;
+
+import org.springframework.social.connect.ConnectionData;
+
+/**
+ * Storage of the connections of one user to one provider by rank, with a
+ * secondary lookup by providerUserId, behind an
+ * {@link InMemoryProviderConnectionRepository}.
+ * 
+ * Reads are safe concurrently with mutations. Mutations are serialized by
+ * the repository, and return the storage to use from then on, which is
+ * either this storage, modified in place, or a new one replacing it, so that
+ * an implementation may switch to another as the number of connections
+ * changes.
+ * 
+ * @author Michael Lavelle
+ */
+interface RankedConnectionStorage {
+
+	/**
+	 * The rank returned for a providerUserId not stored
+	 */
+	int NO_RANK = Integer.MIN_VALUE;
+
+	int size();
+
+	/**
+	 * @return the connection at the given rank, or null if there is none
+	 */
+	ConnectionData findByRank(int rank);
+
+	/**
+	 * @return the rank of the connection with the given providerUserId, or
+	 *         {@link #NO_RANK} if there is none
+	 */
+	int findRank(String providerUserId);
+
+	/**
+	 * @return the connection with the given providerUserId, or null if there
+	 *         is none
+	 */
+	ConnectionData findByProviderUserId(String providerUserId);
+
+	/**
+	 * @return a read-only list of the connections, in rank order
+	 */
+	List<ConnectionData> findAll();
+
+	/**
+	 * @return a copy of the connections by rank
+	 */
+	SortedMap<Integer, ConnectionData> findAllByRank();
+
+	/**
+	 * Stores the given connection at the given rank, replacing the connection
+	 * at that rank if any
+	 * 
+	 * @return the storage to use from now on
+	 */
+	RankedConnectionStorage put(int rank, ConnectionData connectionData);
+
+	/**
+	 * Removes the connection at the given rank, if any
+	 * 
+	 * @return the storage to use from now on
+	 */
+	RankedConnectionStorage remove(int rank);
+
+}
@@ -0,0 +1,543 @@
+/*
+ * Copyright 2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.social.extension.connect.inmemory;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import org.springframework.social.connect.Connection;
+import org.springframework.social.connect.ConnectionData;
+import org.springframework.social.connect.ConnectionFactoryLocator;
+import org.springframework.social.connect.ConnectionKey;
+import org.springframework.social.connect.ConnectionRepository;
+import org.springframework.social.connect.ConnectionSignUp;
+import org.springframework.social.connect.UsersConnectionRepository;
+import org.springframework.social.extension.connect.BatchUsersConnectionRepository;
+
+/**
+ * {@link UsersConnectionRepository} partitioning users by the hash of their
+ * userId across independent {@link InMemoryUsersConnectionRepository}
+ * shards, each with its own map of users, lock stripes, connection cache and
+ * expiry index, so that users of different shards never contend.
+ * 
+ * The shards share one {@link InMemoryConnectionKeyIndex}, which is lock
+ * free, so that looking up the users of a connection is a single index
+ * lookup rather than one per shard. Lookups whose cost grows with their
+ * input, {@link #findUserIdsConnectedTo(String, Set)} over large friend
+ * lists and the batch lookups, are split into chunks run in parallel on an
+ * {@link ExecutorService}; snapshots are written and read one file per
+ * shard, in parallel. Each shard may also be journaled or refreshed on its
+ * own through {@link #getShards()}.
+ * 
+ * The ConnectionSignUp is executed once only for concurrent sign-ins missing
+ * the same connection, as by {@link InMemoryUsersConnectionRepository}.
+ * 
+ * @author Michael Lavelle
+ */
+public class ShardedInMemoryUsersConnectionRepository implements
+		BatchUsersConnectionRepository {
+
+	private static final String GENERATION_PREFIX = "generation-";
+
+	private static final String TEMPORARY_SUFFIX = ".tmp";
+
+	private final InMemoryUsersConnectionRepository[] shards;
+
+	/**
+	 * The shift leaving the number of bits indexing the shards
+	 */
+	private final int shardShift;
+
+	private final InMemoryConnectionKeyIndex connectionKeyIndex = new InMemoryConnectionKeyIndex();
+
+	private final InMemoryConnectionDataInterner connectionDataInterner;
+
+	private volatile ExecutorService executorService;
+
+	private int parallelismThreshold = 1024;
+
+	private final SingleFlightConnectionSignUp connectionSignUp = new SingleFlightConnectionSignUp() {
+
+		protected List<String> findUserIds(ConnectionKey key) {
+			return connectionKeyIndex.findUserIds(key);
+		}
+
+		protected void addConnection(String userId, Connection<?> connection) {
+			createConnectionRepository(userId).addConnection(connection);
+		}
+	};
+
+	/**
+	 * Creates a repository with four shards per available processor
+	 */
+	public ShardedInMemoryUsersConnectionRepository(
+			ConnectionFactoryLocator connectionFactoryLocator) {
+		this(connectionFactoryLocator, 4 * Runtime.getRuntime()
+				.availableProcessors());
+	}
+
+	/**
+	 * @param shardCount
+	 *            the number of shards, rounded up to a power of two
+	 */
+	public ShardedInMemoryUsersConnectionRepository(
+			ConnectionFactoryLocator connectionFactoryLocator, int shardCount) {
+		if (shardCount <= 0) {
+			throw new IllegalArgumentException(
+					"shardCount must be greater than 0");
+		}
+		int roundedShardCount = Integer.highestOneBit(shardCount);
+		if (roundedShardCount < shardCount) {
+			roundedShardCount <<= 1;
+		}
+		connectionDataInterner = new InMemoryConnectionDataInterner(
+				connectionFactoryLocator);
+		shards = new InMemoryUsersConnectionRepository[roundedShardCount];
+		shardShift = 32 - Integer.numberOfTrailingZeros(roundedShardCount);
+		for (int i = 0; i < shards.length; i++) {
+			shards[i] = new InMemoryUsersConnectionRepository(
+					connectionFactoryLocator, connectionKeyIndex,
+					connectionDataInterner);
+		}
+	}
+
+	/**
+	 * The executor parallel lookups and snapshots are run on. Defaults to a
+	 * fixed pool of daemon threads, one per available processor, created on
+	 * first use.
+	 */
+	public void setExecutorService(ExecutorService executorService) {
+		this.executorService = executorService;
+	}
+
+	/**
+	 * The number of providerUserIds or connections from which lookups are
+	 * split across the executor, in chunks of that size. Defaults to 1024.
+	 */
+	public void setParallelismThreshold(int parallelismThreshold) {
+		this.parallelismThreshold = parallelismThreshold;
+	}
+
+	/**
+	 * @see InMemoryUsersConnectionRepository#setConnectionSignUp(ConnectionSignUp)
+	 */
+	public void setConnectionSignUp(ConnectionSignUp connectionSignUp) {
+		this.connectionSignUp.setConnectionSignUp(connectionSignUp);
+	}
+
+	/**
+	 * @see InMemoryUsersConnectionRepository#setConnectionSignUpTimeout(long)
+	 */
+	public void setConnectionSignUpTimeout(long connectionSignUpTimeout) {
+		this.connectionSignUp.setTimeout(connectionSignUpTimeout);
+	}
+
+	/**
+	 * The maximum number of materialized connections to cache across all
+	 * users, split evenly between the shards. Defaults to 0, disabling the
+	 * cache.
+	 * 
+	 * @see InMemoryUsersConnectionRepository#setConnectionCacheSize(int)
+	 */
+	public void setConnectionCacheSize(int connectionCacheSize) {
+		int shardConnectionCacheSize = connectionCacheSize <= 0 ? 0 : Math
+				.max(1, connectionCacheSize / shards.length);
+		for (InMemoryUsersConnectionRepository shard : shards) {
+			shard.setConnectionCacheSize(shardConnectionCacheSize);
+		}
+	}
+
+	/**
+	 * @see InMemoryUsersConnectionRepository#setCompactConnectionData(boolean)
+	 */
+	public void setCompactConnectionData(boolean compactConnectionData) {
+		connectionDataInterner.setCompact(compactConnectionData);
+	}
+
+	/**
+	 * @see InMemoryUsersConnectionRepository#setOffHeapConnectionStore(OffHeapConnectionStore)
+	 */
+	public void setOffHeapConnectionStore(
+			OffHeapConnectionStore offHeapConnectionStore) {
+		connectionDataInterner
+				.setOffHeapConnectionStore(offHeapConnectionStore);
+	}
+
+	/**
+	 * @return the shards, in the order of the hashes of their users
+	 */
+	public List<InMemoryUsersConnectionRepository> getShards() {
+		return Collections.unmodifiableList(Arrays.asList(shards));
+	}
+
+	/**
+	 * Selects the shard from the high bits of a multiplicative hash of the
+	 * userId, so that the users of each shard remain spread across all the
+	 * lock stripes of its repository, which are selected from the low bits
+	 * 
+	 * @return the shard holding the connections of the given user
+	 */
+	public InMemoryUsersConnectionRepository getShard(String userId) {
+		long hash = (userId.hashCode() * 0x9E3779B9L) & 0xFFFFFFFFL;
+		return shards[(int) (hash >>> shardShift)];
+	}
+
+	public void addConnectionData(String userId, ConnectionData connectionData,
+			int rank) {
+		getShard(userId).addConnectionData(userId, connectionData, rank);
+	}
+
+	public ConnectionRepository createConnectionRepository(String userId) {
+		if (userId == null) {
+			throw new IllegalArgumentException("userId cannot be null");
+		}
+		return getShard(userId).createConnectionRepository(userId);
+	}
+
+	public List<String> findUserIdsWithConnection(Connection<?> connection) {
+		List<String> localUserIds = connectionKeyIndex.findUserIds(connection
+				.getKey());
+		if (localUserIds.size() == 0 && connectionSignUp.isEnabled()) {
+			return connectionSignUp.signUp(connection);
+		}
+		return localUserIds;
+	}
+
+	public Set<String> findUserIdsConnectedTo(final String providerId,
+			Set<String> providerUserIds) {
+		if (providerUserIds.size() < 2 * parallelismThreshold) {
+			return connectionKeyIndex.findUserIds(providerId,
+					(Iterable<String>) providerUserIds);
+		}
+		List<Callable<Set<String>>> lookups = new ArrayList<Callable<Set<String>>>();
+		for (final List<String> chunk : chunk(providerUserIds)) {
+			lookups.add(new Callable<Set<String>>() {
+				public Set<String> call() {
+					return connectionKeyIndex.findUserIds(providerId, chunk);
+				}
+			});
+		}
+		Set<String> userIds = new HashSet<String>();
+		for (Set<String> chunkUserIds : invokeAll(lookups)) {
+			userIds.addAll(chunkUserIds);
+		}
+		return userIds;
+	}
+
+	public Map<ConnectionKey, List<String>> findUserIdsWithConnections(
+			Collection<? extends Connection<?>> connections) {
+		List<ConnectionKey> connectionKeys = new ArrayList<ConnectionKey>(
+				connections.size());
+		for (Connection<?> connection : connections) {
+			connectionKeys.add(connection.getKey());
+		}
+		Map<ConnectionKey, List<String>> userIdsByConnectionKey = findUserIdsWithConnectionKeys(connectionKeys);
+		if (connectionSignUp.isEnabled()) {
+			for (Connection<?> connection : connections) {
+				ConnectionKey key = connection.getKey();
+				if (userIdsByConnectionKey.get(key).size() == 0) {
+					userIdsByConnectionKey.put(key,
+							connectionSignUp.signUp(connection));
+				}
+			}
+		}
+		return userIdsByConnectionKey;
+	}
+
+	public Map<ConnectionKey, List<String>> findUserIdsWithConnectionKeys(
+			Collection<ConnectionKey> connectionKeys) {
+		Map<ConnectionKey, List<String>> userIdsByConnectionKey = new LinkedHashMap<ConnectionKey, List<String>>();
+		if (connectionKeys.size() < 2 * parallelismThreshold) {
+			for (ConnectionKey key : connectionKeys) {
+				userIdsByConnectionKey.put(key,
+						connectionKeyIndex.findUserIds(key));
+			}
+			return userIdsByConnectionKey;
+		}
+		List<Callable<List<List<String>>>> lookups = new ArrayList<Callable<List<List<String>>>>();
+		List<List<ConnectionKey>> chunks = chunk(connectionKeys);
+		for (final List<ConnectionKey> chunk : chunks) {
+			lookups.add(new Callable<List<List<String>>>() {
+				public List<List<String>> call() {
+					List<List<String>> userIds = new ArrayList<List<String>>(
+							chunk.size());
+					for (ConnectionKey key : chunk) {
+						userIds.add(connectionKeyIndex.findUserIds(key));
+					}
+					return userIds;
+				}
+			});
+		}
+		List<List<List<String>>> results = invokeAll(lookups);
+		for (int i = 0; i < chunks.size(); i++) {
+			List<ConnectionKey> chunk = chunks.get(i);
+			for (int j = 0; j < chunk.size(); j++) {
+				if (!userIdsByConnectionKey.containsKey(chunk.get(j))) {
+					userIdsByConnectionKey.put(chunk.get(j), results.get(i)
+							.get(j));
+				}
+			}
+		}
+		return userIdsByConnectionKey;
+	}
+
+	/**
+	 * Writes one {@link InMemoryConnectionSnapshot} per shard, in parallel, to
+	 * a new subdirectory of the given directory named after the generation,
+	 * which must be greater than the generations written before. The
+	 * snapshots are written to a temporary subdirectory renamed once all are
+	 * complete, so that a crash meanwhile leaves the previous generation
+	 * intact, and the previous generations are then deleted.
+	 */
+	public void writeSnapshots(File directory, final long generation)
+			throws IOException {
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Unable to create snapshot directory "
+					+ directory);
+		}
+		File generationDirectory = getGenerationDirectory(directory,
+				generation);
+		if (generationDirectory.exists()) {
+			throw new IOException("Snapshots of generation " + generation
+					+ " already written to " + directory);
+		}
+		File temporaryDirectory = new File(directory,
+				generationDirectory.getName() + TEMPORARY_SUFFIX);
+		deleteDirectory(temporaryDirectory);
+		if (!temporaryDirectory.mkdir()) {
+			throw new IOException("Unable to create snapshot directory "
+					+ temporaryDirectory);
+		}
+		List<Callable<Long>> writes = new ArrayList<Callable<Long>>();
+		for (int i = 0; i < shards.length; i++) {
+			final InMemoryUsersConnectionRepository shard = shards[i];
+			final InMemoryConnectionSnapshot snapshot = new InMemoryConnectionSnapshot(
+					getSnapshotFile(temporaryDirectory, i));
+			writes.add(new Callable<Long>() {
+				public Long call() throws IOException {
+					snapshot.write(shard, generation);
+					return generation;
+				}
+			});
+		}
+		invokeAllIO(writes);
+		if (!temporaryDirectory.renameTo(generationDirectory)) {
+			throw new IOException("Unable to rename snapshot directory "
+					+ temporaryDirectory + " to " + generationDirectory);
+		}
+		InMemoryConnectionSnapshot.forceDirectory(directory);
+		File[] files = directory.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				String name = file.getName();
+				if (name.startsWith(GENERATION_PREFIX)
+						&& getGeneration(name) < generation) {
+					deleteDirectory(file);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Loads the latest generation of snapshots written by
+	 * {@link #writeSnapshots(File, long)} to the given directory into the
+	 * shards, in parallel; the snapshots must have been written by a
+	 * repository with the same number of shards, and this repository must
+	 * hold no connections nor be used until loading completes
+	 * 
+	 * @return the generation the snapshots were written with
+	 */
+	public long readSnapshots(File directory) throws IOException {
+		long latestGeneration = -1;
+		File[] files = directory.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				String name = file.getName();
+				if (name.startsWith(GENERATION_PREFIX)
+						&& !name.endsWith(TEMPORARY_SUFFIX)) {
+					latestGeneration = Math.max(latestGeneration,
+							getGeneration(name));
+				}
+			}
+		}
+		if (latestGeneration < 0) {
+			throw new IOException("No snapshots in " + directory);
+		}
+		File generationDirectory = getGenerationDirectory(directory,
+				latestGeneration);
+		if (getSnapshotFile(generationDirectory, shards.length).exists()) {
+			throw new IOException("Snapshots in " + generationDirectory
+					+ " were written with more than " + shards.length
+					+ " shards");
+		}
+		List<Callable<Long>> reads = new ArrayList<Callable<Long>>();
+		for (int i = 0; i < shards.length; i++) {
+			final InMemoryUsersConnectionRepository shard = shards[i];
+			final InMemoryConnectionSnapshot snapshot = new InMemoryConnectionSnapshot(
+					getSnapshotFile(generationDirectory, i));
+			if (!snapshot.exists()) {
+				throw new IOException("Missing snapshot of shard " + i
+						+ " in " + generationDirectory);
+			}
+			snapshot.setLoadThreads(1);
+			reads.add(new Callable<Long>() {
+				public Long call() throws IOException {
+					return snapshot.read(shard);
+				}
+			});
+		}
+		List<Long> generations = invokeAllIO(reads);
+		if (new HashSet<Long>(generations).size() != 1) {
+			throw new IOException("Snapshots in " + generationDirectory
+					+ " are of different generations " + generations);
+		}
+		return generations.get(0);
+	}
+
+	private File getGenerationDirectory(File directory, long generation) {
+		return new File(directory, GENERATION_PREFIX + generation);
+	}
+
+	/**
+	 * @return the generation of the snapshot directory of the given name,
+	 *         whether complete or temporary, or -1 if it is not one
+	 */
+	private static long getGeneration(String name) {
+		String generation = name.substring(GENERATION_PREFIX.length());
+		if (generation.endsWith(TEMPORARY_SUFFIX)) {
+			generation = generation.substring(0, generation.length()
+					- TEMPORARY_SUFFIX.length());
+		}
+		try {
+			return Long.parseLong(generation);
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	private File getSnapshotFile(File directory, int shard) {
+		return new File(directory, "shard-" + shard);
+	}
+
+	private static void deleteDirectory(File directory) throws IOException {
+		File[] files = directory.listFiles();
+		if (files == null) {
+			return;
+		}
+		for (File file : files) {
+			if (!file.delete()) {
+				throw new IOException("Unable to delete snapshot file " + file);
+			}
+		}
+		if (!directory.delete()) {
+			throw new IOException("Unable to delete snapshot directory "
+					+ directory);
+		}
+	}
+
+	private <T> List<List<T>> chunk(Collection<T> values) {
+		List<List<T>> chunks = new ArrayList<List<T>>();
+		List<T> chunk = new ArrayList<T>(parallelismThreshold);
+		for (T value : values) {
+			chunk.add(value);
+			if (chunk.size() == parallelismThreshold) {
+				chunks.add(chunk);
+				chunk = new ArrayList<T>(parallelismThreshold);
+			}
+		}
+		if (!chunk.isEmpty()) {
+			chunks.add(chunk);
+		}
+		return chunks;
+	}
+
+	private <T> List<T> invokeAll(List<Callable<T>> tasks) {
+		try {
+			return invokeAllIO(tasks);
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * @return the results of the given tasks, in order, once all completed
+	 */
+	private <T> List<T> invokeAllIO(List<Callable<T>> tasks)
+			throws IOException {
+		try {
+			List<T> results = new ArrayList<T>(tasks.size());
+			for (Future<T> future : getExecutorService().invokeAll(tasks)) {
+				results.add(future.get());
+			}
+			return results;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted waiting for shards",
+					e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			}
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw new IllegalStateException(cause);
+		}
+	}
+
+	private ExecutorService getExecutorService() {
+		ExecutorService executorService = this.executorService;
+		if (executorService == null) {
+			synchronized (this) {
+				executorService = this.executorService;
+				if (executorService == null) {
+					executorService = Executors.newFixedThreadPool(Runtime
+							.getRuntime().availableProcessors(),
+							new ThreadFactory() {
+								public Thread newThread(Runnable runnable) {
+									Thread thread = new Thread(runnable,
+											"ShardedInMemoryUsersConnectionRepository");
+									thread.setDaemon(true);
+									return thread;
+								}
+							});
+					this.executorService = executorService;
+				}
+			}
+		}
+		return executorService;
+	}
+
+}
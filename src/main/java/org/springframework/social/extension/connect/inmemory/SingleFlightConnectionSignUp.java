@@ -0,0 +1,119 @@
+/*
+ * Copyright 2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.social.extension.connect.inmemory;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.springframework.social.connect.Connection;
+import org.springframework.social.connect.ConnectionKey;
+import org.springframework.social.connect.ConnectionSignUp;
+
+/**
+ * Executes a {@link ConnectionSignUp} once only for concurrent sign-ins
+ * missing the same connection: one caller executes it while the others wait
+ * for, and share, its outcome.
+ * 
+ * @author Michael Lavelle
+ */
+abstract class SingleFlightConnectionSignUp {
+
+	private volatile ConnectionSignUp connectionSignUp;
+
+	private volatile long timeout = 30000;
+
+	private final ConcurrentMap<ConnectionKey, FutureTask<List<String>>> signUpsInProgress = new ConcurrentHashMap<ConnectionKey, FutureTask<List<String>>>();
+
+	void setConnectionSignUp(ConnectionSignUp connectionSignUp) {
+		this.connectionSignUp = connectionSignUp;
+	}
+
+	boolean isEnabled() {
+		return connectionSignUp != null;
+	}
+
+	void setTimeout(long timeout) {
+		this.timeout = timeout;
+	}
+
+	/**
+	 * @return the ids of the users holding the connection once signed up,
+	 *         which are empty if the ConnectionSignUp created no user
+	 */
+	List<String> signUp(final Connection<?> connection) {
+		final ConnectionKey key = connection.getKey();
+		FutureTask<List<String>> signUp = new FutureTask<List<String>>(
+				new Callable<List<String>>() {
+					public List<String> call() {
+						// a sign-up completed since the caller's lookup
+						// leaves nothing to do
+						List<String> localUserIds = findUserIds(key);
+						if (localUserIds.size() > 0) {
+							return localUserIds;
+						}
+						String newUserId = connectionSignUp.execute(connection);
+						if (newUserId != null) {
+							addConnection(newUserId, connection);
+							return Arrays.asList(newUserId);
+						}
+						return localUserIds;
+					}
+				});
+		FutureTask<List<String>> signUpInProgress = signUpsInProgress
+				.putIfAbsent(key, signUp);
+		try {
+			if (signUpInProgress == null) {
+				try {
+					signUp.run();
+				} finally {
+					signUpsInProgress.remove(key, signUp);
+				}
+				return signUp.get();
+			}
+			return signUpInProgress.get(timeout, TimeUnit.MILLISECONDS);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			if (e.getCause() instanceof Error) {
+				throw (Error) e.getCause();
+			}
+			throw new IllegalStateException(e.getCause());
+		} catch (TimeoutException e) {
+			throw new ConnectionSignUpTimeoutException(key);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new ConnectionSignUpTimeoutException(key, e);
+		}
+	}
+
+	/**
+	 * @return the ids of the users currently holding a connection with the
+	 *         given key
+	 */
+	protected abstract List<String> findUserIds(ConnectionKey key);
+
+	protected abstract void addConnection(String userId,
+			Connection<?> connection);
+
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright 2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.social.extension.connect.inmemory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import org.springframework.social.connect.ConnectionData;
+
+/**
+ * {@link RankedConnectionStorage} for users with many connections to a
+ * provider: a concurrent skip list by rank, indexed by providerUserId in a
+ * concurrent hash map, both modified in place. Once a removal leaves half of
+ * {@link CompactRankedConnectionStorage#MAXIMUM_SIZE} connections or fewer,
+ * it returns a {@link CompactRankedConnectionStorage} instead.
+ * 
+ * @author Michael Lavelle
+ */
+final class TreeRankedConnectionStorage implements RankedConnectionStorage {
+
+	private final ConcurrentNavigableMap<Integer, ConnectionData> connectionDataByRank = new ConcurrentSkipListMap<Integer, ConnectionData>();
+
+	private final ConcurrentMap<String, Integer> rankByProviderUserId = new ConcurrentHashMap<String, Integer>();
+
+	TreeRankedConnectionStorage(
+			SortedMap<Integer, ConnectionData> connectionDataByRank) {
+		for (SortedMap.Entry<Integer, ConnectionData> connection : connectionDataByRank
+				.entrySet()) {
+			put(connection.getKey(), connection.getValue());
+		}
+	}
+
+	public int size() {
+		return connectionDataByRank.size();
+	}
+
+	public ConnectionData findByRank(int rank) {
+		return connectionDataByRank.get(rank);
+	}
+
+	public int findRank(String providerUserId) {
+		Integer rank = rankByProviderUserId.get(providerUserId);
+		return rank != null ? rank : NO_RANK;
+	}
+
+	public ConnectionData findByProviderUserId(String providerUserId) {
+		Integer rank = rankByProviderUserId.get(providerUserId);
+		if (rank == null) {
+			return null;
+		}
+		ConnectionData connectionData = connectionDataByRank.get(rank);
+		// the rank may have been reassigned since the index was read
+		if (connectionData == null
+				|| !providerUserId.equals(connectionData.getProviderUserId())) {
+			return null;
+		}
+		return connectionData;
+	}
+
+	public List<ConnectionData> findAll() {
+		return Collections.unmodifiableList(new ArrayList<ConnectionData>(
+				connectionDataByRank.values()));
+	}
+
+	public SortedMap<Integer, ConnectionData> findAllByRank() {
+		return new TreeMap<Integer, ConnectionData>(connectionDataByRank);
+	}
+
+	public RankedConnectionStorage put(int rank, ConnectionData connectionData) {
+		ConnectionData replaced = connectionDataByRank.put(rank, connectionData);
+		if (replaced != null) {
+			rankByProviderUserId.remove(replaced.getProviderUserId(), rank);
+		}
+		rankByProviderUserId.put(connectionData.getProviderUserId(), rank);
+		return this;
+	}
+
+	public RankedConnectionStorage remove(int rank) {
+		ConnectionData removed = connectionDataByRank.remove(rank);
+		if (removed != null) {
+			rankByProviderUserId.remove(removed.getProviderUserId(), rank);
+		}
+		if (connectionDataByRank.size() <= CompactRankedConnectionStorage.MAXIMUM_SIZE / 2) {
+			return CompactRankedConnectionStorage.copyOf(connectionDataByRank);
+		}
+		return this;
+	}
+
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright 2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.social.extension.connect.inmemory;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.springframework.social.connect.Connection;
+import org.springframework.social.connect.ConnectionData;
+import org.springframework.social.connect.ConnectionKey;
+import org.springframework.social.connect.ConnectionRepository;
+import org.springframework.social.connect.UserProfile;
+import org.springframework.social.connect.UsersConnectionRepository;
+
+/**
+ * {@link InMemoryConnectionLoader} reading the connections of evicted users
+ * from another {@link UsersConnectionRepository}, typically a
+ * JdbcUsersConnectionRepository, which is kept up to date by also setting
+ * this loader as the {@link InMemoryConnectionListener} of the in-memory
+ * repository: every mutation is then written through to the delegate, while
+ * still holding the lock of the user's connections to the provider, and
+ * before it is applied in memory, so that a mutation the delegate rejects is
+ * not applied. Connections are written through as their ConnectionData,
+ * which does not require a connection factory for their provider.
+ * 
+ * @author Michael Lavelle
+ */
+public class UsersConnectionRepositoryConnectionLoader implements
+		InMemoryConnectionLoader, InMemoryConnectionListener {
+
+	private final UsersConnectionRepository delegate;
+
+	public UsersConnectionRepositoryConnectionLoader(
+			UsersConnectionRepository delegate) {
+		this.delegate = delegate;
+	}
+
+	public List<ConnectionData> loadConnections(String userId) {
+		List<ConnectionData> connectionDatas = new ArrayList<ConnectionData>();
+		for (List<Connection<?>> connections : delegate
+				.createConnectionRepository(userId).findAllConnections()
+				.values()) {
+			for (Connection<?> connection : connections) {
+				connectionDatas.add(connection.createData());
+			}
+		}
+		return connectionDatas;
+	}
+
+	public void connectionAdded(String userId, ConnectionData connectionData,
+			int rank) {
+		delegate.createConnectionRepository(userId).addConnection(
+				createConnection(connectionData));
+	}
+
+	public void connectionUpdated(String userId, String providerUserId,
+			ConnectionData connectionData) {
+		ConnectionRepository connectionRepository = delegate
+				.createConnectionRepository(userId);
+		if (providerUserId.equals(connectionData.getProviderUserId())) {
+			connectionRepository
+					.updateConnection(createConnection(connectionData));
+		} else {
+			connectionRepository.removeConnection(new ConnectionKey(
+					connectionData.getProviderId(), providerUserId));
+			connectionRepository.addConnection(createConnection(connectionData));
+		}
+	}
+
+	public void connectionRemoved(String userId, ConnectionKey connectionKey) {
+		delegate.createConnectionRepository(userId).removeConnection(
+				connectionKey);
+	}
+
+	public void connectionsRemoved(String userId, String providerId) {
+		delegate.createConnectionRepository(userId).removeConnections(
+				providerId);
+	}
+
+	private Connection<?> createConnection(ConnectionData connectionData) {
+		return new ConnectionDataConnection(connectionData);
+	}
+
+	/**
+	 * Connection carrying the ConnectionData of a mutation to the delegate,
+	 * which only reads it through {@link #getKey()} and
+	 * {@link #createData()}; it has no API binding
+	 */
+	private static class ConnectionDataConnection implements
+			Connection<Object> {
+
+		private static final long serialVersionUID = 1L;
+
+		private final ConnectionData connectionData;
+
+		ConnectionDataConnection(ConnectionData connectionData) {
+			this.connectionData = connectionData;
+		}
+
+		public ConnectionKey getKey() {
+			return new ConnectionKey(connectionData.getProviderId(),
+					connectionData.getProviderUserId());
+		}
+
+		public String getDisplayName() {
+			return connectionData.getDisplayName();
+		}
+
+		public String getProfileUrl() {
+			return connectionData.getProfileUrl();
+		}
+
+		public String getImageUrl() {
+			return connectionData.getImageUrl();
+		}
+
+		public boolean hasExpired() {
+			Long expireTime = connectionData.getExpireTime();
+			return expireTime != null
+					&& System.currentTimeMillis() >= expireTime;
+		}
+
+		public ConnectionData createData() {
+			return connectionData;
+		}
+
+		public void sync() {
+			throw new UnsupportedOperationException();
+		}
+
+		public boolean test() {
+			throw new UnsupportedOperationException();
+		}
+
+		public void refresh() {
+			throw new UnsupportedOperationException();
+		}
+
+		public UserProfile fetchUserProfile() {
+			throw new UnsupportedOperationException();
+		}
+
+		public void updateStatus(String message) {
+			throw new UnsupportedOperationException();
+		}
+
+		public Object getApi() {
+			throw new UnsupportedOperationException();
+		}
+
+	}
+
+}
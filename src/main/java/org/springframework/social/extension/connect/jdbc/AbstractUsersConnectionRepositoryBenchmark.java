@@ -0,0 +1,346 @@
+/*
+ * Copyright 2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.social.extension.connect.jdbc;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.social.connect.ApiAdapter;
+import org.springframework.social.connect.Connection;
+import org.springframework.social.connect.ConnectionData;
+import org.springframework.social.connect.ConnectionFactory;
+import org.springframework.social.connect.ConnectionFactoryLocator;
+import org.springframework.social.connect.ConnectionValues;
+import org.springframework.social.connect.UserProfile;
+import org.springframework.social.connect.UserProfileBuilder;
+import org.springframework.social.connect.UsersConnectionRepository;
+import org.springframework.social.connect.support.OAuth2ConnectionFactory;
+import org.springframework.social.oauth2.OAuth2Operations;
+import org.springframework.social.oauth2.OAuth2ServiceProvider;
+import org.springframework.util.LinkedMultiValueMap;
+import org.springframework.util.MultiValueMap;
+
+/**
+ * JMH benchmark of a {@link UsersConnectionRepository} implementation, the
+ * performance counterpart of {@link AbstractUsersConnectionRepositoryTest}:
+ * subclasses create the repository under test and insert its dataset of
+ * {@link #users} users, each with {@link #connectionsPerProvider}
+ * connections to each of {@link #providers} providers.
+ *
+ * Every benchmark is measured both for throughput and for its latency
+ * distribution; {@link UsersConnectionRepositoryBenchmarkRunner} runs them at
+ * increasing thread counts. The heap retained by the dataset, measured once
+ * loaded, is logged per trial.
+ *
+ * @author Michael Lavelle
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public abstract class AbstractUsersConnectionRepositoryBenchmark<U extends UsersConnectionRepository> {
+
+	private static final Log logger = LogFactory
+			.getLog(AbstractUsersConnectionRepositoryBenchmark.class);
+
+	private static final int SAMPLES = 1024;
+
+	@Param("1000")
+	public int users;
+
+	@Param("2")
+	public int providers;
+
+	@Param("3")
+	public int connectionsPerProvider;
+
+	/**
+	 * The number of providerUserIds looked up per
+	 * findUserIdsConnectedTo/findConnectionsToUsers call
+	 */
+	@Param("100")
+	public int batchSize;
+
+	protected ConnectionFactoryLocator connectionFactoryLocator;
+
+	protected U usersConnectionRepository;
+
+	private Connection<?>[] sampleConnections;
+
+	private List<Set<String>> sampleProviderUserIdBatches;
+
+	private List<MultiValueMap<String, String>> sampleProviderUsers;
+
+	private final AtomicLong addedConnectionCount = new AtomicLong();
+
+	protected abstract U createUsersConnectionRepository();
+
+	protected abstract void insertConnection(String userId, String providerId,
+			String providerUserId, int rank, String displayName,
+			String profileUrl, String imageUrl, String accessToken,
+			String secret, String refreshToken, Long expireTime);
+
+	/**
+	 * Releases any resources held by the repository under test
+	 */
+	protected void tearDownUsersConnectionRepository() {
+	}
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		connectionFactoryLocator = new BenchmarkConnectionFactoryLocator(
+				providers);
+		long heapBefore = getUsedHeap();
+		usersConnectionRepository = createUsersConnectionRepository();
+		for (int user = 0; user < users; user++) {
+			for (int provider = 0; provider < providers; provider++) {
+				for (int connection = 0; connection < connectionsPerProvider; connection++) {
+					String providerUserId = getProviderUserId(user, connection);
+					insertConnection(getUserId(user), getProviderId(provider),
+							providerUserId, connection + 1, "User " + user,
+							"https://www.example.com/profile/" + providerUserId,
+							"https://images.example.com/" + providerUserId
+									+ ".jpg", "accessToken" + providerUserId,
+							null, "refreshToken" + providerUserId, null);
+				}
+			}
+		}
+		long retainedHeap = getUsedHeap() - heapBefore;
+		logger.info("Retained heap: " + retainedHeap + " bytes, "
+				+ retainedHeap / ((long) users * providers * connectionsPerProvider)
+				+ " bytes per connection");
+		createSamples(new Random(0));
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		tearDownUsersConnectionRepository();
+	}
+
+	@Benchmark
+	public List<String> findUserIdsWithConnection(ThreadState state) {
+		return usersConnectionRepository
+				.findUserIdsWithConnection(sampleConnections[state
+						.nextSample()]);
+	}
+
+	@Benchmark
+	public Set<String> findUserIdsConnectedTo(ThreadState state) {
+		return usersConnectionRepository.findUserIdsConnectedTo(
+				getProviderId(0),
+				sampleProviderUserIdBatches.get(state.nextSample()));
+	}
+
+	@Benchmark
+	public MultiValueMap<String, Connection<?>> findAllConnections(
+			ThreadState state) {
+		return usersConnectionRepository.createConnectionRepository(
+				getUserId(state.nextInt(users))).findAllConnections();
+	}
+
+	@Benchmark
+	public MultiValueMap<String, Connection<?>> findConnectionsToUsers(
+			ThreadState state) {
+		return usersConnectionRepository.createConnectionRepository(
+				getUserId(state.nextInt(users))).findConnectionsToUsers(
+				sampleProviderUsers.get(state.nextSample()));
+	}
+
+	@Benchmark
+	public void addConnection(ThreadState state) {
+		String userId = getUserId(state.nextInt(users));
+		String providerId = getProviderId(state.nextInt(providers));
+		ConnectionData connectionData = new ConnectionData(providerId,
+				"added-" + addedConnectionCount.incrementAndGet(), null, null,
+				null, "accessToken", null, "refreshToken", null);
+		usersConnectionRepository.createConnectionRepository(userId)
+				.addConnection(
+						connectionFactoryLocator.getConnectionFactory(
+								providerId).createConnection(connectionData));
+	}
+
+	/**
+	 * @return the heap in use once garbage collected, as far as
+	 *         {@link System#gc()} manages to
+	 */
+	private static long getUsedHeap() {
+		Runtime runtime = Runtime.getRuntime();
+		for (int i = 0; i < 3; i++) {
+			System.gc();
+		}
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+
+	protected String getUserId(int user) {
+		return "user" + user;
+	}
+
+	protected String getProviderId(int provider) {
+		return "provider" + provider;
+	}
+
+	/**
+	 * Provider user ids are shared by all providers, so that every provider
+	 * holds the same number of connections
+	 */
+	protected String getProviderUserId(int user, int connection) {
+		return user + "-" + connection;
+	}
+
+	private void createSamples(Random random) {
+		sampleConnections = new Connection<?>[SAMPLES];
+		sampleProviderUserIdBatches = new ArrayList<Set<String>>(SAMPLES);
+		sampleProviderUsers = new ArrayList<MultiValueMap<String, String>>(
+				SAMPLES);
+		for (int i = 0; i < SAMPLES; i++) {
+			String providerId = getProviderId(random.nextInt(providers));
+			ConnectionData connectionData = new ConnectionData(providerId,
+					getProviderUserId(random.nextInt(users),
+							random.nextInt(connectionsPerProvider)), null,
+					null, null, "accessToken", null, "refreshToken", null);
+			sampleConnections[i] = connectionFactoryLocator
+					.getConnectionFactory(providerId).createConnection(
+							connectionData);
+
+			Set<String> providerUserIds = new HashSet<String>();
+			MultiValueMap<String, String> providerUsers = new LinkedMultiValueMap<String, String>();
+			for (int j = 0; j < batchSize; j++) {
+				String providerUserId = getProviderUserId(
+						random.nextInt(users),
+						random.nextInt(connectionsPerProvider));
+				providerUserIds.add(providerUserId);
+				providerUsers.add(getProviderId(j % providers), providerUserId);
+			}
+			sampleProviderUserIdBatches.add(providerUserIds);
+			sampleProviderUsers.add(providerUsers);
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class ThreadState {
+
+		private final Random random = new Random();
+
+		int nextInt(int bound) {
+			return random.nextInt(bound);
+		}
+
+		int nextSample() {
+			return random.nextInt(SAMPLES);
+		}
+
+	}
+
+	/**
+	 * Locator of a fixed number of providers sharing a trivial OAuth2 API, so
+	 * that benchmarks measure the repository rather than API bindings
+	 */
+	public static class BenchmarkConnectionFactoryLocator implements
+			ConnectionFactoryLocator {
+
+		private final Map<String, ConnectionFactory<?>> connectionFactories = new LinkedHashMap<String, ConnectionFactory<?>>();
+
+		public BenchmarkConnectionFactoryLocator(int providers) {
+			for (int provider = 0; provider < providers; provider++) {
+				String providerId = "provider" + provider;
+				connectionFactories.put(providerId,
+						new OAuth2ConnectionFactory<Object>(providerId,
+								new BenchmarkServiceProvider(),
+								new BenchmarkApiAdapter()));
+			}
+		}
+
+		public ConnectionFactory<?> getConnectionFactory(String providerId) {
+			ConnectionFactory<?> connectionFactory = connectionFactories
+					.get(providerId);
+			if (connectionFactory == null) {
+				throw new IllegalArgumentException(
+						"No connection factory for service provider '"
+								+ providerId + "' is registered");
+			}
+			return connectionFactory;
+		}
+
+		@SuppressWarnings("unchecked")
+		public <A> ConnectionFactory<A> getConnectionFactory(Class<A> apiType) {
+			return (ConnectionFactory<A>) connectionFactories.values()
+					.iterator().next();
+		}
+
+		public Set<String> registeredProviderIds() {
+			return connectionFactories.keySet();
+		}
+
+	}
+
+	private static class BenchmarkServiceProvider implements
+			OAuth2ServiceProvider<Object> {
+
+		private final Object api = new Object();
+
+		public OAuth2Operations getOAuthOperations() {
+			return null;
+		}
+
+		public Object getApi(String accessToken) {
+			return api;
+		}
+
+	}
+
+	private static class BenchmarkApiAdapter implements ApiAdapter<Object> {
+
+		public boolean test(Object api) {
+			return true;
+		}
+
+		public void setConnectionValues(Object api, ConnectionValues values) {
+		}
+
+		public UserProfile fetchUserProfile(Object api) {
+			return new UserProfileBuilder().build();
+		}
+
+		public void updateStatus(Object api, String message) {
+		}
+
+	}
+
+}
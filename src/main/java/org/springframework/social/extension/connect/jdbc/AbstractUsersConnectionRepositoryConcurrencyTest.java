@@ -0,0 +1,336 @@
+/*
+ * Copyright 2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.social.extension.connect.jdbc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.social.connect.Connection;
+import org.springframework.social.connect.ConnectionData;
+import org.springframework.social.connect.ConnectionRepository;
+import org.springframework.social.connect.ConnectionSignUp;
+import org.springframework.social.connect.DuplicateConnectionException;
+import org.springframework.social.connect.UsersConnectionRepository;
+import org.springframework.social.connect.support.ConnectionFactoryRegistry;
+import org.springframework.social.extension.connect.jdbc.AbstractUsersConnectionRepositoryTest.TestFacebookConnectionFactory;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+
+/**
+ * Concurrent counterpart of {@link AbstractUsersConnectionRepositoryTest}:
+ * runs many threads of add, update, remove and find operations against a
+ * {@link UsersConnectionRepository} implementation, then checks that its
+ * state is still consistent, and logs the throughput achieved so that
+ * regressions are visible.
+ *
+ * @author Michael Lavelle
+ */
+@RunWith(SpringJUnit4ClassRunner.class)
+@ContextConfiguration(locations = { "/META-INF/spring/applicationContext.xml" })
+public abstract class AbstractUsersConnectionRepositoryConcurrencyTest<U extends UsersConnectionRepository> {
+
+	private static final Log logger = LogFactory
+			.getLog(AbstractUsersConnectionRepositoryConcurrencyTest.class);
+
+	protected ConnectionFactoryRegistry connectionFactoryRegistry;
+
+	private TestFacebookConnectionFactory connectionFactory;
+
+	protected U usersConnectionRepository;
+
+	protected abstract U createUsersConnectionRepository();
+
+	protected abstract void setConnectionSignUpOnUsersConnectionRepository(
+			U usersConnectionRepository, ConnectionSignUp connectionSignUp);
+
+	@Before
+	public void setUp() {
+		connectionFactoryRegistry = new ConnectionFactoryRegistry();
+		connectionFactory = new TestFacebookConnectionFactory();
+		connectionFactoryRegistry.addConnectionFactory(connectionFactory);
+		usersConnectionRepository = createUsersConnectionRepository();
+	}
+
+	@Test
+	public void concurrentMutationsLeaveConsistentState()
+			throws InterruptedException {
+		final AtomicLong accessTokens = new AtomicLong();
+		long operations = runConcurrently(new Operation() {
+			public void execute(Random random) {
+				ConnectionRepository connectionRepository = usersConnectionRepository
+						.createConnectionRepository(getUserId(random
+								.nextInt(getUsers())));
+				String providerUserId = getProviderUserId(random
+						.nextInt(getProviderUsers()));
+				Connection<?> connection = createConnection(providerUserId,
+						"token" + accessTokens.incrementAndGet());
+				switch (random.nextInt(6)) {
+				case 0:
+					try {
+						connectionRepository.addConnection(connection);
+					} catch (DuplicateConnectionException e) {
+						// expected when the key is already connected
+					}
+					break;
+				case 1:
+					connectionRepository.updateConnection(connection);
+					break;
+				case 2:
+					connectionRepository.removeConnection(connection.getKey());
+					break;
+				case 3:
+					connectionRepository.findConnections("facebook");
+					break;
+				case 4:
+					usersConnectionRepository
+							.findUserIdsWithConnection(connection);
+					break;
+				default:
+					usersConnectionRepository.findUserIdsConnectedTo(
+							"facebook", Collections.singleton(providerUserId));
+				}
+			}
+		}, "add/update/remove/find");
+
+		assertTrue(operations > 0);
+		assertConsistent();
+	}
+
+	@Test
+	public void connectionSignUpExecutesOncePerKey()
+			throws InterruptedException {
+		Assume.assumeTrue(isConnectionSignUpSingleFlight());
+		final ConcurrentMap<String, AtomicInteger> signUps = new ConcurrentHashMap<String, AtomicInteger>();
+		setConnectionSignUpOnUsersConnectionRepository(
+				usersConnectionRepository, new ConnectionSignUp() {
+					public String execute(Connection<?> connection) {
+						String providerUserId = connection.getKey()
+								.getProviderUserId();
+						AtomicInteger count = new AtomicInteger();
+						AtomicInteger existing = signUps.putIfAbsent(
+								providerUserId, count);
+						(existing == null ? count : existing).incrementAndGet();
+						return "signup-" + providerUserId;
+					}
+				});
+		final ConcurrentMap<String, Set<String>> userIdsByProviderUserId = new ConcurrentHashMap<String, Set<String>>();
+		runConcurrently(new Operation() {
+			public void execute(Random random) {
+				String providerUserId = getProviderUserId(random
+						.nextInt(getProviderUsers()));
+				List<String> userIds = usersConnectionRepository
+						.findUserIdsWithConnection(createConnection(
+								providerUserId, "token"));
+				Set<String> seen = Collections
+						.synchronizedSet(new HashSet<String>());
+				Set<String> existing = userIdsByProviderUserId.putIfAbsent(
+						providerUserId, seen);
+				(existing == null ? seen : existing).addAll(userIds);
+			}
+		}, "sign-in with sign-up");
+
+		for (AtomicInteger count : signUps.values()) {
+			assertEquals(1, count.get());
+		}
+		for (Set<String> userIds : userIdsByProviderUserId.values()) {
+			assertEquals(1, userIds.size());
+		}
+	}
+
+	// subclassing hooks
+
+	/**
+	 * @return the number of threads to run operations on
+	 */
+	protected int getThreads() {
+		return 8;
+	}
+
+	/**
+	 * @return the number of operations each thread runs
+	 */
+	protected int getOperationsPerThread() {
+		return 2000;
+	}
+
+	/**
+	 * @return the number of local users operations are spread over
+	 */
+	protected int getUsers() {
+		return 10;
+	}
+
+	/**
+	 * @return the number of provider users operations are spread over
+	 */
+	protected int getProviderUsers() {
+		return 25;
+	}
+
+	/**
+	 * @return true if the implementation guarantees that concurrent sign-ins
+	 *         with the same new connection execute its
+	 *         {@link ConnectionSignUp} once only
+	 */
+	protected boolean isConnectionSignUpSingleFlight() {
+		return false;
+	}
+
+	/**
+	 * @return the ranks of the given user's connections to the given
+	 *         provider, or null if the implementation does not expose them
+	 */
+	protected List<Integer> getRanks(String userId, String providerId) {
+		return null;
+	}
+
+	protected String getUserId(int user) {
+		return "user" + user;
+	}
+
+	protected String getProviderUserId(int providerUser) {
+		return "fb" + providerUser;
+	}
+
+	private Connection<?> createConnection(String providerUserId,
+			String accessToken) {
+		return connectionFactory.createConnection(new ConnectionData(
+				"facebook", providerUserId, null, null, null, accessToken,
+				null, null, null));
+	}
+
+	/**
+	 * Checks that no user holds duplicate providerUserIds or ranks, and that
+	 * finding users by connection agrees with each user's own connections
+	 */
+	private void assertConsistent() {
+		for (int providerUser = 0; providerUser < getProviderUsers(); providerUser++) {
+			String providerUserId = getProviderUserId(providerUser);
+			Set<String> connectedUserIds = new TreeSet<String>();
+			for (int user = 0; user < getUsers(); user++) {
+				String userId = getUserId(user);
+				for (Connection<?> connection : usersConnectionRepository
+						.createConnectionRepository(userId).findConnections(
+								"facebook")) {
+					if (connection.getKey().getProviderUserId()
+							.equals(providerUserId)) {
+						connectedUserIds.add(userId);
+					}
+				}
+			}
+			assertEquals(connectedUserIds, new TreeSet<String>(
+					usersConnectionRepository
+							.findUserIdsWithConnection(createConnection(
+									providerUserId, "token"))));
+			assertEquals(connectedUserIds,
+					new TreeSet<String>(usersConnectionRepository
+							.findUserIdsConnectedTo("facebook",
+									Collections.singleton(providerUserId))));
+		}
+		for (int user = 0; user < getUsers(); user++) {
+			String userId = getUserId(user);
+			List<Connection<?>> connections = usersConnectionRepository
+					.createConnectionRepository(userId).findConnections(
+							"facebook");
+			Set<String> providerUserIds = new HashSet<String>();
+			for (Connection<?> connection : connections) {
+				assertTrue("Duplicate connection " + connection.getKey()
+						+ " for " + userId, providerUserIds.add(connection
+						.getKey().getProviderUserId()));
+			}
+			List<Integer> ranks = getRanks(userId, "facebook");
+			if (ranks != null) {
+				assertEquals(connections.size(), ranks.size());
+				assertEquals(ranks.size(), new HashSet<Integer>(ranks).size());
+			}
+		}
+	}
+
+	/**
+	 * Runs the operation {@link #getOperationsPerThread()} times on each of
+	 * {@link #getThreads()} threads started together, rethrowing the first
+	 * failure
+	 *
+	 * @return the number of operations run
+	 */
+	private long runConcurrently(final Operation operation, String description)
+			throws InterruptedException {
+		final CountDownLatch start = new CountDownLatch(1);
+		final List<Throwable> failures = Collections
+				.synchronizedList(new ArrayList<Throwable>());
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int i = 0; i < getThreads(); i++) {
+			final long seed = i;
+			Thread thread = new Thread(new Runnable() {
+				public void run() {
+					Random random = new Random(seed);
+					try {
+						start.await();
+						for (int j = 0; j < getOperationsPerThread(); j++) {
+							operation.execute(random);
+						}
+					} catch (Throwable e) {
+						failures.add(e);
+					}
+				}
+			});
+			thread.start();
+			threads.add(thread);
+		}
+		long startTime = System.nanoTime();
+		start.countDown();
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		long elapsed = System.nanoTime() - startTime;
+		if (!failures.isEmpty()) {
+			throw new AssertionError(failures.get(0));
+		}
+		long operations = (long) getThreads() * getOperationsPerThread();
+		logger.info(getClass().getSimpleName() + " " + description + ": "
+				+ operations + " operations on " + getThreads()
+				+ " threads at "
+				+ (operations * 1000000000L / Math.max(1, elapsed))
+				+ " operations/second");
+		return operations;
+	}
+
+	private interface Operation {
+
+		void execute(Random random);
+
+	}
+
+}
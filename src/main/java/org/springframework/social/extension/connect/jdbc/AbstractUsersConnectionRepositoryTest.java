@@ -18,13 +18,17 @@ package org.springframework.social.extension.connect.jdbc;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
+import org.junit.Assume;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -44,6 +48,7 @@ import org.springframework.social.connect.UsersConnectionRepository;
 import org.springframework.social.connect.support.ConnectionFactoryRegistry;
 import org.springframework.social.connect.support.OAuth1ConnectionFactory;
 import org.springframework.social.connect.support.OAuth2ConnectionFactory;
+import org.springframework.social.extension.connect.BatchUsersConnectionRepository;
 import org.springframework.social.oauth1.OAuth1Operations;
 import org.springframework.social.oauth1.OAuth1ServiceProvider;
 import org.springframework.social.oauth2.AccessGrant;
@@ -149,6 +154,66 @@ public abstract class AbstractUsersConnectionRepositoryTest<U extends UsersConne
 		assertEquals(0, userIds.size());
 	}
 
+	@Test
+	public void findUserIdsWithConnectionKeys() {
+		BatchUsersConnectionRepository batchUsersConnectionRepository = getBatchUsersConnectionRepository();
+		Assume.assumeNotNull(batchUsersConnectionRepository);
+		insertTwitterConnection();
+		insertFacebookConnection();
+		insertFacebookConnectionSameFacebookUser();
+		insertFacebookConnection3();
+		Map<ConnectionKey, List<String>> userIds = batchUsersConnectionRepository
+				.findUserIdsWithConnectionKeys(Arrays.asList(new ConnectionKey(
+						"facebook", "9"), new ConnectionKey("facebook", "11"),
+						new ConnectionKey("facebook", "12"), new ConnectionKey(
+								"twitter", "1")));
+		assertEquals(Arrays.asList(new ConnectionKey("facebook", "9"),
+				new ConnectionKey("facebook", "11"), new ConnectionKey(
+						"facebook", "12"), new ConnectionKey("twitter", "1")),
+				new ArrayList<ConnectionKey>(userIds.keySet()));
+		assertEquals(Arrays.asList("1", "2"),
+				userIds.get(new ConnectionKey("facebook", "9")));
+		assertEquals(Arrays.asList("2"),
+				userIds.get(new ConnectionKey("facebook", "11")));
+		assertEquals(0, userIds.get(new ConnectionKey("facebook", "12"))
+				.size());
+		assertEquals(Arrays.asList("1"),
+				userIds.get(new ConnectionKey("twitter", "1")));
+	}
+
+	@Test
+	public void findUserIdsWithConnections_withWorkingConnectionSignUp() {
+		BatchUsersConnectionRepository batchUsersConnectionRepository = getBatchUsersConnectionRepository();
+		Assume.assumeNotNull(batchUsersConnectionRepository);
+		insertFacebookConnection();
+		final List<String> signedUpProviderUserIds = new ArrayList<String>();
+		setConnectionSignUpOnUsersConnectionRepository(
+				usersConnectionRepository, new ConnectionSignUp() {
+					public String execute(Connection<?> connection) {
+						signedUpProviderUserIds.add(connection.getKey()
+								.getProviderUserId());
+						return "batman";
+					}
+				});
+		List<Connection<?>> connections = new ArrayList<Connection<?>>();
+		connections.add(connectionFactory.createConnection(new ConnectionData(
+				"facebook", "9", null, null, null, "234567890", null, null,
+				null)));
+		connections.add(connectionFactory.createConnection(new ConnectionData(
+				"facebook", "12", null, null, null, "345678901", null, null,
+				null)));
+		Map<ConnectionKey, List<String>> userIds = batchUsersConnectionRepository
+				.findUserIdsWithConnections(connections);
+		assertEquals(Arrays.asList("1"),
+				userIds.get(new ConnectionKey("facebook", "9")));
+		assertEquals(Arrays.asList("batman"),
+				userIds.get(new ConnectionKey("facebook", "12")));
+		assertEquals(Arrays.asList("12"), signedUpProviderUserIds);
+		assertEquals(Arrays.asList("batman"),
+				usersConnectionRepository
+						.findUserIdsWithConnection(connections.get(1)));
+	}
+
 	@Test
 	public void findUserIdsConnectedTo() {
 		insertFacebookConnection();
@@ -266,6 +331,24 @@ public abstract class AbstractUsersConnectionRepositoryTest<U extends UsersConne
 				.getFirst("twitter"));
 	}
 
+	@Test
+	public void findConnectionsToUsersUnconnectedUsers() {
+		insertFacebookConnection();
+		insertFacebookConnection2();
+		MultiValueMap<String, String> providerUsers = new LinkedMultiValueMap<String, String>();
+		providerUsers.add("facebook", "10");
+		providerUsers.add("facebook", "bogus");
+		providerUsers.add("facebook", "9");
+		MultiValueMap<String, Connection<?>> connectionsForUsers = connectionRepository
+				.findConnectionsToUsers(providerUsers);
+		assertEquals(1, connectionsForUsers.size());
+		List<Connection<?>> connections = connectionsForUsers.get("facebook");
+		assertEquals(3, connections.size());
+		assertEquals("10", connections.get(0).getKey().getProviderUserId());
+		assertNull(connections.get(1));
+		assertEquals("9", connections.get(2).getKey().getProviderUserId());
+	}
+
 	@Test
 	public void findConnectionsToUsersEmptyResult() {
 		MultiValueMap<String, String> providerUsers = new LinkedMultiValueMap<String, String>();
@@ -436,6 +519,15 @@ public abstract class AbstractUsersConnectionRepositoryTest<U extends UsersConne
 		return "";
 	}
 
+	/**
+	 * @return the batch lookup view of the repository under test, or null if
+	 *         it has none, in which case batch lookup tests are skipped
+	 */
+	protected BatchUsersConnectionRepository getBatchUsersConnectionRepository() {
+		return usersConnectionRepository instanceof BatchUsersConnectionRepository ? (BatchUsersConnectionRepository) usersConnectionRepository
+				: null;
+	}
+
 	protected abstract void insertConnection(String userId, String providerId,
 			String providerUserId, int rank, String displayName,
 			String profileUrl, String imageUrl, String accessToken,
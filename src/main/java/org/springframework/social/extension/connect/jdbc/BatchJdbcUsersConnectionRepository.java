@@ -0,0 +1,192 @@
+/*
+ * Copyright 2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.social.extension.connect.jdbc;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.sql.DataSource;
+
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowCallbackHandler;
+import org.springframework.social.connect.Connection;
+import org.springframework.social.connect.ConnectionKey;
+import org.springframework.social.connect.ConnectionRepository;
+import org.springframework.social.connect.ConnectionSignUp;
+import org.springframework.social.connect.jdbc.JdbcUsersConnectionRepository;
+import org.springframework.social.extension.connect.BatchUsersConnectionRepository;
+
+/**
+ * Decorator adding {@link BatchUsersConnectionRepository} lookups to a
+ * {@link JdbcUsersConnectionRepository}: connections are resolved with one
+ * <code>IN</code> query per provider, split into chunks of at most
+ * {@value #MAX_IN_PARAMETERS} providerUserIds to stay within database limits,
+ * rather than with one query per connection. All other operations are
+ * delegated.
+ * 
+ * @author Michael Lavelle
+ */
+public class BatchJdbcUsersConnectionRepository implements
+		BatchUsersConnectionRepository {
+
+	private static final int MAX_IN_PARAMETERS = 500;
+
+	private final JdbcUsersConnectionRepository usersConnectionRepository;
+
+	private final JdbcTemplate jdbcTemplate;
+
+	private String tablePrefix = "";
+
+	private ConnectionSignUp connectionSignUp;
+
+	/**
+	 * @param usersConnectionRepository
+	 *            the repository to decorate
+	 * @param dataSource
+	 *            the data source the decorated repository was created with
+	 */
+	public BatchJdbcUsersConnectionRepository(
+			JdbcUsersConnectionRepository usersConnectionRepository,
+			DataSource dataSource) {
+		this.usersConnectionRepository = usersConnectionRepository;
+		this.jdbcTemplate = new JdbcTemplate(dataSource);
+	}
+
+	/**
+	 * The table name prefix the decorated repository was configured with.
+	 * Defaults to the empty string.
+	 */
+	public void setTablePrefix(String tablePrefix) {
+		this.tablePrefix = tablePrefix;
+	}
+
+	/**
+	 * Sets the {@link ConnectionSignUp} of both this repository and the
+	 * decorated one.
+	 * 
+	 * @see JdbcUsersConnectionRepository#setConnectionSignUp(ConnectionSignUp)
+	 */
+	public void setConnectionSignUp(ConnectionSignUp connectionSignUp) {
+		this.connectionSignUp = connectionSignUp;
+		usersConnectionRepository.setConnectionSignUp(connectionSignUp);
+	}
+
+	public List<String> findUserIdsWithConnection(Connection<?> connection) {
+		return usersConnectionRepository.findUserIdsWithConnection(connection);
+	}
+
+	public Set<String> findUserIdsConnectedTo(String providerId,
+			Set<String> providerUserIds) {
+		return usersConnectionRepository.findUserIdsConnectedTo(providerId,
+				providerUserIds);
+	}
+
+	public ConnectionRepository createConnectionRepository(String userId) {
+		return usersConnectionRepository.createConnectionRepository(userId);
+	}
+
+	public Map<ConnectionKey, List<String>> findUserIdsWithConnections(
+			Collection<? extends Connection<?>> connections) {
+		List<ConnectionKey> connectionKeys = new ArrayList<ConnectionKey>();
+		for (Connection<?> connection : connections) {
+			connectionKeys.add(connection.getKey());
+		}
+		Map<ConnectionKey, List<String>> userIdsByConnectionKey = findUserIdsWithConnectionKeys(connectionKeys);
+		if (connectionSignUp != null) {
+			for (Connection<?> connection : connections) {
+				ConnectionKey key = connection.getKey();
+				if (userIdsByConnectionKey.get(key).size() == 0) {
+					String newUserId = connectionSignUp.execute(connection);
+					if (newUserId != null) {
+						createConnectionRepository(newUserId).addConnection(
+								connection);
+						userIdsByConnectionKey.put(key,
+								Arrays.asList(newUserId));
+					}
+				}
+			}
+		}
+		return userIdsByConnectionKey;
+	}
+
+	public Map<ConnectionKey, List<String>> findUserIdsWithConnectionKeys(
+			Collection<ConnectionKey> connectionKeys) {
+		final Map<ConnectionKey, List<String>> userIdsByConnectionKey = new LinkedHashMap<ConnectionKey, List<String>>();
+		Map<String, Set<String>> providerUserIdsByProviderId = new LinkedHashMap<String, Set<String>>();
+		for (ConnectionKey key : connectionKeys) {
+			userIdsByConnectionKey.put(key, new ArrayList<String>());
+			Set<String> providerUserIds = providerUserIdsByProviderId.get(key
+					.getProviderId());
+			if (providerUserIds == null) {
+				providerUserIds = new LinkedHashSet<String>();
+				providerUserIdsByProviderId.put(key.getProviderId(),
+						providerUserIds);
+			}
+			providerUserIds.add(key.getProviderUserId());
+		}
+		for (Map.Entry<String, Set<String>> providerUserIds : providerUserIdsByProviderId
+				.entrySet()) {
+			final String providerId = providerUserIds.getKey();
+			List<String> chunk = new ArrayList<String>();
+			for (String providerUserId : providerUserIds.getValue()) {
+				chunk.add(providerUserId);
+				if (chunk.size() == MAX_IN_PARAMETERS) {
+					findUserIds(providerId, chunk, userIdsByConnectionKey);
+					chunk.clear();
+				}
+			}
+			if (!chunk.isEmpty()) {
+				findUserIds(providerId, chunk, userIdsByConnectionKey);
+			}
+		}
+		return userIdsByConnectionKey;
+	}
+
+	private void findUserIds(final String providerId,
+			List<String> providerUserIds,
+			final Map<ConnectionKey, List<String>> userIdsByConnectionKey) {
+		StringBuilder sql = new StringBuilder("select providerUserId, userId from ")
+				.append(tablePrefix)
+				.append("UserConnection where providerId = ? and providerUserId in (");
+		List<Object> args = new ArrayList<Object>(providerUserIds.size() + 1);
+		args.add(providerId);
+		for (String providerUserId : providerUserIds) {
+			sql.append(args.size() == 1 ? "?" : ", ?");
+			args.add(providerUserId);
+		}
+		sql.append(") order by userId");
+		jdbcTemplate.query(sql.toString(), args.toArray(),
+				new RowCallbackHandler() {
+					public void processRow(ResultSet rs) throws SQLException {
+						List<String> userIds = userIdsByConnectionKey
+								.get(new ConnectionKey(providerId, rs
+										.getString("providerUserId")));
+						if (userIds != null) {
+							userIds.add(rs.getString("userId"));
+						}
+					}
+				});
+	}
+
+}
@@ -0,0 +1,49 @@
+/*
+ * Copyright 2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.social.extension.connect.jdbc;
+
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the {@link AbstractUsersConnectionRepositoryBenchmark} subclasses
+ * matching a pattern at 1, 2, 4... up to a maximum number of threads, so that
+ * the scalability of each implementation can be compared.
+ * 
+ * Usage: UsersConnectionRepositoryBenchmarkRunner [includePattern]
+ * [maxThreads]
+ * 
+ * @author Michael Lavelle
+ */
+public class UsersConnectionRepositoryBenchmarkRunner {
+
+	public static void main(String[] args) throws RunnerException {
+		String include = args.length > 0 ? args[0] : ".*Benchmark.*";
+		int maxThreads = args.length > 1 ? Integer.parseInt(args[1]) : Runtime
+				.getRuntime().availableProcessors();
+		int threads = 1;
+		while (true) {
+			new Runner(new OptionsBuilder().include(include).threads(threads)
+					.build()).run();
+			if (threads >= maxThreads) {
+				break;
+			}
+			threads = Math.min(threads * 2, maxThreads);
+		}
+	}
+
+}
@@ -0,0 +1,226 @@
+/*
+ * Copyright 2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.social.extension.connect.jdbc;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.springframework.social.connect.Connection;
+import org.springframework.social.connect.ConnectionData;
+import org.springframework.social.connect.ConnectionKey;
+import org.springframework.social.connect.ConnectionRepository;
+import org.springframework.social.extension.connect.DelegatingConnectionRepository;
+import org.springframework.util.LinkedMultiValueMap;
+import org.springframework.util.MultiValueMap;
+
+/**
+ * {@link ConnectionRepository} of a
+ * {@link WriteBehindJdbcUsersConnectionRepository}: updates are deferred,
+ * and the connections read from the delegate are replaced by their pending
+ * updates, reading again if updates of the user were flushed meanwhile.
+ *
+ * @author Michael Lavelle
+ */
+class WriteBehindJdbcConnectionRepository extends
+		DelegatingConnectionRepository {
+
+	private final String userId;
+
+	private final WriteBehindJdbcUsersConnectionRepository usersConnectionRepository;
+
+	WriteBehindJdbcConnectionRepository(String userId,
+			ConnectionRepository delegate,
+			WriteBehindJdbcUsersConnectionRepository usersConnectionRepository) {
+		super(delegate);
+		this.userId = userId;
+		this.usersConnectionRepository = usersConnectionRepository;
+	}
+
+	@Override
+	public MultiValueMap<String, Connection<?>> findAllConnections() {
+		return read(new Read<MultiValueMap<String, Connection<?>>>() {
+			MultiValueMap<String, Connection<?>> read() {
+				return overlay(delegate.findAllConnections());
+			}
+		});
+	}
+
+	@Override
+	public List<Connection<?>> findConnections(final String providerId) {
+		return read(new Read<List<Connection<?>>>() {
+			List<Connection<?>> read() {
+				return overlay(delegate.findConnections(providerId));
+			}
+		});
+	}
+
+	@Override
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	public <A> List<Connection<A>> findConnections(final Class<A> apiType) {
+		return (List) read(new Read<List<Connection<?>>>() {
+			List<Connection<?>> read() {
+				return overlay((List) delegate.findConnections(apiType));
+			}
+		});
+	}
+
+	@Override
+	public MultiValueMap<String, Connection<?>> findConnectionsToUsers(
+			final MultiValueMap<String, String> providerUserIds) {
+		return read(new Read<MultiValueMap<String, Connection<?>>>() {
+			MultiValueMap<String, Connection<?>> read() {
+				return overlay(delegate.findConnectionsToUsers(providerUserIds));
+			}
+		});
+	}
+
+	@Override
+	public Connection<?> getConnection(final ConnectionKey connectionKey) {
+		return read(new Read<Connection<?>>() {
+			Connection<?> read() {
+				return overlay(delegate.getConnection(connectionKey));
+			}
+		});
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public <A> Connection<A> getConnection(final Class<A> apiType,
+			final String providerUserId) {
+		return (Connection<A>) read(new Read<Connection<?>>() {
+			Connection<?> read() {
+				return overlay(delegate.getConnection(apiType, providerUserId));
+			}
+		});
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public <A> Connection<A> getPrimaryConnection(final Class<A> apiType) {
+		return (Connection<A>) read(new Read<Connection<?>>() {
+			Connection<?> read() {
+				return overlay(delegate.getPrimaryConnection(apiType));
+			}
+		});
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public <A> Connection<A> findPrimaryConnection(final Class<A> apiType) {
+		return (Connection<A>) read(new Read<Connection<?>>() {
+			Connection<?> read() {
+				return overlay(delegate.findPrimaryConnection(apiType));
+			}
+		});
+	}
+
+	@Override
+	public void addConnection(final Connection<?> connection) {
+		ConnectionKey key = connection.getKey();
+		usersConnectionRepository.writeThrough(userId, key.getProviderId(),
+				key.getProviderUserId(), new Runnable() {
+					public void run() {
+						delegate.addConnection(connection);
+					}
+				});
+	}
+
+	@Override
+	public void updateConnection(Connection<?> connection) {
+		usersConnectionRepository.update(userId, connection.createData());
+	}
+
+	@Override
+	public void removeConnections(final String providerId) {
+		usersConnectionRepository.writeThrough(userId, providerId, null,
+				new Runnable() {
+					public void run() {
+						delegate.removeConnections(providerId);
+					}
+				});
+	}
+
+	@Override
+	public void removeConnection(final ConnectionKey connectionKey) {
+		usersConnectionRepository.writeThrough(userId,
+				connectionKey.getProviderId(),
+				connectionKey.getProviderUserId(), new Runnable() {
+					public void run() {
+						delegate.removeConnection(connectionKey);
+					}
+				});
+	}
+
+	/**
+	 * Runs the given read, overlaying pending updates, again until no update
+	 * of the user was flushed meanwhile, which would leave the read with
+	 * neither the connection updated nor its pending update
+	 */
+	private <T> T read(Read<T> read) {
+		while (true) {
+			long flushGeneration = usersConnectionRepository
+					.getFlushGeneration(userId);
+			T result = read.read();
+			if (usersConnectionRepository.getFlushGeneration(userId) == flushGeneration) {
+				return result;
+			}
+		}
+	}
+
+	private Connection<?> overlay(Connection<?> connection) {
+		if (connection == null) {
+			return null;
+		}
+		ConnectionData pendingUpdate = usersConnectionRepository
+				.getPendingUpdate(userId, connection.getKey());
+		return pendingUpdate == null ? connection : usersConnectionRepository
+				.createConnection(pendingUpdate);
+	}
+
+	private List<Connection<?>> overlay(List<Connection<?>> connections) {
+		if (!usersConnectionRepository.hasPendingUpdates()) {
+			return connections;
+		}
+		List<Connection<?>> overlaid = new ArrayList<Connection<?>>(
+				connections.size());
+		for (Connection<?> connection : connections) {
+			overlaid.add(overlay(connection));
+		}
+		return overlaid;
+	}
+
+	private MultiValueMap<String, Connection<?>> overlay(
+			MultiValueMap<String, Connection<?>> connections) {
+		if (!usersConnectionRepository.hasPendingUpdates()) {
+			return connections;
+		}
+		MultiValueMap<String, Connection<?>> overlaid = new LinkedMultiValueMap<String, Connection<?>>();
+		for (Map.Entry<String, List<Connection<?>>> providerConnections : connections
+				.entrySet()) {
+			overlaid.put(providerConnections.getKey(),
+					overlay(providerConnections.getValue()));
+		}
+		return overlaid;
+	}
+
+	private static abstract class Read<T> {
+
+		abstract T read();
+
+	}
+
+}
@@ -0,0 +1,541 @@
+/*
+ * Copyright 2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.social.extension.connect.jdbc;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.sql.DataSource;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.security.crypto.encrypt.TextEncryptor;
+import org.springframework.social.connect.Connection;
+import org.springframework.social.connect.ConnectionData;
+import org.springframework.social.connect.ConnectionFactoryLocator;
+import org.springframework.social.connect.ConnectionKey;
+import org.springframework.social.connect.ConnectionRepository;
+import org.springframework.social.connect.jdbc.JdbcUsersConnectionRepository;
+import org.springframework.social.extension.connect.DelegatingUsersConnectionRepository;
+import org.springframework.social.extension.connect.cache.CachingUsersConnectionRepository;
+
+/**
+ * Decorator of a {@link JdbcUsersConnectionRepository} deferring
+ * {@link ConnectionRepository#updateConnection(Connection)}, typically called
+ * after every OAuth token refresh: updates are held in memory, coalesced so
+ * that the last update of each connection wins, and written to the
+ * <code>UserConnection</code> table in JDBC batches.
+ *
+ * Reads see pending updates immediately, by overlaying them on the
+ * connections read from the delegate, and are retried if updates of the user
+ * were flushed meanwhile; stack a {@link CachingUsersConnectionRepository}
+ * in front to serve them from the heap. Adding and removing connections is
+ * not deferred, and discards the pending updates of the connections
+ * removed.
+ *
+ * Pending updates are flushed on a background thread every flush interval
+ * and whenever {@link #setBatchSize(int) batchSize} of them are pending.
+ * Once {@link #setMaxPendingUpdates(int) maxPendingUpdates} are pending,
+ * updating callers flush them before returning, which bounds memory use
+ * when the database falls behind. Updates and mutations written through
+ * are serialized per user by lock stripes, never held while flushing: a
+ * mutation written through waits for the flush of any update of the
+ * connections it replaces, so that a flushed update never outlives the
+ * removal of its connection, and an update is only flushed once any earlier
+ * update of its connection has been. {@link #destroy()} flushes every
+ * pending update; updates not yet flushed are lost if the process dies.
+ *
+ * @author Michael Lavelle
+ */
+public class WriteBehindJdbcUsersConnectionRepository extends
+		DelegatingUsersConnectionRepository implements DisposableBean {
+
+	private static final Log logger = LogFactory
+			.getLog(WriteBehindJdbcUsersConnectionRepository.class);
+
+	private final JdbcTemplate jdbcTemplate;
+
+	private final ConnectionFactoryLocator connectionFactoryLocator;
+
+	private final TextEncryptor textEncryptor;
+
+	private String tablePrefix = "";
+
+	private int batchSize = 100;
+
+	private int maxPendingUpdates = 10000;
+
+	/**
+	 * The pending updates of each user with any, by connection key; only
+	 * modified holding the user's lock
+	 */
+	private final ConcurrentMap<String, ConcurrentMap<ConnectionKey, PendingUpdate>> pendingUpdatesByUserId = new ConcurrentHashMap<String, ConcurrentMap<ConnectionKey, PendingUpdate>>();
+
+	private final AtomicInteger pendingUpdateCount = new AtomicInteger();
+
+	private static final int LOCK_STRIPES = 64;
+
+	/**
+	 * Serialize the updates of each user with the mutations written through,
+	 * so that an update is never left pending for a connection removed
+	 * before it
+	 */
+	private final Object[] locks = new Object[LOCK_STRIPES];
+
+	/**
+	 * Incremented for each lock stripe once updates of its users are written,
+	 * before they stop being pending, so that reads overlapping a flush are
+	 * retried
+	 */
+	private final AtomicLongArray flushGenerations = new AtomicLongArray(
+			LOCK_STRIPES);
+
+	private final AtomicBoolean flushScheduled = new AtomicBoolean();
+
+	private final ScheduledExecutorService scheduler;
+
+	private final Runnable flushTask = new Runnable() {
+		public void run() {
+			flushScheduled.set(false);
+			try {
+				flush();
+			} catch (RuntimeException e) {
+				logger.error("Unable to flush " + pendingUpdateCount.get()
+						+ " pending connection updates, retrying later", e);
+			}
+		}
+	};
+
+	/**
+	 * @param dataSource
+	 *            the data source the delegate was created with
+	 * @param textEncryptor
+	 *            the encryptor the delegate was created with
+	 */
+	public WriteBehindJdbcUsersConnectionRepository(
+			JdbcUsersConnectionRepository delegate, DataSource dataSource,
+			ConnectionFactoryLocator connectionFactoryLocator,
+			TextEncryptor textEncryptor) {
+		this(delegate, dataSource, connectionFactoryLocator, textEncryptor, 1000);
+	}
+
+	/**
+	 * @param flushInterval
+	 *            the interval in milliseconds at which pending updates are
+	 *            flushed
+	 */
+	public WriteBehindJdbcUsersConnectionRepository(
+			JdbcUsersConnectionRepository delegate, DataSource dataSource,
+			ConnectionFactoryLocator connectionFactoryLocator,
+			TextEncryptor textEncryptor, long flushInterval) {
+		super(delegate);
+		for (int i = 0; i < locks.length; i++) {
+			locks[i] = new Object();
+		}
+		this.jdbcTemplate = new JdbcTemplate(dataSource);
+		this.connectionFactoryLocator = connectionFactoryLocator;
+		this.textEncryptor = textEncryptor;
+		this.scheduler = Executors
+				.newSingleThreadScheduledExecutor(new ThreadFactory() {
+					public Thread newThread(Runnable runnable) {
+						Thread thread = new Thread(runnable,
+								"WriteBehindJdbcUsersConnectionRepository");
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+		scheduler.scheduleWithFixedDelay(flushTask, flushInterval,
+				flushInterval, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * The table name prefix the delegate was configured with. Defaults to the
+	 * empty string.
+	 */
+	public void setTablePrefix(String tablePrefix) {
+		this.tablePrefix = tablePrefix;
+	}
+
+	/**
+	 * The number of pending updates triggering a flush, and the size of the
+	 * JDBC batches they are written in. Defaults to 100.
+	 */
+	public void setBatchSize(int batchSize) {
+		this.batchSize = batchSize;
+	}
+
+	/**
+	 * The number of pending updates beyond which updating callers flush them
+	 * themselves. Defaults to 10000.
+	 */
+	public void setMaxPendingUpdates(int maxPendingUpdates) {
+		this.maxPendingUpdates = maxPendingUpdates;
+	}
+
+	@Override
+	public ConnectionRepository createConnectionRepository(String userId) {
+		if (userId == null) {
+			throw new IllegalArgumentException("userId cannot be null");
+		}
+		return new WriteBehindJdbcConnectionRepository(userId,
+				delegate.createConnectionRepository(userId), this);
+	}
+
+	/**
+	 * Writes every pending update to the database, waiting for those being
+	 * written by a concurrent flush
+	 */
+	public void flush() {
+		while (true) {
+			List<FlushBatch> awaitedBatches = new ArrayList<FlushBatch>();
+			FlushBatch flushBatch = new FlushBatch();
+			List<PendingUpdate> batch = new ArrayList<PendingUpdate>(batchSize);
+			for (ConcurrentMap<ConnectionKey, PendingUpdate> userPendingUpdates : pendingUpdatesByUserId
+					.values()) {
+				for (PendingUpdate pendingUpdate : userPendingUpdates.values()) {
+					FlushBatch awaitedBatch = take(pendingUpdate, flushBatch);
+					if (awaitedBatch != null) {
+						awaitedBatches.add(awaitedBatch);
+					} else if (pendingUpdate.flushBatch == flushBatch) {
+						batch.add(pendingUpdate);
+						if (batch.size() == batchSize) {
+							write(batch, flushBatch);
+							flushBatch = new FlushBatch();
+							batch = new ArrayList<PendingUpdate>(batchSize);
+						}
+					}
+				}
+			}
+			if (!batch.isEmpty()) {
+				write(batch, flushBatch);
+			}
+			if (awaitedBatches.isEmpty()) {
+				return;
+			}
+			for (FlushBatch awaitedBatch : awaitedBatches) {
+				awaitedBatch.await();
+			}
+		}
+	}
+
+	/**
+	 * Flushes every pending update, and stops flushing in the background
+	 */
+	public void destroy() {
+		scheduler.shutdown();
+		flush();
+	}
+
+	void update(String userId, ConnectionData connectionData) {
+		int pending;
+		synchronized (getLock(userId)) {
+			ConcurrentMap<ConnectionKey, PendingUpdate> userPendingUpdates = pendingUpdatesByUserId
+					.get(userId);
+			if (userPendingUpdates == null) {
+				userPendingUpdates = new ConcurrentHashMap<ConnectionKey, PendingUpdate>();
+				pendingUpdatesByUserId.put(userId, userPendingUpdates);
+			}
+			ConnectionKey connectionKey = new ConnectionKey(
+					connectionData.getProviderId(),
+					connectionData.getProviderUserId());
+			PendingUpdate pendingUpdate = new PendingUpdate(userId,
+					connectionKey, connectionData);
+			PendingUpdate replaced = userPendingUpdates.put(connectionKey,
+					pendingUpdate);
+			if (replaced == null) {
+				pending = pendingUpdateCount.incrementAndGet();
+			} else {
+				pending = pendingUpdateCount.get();
+				// flushed after the update it replaces, if being flushed
+				pendingUpdate.predecessor = replaced.flushBatch != null ? replaced
+						: replaced.predecessor;
+			}
+		}
+		if (pending >= maxPendingUpdates) {
+			flush();
+		} else if (pending >= batchSize
+				&& flushScheduled.compareAndSet(false, true)) {
+			scheduler.execute(flushTask);
+		}
+	}
+
+	/**
+	 * @return the update of the given connection waiting to be flushed, or
+	 *         null if there is none
+	 */
+	ConnectionData getPendingUpdate(String userId, ConnectionKey connectionKey) {
+		Map<ConnectionKey, PendingUpdate> userPendingUpdates = pendingUpdatesByUserId
+				.get(userId);
+		PendingUpdate pendingUpdate = userPendingUpdates == null ? null
+				: userPendingUpdates.get(connectionKey);
+		return pendingUpdate == null ? null : pendingUpdate.connectionData;
+	}
+
+	/**
+	 * @return a number changed whenever pending updates of the given user may
+	 *         have been written and discarded
+	 */
+	long getFlushGeneration(String userId) {
+		return flushGenerations.get(getStripe(userId));
+	}
+
+	boolean hasPendingUpdates() {
+		return pendingUpdateCount.get() > 0;
+	}
+
+	/**
+	 * Runs the given mutation of the user's connections against the delegate
+	 * after discarding the pending updates it makes obsolete, those of the
+	 * given provider and providerUserId, or of every providerUserId of the
+	 * provider if null
+	 */
+	void writeThrough(String userId, String providerId,
+			String providerUserId, Runnable mutation) {
+		while (true) {
+			FlushBatch awaitedBatch = null;
+			synchronized (getLock(userId)) {
+				List<PendingUpdate> obsoleteUpdates = new ArrayList<PendingUpdate>();
+				Map<ConnectionKey, PendingUpdate> userPendingUpdates = pendingUpdatesByUserId
+						.get(userId);
+				if (userPendingUpdates != null) {
+					for (PendingUpdate pendingUpdate : userPendingUpdates
+							.values()) {
+						ConnectionKey key = pendingUpdate.connectionKey;
+						if (key.getProviderId().equals(providerId)
+								&& (providerUserId == null || providerUserId
+										.equals(key.getProviderUserId()))) {
+							obsoleteUpdates.add(pendingUpdate);
+							awaitedBatch = getUnfinishedBatch(pendingUpdate);
+							if (awaitedBatch != null) {
+								break;
+							}
+						}
+					}
+				}
+				if (awaitedBatch == null) {
+					for (PendingUpdate pendingUpdate : obsoleteUpdates) {
+						removePendingUpdate(pendingUpdate);
+					}
+					mutation.run();
+					return;
+				}
+			}
+			// an update of the connections being written is being flushed
+			awaitedBatch.await();
+		}
+	}
+
+	Connection<?> createConnection(ConnectionData connectionData) {
+		return connectionFactoryLocator.getConnectionFactory(
+				connectionData.getProviderId()).createConnection(connectionData);
+	}
+
+	/**
+	 * Adds the given pending update to the given flush batch, unless it was
+	 * discarded or is already being flushed, or an earlier update of its
+	 * connection still is
+	 * 
+	 * @return the batch to wait for before flushing the update, or null
+	 */
+	private FlushBatch take(PendingUpdate pendingUpdate, FlushBatch flushBatch) {
+		synchronized (getLock(pendingUpdate.userId)) {
+			Map<ConnectionKey, PendingUpdate> userPendingUpdates = pendingUpdatesByUserId
+					.get(pendingUpdate.userId);
+			if (userPendingUpdates == null
+					|| userPendingUpdates.get(pendingUpdate.connectionKey) != pendingUpdate) {
+				return null;
+			}
+			FlushBatch awaitedBatch = getUnfinishedBatch(pendingUpdate);
+			if (awaitedBatch == null && pendingUpdate.flushBatch == null) {
+				pendingUpdate.predecessor = null;
+				pendingUpdate.flushBatch = flushBatch;
+			}
+			return awaitedBatch;
+		}
+	}
+
+	/**
+	 * @return the unfinished flush batch writing the given update or the
+	 *         update it replaced, or null if there is none; must be called
+	 *         holding the user's lock
+	 */
+	private static FlushBatch getUnfinishedBatch(PendingUpdate pendingUpdate) {
+		if (pendingUpdate.flushBatch != null
+				&& !pendingUpdate.flushBatch.isFinished()) {
+			return pendingUpdate.flushBatch;
+		}
+		PendingUpdate predecessor = pendingUpdate.predecessor;
+		// a predecessor whose batch failed is no longer being flushed
+		if (predecessor != null && predecessor.flushBatch != null
+				&& !predecessor.flushBatch.isFinished()) {
+			return predecessor.flushBatch;
+		}
+		return null;
+	}
+
+	/**
+	 * Writes the given updates, taken into the given flush batch, in one JDBC
+	 * batch, then discards those not replaced meanwhile, or returns them all
+	 * to pending if the batch fails; holds no lock while writing
+	 */
+	private void write(List<PendingUpdate> batch, FlushBatch flushBatch) {
+		List<Object[]> batchArgs = new ArrayList<Object[]>(batch.size());
+		for (PendingUpdate pendingUpdate : batch) {
+			ConnectionData data = pendingUpdate.connectionData;
+			batchArgs.add(new Object[] { data.getDisplayName(),
+					data.getProfileUrl(), data.getImageUrl(),
+					encrypt(data.getAccessToken()), encrypt(data.getSecret()),
+					encrypt(data.getRefreshToken()), data.getExpireTime(),
+					pendingUpdate.userId, data.getProviderId(),
+					data.getProviderUserId() });
+		}
+		boolean written = false;
+		try {
+			jdbcTemplate
+					.batchUpdate(
+							"update "
+									+ tablePrefix
+									+ "UserConnection set displayName = ?, profileUrl = ?, imageUrl = ?, accessToken = ?, secret = ?, refreshToken = ?, expireTime = ? where userId = ? and providerId = ? and providerUserId = ?",
+							batchArgs);
+			written = true;
+		} finally {
+			if (written) {
+				for (PendingUpdate pendingUpdate : batch) {
+					flushGenerations.incrementAndGet(getStripe(pendingUpdate.userId));
+				}
+			}
+			flushBatch.finish();
+			for (PendingUpdate pendingUpdate : batch) {
+				synchronized (getLock(pendingUpdate.userId)) {
+					if (written) {
+						removePendingUpdate(pendingUpdate);
+					} else {
+						pendingUpdate.flushBatch = null;
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Discards the given update unless it was replaced; must be called
+	 * holding the user's lock
+	 */
+	private void removePendingUpdate(PendingUpdate pendingUpdate) {
+		Map<ConnectionKey, PendingUpdate> userPendingUpdates = pendingUpdatesByUserId
+				.get(pendingUpdate.userId);
+		if (userPendingUpdates != null
+				&& userPendingUpdates.remove(pendingUpdate.connectionKey,
+						pendingUpdate)) {
+			pendingUpdateCount.decrementAndGet();
+			if (userPendingUpdates.isEmpty()) {
+				pendingUpdatesByUserId.remove(pendingUpdate.userId);
+			}
+		}
+	}
+
+	private Object getLock(String userId) {
+		return locks[getStripe(userId)];
+	}
+
+	private static int getStripe(String userId) {
+		int hash = userId.hashCode();
+		hash ^= (hash >>> 16);
+		return hash & (LOCK_STRIPES - 1);
+	}
+
+	private String encrypt(String text) {
+		return text != null ? textEncryptor.encrypt(text) : text;
+	}
+
+	/**
+	 * The last update of a connection, pending until written; its flush batch
+	 * and predecessor are guarded by the user's lock
+	 */
+	private static class PendingUpdate {
+
+		private final String userId;
+
+		private final ConnectionKey connectionKey;
+
+		private final ConnectionData connectionData;
+
+		/**
+		 * The batch writing this update, or null until it is taken by a flush
+		 */
+		private FlushBatch flushBatch;
+
+		/**
+		 * The update of the connection this one replaced while it was being
+		 * flushed, so that this one is only flushed after it, or null
+		 */
+		private PendingUpdate predecessor;
+
+		PendingUpdate(String userId, ConnectionKey connectionKey,
+				ConnectionData connectionData) {
+			this.userId = userId;
+			this.connectionKey = connectionKey;
+			this.connectionData = connectionData;
+		}
+
+	}
+
+	/**
+	 * A JDBC batch of updates being written, which mutations of the
+	 * connections they update wait for
+	 */
+	private static class FlushBatch {
+
+		private boolean finished;
+
+		synchronized boolean isFinished() {
+			return finished;
+		}
+
+		synchronized void finish() {
+			finished = true;
+			notifyAll();
+		}
+
+		synchronized void await() {
+			boolean interrupted = false;
+			while (!finished) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+	}
+
+}
@@ -0,0 +1,37 @@
+/*
+ * Copyright 2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.social.extension.connect.metrics;
+
+/**
+ * Hit, miss and eviction counts of a cache, such as the caches of connections
+ * and of users' connections, registered with a {@link MetricsSink} to report
+ * their hit rates.
+ * 
+ * @author Michael Lavelle
+ */
+public interface CacheStatistics {
+
+	long getHitCount();
+
+	long getMissCount();
+
+	/**
+	 * @return the number of entries discarded to bound the cache, as opposed
+	 *         to invalidated by a write
+	 */
+	long getEvictionCount();
+
+}
@@ -0,0 +1,233 @@
+/*
+ * Copyright 2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.social.extension.connect.metrics;
+
+import java.util.List;
+
+import org.springframework.social.connect.Connection;
+import org.springframework.social.connect.ConnectionKey;
+import org.springframework.social.connect.ConnectionRepository;
+import org.springframework.social.extension.connect.DelegatingConnectionRepository;
+import org.springframework.util.MultiValueMap;
+
+/**
+ * {@link ConnectionRepository} of an
+ * {@link InstrumentedUsersConnectionRepository}, recording every call.
+ * 
+ * @author Michael Lavelle
+ */
+class InstrumentedConnectionRepository extends DelegatingConnectionRepository {
+
+	private final InstrumentedUsersConnectionRepository usersConnectionRepository;
+
+	InstrumentedConnectionRepository(ConnectionRepository delegate,
+			InstrumentedUsersConnectionRepository usersConnectionRepository) {
+		super(delegate);
+		this.usersConnectionRepository = usersConnectionRepository;
+	}
+
+	@Override
+	public MultiValueMap<String, Connection<?>> findAllConnections() {
+		long start = System.nanoTime();
+		boolean failed = true;
+		int resultSize = 0;
+		try {
+			MultiValueMap<String, Connection<?>> connections = delegate
+					.findAllConnections();
+			for (List<Connection<?>> providerConnections : connections
+					.values()) {
+				resultSize += providerConnections.size();
+			}
+			failed = false;
+			return connections;
+		} finally {
+			record(RepositoryOperation.FIND_ALL_CONNECTIONS, start,
+					resultSize, failed);
+		}
+	}
+
+	@Override
+	public List<Connection<?>> findConnections(String providerId) {
+		long start = System.nanoTime();
+		boolean failed = true;
+		int resultSize = 0;
+		try {
+			List<Connection<?>> connections = delegate
+					.findConnections(providerId);
+			resultSize = connections.size();
+			failed = false;
+			return connections;
+		} finally {
+			record(RepositoryOperation.FIND_CONNECTIONS, start, resultSize,
+					failed);
+		}
+	}
+
+	@Override
+	public <A> List<Connection<A>> findConnections(Class<A> apiType) {
+		long start = System.nanoTime();
+		boolean failed = true;
+		int resultSize = 0;
+		try {
+			List<Connection<A>> connections = delegate.findConnections(apiType);
+			resultSize = connections.size();
+			failed = false;
+			return connections;
+		} finally {
+			record(RepositoryOperation.FIND_CONNECTIONS, start, resultSize,
+					failed);
+		}
+	}
+
+	@Override
+	public MultiValueMap<String, Connection<?>> findConnectionsToUsers(
+			MultiValueMap<String, String> providerUserIds) {
+		long start = System.nanoTime();
+		boolean failed = true;
+		int resultSize = 0;
+		try {
+			MultiValueMap<String, Connection<?>> connections = delegate
+					.findConnectionsToUsers(providerUserIds);
+			for (List<Connection<?>> providerConnections : connections
+					.values()) {
+				for (Connection<?> connection : providerConnections) {
+					if (connection != null) {
+						resultSize++;
+					}
+				}
+			}
+			failed = false;
+			return connections;
+		} finally {
+			record(RepositoryOperation.FIND_CONNECTIONS_TO_USERS, start,
+					resultSize, failed);
+		}
+	}
+
+	@Override
+	public Connection<?> getConnection(ConnectionKey connectionKey) {
+		long start = System.nanoTime();
+		boolean failed = true;
+		try {
+			Connection<?> connection = delegate.getConnection(connectionKey);
+			failed = false;
+			return connection;
+		} finally {
+			record(RepositoryOperation.GET_CONNECTION, start, failed ? 0 : 1,
+					failed);
+		}
+	}
+
+	@Override
+	public <A> Connection<A> getConnection(Class<A> apiType,
+			String providerUserId) {
+		long start = System.nanoTime();
+		boolean failed = true;
+		try {
+			Connection<A> connection = delegate.getConnection(apiType,
+					providerUserId);
+			failed = false;
+			return connection;
+		} finally {
+			record(RepositoryOperation.GET_CONNECTION, start, failed ? 0 : 1,
+					failed);
+		}
+	}
+
+	@Override
+	public <A> Connection<A> getPrimaryConnection(Class<A> apiType) {
+		long start = System.nanoTime();
+		boolean failed = true;
+		try {
+			Connection<A> connection = delegate.getPrimaryConnection(apiType);
+			failed = false;
+			return connection;
+		} finally {
+			record(RepositoryOperation.GET_PRIMARY_CONNECTION, start,
+					failed ? 0 : 1, failed);
+		}
+	}
+
+	@Override
+	public <A> Connection<A> findPrimaryConnection(Class<A> apiType) {
+		long start = System.nanoTime();
+		boolean failed = true;
+		int resultSize = 0;
+		try {
+			Connection<A> connection = delegate.findPrimaryConnection(apiType);
+			resultSize = connection == null ? 0 : 1;
+			failed = false;
+			return connection;
+		} finally {
+			record(RepositoryOperation.FIND_PRIMARY_CONNECTION, start,
+					resultSize, failed);
+		}
+	}
+
+	@Override
+	public void addConnection(Connection<?> connection) {
+		long start = System.nanoTime();
+		boolean failed = true;
+		try {
+			delegate.addConnection(connection);
+			failed = false;
+		} finally {
+			record(RepositoryOperation.ADD_CONNECTION, start, 0, failed);
+		}
+	}
+
+	@Override
+	public void updateConnection(Connection<?> connection) {
+		long start = System.nanoTime();
+		boolean failed = true;
+		try {
+			delegate.updateConnection(connection);
+			failed = false;
+		} finally {
+			record(RepositoryOperation.UPDATE_CONNECTION, start, 0, failed);
+		}
+	}
+
+	@Override
+	public void removeConnections(String providerId) {
+		long start = System.nanoTime();
+		boolean failed = true;
+		try {
+			delegate.removeConnections(providerId);
+			failed = false;
+		} finally {
+			record(RepositoryOperation.REMOVE_CONNECTIONS, start, 0, failed);
+		}
+	}
+
+	@Override
+	public void removeConnection(ConnectionKey connectionKey) {
+		long start = System.nanoTime();
+		boolean failed = true;
+		try {
+			delegate.removeConnection(connectionKey);
+			failed = false;
+		} finally {
+			record(RepositoryOperation.REMOVE_CONNECTION, start, 0, failed);
+		}
+	}
+
+	private void record(RepositoryOperation operation, long start,
+			int resultSize, boolean failed) {
+		usersConnectionRepository.record(operation, start, resultSize, failed);
+	}
+
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright 2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.social.extension.connect.metrics;
+
+import java.util.List;
+import java.util.Set;
+
+import org.springframework.social.connect.Connection;
+import org.springframework.social.connect.ConnectionRepository;
+import org.springframework.social.connect.ConnectionSignUp;
+import org.springframework.social.connect.UsersConnectionRepository;
+import org.springframework.social.extension.connect.DelegatingUsersConnectionRepository;
+
+/**
+ * Decorator of any {@link UsersConnectionRepository}, and of the
+ * {@link ConnectionRepository}s it creates, recording the latency, result
+ * size and outcome of every call in a {@link MetricsSink}.
+ * 
+ * Each call costs two reads of {@link System#nanoTime()} and a call to the
+ * sink. Sign-ups are recorded by the {@link ConnectionSignUp} returned by
+ * {@link #instrument(ConnectionSignUp)}, to be set wherever the sign-up would
+ * have been set. Caches among the decorated repositories, such as a
+ * CachingUsersConnectionRepository, are registered with the sink under their
+ * simple class name.
+ * 
+ * @author Michael Lavelle
+ */
+public class InstrumentedUsersConnectionRepository extends
+		DelegatingUsersConnectionRepository {
+
+	private final MetricsSink metricsSink;
+
+	public InstrumentedUsersConnectionRepository(
+			UsersConnectionRepository delegate, MetricsSink metricsSink) {
+		super(delegate);
+		this.metricsSink = metricsSink;
+		UsersConnectionRepository repository = delegate;
+		while (repository != null) {
+			if (repository instanceof CacheStatistics) {
+				metricsSink.registerCache(repository.getClass()
+						.getSimpleName(), (CacheStatistics) repository);
+			}
+			repository = repository instanceof DelegatingUsersConnectionRepository ? ((DelegatingUsersConnectionRepository) repository)
+					.getDelegate() : null;
+		}
+	}
+
+	/**
+	 * @return a ConnectionSignUp executing the given one, and recording its
+	 *         executions as {@link RepositoryOperation#SIGN_UP}
+	 */
+	public ConnectionSignUp instrument(final ConnectionSignUp connectionSignUp) {
+		return new ConnectionSignUp() {
+			public String execute(Connection<?> connection) {
+				long start = System.nanoTime();
+				boolean failed = true;
+				String userId = null;
+				try {
+					userId = connectionSignUp.execute(connection);
+					failed = false;
+					return userId;
+				} finally {
+					record(RepositoryOperation.SIGN_UP, start,
+							userId == null ? 0 : 1, failed);
+				}
+			}
+		};
+	}
+
+	@Override
+	public List<String> findUserIdsWithConnection(Connection<?> connection) {
+		long start = System.nanoTime();
+		boolean failed = true;
+		int resultSize = 0;
+		try {
+			List<String> userIds = delegate
+					.findUserIdsWithConnection(connection);
+			resultSize = userIds.size();
+			failed = false;
+			return userIds;
+		} finally {
+			record(RepositoryOperation.FIND_USER_IDS_WITH_CONNECTION, start,
+					resultSize, failed);
+		}
+	}
+
+	@Override
+	public Set<String> findUserIdsConnectedTo(String providerId,
+			Set<String> providerUserIds) {
+		long start = System.nanoTime();
+		boolean failed = true;
+		int resultSize = 0;
+		try {
+			Set<String> userIds = delegate.findUserIdsConnectedTo(providerId,
+					providerUserIds);
+			resultSize = userIds.size();
+			failed = false;
+			return userIds;
+		} finally {
+			record(RepositoryOperation.FIND_USER_IDS_CONNECTED_TO, start,
+					resultSize, failed);
+		}
+	}
+
+	@Override
+	public ConnectionRepository createConnectionRepository(String userId) {
+		long start = System.nanoTime();
+		boolean failed = true;
+		try {
+			ConnectionRepository connectionRepository = new InstrumentedConnectionRepository(
+					delegate.createConnectionRepository(userId), this);
+			failed = false;
+			return connectionRepository;
+		} finally {
+			record(RepositoryOperation.CREATE_CONNECTION_REPOSITORY, start, 0,
+					failed);
+		}
+	}
+
+	public MetricsSink getMetricsSink() {
+		return metricsSink;
+	}
+
+	void record(RepositoryOperation operation, long start, int resultSize,
+			boolean failed) {
+		metricsSink.recordOperation(operation, System.nanoTime() - start,
+				resultSize, failed);
+	}
+
+}
@@ -0,0 +1,44 @@
+/*
+ * Copyright 2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.social.extension.connect.metrics;
+
+import java.util.Map;
+
+/**
+ * JMX view of a {@link MetricsRegistry}, keyed by repository method name, or
+ * by cache name for cache hit rates. Latencies are in microseconds.
+ * 
+ * @author Michael Lavelle
+ */
+public interface MetricsRegistryMXBean {
+
+	Map<String, Long> getCallCounts();
+
+	Map<String, Long> getFailureCounts();
+
+	Map<String, Double> getMeanLatencies();
+
+	Map<String, Double> get99thPercentileLatencies();
+
+	Map<String, Double> getMeanResultSizes();
+
+	Map<String, Double> getCacheHitRates();
+
+	Map<String, Long> getCacheMissCounts();
+
+	Map<String, Long> getCacheEvictionCounts();
+
+}
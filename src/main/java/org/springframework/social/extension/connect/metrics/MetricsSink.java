@@ -0,0 +1,50 @@
+/*
+ * Copyright 2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.social.extension.connect.metrics;
+
+/**
+ * Receives the measurements of an {@link InstrumentedUsersConnectionRepository}.
+ * 
+ * {@link #recordOperation(RepositoryOperation, long, int, boolean)} is called
+ * on the caller's thread after every repository call, so implementations
+ * must be safe for concurrent use and should do no more than update
+ * counters, leaving aggregation and publication to readers.
+ * 
+ * @author Michael Lavelle
+ * @see MetricsRegistry
+ */
+public interface MetricsSink {
+
+	/**
+	 * @param durationNanos
+	 *            the time the call took, in nanoseconds
+	 * @param resultSize
+	 *            the number of connections or userIds returned, or 0 for
+	 *            operations returning neither; for {@link RepositoryOperation#SIGN_UP},
+	 *            1 if a local user was created and 0 otherwise
+	 * @param failed
+	 *            true if the call threw an exception
+	 */
+	void recordOperation(RepositoryOperation operation, long durationNanos,
+			int resultSize, boolean failed);
+
+	/**
+	 * Registers a cache whose hit rate should be reported under the given
+	 * name
+	 */
+	void registerCache(String name, CacheStatistics cacheStatistics);
+
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright 2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.social.extension.connect.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Call count, failure count, latency histogram and result sizes of one
+ * {@link RepositoryOperation}, as recorded by a {@link MetricsRegistry}.
+ * 
+ * Recording is lock free and spread over stripes selected by thread id, each
+ * on its own cache lines, so that threads recording the same operation
+ * rarely contend; readers sum the stripes, and so see a possibly slightly
+ * inconsistent but never torn view while recording continues.
+ * 
+ * Latencies are counted in power of two buckets of nanoseconds, so
+ * percentiles are accurate to within a factor of two.
+ * 
+ * @author Michael Lavelle
+ */
+public class OperationMetrics {
+
+	private static final int STRIPES = 8;
+
+	private static final int BUCKETS = 64;
+
+	private static final int FAILURES = BUCKETS;
+
+	private static final int TOTAL_NANOS = BUCKETS + 1;
+
+	private static final int TOTAL_RESULT_SIZE = BUCKETS + 2;
+
+	/**
+	 * Longs per stripe, a multiple of 8 so that stripes of 64 byte cache
+	 * lines do not share any
+	 */
+	private static final int STRIDE = 72;
+
+	private final RepositoryOperation operation;
+
+	private final AtomicLongArray cells = new AtomicLongArray(STRIPES * STRIDE);
+
+	OperationMetrics(RepositoryOperation operation) {
+		this.operation = operation;
+	}
+
+	void record(long durationNanos, int resultSize, boolean failed) {
+		int stripe = (int) (Thread.currentThread().getId() & (STRIPES - 1))
+				* STRIDE;
+		long nanos = Math.max(0, durationNanos);
+		cells.incrementAndGet(stripe + bucket(nanos));
+		cells.addAndGet(stripe + TOTAL_NANOS, nanos);
+		if (resultSize > 0) {
+			cells.addAndGet(stripe + TOTAL_RESULT_SIZE, resultSize);
+		}
+		if (failed) {
+			cells.incrementAndGet(stripe + FAILURES);
+		}
+	}
+
+	public RepositoryOperation getOperation() {
+		return operation;
+	}
+
+	public long getCount() {
+		long count = 0;
+		for (long bucketCount : getLatencyHistogram()) {
+			count += bucketCount;
+		}
+		return count;
+	}
+
+	public long getFailureCount() {
+		return sum(FAILURES);
+	}
+
+	public double getMeanLatency(TimeUnit unit) {
+		long count = getCount();
+		return count == 0 ? 0 : (double) sum(TOTAL_NANOS)
+				/ count / unit.toNanos(1);
+	}
+
+	/**
+	 * @param percentile
+	 *            between 0 and 100
+	 * @return the upper bound of the latency bucket holding the given
+	 *         percentile of calls, or 0 if there were none
+	 */
+	public double getLatencyPercentile(double percentile, TimeUnit unit) {
+		long[] histogram = getLatencyHistogram();
+		long count = 0;
+		for (long bucketCount : histogram) {
+			count += bucketCount;
+		}
+		if (count == 0) {
+			return 0;
+		}
+		long rank = (long) Math.ceil(count * percentile / 100);
+		long seen = 0;
+		for (int bucket = 0; bucket < BUCKETS; bucket++) {
+			seen += histogram[bucket];
+			if (seen >= Math.max(1, rank)) {
+				return (double) upperBound(bucket) / unit.toNanos(1);
+			}
+		}
+		return (double) upperBound(BUCKETS - 1) / unit.toNanos(1);
+	}
+
+	/**
+	 * @return the mean number of connections or userIds returned per call
+	 */
+	public double getMeanResultSize() {
+		long count = getCount();
+		return count == 0 ? 0 : (double) sum(TOTAL_RESULT_SIZE) / count;
+	}
+
+	/**
+	 * @return the number of calls per latency bucket, bucket i counting the
+	 *         calls taking less than 2^(i+1) nanoseconds and, but for the
+	 *         first, at least 2^i
+	 */
+	public long[] getLatencyHistogram() {
+		long[] histogram = new long[BUCKETS];
+		for (int stripe = 0; stripe < STRIPES; stripe++) {
+			for (int bucket = 0; bucket < BUCKETS; bucket++) {
+				histogram[bucket] += cells.get(stripe * STRIDE + bucket);
+			}
+		}
+		return histogram;
+	}
+
+	private long sum(int field) {
+		long sum = 0;
+		for (int stripe = 0; stripe < STRIPES; stripe++) {
+			sum += cells.get(stripe * STRIDE + field);
+		}
+		return sum;
+	}
+
+	private static int bucket(long nanos) {
+		return nanos == 0 ? 0 : 63 - Long.numberOfLeadingZeros(nanos);
+	}
+
+	private static long upperBound(int bucket) {
+		return bucket >= 62 ? Long.MAX_VALUE : 1L << (bucket + 1);
+	}
+
+}
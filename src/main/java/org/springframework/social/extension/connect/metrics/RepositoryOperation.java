@@ -0,0 +1,68 @@
+/*
+ * Copyright 2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.social.extension.connect.metrics;
+
+/**
+ * The operations of UsersConnectionRepository and ConnectionRepository
+ * recorded by an {@link InstrumentedUsersConnectionRepository}.
+ * 
+ * @author Michael Lavelle
+ */
+public enum RepositoryOperation {
+
+	FIND_USER_IDS_WITH_CONNECTION("findUserIdsWithConnection"),
+
+	FIND_USER_IDS_CONNECTED_TO("findUserIdsConnectedTo"),
+
+	CREATE_CONNECTION_REPOSITORY("createConnectionRepository"),
+
+	FIND_ALL_CONNECTIONS("findAllConnections"),
+
+	FIND_CONNECTIONS("findConnections"),
+
+	FIND_CONNECTIONS_TO_USERS("findConnectionsToUsers"),
+
+	GET_CONNECTION("getConnection"),
+
+	GET_PRIMARY_CONNECTION("getPrimaryConnection"),
+
+	FIND_PRIMARY_CONNECTION("findPrimaryConnection"),
+
+	ADD_CONNECTION("addConnection"),
+
+	UPDATE_CONNECTION("updateConnection"),
+
+	REMOVE_CONNECTIONS("removeConnections"),
+
+	REMOVE_CONNECTION("removeConnection"),
+
+	SIGN_UP("signUp");
+
+	private final String methodName;
+
+	private RepositoryOperation(String methodName) {
+		this.methodName = methodName;
+	}
+
+	/**
+	 * @return the name of the repository method, or of
+	 *         ConnectionSignUp.execute for {@link #SIGN_UP}
+	 */
+	public String getMethodName() {
+		return methodName;
+	}
+
+}
@@ -0,0 +1,241 @@
+/*
+ * Copyright 2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.social.extension.connect.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Collections;
+import java.util.Iterator;
+
+import org.junit.After;
+import org.junit.Test;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowMapper;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabase;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabaseFactory;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabaseType;
+import org.springframework.jdbc.datasource.init.ResourceDatabasePopulator;
+import org.springframework.security.crypto.encrypt.Encryptors;
+import org.springframework.social.connect.Connection;
+import org.springframework.social.connect.ConnectionData;
+import org.springframework.social.connect.ConnectionKey;
+import org.springframework.social.connect.ConnectionRepository;
+import org.springframework.social.connect.ConnectionSignUp;
+import org.springframework.social.connect.jdbc.JdbcUsersConnectionRepository;
+import org.springframework.social.extension.connect.DelegatingConnectionRepository;
+import org.springframework.social.extension.connect.DelegatingUsersConnectionRepository;
+import org.springframework.social.extension.connect.jdbc.AbstractUsersConnectionRepositoryTest;
+
+/**
+ * Runs the UsersConnectionRepository tests against a
+ * {@link BloomFilterUsersConnectionRepository} in front of a
+ * {@link JdbcUsersConnectionRepository}
+ * 
+ * @author Michael Lavelle
+ */
+public class BloomFilterUsersConnectionRepositoryTest
+		extends
+		AbstractUsersConnectionRepositoryTest<BloomFilterUsersConnectionRepository> {
+
+	private JdbcTemplate dataAccessor;
+
+	private EmbeddedDatabase database;
+
+	@Override
+	protected BloomFilterUsersConnectionRepository createUsersConnectionRepository() {
+		EmbeddedDatabaseFactory factory = new EmbeddedDatabaseFactory();
+		factory.setDatabaseType(EmbeddedDatabaseType.H2);
+		ResourceDatabasePopulator populator = new ResourceDatabasePopulator();
+		populator.addScript(new ClassPathResource(
+				"JdbcUsersConnectionRepository.sql",
+				JdbcUsersConnectionRepository.class));
+		factory.setDatabasePopulator(populator);
+		database = factory.getDatabase();
+		dataAccessor = new JdbcTemplate(database);
+		return new BloomFilterUsersConnectionRepository(
+				new JdbcUsersConnectionRepository(database,
+						connectionFactoryRegistry, Encryptors.noOpText()),
+				1000, 0.01);
+	}
+
+	@After
+	public void tearDown() {
+		if (database != null) {
+			database.shutdown();
+		}
+	}
+
+	@Test
+	public void lookupsOfConnectionsNotStoredAreShortCircuited() {
+		insertConnection("1", "facebook", "9", 1, null, null, null,
+				"234567890", null, "345678901", null);
+		assertEquals(Collections.singletonList("1"),
+				usersConnectionRepository
+						.findUserIdsWithConnection(createConnection("9")));
+		for (int i = 100; i < 200; i++) {
+			assertTrue(usersConnectionRepository.findUserIdsWithConnection(
+					createConnection(String.valueOf(i))).isEmpty());
+		}
+		assertEquals(1 + usersConnectionRepository.getFalsePositives(),
+				usersConnectionRepository.getDelegatedLookups());
+		assertEquals(100, usersConnectionRepository.getShortCircuitedLookups()
+				+ usersConnectionRepository.getFalsePositives());
+		assertTrue(usersConnectionRepository.getObservedFalsePositiveRate() < 0.1);
+	}
+
+	@Test
+	public void removedConnectionsAreFalsePositivesUntilRebuilt() {
+		insertConnection("1", "facebook", "9", 1, null, null, null,
+				"234567890", null, "345678901", null);
+		connectionRepository.removeConnection(new ConnectionKey("facebook",
+				"9"));
+		assertTrue(usersConnectionRepository.findUserIdsWithConnection(
+				createConnection("9")).isEmpty());
+		assertEquals(1, usersConnectionRepository.getFalsePositives());
+
+		usersConnectionRepository.rebuild(storedConnectionKeys());
+		assertTrue(usersConnectionRepository.findUserIdsWithConnection(
+				createConnection("9")).isEmpty());
+		assertEquals(1, usersConnectionRepository.getFalsePositives());
+		assertEquals(1, usersConnectionRepository.getShortCircuitedLookups());
+	}
+
+	@Test
+	public void lookupsArePassedToDelegateUntilFirstRebuilt() {
+		insertConnection("1", "facebook", "9", 1, null, null, null,
+				"234567890", null, "345678901", null);
+		BloomFilterUsersConnectionRepository unbuiltUsersConnectionRepository = new BloomFilterUsersConnectionRepository(
+				usersConnectionRepository.getDelegate(), 1000, 0.01);
+		assertEquals(Collections.singletonList("1"),
+				unbuiltUsersConnectionRepository
+						.findUserIdsWithConnection(createConnection("9")));
+		assertEquals(Collections.singleton("1"),
+				unbuiltUsersConnectionRepository.findUserIdsConnectedTo(
+						"facebook", Collections.singleton("9")));
+		assertEquals(0, unbuiltUsersConnectionRepository.getFalsePositives());
+		assertEquals(1.0, unbuiltUsersConnectionRepository
+				.getExpectedFalsePositiveProbability(), 0);
+	}
+
+	@Test
+	public void connectionsBeingAddedAreKeptByRebuild() {
+		final BloomFilterUsersConnectionRepository[] rebuiltRepository = new BloomFilterUsersConnectionRepository[1];
+		rebuiltRepository[0] = new BloomFilterUsersConnectionRepository(
+				new DelegatingUsersConnectionRepository(
+						usersConnectionRepository.getDelegate()) {
+					@Override
+					public ConnectionRepository createConnectionRepository(
+							String userId) {
+						return new DelegatingConnectionRepository(
+								delegate.createConnectionRepository(userId)) {
+							@Override
+							public void addConnection(Connection<?> connection) {
+								// as if rebuilt concurrently, before the
+								// connection is stored
+								rebuiltRepository[0]
+										.rebuild(storedConnectionKeys());
+								super.addConnection(connection);
+							}
+						};
+					}
+				}, 1000, 0.01);
+		rebuiltRepository[0].rebuild(storedConnectionKeys());
+		rebuiltRepository[0].createConnectionRepository("1").addConnection(
+				createConnection("9"));
+		assertEquals(Collections.singletonList("1"), rebuiltRepository[0]
+				.findUserIdsWithConnection(createConnection("9")));
+	}
+
+	@Test
+	public void filterHasNoFalseNegativesAndBoundedFalsePositives() {
+		ConnectionKeyBloomFilter filter = new ConnectionKeyBloomFilter(10000,
+				0.01);
+		for (int i = 0; i < 10000; i++) {
+			filter.add(new ConnectionKey("facebook", "user" + i));
+		}
+		int falsePositives = 0;
+		for (int i = 0; i < 10000; i++) {
+			assertTrue(filter.mightContain(new ConnectionKey("facebook",
+					"user" + i)));
+			if (filter.mightContain(new ConnectionKey("twitter", "user" + i))) {
+				falsePositives++;
+			}
+		}
+		assertTrue(falsePositives < 200);
+		assertTrue(filter.getExpectedFalsePositiveProbability() < 0.02);
+	}
+
+	private Connection<?> createConnection(String providerUserId) {
+		return connectionFactoryRegistry.getConnectionFactory("facebook")
+				.createConnection(
+						new ConnectionData("facebook", providerUserId, null,
+								null, null, "234567890", null, null, null));
+	}
+
+	/**
+	 * @return the keys of the stored connections, queried once iterated
+	 */
+	private Iterable<ConnectionKey> storedConnectionKeys() {
+		return new Iterable<ConnectionKey>() {
+			public Iterator<ConnectionKey> iterator() {
+				return dataAccessor.query(
+						"select providerId, providerUserId from UserConnection",
+						new RowMapper<ConnectionKey>() {
+							public ConnectionKey mapRow(ResultSet rs, int rowNum)
+									throws SQLException {
+								return new ConnectionKey(rs.getString(1), rs
+										.getString(2));
+							}
+						}).iterator();
+			}
+		};
+	}
+
+	@Override
+	protected void setConnectionSignUpOnUsersConnectionRepository(
+			BloomFilterUsersConnectionRepository usersConnectionRepository,
+			ConnectionSignUp connectionSignUp) {
+		usersConnectionRepository.setConnectionSignUp(connectionSignUp);
+	}
+
+	/**
+	 * Inserts straight into the database, so rebuilds the filter as any
+	 * writer bypassing the repository must
+	 */
+	@Override
+	protected void insertConnection(String userId, String providerId,
+			String providerUserId, int rank, String displayName,
+			String profileUrl, String imageUrl, String accessToken,
+			String secret, String refreshToken, Long expireTime) {
+		dataAccessor
+				.update("insert into UserConnection (userId, providerId, providerUserId, rank, displayName, profileUrl, imageUrl, accessToken, secret, refreshToken, expireTime) values (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)",
+						userId, providerId, providerUserId, rank, displayName,
+						profileUrl, imageUrl, accessToken, secret, null, null);
+		usersConnectionRepository.rebuild(storedConnectionKeys());
+	}
+
+	@Override
+	protected Boolean checkIfProviderConnectionsExist(String providerId) {
+		return dataAccessor.queryForObject(
+				"select exists (select 1 from UserConnection where providerId = ?)",
+				Boolean.class, providerId);
+	}
+
+}
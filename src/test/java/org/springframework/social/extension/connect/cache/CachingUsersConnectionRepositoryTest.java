@@ -0,0 +1,161 @@
+/*
+ * Copyright 2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.social.extension.connect.cache;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.After;
+import org.junit.Test;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabase;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabaseFactory;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabaseType;
+import org.springframework.jdbc.datasource.init.ResourceDatabasePopulator;
+import org.springframework.security.crypto.encrypt.Encryptors;
+import org.springframework.social.connect.ConnectionKey;
+import org.springframework.social.connect.ConnectionSignUp;
+import org.springframework.social.connect.jdbc.JdbcUsersConnectionRepository;
+import org.springframework.social.extension.connect.jdbc.AbstractUsersConnectionRepositoryTest;
+
+/**
+ * Runs the UsersConnectionRepository tests against a
+ * {@link CachingUsersConnectionRepository} in front of a
+ * {@link JdbcUsersConnectionRepository}
+ * 
+ * @author Michael Lavelle
+ */
+public class CachingUsersConnectionRepositoryTest
+		extends
+		AbstractUsersConnectionRepositoryTest<CachingUsersConnectionRepository> {
+
+	private JdbcTemplate dataAccessor;
+
+	private EmbeddedDatabase database;
+
+	@Override
+	protected CachingUsersConnectionRepository createUsersConnectionRepository() {
+		return new CachingUsersConnectionRepository(
+				createJdbcUsersConnectionRepository(), connectionFactoryRegistry);
+	}
+
+	private JdbcUsersConnectionRepository createJdbcUsersConnectionRepository() {
+		EmbeddedDatabaseFactory factory = new EmbeddedDatabaseFactory();
+		factory.setDatabaseType(EmbeddedDatabaseType.H2);
+		ResourceDatabasePopulator populator = new ResourceDatabasePopulator();
+		populator.addScript(new ClassPathResource(
+				"JdbcUsersConnectionRepository.sql",
+				JdbcUsersConnectionRepository.class));
+		factory.setDatabasePopulator(populator);
+		database = factory.getDatabase();
+		dataAccessor = new JdbcTemplate(database);
+		return new JdbcUsersConnectionRepository(database,
+				connectionFactoryRegistry, Encryptors.noOpText());
+	}
+
+	@After
+	public void tearDown() {
+		if (database != null) {
+			database.shutdown();
+		}
+	}
+
+	@Test
+	public void readsAreServedFromCacheUntilWritten() {
+		insertConnection("1", "facebook", "9", 1, null, null, null,
+				"234567890", null, "345678901", null);
+		assertEquals(1, connectionRepository.findConnections("facebook")
+				.size());
+		insertUncachedConnection("1", "10", 2);
+		assertEquals(1, connectionRepository.findConnections("facebook")
+				.size());
+
+		connectionRepository.removeConnection(new ConnectionKey("facebook",
+				"9"));
+		assertEquals("10", connectionRepository.findConnections("facebook")
+				.get(0).getKey().getProviderUserId());
+	}
+
+	@Test
+	public void cachedConnectionsExpireAfterTimeToLive()
+			throws InterruptedException {
+		usersConnectionRepository.setTimeToLive(1);
+		assertEquals(0, connectionRepository.findConnections("facebook")
+				.size());
+		insertUncachedConnection("1", "9", 1);
+		Thread.sleep(10);
+		assertEquals(1, connectionRepository.findConnections("facebook")
+				.size());
+	}
+
+	@Test
+	public void leastRecentlyUsedUsersAreEvicted() {
+		usersConnectionRepository = new CachingUsersConnectionRepository(
+				usersConnectionRepository.getDelegate(),
+				connectionFactoryRegistry, 1);
+		assertEquals(0, usersConnectionRepository
+				.createConnectionRepository("1").findConnections("facebook")
+				.size());
+		insertUncachedConnection("1", "9", 1);
+		assertEquals(0, usersConnectionRepository
+				.createConnectionRepository("1").findConnections("facebook")
+				.size());
+		usersConnectionRepository.createConnectionRepository("2")
+				.findConnections("facebook");
+		assertEquals(1, usersConnectionRepository
+				.createConnectionRepository("1").findConnections("facebook")
+				.size());
+	}
+
+	@Override
+	protected void setConnectionSignUpOnUsersConnectionRepository(
+			CachingUsersConnectionRepository usersConnectionRepository,
+			ConnectionSignUp connectionSignUp) {
+		((JdbcUsersConnectionRepository) usersConnectionRepository
+				.getDelegate()).setConnectionSignUp(connectionSignUp);
+	}
+
+	/**
+	 * Inserts straight into the database, so evicts the user as any writer
+	 * bypassing the cache must
+	 */
+	@Override
+	protected void insertConnection(String userId, String providerId,
+			String providerUserId, int rank, String displayName,
+			String profileUrl, String imageUrl, String accessToken,
+			String secret, String refreshToken, Long expireTime) {
+		dataAccessor
+				.update("insert into UserConnection (userId, providerId, providerUserId, rank, displayName, profileUrl, imageUrl, accessToken, secret, refreshToken, expireTime) values (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)",
+						userId, providerId, providerUserId, rank, displayName,
+						profileUrl, imageUrl, accessToken, secret, null, null);
+		usersConnectionRepository.evict(userId);
+	}
+
+	private void insertUncachedConnection(String userId, String providerUserId,
+			int rank) {
+		dataAccessor
+				.update("insert into UserConnection (userId, providerId, providerUserId, rank, accessToken) values (?, ?, ?, ?, ?)",
+						userId, "facebook", providerUserId, rank, "token");
+	}
+
+	@Override
+	protected Boolean checkIfProviderConnectionsExist(String providerId) {
+		return dataAccessor.queryForObject(
+				"select exists (select 1 from UserConnection where providerId = ?)",
+				Boolean.class, providerId);
+	}
+
+}
@@ -0,0 +1,189 @@
+/*
+ * Copyright 2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.social.extension.connect.inmemory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+
+import org.junit.Test;
+import org.springframework.social.connect.Connection;
+import org.springframework.social.connect.ConnectionData;
+import org.springframework.social.connect.ConnectionKey;
+import org.springframework.social.connect.ConnectionRepository;
+import org.springframework.social.extension.connect.metrics.MetricsRegistry;
+
+/**
+ * Runs the in-memory repository tests holding at most one user per segment of
+ * its {@link InMemoryUserCache}, backed by another in-memory repository its
+ * mutations are written through to.
+ * 
+ * @author Michael Lavelle
+ */
+public class BoundedInMemoryUsersConnectionRepositoryTest extends
+		InMemoryUsersConnectionRepositoryTest {
+
+	private InMemoryUsersConnectionRepository backingUsersConnectionRepository;
+
+	@Override
+	protected InMemoryUsersConnectionRepository createUsersConnectionRepository() {
+		InMemoryUsersConnectionRepository usersConnectionRepository = super
+				.createUsersConnectionRepository();
+		backingUsersConnectionRepository = new InMemoryUsersConnectionRepository(
+				connectionFactoryRegistry);
+		UsersConnectionRepositoryConnectionLoader connectionLoader = new UsersConnectionRepositoryConnectionLoader(
+				backingUsersConnectionRepository);
+		usersConnectionRepository.setConnectionListener(connectionLoader);
+		usersConnectionRepository.setUserCache(new InMemoryUserCache(
+				connectionLoader, 16, 0));
+		return usersConnectionRepository;
+	}
+
+	@Test
+	public void leastRecentlyUsedUsersAreEvictedAndReloaded() {
+		for (int i = 0; i < 100; i++) {
+			insertConnection("user" + i, "facebook", String.valueOf(i), 1,
+					null, null, null, "token" + i, null, null, null);
+			usersConnectionRepository.createConnectionRepository("user" + i);
+		}
+		InMemoryUserCache userCache = usersConnectionRepository.getUserCache();
+		assertTrue(usersConnectionRepository.connectionRepositoriesByUserId
+				.size() <= 17);
+		assertEquals(usersConnectionRepository.connectionRepositoriesByUserId
+				.size(), userCache.size());
+		assertTrue(userCache.getEvictionCount() >= 83);
+		long misses = userCache.getMissCount();
+		for (int i = 0; i < 100; i++) {
+			Connection<?> connection = usersConnectionRepository
+					.createConnectionRepository("user" + i).getConnection(
+							new ConnectionKey("facebook", String.valueOf(i)));
+			assertEquals("token" + i, connection.createData().getAccessToken());
+		}
+		assertTrue(userCache.getMissCount() > misses);
+		assertTrue(usersConnectionRepository.connectionRepositoriesByUserId
+				.size() <= 17);
+	}
+
+	@Test
+	public void evictedUsersAreFoundByConnectionKey() {
+		insertConnection("1", "facebook", "9", 1, null, null, null,
+				"234567890", null, null, null);
+		assertTrue(usersConnectionRepository.evict("1"));
+		assertNull(usersConnectionRepository.connectionRepositoriesByUserId
+				.get("1"));
+		assertEquals(Collections.singletonList("1"),
+				usersConnectionRepository
+						.findUserIdsWithConnection(connectionRepository
+								.getConnection(new ConnectionKey("facebook",
+										"9"))));
+	}
+
+	@Test
+	public void mutationsOfEvictedUsersApplyToReloadedConnections() {
+		insertConnection("1", "facebook", "9", 1, null, null, null,
+				"234567890", null, null, null);
+		insertConnection("1", "facebook", "10", 2, null, null, null,
+				"456789012", null, null, null);
+		ConnectionRepository heldConnectionRepository = usersConnectionRepository
+				.createConnectionRepository("1");
+		usersConnectionRepository.evict("1");
+		heldConnectionRepository.removeConnection(new ConnectionKey(
+				"facebook", "9"));
+		usersConnectionRepository.evict("1");
+		assertEquals(1, heldConnectionRepository.findConnections("facebook")
+				.size());
+		assertEquals(1, backingUsersConnectionRepository
+				.createConnectionRepository("1").findConnections("facebook")
+				.size());
+		usersConnectionRepository.evict("1");
+		heldConnectionRepository.removeConnections("facebook");
+		usersConnectionRepository.evict("1");
+		heldConnectionRepository.addConnection(connectionFactoryRegistry
+				.getConnectionFactory("facebook").createConnection(
+						new ConnectionData("facebook", "11", null, null, null,
+								"567890123", null, null, null)));
+		usersConnectionRepository.evict("1");
+		assertEquals(1, heldConnectionRepository.findConnections("facebook")
+				.size());
+		assertEquals("11", heldConnectionRepository.findConnections("facebook")
+				.get(0).getKey().getProviderUserId());
+	}
+
+	@Test
+	public void usersWithoutConnectionsAreNotLoaded() {
+		InMemoryUserCache userCache = usersConnectionRepository.getUserCache();
+		ConnectionRepository unknownConnectionRepository = usersConnectionRepository
+				.createConnectionRepository("unknown");
+		unknownConnectionRepository.findAllConnections();
+		unknownConnectionRepository.findConnections("facebook");
+		assertEquals(0, userCache.getMissCount());
+		insertConnection("1", "facebook", "9", 1, null, null, null,
+				"234567890", null, null, null);
+		usersConnectionRepository.evict("1");
+		usersConnectionRepository.createConnectionRepository("1")
+				.findAllConnections();
+		usersConnectionRepository.createConnectionRepository("1")
+				.removeConnections("facebook");
+		usersConnectionRepository.createConnectionRepository("1")
+				.findAllConnections();
+		assertEquals(1, userCache.getMissCount());
+	}
+
+	@Test
+	public void connectionsWithoutConnectionFactoryAreWrittenThrough() {
+		insertConnection("1", "twitter", "1", 1, null, null, null,
+				"123456789", null, null, null);
+		assertEquals(Collections.singletonList("1"),
+				backingUsersConnectionRepository.findUserIdsWithConnectionKeys(
+						Collections.singletonList(new ConnectionKey("twitter",
+								"1"))).get(new ConnectionKey("twitter", "1")));
+	}
+
+	@Test
+	public void idleUsersAreEvicted() throws InterruptedException {
+		InMemoryUsersConnectionRepository usersConnectionRepository = new InMemoryUsersConnectionRepository(
+				connectionFactoryRegistry);
+		usersConnectionRepository.addConnectionData("1", new ConnectionData(
+				"facebook", "9", null, null, null, "234567890", null, null,
+				null), 1);
+		usersConnectionRepository.setUserCache(new InMemoryUserCache(
+				new UsersConnectionRepositoryConnectionLoader(
+						backingUsersConnectionRepository), 0, 1));
+		Thread.sleep(5);
+		assertEquals(1, usersConnectionRepository.getUserCache()
+				.evictIdleUsers());
+		assertTrue(usersConnectionRepository.connectionRepositoriesByUserId
+				.isEmpty());
+	}
+
+	@Test
+	public void userCacheIsReportedAsMetrics() {
+		insertConnection("1", "facebook", "9", 1, null, null, null,
+				"234567890", null, null, null);
+		usersConnectionRepository.evict("1");
+		usersConnectionRepository.createConnectionRepository("1")
+				.findAllConnections();
+		MetricsRegistry metricsRegistry = new MetricsRegistry();
+		metricsRegistry.registerCache("users",
+				usersConnectionRepository.getUserCache());
+		assertEquals(Long.valueOf(1),
+				metricsRegistry.getCacheEvictionCounts().get("users"));
+		assertTrue(metricsRegistry.getCacheMissCounts().get("users") >= 1);
+	}
+
+}
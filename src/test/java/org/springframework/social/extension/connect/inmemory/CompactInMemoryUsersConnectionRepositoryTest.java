@@ -0,0 +1,127 @@
+/*
+ * Copyright 2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.social.extension.connect.inmemory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+
+import org.junit.Test;
+import org.springframework.social.connect.ConnectionData;
+
+/**
+ * Runs the in-memory repository tests against connections stored in compact
+ * form.
+ * 
+ * @author Michael Lavelle
+ */
+public class CompactInMemoryUsersConnectionRepositoryTest extends
+		InMemoryUsersConnectionRepositoryTest {
+
+	@Override
+	protected InMemoryUsersConnectionRepository createUsersConnectionRepository() {
+		InMemoryUsersConnectionRepository usersConnectionRepository = super
+				.createUsersConnectionRepository();
+		usersConnectionRepository.setCompactConnectionData(true);
+		return usersConnectionRepository;
+	}
+
+	@Test
+	public void providerIdsAreRegisteredInstances() {
+		insertConnection("1", new String("facebook"), "9", 1, null, null,
+				null, "234567890", null, null, null);
+		ConnectionData connectionData = findConnectionData("1", "9");
+		assertSame(usersConnectionRepository.getConnectionDataInterner()
+				.internProviderId("facebook"), connectionData.getProviderId());
+		assertSame(
+				connectionData.getProviderId(),
+				usersConnectionRepository.findInMemoryConnectionRepository("1").providerRepositories
+						.firstKey());
+	}
+
+	@Test
+	public void compactConnectionDataIsDecodedUnchanged() {
+		StringBuilder longToken = new StringBuilder();
+		for (int i = 0; i < 100; i++) {
+			longToken.append("token\u00e9");
+		}
+		insertConnection("1", "facebook", "9", 1, "D\u00e9sir\u00e9e",
+				"http://www.facebook.com/9", "profile.jpg",
+				longToken.toString(), "", null, 3600000L);
+		ConnectionData connectionData = findConnectionData("1", "9");
+		assertTrue(connectionData instanceof CompactConnectionData);
+		assertEquals("D\u00e9sir\u00e9e", connectionData.getDisplayName());
+		assertEquals("http://www.facebook.com/9",
+				connectionData.getProfileUrl());
+		assertEquals("profile.jpg", connectionData.getImageUrl());
+		assertEquals(longToken.toString(), connectionData.getAccessToken());
+		assertEquals("", connectionData.getSecret());
+		assertNull(connectionData.getRefreshToken());
+		assertEquals(Long.valueOf(3600000L), connectionData.getExpireTime());
+	}
+
+	@Test
+	public void urlPrefixesAreShared() {
+		insertConnection("1", "facebook", "9", 1, null,
+				"http://www.facebook.com/9", null, "234567890", null, null,
+				null);
+		insertConnection("2", "facebook", "10", 1, null,
+				"http://www.facebook.com/10", null, "234567890", null, null,
+				null);
+		assertEquals(1, usersConnectionRepository.getConnectionDataInterner()
+				.getUrlPrefixCount());
+		assertEquals("http://www.facebook.com/10",
+				findConnectionData("2", "10").getProfileUrl());
+	}
+
+	@Test
+	public void compactConnectionDataIsSerializedAsConnectionData()
+			throws Exception {
+		insertConnection("1", "facebook", "9", 1, "Keith",
+				"http://www.facebook.com/9", null, "234567890", "secret",
+				"345678901", null);
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ObjectOutputStream out = new ObjectOutputStream(bytes);
+		out.writeObject(findConnectionData("1", "9"));
+		out.close();
+		ConnectionData connectionData = (ConnectionData) new ObjectInputStream(
+				new ByteArrayInputStream(bytes.toByteArray())).readObject();
+		assertEquals(ConnectionData.class, connectionData.getClass());
+		assertEquals("facebook", connectionData.getProviderId());
+		assertEquals("9", connectionData.getProviderUserId());
+		assertEquals("Keith", connectionData.getDisplayName());
+		assertEquals("http://www.facebook.com/9",
+				connectionData.getProfileUrl());
+		assertEquals("secret", connectionData.getSecret());
+		assertEquals("345678901", connectionData.getRefreshToken());
+		assertNull(connectionData.getExpireTime());
+	}
+
+	private ConnectionData findConnectionData(String userId,
+			String providerUserId) {
+		return usersConnectionRepository
+				.findInMemoryConnectionRepository(userId)
+				.findInMemoryProviderConnectionRepository("facebook")
+				.findByProviderUserId(providerUserId);
+	}
+
+}
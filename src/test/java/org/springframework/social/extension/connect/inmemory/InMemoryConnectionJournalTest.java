@@ -0,0 +1,385 @@
+/*
+ * Copyright 2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.social.extension.connect.inmemory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.springframework.social.connect.Connection;
+import org.springframework.social.connect.ConnectionData;
+import org.springframework.social.connect.ConnectionKey;
+import org.springframework.social.connect.ConnectionRepository;
+import org.springframework.social.connect.support.ConnectionFactoryRegistry;
+import org.springframework.social.extension.connect.inmemory.InMemoryConnectionJournal.FsyncPolicy;
+import org.springframework.social.extension.connect.jdbc.AbstractUsersConnectionRepositoryTest.TestFacebookConnectionFactory;
+
+/**
+ * @author Michael Lavelle
+ */
+public class InMemoryConnectionJournalTest {
+
+	@Rule
+	public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+	private ConnectionFactoryRegistry connectionFactoryRegistry;
+
+	private TestFacebookConnectionFactory connectionFactory;
+
+	private File directory;
+
+	private InMemoryUsersConnectionRepository usersConnectionRepository;
+
+	private InMemoryConnectionJournal journal;
+
+	@Before
+	public void setUp() throws IOException {
+		connectionFactoryRegistry = new ConnectionFactoryRegistry();
+		connectionFactory = new TestFacebookConnectionFactory();
+		connectionFactoryRegistry.addConnectionFactory(connectionFactory);
+		directory = new File(temporaryFolder.getRoot(), "journal");
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		if (journal != null) {
+			journal.close();
+		}
+	}
+
+	@Test
+	public void mutationsAreRecoveredFromLog() throws IOException {
+		open(FsyncPolicy.GROUPED);
+		mutate();
+		List<String> state = describe(usersConnectionRepository);
+
+		reopen(FsyncPolicy.GROUPED);
+		assertEquals(state, describe(usersConnectionRepository));
+		assertEquals(Arrays.asList("facebook/10/2/updated", "facebook/12/4/c"),
+				describe(usersConnectionRepository).subList(0, 2));
+	}
+
+	@Test
+	public void snapshotAndLogTailAreRecovered() throws IOException {
+		open(FsyncPolicy.PER_WRITE);
+		mutate();
+		journal.snapshot();
+		ConnectionRepository connectionRepository = usersConnectionRepository
+				.createConnectionRepository("2");
+		connectionRepository.addConnection(createConnection("13", "d"));
+		connectionRepository.removeConnection(new ConnectionKey("facebook",
+				"9"));
+		List<String> state = describe(usersConnectionRepository);
+
+		reopen(FsyncPolicy.PER_WRITE);
+		assertEquals(state, describe(usersConnectionRepository));
+		assertEquals(Arrays.asList("log-1", "snapshot"), listDirectory());
+	}
+
+	@Test
+	public void snapshotOfEmptiedRepositoryRecoversNothing() throws IOException {
+		open(FsyncPolicy.GROUPED);
+		mutate();
+		usersConnectionRepository.createConnectionRepository("1")
+				.removeConnections("facebook");
+		usersConnectionRepository.createConnectionRepository("2")
+				.removeConnections("facebook");
+		journal.snapshot();
+
+		reopen(FsyncPolicy.GROUPED);
+		assertTrue(usersConnectionRepository.connectionRepositoriesByUserId
+				.isEmpty());
+	}
+
+	@Test
+	public void tornRecordAtEndOfLogIsDiscarded() throws IOException {
+		open(FsyncPolicy.GROUPED);
+		mutate();
+		List<String> state = describe(usersConnectionRepository);
+		journal.close();
+		FileOutputStream log = new FileOutputStream(new File(directory,
+				"log-0"), true);
+		log.write(new byte[] { 0, 0, 0, 42, 1, 2, 3 });
+		log.close();
+
+		reopen(FsyncPolicy.GROUPED);
+		assertEquals(state, describe(usersConnectionRepository));
+		usersConnectionRepository.createConnectionRepository("3")
+				.addConnection(createConnection("14", "e"));
+		state = describe(usersConnectionRepository);
+
+		reopen(FsyncPolicy.GROUPED);
+		assertEquals(state, describe(usersConnectionRepository));
+	}
+
+	@Test
+	public void periodicFsyncPolicyRecoversOnClose() throws IOException {
+		journal = new InMemoryConnectionJournal(directory);
+		journal.setFsyncPolicy(FsyncPolicy.PERIODIC);
+		journal.setFsyncInterval(10);
+		usersConnectionRepository = new InMemoryUsersConnectionRepository(
+				connectionFactoryRegistry);
+		journal.open(usersConnectionRepository);
+		mutate();
+		List<String> state = describe(usersConnectionRepository);
+
+		reopen(FsyncPolicy.PERIODIC);
+		assertEquals(state, describe(usersConnectionRepository));
+	}
+
+	@Test
+	public void logsOfAnInterruptedSnapshotAreRecovered() throws IOException {
+		open(FsyncPolicy.PER_WRITE);
+		mutate();
+		journal.snapshot();
+		usersConnectionRepository.createConnectionRepository("2")
+				.addConnection(createConnection("13", "d"));
+		File previousSnapshot = copy("snapshot");
+		File previousLog = copy("log-1");
+		journal.snapshot();
+		usersConnectionRepository.createConnectionRepository("2")
+				.removeConnection(new ConnectionKey("facebook", "9"));
+		List<String> state = describe(usersConnectionRepository);
+		journal.close();
+		// as if the second snapshot had not replaced the first one
+		assertTrue(previousSnapshot.renameTo(new File(directory, "snapshot")));
+		assertTrue(previousLog.renameTo(new File(directory, "log-1")));
+
+		open(FsyncPolicy.PER_WRITE);
+		assertEquals(state, describe(usersConnectionRepository));
+		assertEquals(Arrays.asList("log-1", "log-2", "snapshot"),
+				listDirectory());
+		journal.snapshot();
+		assertEquals(Arrays.asList("log-3", "snapshot"), listDirectory());
+	}
+
+	@Test
+	public void snapshotInterruptedBeforeRenameIsRecovered()
+			throws IOException {
+		open(FsyncPolicy.PER_WRITE);
+		mutate();
+		journal.snapshot();
+		File previousLog = copy("log-1");
+		usersConnectionRepository.createConnectionRepository("2")
+				.addConnection(createConnection("13", "d"));
+		journal.snapshot();
+		usersConnectionRepository.createConnectionRepository("2")
+				.removeConnection(new ConnectionKey("facebook", "9"));
+		List<String> state = describe(usersConnectionRepository);
+		journal.close();
+		// as if the previous snapshot had been deleted, but the new one not
+		// yet renamed
+		assertTrue(new File(directory, "snapshot").renameTo(new File(
+				directory, "snapshot.tmp")));
+		assertTrue(previousLog.renameTo(new File(directory, "log-1")));
+
+		open(FsyncPolicy.PER_WRITE);
+		assertEquals(state, describe(usersConnectionRepository));
+		assertEquals(Arrays.asList("log-2", "snapshot"), listDirectory());
+	}
+
+	@Test
+	public void incompleteSnapshotIsDiscarded() throws IOException {
+		open(FsyncPolicy.PER_WRITE);
+		mutate();
+		List<String> state = describe(usersConnectionRepository);
+		journal.close();
+		FileOutputStream out = new FileOutputStream(new File(directory,
+				"snapshot.tmp"));
+		try {
+			out.write(new byte[] { 0x43, 0x4F, 0x4E, 0x4E, 0, 0 });
+		} finally {
+			out.close();
+		}
+
+		open(FsyncPolicy.PER_WRITE);
+		assertEquals(state, describe(usersConnectionRepository));
+		assertEquals(Arrays.asList("log-0"), listDirectory());
+	}
+
+	@Test
+	public void usersEvictedByUserCacheAreSnapshotted() throws IOException {
+		UsersConnectionRepositoryConnectionLoader connectionLoader = new UsersConnectionRepositoryConnectionLoader(
+				new InMemoryUsersConnectionRepository(connectionFactoryRegistry));
+		journal = new InMemoryConnectionJournal(directory);
+		usersConnectionRepository = new InMemoryUsersConnectionRepository(
+				connectionFactoryRegistry);
+		usersConnectionRepository.setConnectionListener(connectionLoader);
+		journal.open(usersConnectionRepository);
+		usersConnectionRepository.setUserCache(new InMemoryUserCache(
+				connectionLoader, 0, 0));
+		mutate();
+		List<String> state = describe(usersConnectionRepository);
+		assertTrue(usersConnectionRepository.evict("1"));
+		journal.snapshot();
+
+		reopen(FsyncPolicy.PER_WRITE);
+		// ranked from 1 as reloading them would
+		List<String> expectedState = new ArrayList<String>(Arrays.asList(
+				"facebook/10/1/updated", "facebook/12/2/c"));
+		expectedState.addAll(state.subList(2, state.size()));
+		assertEquals(expectedState, describe(usersConnectionRepository));
+		assertEquals(Collections.singletonList("1"),
+				usersConnectionRepository
+						.findUserIdsWithConnection(createConnection("12", "c")));
+	}
+
+	@Test
+	public void mutationsNotJournaledAreNotApplied() throws IOException {
+		open(FsyncPolicy.GROUPED);
+		mutate();
+		List<String> state = describe(usersConnectionRepository);
+		journal.close();
+		ConnectionRepository connectionRepository = usersConnectionRepository
+				.createConnectionRepository("1");
+		try {
+			connectionRepository.addConnection(createConnection("13", "d"));
+			fail();
+		} catch (ConnectionJournalException e) {
+		}
+		try {
+			connectionRepository.updateConnection(createConnection("10",
+					"updated again"));
+			fail();
+		} catch (ConnectionJournalException e) {
+		}
+		try {
+			connectionRepository.removeConnections("facebook");
+			fail();
+		} catch (ConnectionJournalException e) {
+		}
+		try {
+			usersConnectionRepository.createConnectionRepository("4")
+					.addConnection(createConnection("14", "e"));
+			fail();
+		} catch (ConnectionJournalException e) {
+		}
+		assertEquals(state, describe(usersConnectionRepository));
+		assertFalse(usersConnectionRepository.connectionRepositoriesByUserId
+				.containsKey("4"));
+	}
+
+	/**
+	 * @return a copy of the given file of the journal directory
+	 */
+	private File copy(String name) throws IOException {
+		File copy = new File(temporaryFolder.getRoot(), name);
+		FileInputStream in = new FileInputStream(new File(directory, name));
+		try {
+			FileOutputStream out = new FileOutputStream(copy);
+			try {
+				byte[] buffer = new byte[4096];
+				int read;
+				while ((read = in.read(buffer)) != -1) {
+					out.write(buffer, 0, read);
+				}
+			} finally {
+				out.close();
+			}
+		} finally {
+			in.close();
+		}
+		return copy;
+	}
+
+	private void open(FsyncPolicy fsyncPolicy) throws IOException {
+		journal = new InMemoryConnectionJournal(directory);
+		journal.setFsyncPolicy(fsyncPolicy);
+		usersConnectionRepository = new InMemoryUsersConnectionRepository(
+				connectionFactoryRegistry);
+		journal.open(usersConnectionRepository);
+	}
+
+	private void reopen(FsyncPolicy fsyncPolicy) throws IOException {
+		journal.close();
+		open(fsyncPolicy);
+	}
+
+	private void mutate() {
+		ConnectionRepository connectionRepository = usersConnectionRepository
+				.createConnectionRepository("1");
+		connectionRepository.addConnection(createConnection("9", "a"));
+		connectionRepository.addConnection(createConnection("10", "b"));
+		connectionRepository.addConnection(createConnection("11", "c"));
+		connectionRepository.updateConnection(createConnection("10",
+				"updated"));
+		connectionRepository.removeConnection(new ConnectionKey("facebook",
+				"9"));
+		connectionRepository.removeConnection(new ConnectionKey("facebook",
+				"11"));
+		connectionRepository.addConnection(createConnection("12", "c"));
+		usersConnectionRepository.addConnectionData("2", new ConnectionData(
+				"facebook", "9", null, null, null, "x", null, null, 3600L), 5);
+		usersConnectionRepository.createConnectionRepository("3")
+				.addConnection(createConnection("9", "y"));
+		usersConnectionRepository.createConnectionRepository("3")
+				.removeConnections("facebook");
+	}
+
+	private Connection<?> createConnection(String providerUserId,
+			String accessToken) {
+		return connectionFactory.createConnection(new ConnectionData(
+				"facebook", providerUserId, null, null, null, accessToken,
+				null, null, null));
+	}
+
+	private List<String> listDirectory() {
+		List<String> names = new ArrayList<String>(Arrays.asList(directory
+				.list()));
+		Collections.sort(names);
+		return names;
+	}
+
+	/**
+	 * @return every connection held, as providerId/providerUserId/rank/access
+	 *         token, in user, provider and rank order
+	 */
+	private static List<String> describe(
+			InMemoryUsersConnectionRepository usersConnectionRepository) {
+		List<String> connections = new ArrayList<String>();
+		for (InMemoryConnectionRepository connectionRepository : usersConnectionRepository.connectionRepositoriesByUserId
+				.values()) {
+			for (InMemoryProviderConnectionRepository providerConnectionRepository : connectionRepository.providerRepositories
+					.values()) {
+				for (Map.Entry<Integer, ConnectionData> connectionData : providerConnectionRepository.findAllByRank()
+						.entrySet()) {
+					connections.add(connectionData.getValue().getProviderId()
+							+ "/" + connectionData.getValue().getProviderUserId()
+							+ "/" + connectionData.getKey() + "/"
+							+ connectionData.getValue().getAccessToken());
+				}
+			}
+		}
+		return connections;
+	}
+
+}
@@ -0,0 +1,198 @@
+/*
+ * Copyright 2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.social.extension.connect.inmemory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.social.connect.Connection;
+import org.springframework.social.connect.ConnectionData;
+import org.springframework.social.connect.ConnectionKey;
+import org.springframework.social.connect.ConnectionRepository;
+import org.springframework.social.connect.support.ConnectionFactoryRegistry;
+import org.springframework.social.connect.support.OAuth2Connection;
+import org.springframework.social.extension.connect.inmemory.InMemoryConnectionExpiryIndex.ExpiringConnection;
+import org.springframework.social.extension.connect.jdbc.AbstractUsersConnectionRepositoryTest.TestFacebookApi;
+import org.springframework.social.extension.connect.jdbc.AbstractUsersConnectionRepositoryTest.TestFacebookConnectionFactory;
+import org.springframework.social.oauth2.OAuth2ServiceProvider;
+
+/**
+ * @author Michael Lavelle
+ */
+public class InMemoryConnectionRefreshSchedulerTest {
+
+	private static final long MINUTE = 60000;
+
+	private InMemoryUsersConnectionRepository usersConnectionRepository;
+
+	private InMemoryConnectionRefreshScheduler refreshScheduler;
+
+	private long now;
+
+	@Before
+	public void setUp() {
+		ConnectionFactoryRegistry connectionFactoryRegistry = new ConnectionFactoryRegistry();
+		connectionFactoryRegistry
+				.addConnectionFactory(new TestFacebookConnectionFactory());
+		usersConnectionRepository = new InMemoryUsersConnectionRepository(
+				connectionFactoryRegistry);
+		refreshScheduler = new InMemoryConnectionRefreshScheduler(
+				usersConnectionRepository);
+		refreshScheduler.setRefreshWindow(10 * MINUTE);
+		refreshScheduler.setRefreshInterval(60 * MINUTE);
+		refreshScheduler.setBatchSize(2);
+		now = System.currentTimeMillis();
+	}
+
+	@After
+	public void tearDown() {
+		refreshScheduler.stop();
+	}
+
+	@Test
+	public void expiryIndexFollowsMutations() {
+		usersConnectionRepository.addConnectionData("1",
+				createConnectionData("9", "refresh", now + 5 * MINUTE), 1);
+		usersConnectionRepository.addConnectionData("2",
+				createConnectionData("10", "refresh", now + MINUTE), 1);
+		usersConnectionRepository.addConnectionData("2",
+				createConnectionData("11", "refresh", now + 30 * MINUTE), 2);
+		usersConnectionRepository.addConnectionData("2",
+				createConnectionData("12", "refresh", null), 3);
+		InMemoryConnectionExpiryIndex expiryIndex = usersConnectionRepository
+				.getConnectionExpiryIndex();
+		assertEquals(3, expiryIndex.size());
+		List<ExpiringConnection> expiring = expiryIndex.findExpiringBefore(now
+				+ 10 * MINUTE);
+		assertEquals(2, expiring.size());
+		assertEquals("2", expiring.get(0).getUserId());
+		assertEquals(new ConnectionKey("facebook", "10"), expiring.get(0)
+				.getConnectionKey());
+		assertEquals("1", expiring.get(1).getUserId());
+
+		ConnectionRepository connectionRepository = usersConnectionRepository
+				.createConnectionRepository("1");
+		connectionRepository.updateConnection(connectionRepository
+				.getConnection(new ConnectionKey("facebook", "9")));
+		usersConnectionRepository.createConnectionRepository("2")
+				.removeConnection(new ConnectionKey("facebook", "10"));
+		assertEquals(1, expiryIndex.findExpiringBefore(now + 10 * MINUTE)
+				.size());
+		usersConnectionRepository.createConnectionRepository("2")
+				.removeConnections("facebook");
+		usersConnectionRepository.createConnectionRepository("1")
+				.removeConnections("facebook");
+		assertEquals(0, expiryIndex.size());
+	}
+
+	@Test
+	public void expiringConnectionsAreRefreshed() {
+		for (int i = 0; i < 5; i++) {
+			usersConnectionRepository.addConnectionData("user" + i,
+					createConnectionData("9", "refresh", now + i * MINUTE), 1);
+		}
+		usersConnectionRepository.addConnectionData("user5",
+				createConnectionData("9", null, now + MINUTE), 1);
+		usersConnectionRepository.addConnectionData("user6",
+				createConnectionData("9", "refresh", now + 30 * MINUTE), 1);
+		assertEquals(6, usersConnectionRepository.getConnectionExpiryIndex()
+				.size());
+		refreshScheduler.start();
+
+		assertEquals(5, refreshScheduler.refreshExpiringConnections());
+		for (int i = 0; i < 5; i++) {
+			ConnectionData refreshed = usersConnectionRepository
+					.createConnectionRepository("user" + i)
+					.getConnection(new ConnectionKey("facebook", "9"))
+					.createData();
+			assertEquals("765432109", refreshed.getAccessToken());
+			assertTrue(refreshed.getExpireTime() > now + 50 * MINUTE);
+		}
+		assertEquals(0, usersConnectionRepository.getConnectionExpiryIndex()
+				.findExpiringBefore(now + 10 * MINUTE).size());
+		assertEquals(0, refreshScheduler.refreshExpiringConnections());
+	}
+
+	@Test
+	public void connectionsUpdatedWhileRefreshingAreNotOverwritten() {
+		ConnectionFactoryRegistry connectionFactoryRegistry = new ConnectionFactoryRegistry();
+		connectionFactoryRegistry
+				.addConnectionFactory(new TestFacebookConnectionFactory() {
+					@Override
+					public Connection<TestFacebookApi> createConnection(
+							ConnectionData data) {
+						return new OAuth2Connection<TestFacebookApi>(data,
+								(OAuth2ServiceProvider<TestFacebookApi>) getServiceProvider(),
+								getApiAdapter()) {
+
+							private static final long serialVersionUID = 1L;
+
+							@Override
+							public void refresh() {
+								// the user authorizes again meanwhile
+								usersConnectionRepository
+										.createConnectionRepository("1")
+										.updateConnection(
+												new OAuth2Connection<TestFacebookApi>(
+														createConnectionData(
+																"9",
+																"reauthorized",
+																now + 60
+																		* MINUTE),
+														(OAuth2ServiceProvider<TestFacebookApi>) getServiceProvider(),
+														getApiAdapter()));
+								super.refresh();
+							}
+						};
+					}
+				});
+		usersConnectionRepository = new InMemoryUsersConnectionRepository(
+				connectionFactoryRegistry);
+		usersConnectionRepository.addConnectionData("1",
+				createConnectionData("9", "refresh", now + MINUTE), 1);
+		assertEquals(0, new InMemoryConnectionRefreshScheduler(
+				usersConnectionRepository).refreshExpiringConnections());
+		assertEquals("reauthorized", usersConnectionRepository
+				.findInMemoryConnectionRepository("1")
+				.findInMemoryProviderConnectionRepository("facebook")
+				.findByProviderUserId("9").getRefreshToken());
+	}
+
+	@Test
+	public void refreshWithoutStartRunsOnCallingThread() {
+		usersConnectionRepository.addConnectionData("1",
+				createConnectionData("9", "refresh", now + MINUTE), 1);
+		usersConnectionRepository.addConnectionData("2",
+				createConnectionData("9", "refresh", now + 30 * MINUTE), 1);
+		assertEquals(1, refreshScheduler.refreshExpiringConnections());
+		assertEquals("765432109", usersConnectionRepository
+				.createConnectionRepository("1")
+				.getConnection(new ConnectionKey("facebook", "9"))
+				.createData().getAccessToken());
+	}
+
+	private ConnectionData createConnectionData(String providerUserId,
+			String refreshToken, Long expireTime) {
+		return new ConnectionData("facebook", providerUserId, null, null,
+				null, "234567890", null, refreshToken, expireTime);
+	}
+
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright 2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.social.extension.connect.inmemory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.springframework.social.connect.ConnectionData;
+import org.springframework.social.connect.ConnectionKey;
+import org.springframework.social.connect.support.ConnectionFactoryRegistry;
+import org.springframework.social.extension.connect.jdbc.AbstractUsersConnectionRepositoryTest.TestFacebookConnectionFactory;
+
+/**
+ * @author Michael Lavelle
+ */
+public class InMemoryConnectionSnapshotTest {
+
+	@Rule
+	public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+	private ConnectionFactoryRegistry connectionFactoryRegistry;
+
+	private InMemoryConnectionSnapshot snapshot;
+
+	@Before
+	public void setUp() {
+		connectionFactoryRegistry = new ConnectionFactoryRegistry();
+		connectionFactoryRegistry
+				.addConnectionFactory(new TestFacebookConnectionFactory());
+		snapshot = new InMemoryConnectionSnapshot(new File(
+				temporaryFolder.getRoot(), "snapshot"));
+	}
+
+	@Test
+	public void connectionsAreLoadedInParallelPartitions() throws IOException {
+		InMemoryUsersConnectionRepository usersConnectionRepository = createUsersConnectionRepository();
+		for (int user = 0; user < 1000; user++) {
+			for (int connection = 1; connection <= 3; connection++) {
+				usersConnectionRepository.addConnectionData("user" + user,
+						new ConnectionData("facebook", user + "-" + connection,
+								user % 2 == 0 ? null : "display" + user, null,
+								null, "token\u00e9" + user, null, null,
+								user % 3 == 0 ? null : Long.valueOf(user)),
+						connection * 2);
+			}
+		}
+		usersConnectionRepository.addConnectionData("user0",
+				new ConnectionData("twitter", "0", null, null, null, "token",
+						"secret", null, null), 1);
+		snapshot.setUsersPerPartition(64);
+		snapshot.write(usersConnectionRepository, 7);
+		assertFalse(snapshot.getTemporaryFile().exists());
+
+		InMemoryUsersConnectionRepository loadedUsersConnectionRepository = createUsersConnectionRepository();
+		snapshot.setLoadThreads(4);
+		assertEquals(7, snapshot.read(loadedUsersConnectionRepository));
+		assertEquals(describe(usersConnectionRepository),
+				describe(loadedUsersConnectionRepository));
+		assertEquals(Arrays.asList("user5"), loadedUsersConnectionRepository
+				.connectionKeyIndex.findUserIds(new ConnectionKey("facebook",
+						"5-2")));
+
+		loadedUsersConnectionRepository.createConnectionRepository("user5")
+				.addConnection(
+						new TestFacebookConnectionFactory()
+								.createConnection(new ConnectionData(
+										"facebook", "added", null, null, null,
+										"token", null, null, null)));
+		assertEquals(
+				Integer.valueOf(7),
+				loadedUsersConnectionRepository
+						.findInMemoryConnectionRepository("user5")
+						.findInMemoryProviderConnectionRepository("facebook")
+						.findRank("added"));
+	}
+
+	@Test
+	public void emptyRepositoryRoundTrips() throws IOException {
+		snapshot.write(createUsersConnectionRepository(), 0);
+		InMemoryUsersConnectionRepository loadedUsersConnectionRepository = createUsersConnectionRepository();
+		assertEquals(0, snapshot.read(loadedUsersConnectionRepository));
+		assertTrue(loadedUsersConnectionRepository.connectionRepositoriesByUserId
+				.isEmpty());
+	}
+
+	private InMemoryUsersConnectionRepository createUsersConnectionRepository() {
+		return new InMemoryUsersConnectionRepository(connectionFactoryRegistry);
+	}
+
+	private static List<String> describe(
+			InMemoryUsersConnectionRepository usersConnectionRepository) {
+		List<String> connections = new ArrayList<String>();
+		for (InMemoryConnectionRepository connectionRepository : usersConnectionRepository.connectionRepositoriesByUserId
+				.values()) {
+			for (InMemoryProviderConnectionRepository providerConnectionRepository : connectionRepository.providerRepositories
+					.values()) {
+				for (Map.Entry<Integer, ConnectionData> connection : providerConnectionRepository.findAllByRank()
+						.entrySet()) {
+					ConnectionData connectionData = connection.getValue();
+					connections.add(connectionRepository.userId + "/"
+							+ connectionData.getProviderId() + "/"
+							+ connectionData.getProviderUserId() + "/"
+							+ connection.getKey() + "/"
+							+ connectionData.getDisplayName() + "/"
+							+ connectionData.getAccessToken() + "/"
+							+ connectionData.getSecret() + "/"
+							+ connectionData.getExpireTime());
+				}
+			}
+		}
+		return connections;
+	}
+
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright 2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.social.extension.connect.inmemory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.social.connect.ConnectionData;
+import org.springframework.social.connect.ConnectionKey;
+
+/**
+ * @author Michael Lavelle
+ */
+public class InMemoryProviderConnectionRepositoryTest {
+
+	private static final int TREE_SIZE = CompactRankedConnectionStorage.MAXIMUM_SIZE + 2;
+
+	private InMemoryConnectionKeyIndex connectionKeyIndex;
+
+	private InMemoryProviderConnectionRepository providerConnectionRepository;
+
+	@Before
+	public void setUp() {
+		connectionKeyIndex = new InMemoryConnectionKeyIndex();
+		providerConnectionRepository = new InMemoryProviderConnectionRepository(
+				"1", "facebook", connectionKeyIndex);
+	}
+
+	@Test
+	public void connectionsAreOrderedByRankWhateverTheirNumber() {
+		for (int rank = TREE_SIZE; rank >= 1; rank--) {
+			providerConnectionRepository.add(createConnectionData("user" + rank),
+					rank);
+			assertRanked(rank, TREE_SIZE);
+		}
+		for (int rank = 1; rank < TREE_SIZE; rank++) {
+			providerConnectionRepository.deleteByProviderUserId("user" + rank);
+			assertRanked(rank + 1, TREE_SIZE);
+		}
+		providerConnectionRepository.deleteByProviderUserId("user" + TREE_SIZE);
+		assertTrue(providerConnectionRepository.isEmpty());
+		assertTrue(connectionKeyIndex.findUserIds(
+				new ConnectionKey("facebook", "user" + TREE_SIZE)).isEmpty());
+	}
+
+	@Test
+	public void nextRankIsAboveEveryRankInUse() {
+		for (int i = 0; i < TREE_SIZE; i++) {
+			providerConnectionRepository.add(createConnectionData("user" + i));
+		}
+		assertEquals(Integer.valueOf(TREE_SIZE),
+				providerConnectionRepository.findRank("user" + (TREE_SIZE - 1)));
+		providerConnectionRepository.deleteByProviderUserId("user0");
+		providerConnectionRepository.add(createConnectionData("added"));
+		assertEquals(Integer.valueOf(TREE_SIZE + 1),
+				providerConnectionRepository.findRank("added"));
+	}
+
+	@Test
+	public void updateChangingProviderUserIdKeepsRank() {
+		for (int size : Arrays.asList(2, TREE_SIZE)) {
+			providerConnectionRepository.deleteAll();
+			for (int i = 1; i <= size; i++) {
+				providerConnectionRepository.add(createConnectionData("user" + i));
+			}
+			providerConnectionRepository.updateByProviderUserId(
+					createConnectionData("renamed"), "user2");
+			assertEquals(Integer.valueOf(2),
+					providerConnectionRepository.findRank("renamed"));
+			assertNull(providerConnectionRepository.findByProviderUserId("user2"));
+			assertFalse(providerConnectionRepository.hasProviderUserId("user2"));
+			assertEquals("renamed", providerConnectionRepository.findByRank(2)
+					.getProviderUserId());
+			assertTrue(connectionKeyIndex.findUserIds(
+					new ConnectionKey("facebook", "renamed")).contains("1"));
+			assertTrue(connectionKeyIndex.findUserIds(
+					new ConnectionKey("facebook", "user2")).isEmpty());
+		}
+	}
+
+	@Test
+	public void findByProviderUserIdsIsOrderedByRank() {
+		for (int i = 1; i <= TREE_SIZE; i++) {
+			providerConnectionRepository.add(createConnectionData("user" + i));
+		}
+		List<ConnectionData> connectionDatas = providerConnectionRepository
+				.findByProviderUserIdsOrderByProviderIdAndRank(Arrays.asList(
+						"user9", "missing", "user3", "user10"));
+		assertEquals(3, connectionDatas.size());
+		assertEquals("user3", connectionDatas.get(0).getProviderUserId());
+		assertEquals("user9", connectionDatas.get(1).getProviderUserId());
+		assertEquals("user10", connectionDatas.get(2).getProviderUserId());
+	}
+
+	private void assertRanked(int lowestRank, int highestRank) {
+		List<Integer> ranks = new ArrayList<Integer>(
+				providerConnectionRepository.findAllByRank().keySet());
+		List<ConnectionData> connectionDatas = providerConnectionRepository
+				.findAllOrderByRank();
+		assertEquals(highestRank - lowestRank + 1, ranks.size());
+		assertEquals(ranks.size(), connectionDatas.size());
+		for (int i = 0; i < ranks.size(); i++) {
+			int rank = lowestRank + i;
+			String providerUserId = "user" + rank;
+			assertEquals(Integer.valueOf(rank), ranks.get(i));
+			assertEquals(providerUserId, connectionDatas.get(i)
+					.getProviderUserId());
+			assertEquals(providerUserId, providerConnectionRepository
+					.findByRank(rank).getProviderUserId());
+			assertEquals(Integer.valueOf(rank),
+					providerConnectionRepository.findRank(providerUserId));
+		}
+	}
+
+	private ConnectionData createConnectionData(String providerUserId) {
+		return new ConnectionData("facebook", providerUserId, null, null,
+				null, "token", null, null, null);
+	}
+
+}
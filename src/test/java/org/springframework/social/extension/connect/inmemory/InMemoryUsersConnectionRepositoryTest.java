@@ -15,10 +15,29 @@
  */
 package org.springframework.social.extension.connect.inmemory;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import org.junit.Test;
+import org.springframework.social.connect.Connection;
 import org.springframework.social.connect.ConnectionData;
+import org.springframework.social.connect.ConnectionKey;
+import org.springframework.social.connect.ConnectionRepository;
 import org.springframework.social.connect.ConnectionSignUp;
+import org.springframework.social.connect.DuplicateConnectionException;
+import org.springframework.util.LinkedMultiValueMap;
+import org.springframework.util.MultiValueMap;
 import org.springframework.social.extension.connect.jdbc.AbstractUsersConnectionRepositoryTest;
 
 /**
@@ -33,6 +52,266 @@ public class InMemoryUsersConnectionRepositoryTest
 		return new InMemoryUsersConnectionRepository(connectionFactoryRegistry);
 	}
 
+	@Test
+	public void readsDoNotCreateRepositories() {
+		ConnectionRepository unknownUserRepository = usersConnectionRepository
+				.createConnectionRepository("unknown");
+		unknownUserRepository.findAllConnections();
+		unknownUserRepository.findConnections("facebook");
+		unknownUserRepository.findConnections("bogus");
+		unknownUserRepository.removeConnection(new ConnectionKey("facebook",
+				"9"));
+		MultiValueMap<String, String> providerUsers = new LinkedMultiValueMap<String, String>();
+		providerUsers.add("facebook", "9");
+		unknownUserRepository.findConnectionsToUsers(providerUsers);
+		assertTrue(usersConnectionRepository.connectionRepositoriesByUserId
+				.isEmpty());
+	}
+
+	@Test
+	public void removingLastConnectionReclaimsRepositories() {
+		insertConnection("1", "facebook", "9", 1, null, null, null,
+				"234567890", null, "345678901", null);
+		insertConnection("1", "facebook", "10", 2, null, null, null,
+				"456789012", null, "56789012", null);
+		connectionRepository.removeConnection(new ConnectionKey("facebook",
+				"9"));
+		assertEquals(1, usersConnectionRepository
+				.findInMemoryConnectionRepository("1").providerRepositories
+				.size());
+		connectionRepository.removeConnection(new ConnectionKey("facebook",
+				"10"));
+		assertTrue(usersConnectionRepository.connectionRepositoriesByUserId
+				.isEmpty());
+
+		insertConnection("1", "facebook", "9", 1, null, null, null,
+				"234567890", null, "345678901", null);
+		assertEquals(1, connectionRepository.findConnections("facebook")
+				.size());
+	}
+
+	@Test
+	public void cachedConnectionsAreReusedUntilUpdated() {
+		usersConnectionRepository.setConnectionCacheSize(100);
+		insertConnection("1", "facebook", "9", 1, null, null, null,
+				"234567890", null, "345678901", null);
+		Connection<?> connection = connectionRepository
+				.getConnection(new ConnectionKey("facebook", "9"));
+		assertSame(connection, connectionRepository
+				.getConnection(new ConnectionKey("facebook", "9")));
+		assertSame(connection, connectionRepository
+				.findConnections("facebook").get(0));
+
+		connectionRepository.updateConnection(connection);
+		assertNotSame(connection, connectionRepository
+				.getConnection(new ConnectionKey("facebook", "9")));
+	}
+
+	@Test
+	public void connectionsAreCreatedWhenFirstAccessed() {
+		usersConnectionRepository.setConnectionCacheSize(100);
+		InMemoryConnectionCache connectionCache = usersConnectionRepository
+				.getConnectionCache();
+		insertConnection("1", "facebook", "9", 1, null, null, null,
+				"234567890", null, "345678901", null);
+		insertConnection("1", "facebook", "10", 2, null, null, null,
+				"456789012", null, "56789012", null);
+		MultiValueMap<String, Connection<?>> connections = connectionRepository
+				.findAllConnections();
+		assertEquals(2, connections.get("facebook").size());
+		assertEquals(0, connectionCache.getMissCount());
+
+		Connection<?> connection = connections.getFirst("facebook");
+		assertEquals("9", connection.getKey().getProviderUserId());
+		assertSame(connection, connections.get("facebook").get(0));
+		assertEquals(1, connectionCache.getMissCount());
+		assertEquals(0, connectionCache.getHitCount());
+		assertSame(connection,
+				connectionRepository.findConnections("facebook").get(0));
+		assertEquals(1, connectionCache.getHitCount());
+	}
+
+	@Test
+	public void keyIndexFollowsRemovedConnections() {
+		insertConnection("1", "facebook", "9", 1, null, null, null,
+				"234567890", null, null, null);
+		insertConnection("2", "facebook", "9", 1, null, null, null,
+				"234567890", null, null, null);
+		insertConnection("2", "facebook", "10", 2, null, null, null,
+				"456789012", null, null, null);
+		Connection<?> connection = connectionRepository
+				.getConnection(new ConnectionKey("facebook", "9"));
+		assertEquals(Arrays.asList("1", "2"),
+				usersConnectionRepository.findUserIdsWithConnection(connection));
+
+		connectionRepository.removeConnection(new ConnectionKey("facebook",
+				"9"));
+		assertEquals(Arrays.asList("2"),
+				usersConnectionRepository.findUserIdsWithConnection(connection));
+
+		usersConnectionRepository.createConnectionRepository("2")
+				.removeConnections("facebook");
+		assertTrue(usersConnectionRepository.findUserIdsWithConnection(
+				connection).isEmpty());
+	}
+
+	@Test
+	public void findUserIdsConnectedToIterable() {
+		insertConnection("1", "facebook", "9", 1, null, null, null,
+				"234567890", null, null, null);
+		insertConnection("2", "facebook", "10", 1, null, null, null,
+				"456789012", null, null, null);
+		insertConnection("3", "facebook", "11", 1, null, null, null,
+				"567890123", null, null, null);
+		assertEquals(new HashSet<String>(Arrays.asList("1", "2")),
+				usersConnectionRepository.findUserIdsConnectedTo("facebook",
+						Arrays.asList("9", "10", "9", "12")));
+		assertTrue(usersConnectionRepository.findUserIdsConnectedTo(
+				"facebook", Collections.<String> emptyList()).isEmpty());
+		assertTrue(usersConnectionRepository.findUserIdsConnectedTo("bogus",
+				Arrays.asList("9")).isEmpty());
+	}
+
+	@Test
+	public void connectionReplacedAtItsRankIsUnindexed() {
+		insertConnection("1", "facebook", "9", 1, null, null, null,
+				"234567890", null, null, null);
+		Connection<?> replaced = connectionRepository
+				.getConnection(new ConnectionKey("facebook", "9"));
+		insertConnection("1", "facebook", "10", 1, null, null, null,
+				"456789012", null, null, null);
+		InMemoryProviderConnectionRepository providerConnectionRepository = usersConnectionRepository
+				.findInMemoryConnectionRepository("1")
+				.findInMemoryProviderConnectionRepository("facebook");
+		assertFalse(providerConnectionRepository.hasProviderUserId("9"));
+		assertNull(providerConnectionRepository.findByProviderUserId("9"));
+		assertEquals(Integer.valueOf(1),
+				providerConnectionRepository.findRank("10"));
+		assertTrue(usersConnectionRepository.findUserIdsWithConnection(
+				replaced).isEmpty());
+	}
+
+	@Test
+	public void updateChangingProviderUserIdIsReindexed() {
+		insertConnection("1", "facebook", "9", 1, null, null, null,
+				"234567890", null, null, null);
+		Connection<?> connection = connectionRepository
+				.getConnection(new ConnectionKey("facebook", "9"));
+		InMemoryProviderConnectionRepository providerConnectionRepository = usersConnectionRepository
+				.findInMemoryConnectionRepository("1")
+				.findInMemoryProviderConnectionRepository("facebook");
+		providerConnectionRepository.updateByProviderUserId(
+				new ConnectionData("facebook", "10", null, null, null,
+						"456789012", null, null, null), "9");
+		assertNull(providerConnectionRepository.findRank("9"));
+		assertEquals(Integer.valueOf(1),
+				providerConnectionRepository.findRank("10"));
+		assertTrue(usersConnectionRepository.findUserIdsWithConnection(
+				connection).isEmpty());
+		assertEquals(Collections.singleton("1"),
+				usersConnectionRepository.findUserIdsConnectedTo("facebook",
+						Arrays.asList("10")));
+	}
+
+	@Test
+	public void concurrentAddsAllocateDistinctRanksAndRejectDuplicates()
+			throws InterruptedException {
+		final int threadCount = 8;
+		final CountDownLatch start = new CountDownLatch(1);
+		final AtomicInteger duplicates = new AtomicInteger();
+		Thread[] threads = new Thread[threadCount];
+		for (int i = 0; i < threadCount; i++) {
+			final String providerUserId = String.valueOf(i);
+			threads[i] = new Thread() {
+				@Override
+				public void run() {
+					try {
+						start.await();
+					} catch (InterruptedException e) {
+						return;
+					}
+					for (String id : Arrays.asList(providerUserId, "shared")) {
+						try {
+							connectionRepository
+									.addConnection(connectionFactoryRegistry
+											.getConnectionFactory("facebook")
+											.createConnection(
+													new ConnectionData(
+															"facebook", id,
+															null, null, null,
+															"234567890", null,
+															null, null)));
+						} catch (DuplicateConnectionException e) {
+							duplicates.incrementAndGet();
+						}
+					}
+				}
+			};
+			threads[i].start();
+		}
+		start.countDown();
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		assertEquals(threadCount - 1, duplicates.get());
+		InMemoryProviderConnectionRepository providerConnectionRepository = usersConnectionRepository
+				.findInMemoryConnectionRepository("1")
+				.findInMemoryProviderConnectionRepository("facebook");
+		assertEquals(threadCount + 1, providerConnectionRepository
+				.findAllOrderByRank().size());
+		assertEquals(threadCount + 1, providerConnectionRepository
+				.findAllByRank().lastKey().intValue());
+	}
+
+	@Test
+	public void autoRankFollowsExplicitRank() {
+		insertConnection("1", "facebook", "9", 5, null, null, null,
+				"234567890", null, null, null);
+		connectionRepository.addConnection(createFacebookConnection("10"));
+		insertConnection("1", "facebook", "11", 2, null, null, null,
+				"567890123", null, null, null);
+		connectionRepository.addConnection(createFacebookConnection("12"));
+		InMemoryProviderConnectionRepository providerConnectionRepository = usersConnectionRepository
+				.findInMemoryConnectionRepository("1")
+				.findInMemoryProviderConnectionRepository("facebook");
+		assertEquals(Integer.valueOf(6),
+				providerConnectionRepository.findRank("10"));
+		assertEquals(Integer.valueOf(7),
+				providerConnectionRepository.findRank("12"));
+	}
+
+	@Test
+	public void ranksRestartOnceEmptied() {
+		insertConnection("1", "facebook", "9", 3, null, null, null,
+				"234567890", null, null, null);
+		insertConnection("1", "facebook", "10", 4, null, null, null,
+				"456789012", null, null, null);
+		connectionRepository.removeConnections("facebook");
+		connectionRepository.addConnection(createFacebookConnection("11"));
+		assertEquals(Integer.valueOf(1), usersConnectionRepository
+				.findInMemoryConnectionRepository("1")
+				.findInMemoryProviderConnectionRepository("facebook")
+				.findRank("11"));
+
+		connectionRepository.addConnection(createFacebookConnection("12"));
+		connectionRepository.removeConnection(new ConnectionKey("facebook",
+				"11"));
+		connectionRepository.removeConnection(new ConnectionKey("facebook",
+				"12"));
+		connectionRepository.addConnection(createFacebookConnection("13"));
+		assertEquals(Integer.valueOf(1), usersConnectionRepository
+				.findInMemoryConnectionRepository("1")
+				.findInMemoryProviderConnectionRepository("facebook")
+				.findRank("13"));
+	}
+
+	private Connection<?> createFacebookConnection(String providerUserId) {
+		return connectionFactoryRegistry.getConnectionFactory("facebook")
+				.createConnection(
+						new ConnectionData("facebook", providerUserId, null,
+								null, null, "234567890", null, null, null));
+	}
+
 	@Override
 	protected void setConnectionSignUpOnUsersConnectionRepository(
 			InMemoryUsersConnectionRepository usersConnectionRepository,
@@ -62,8 +341,7 @@ public class InMemoryUsersConnectionRepositoryTest
 			for (Map.Entry<String, InMemoryProviderConnectionRepository> providerConnectionRepo : inMemoryConnectionRepository.providerRepositories
 					.entrySet()) {
 				if (providerConnectionRepo.getKey().equals(providerId)) {
-					return providerConnectionRepo.getValue().connectionDataByRank
-							.size() > 0;
+					return !providerConnectionRepo.getValue().isEmpty();
 				}
 			}
 		}
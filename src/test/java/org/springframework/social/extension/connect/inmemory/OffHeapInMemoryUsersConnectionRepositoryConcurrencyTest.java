@@ -0,0 +1,36 @@
+/*
+ * Copyright 2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.social.extension.connect.inmemory;
+
+/**
+ * Runs the in-memory repository concurrency tests against connections stored
+ * off the heap, in chunks small enough to be compacted while being read.
+ * 
+ * @author Michael Lavelle
+ */
+public class OffHeapInMemoryUsersConnectionRepositoryConcurrencyTest extends
+		InMemoryUsersConnectionRepositoryConcurrencyTest {
+
+	@Override
+	protected InMemoryUsersConnectionRepository createUsersConnectionRepository() {
+		InMemoryUsersConnectionRepository usersConnectionRepository = super
+				.createUsersConnectionRepository();
+		usersConnectionRepository
+				.setOffHeapConnectionStore(new OffHeapConnectionStore(1024, 0.5));
+		return usersConnectionRepository;
+	}
+
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright 2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.social.extension.connect.inmemory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.ref.WeakReference;
+
+import org.junit.Test;
+import org.springframework.social.connect.Connection;
+import org.springframework.social.connect.ConnectionData;
+import org.springframework.social.connect.ConnectionKey;
+
+/**
+ * Runs the in-memory repository tests against connections stored off the
+ * heap, in chunks small enough for most tests to use several.
+ * 
+ * @author Michael Lavelle
+ */
+public class OffHeapInMemoryUsersConnectionRepositoryTest extends
+		InMemoryUsersConnectionRepositoryTest {
+
+	private OffHeapConnectionStore offHeapConnectionStore;
+
+	@Override
+	protected InMemoryUsersConnectionRepository createUsersConnectionRepository() {
+		InMemoryUsersConnectionRepository usersConnectionRepository = super
+				.createUsersConnectionRepository();
+		offHeapConnectionStore = new OffHeapConnectionStore(256, 0.5);
+		usersConnectionRepository
+				.setOffHeapConnectionStore(offHeapConnectionStore);
+		return usersConnectionRepository;
+	}
+
+	@Test
+	public void connectionsAreStoredOffHeap() {
+		insertConnection("1", "facebook", "9", 1, "Keith",
+				"http://www.facebook.com/9", null, "234567890", null,
+				"345678901", 3600000L);
+		ConnectionData connectionData = findConnectionData("1", "9");
+		assertTrue(connectionData instanceof OffHeapConnectionData);
+		assertEquals("Keith", connectionData.getDisplayName());
+		assertEquals("http://www.facebook.com/9",
+				connectionData.getProfileUrl());
+		assertEquals("234567890", connectionData.getAccessToken());
+		assertEquals("345678901", connectionData.getRefreshToken());
+		assertEquals(Long.valueOf(3600000L), connectionData.getExpireTime());
+		assertEquals(1, offHeapConnectionStore.getLiveRecords());
+	}
+
+	@Test
+	public void removedConnectionsAreCompacted() {
+		for (int i = 0; i < 100; i++) {
+			insertConnection(String.valueOf(i % 10), "facebook",
+					String.valueOf(i), 1 + i / 10, null, null, null,
+					"token" + i, null, null, null);
+		}
+		int chunkCount = offHeapConnectionStore.getChunkCount();
+		assertTrue(chunkCount > 2);
+		for (int i = 0; i < 100; i++) {
+			if (i % 10 != 0) {
+				usersConnectionRepository.createConnectionRepository(
+						String.valueOf(i % 10)).removeConnection(
+						new ConnectionKey("facebook", String.valueOf(i)));
+			}
+		}
+		assertEquals(10, offHeapConnectionStore.getLiveRecords());
+		assertTrue(offHeapConnectionStore.getChunkCount() < chunkCount);
+		for (int i = 0; i < 100; i += 10) {
+			assertEquals("token" + i, findConnectionData("0", String.valueOf(i))
+					.getAccessToken());
+		}
+		usersConnectionRepository.createConnectionRepository("0")
+				.removeConnections("facebook");
+		offHeapConnectionStore.compact();
+		assertEquals(0, offHeapConnectionStore.getLiveRecords());
+		assertEquals(0, offHeapConnectionStore.getLiveBytes());
+		assertTrue(offHeapConnectionStore.getChunkCount() <= 1);
+	}
+
+	@Test
+	public void removedConnectionRemainsReadable() {
+		insertConnection("1", "facebook", "9", 1, null, null, null,
+				"234567890", null, null, null);
+		ConnectionData connectionData = findConnectionData("1", "9");
+		for (int i = 0; i < 20; i++) {
+			insertConnection("2", "facebook", String.valueOf(100 + i), i + 1,
+					null, null, null, "token", null, null, null);
+		}
+		connectionRepository.removeConnection(new ConnectionKey("facebook",
+				"9"));
+		offHeapConnectionStore.compact();
+		assertEquals("234567890", connectionData.getAccessToken());
+	}
+
+	@Test
+	public void updatesFreePreviousRecords() {
+		insertConnection("1", "facebook", "9", 1, null, null, null,
+				"234567890", null, "345678901", null);
+		Connection<?> connection = connectionRepository
+				.getConnection(new ConnectionKey("facebook", "9"));
+		for (int i = 0; i < 50; i++) {
+			connectionRepository.updateConnection(connection);
+		}
+		assertEquals(1, offHeapConnectionStore.getLiveRecords());
+		assertTrue(offHeapConnectionStore.getChunkCount() <= 2);
+		assertEquals("234567890", findConnectionData("1", "9")
+				.getAccessToken());
+	}
+
+	@Test
+	public void freedRecordsAreNotRetained() {
+		insertConnection("1", "facebook", "9", 1, null, null, null,
+				"234567890", null, null, null);
+		WeakReference<ConnectionData> removed = new WeakReference<ConnectionData>(
+				findConnectionData("1", "9"));
+		connectionRepository.removeConnection(new ConnectionKey("facebook",
+				"9"));
+		for (int i = 0; i < 10 && removed.get() != null; i++) {
+			System.gc();
+		}
+		assertNull(removed.get());
+	}
+
+	private ConnectionData findConnectionData(String userId,
+			String providerUserId) {
+		return usersConnectionRepository
+				.findInMemoryConnectionRepository(userId)
+				.findInMemoryProviderConnectionRepository("facebook")
+				.findByProviderUserId(providerUserId);
+	}
+
+}
@@ -0,0 +1,59 @@
+/*
+ * Copyright 2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.social.extension.connect.inmemory;
+
+import org.openjdk.jmh.annotations.Param;
+import org.springframework.social.connect.ConnectionData;
+import org.springframework.social.extension.connect.jdbc.AbstractUsersConnectionRepositoryBenchmark;
+
+/**
+ * Run with connections stored as given, in compact form and off the heap, to
+ * compare the heap they retain.
+ * 
+ * @author Michael Lavelle
+ */
+public class ShardedInMemoryUsersConnectionRepositoryBenchmark
+		extends
+		AbstractUsersConnectionRepositoryBenchmark<ShardedInMemoryUsersConnectionRepository> {
+
+	@Param({ "heap", "compact", "offHeap" })
+	public String connectionStorage;
+
+	@Override
+	protected ShardedInMemoryUsersConnectionRepository createUsersConnectionRepository() {
+		ShardedInMemoryUsersConnectionRepository usersConnectionRepository = new ShardedInMemoryUsersConnectionRepository(
+				connectionFactoryLocator);
+		usersConnectionRepository.setCompactConnectionData("compact"
+				.equals(connectionStorage));
+		if ("offHeap".equals(connectionStorage)) {
+			usersConnectionRepository
+					.setOffHeapConnectionStore(new OffHeapConnectionStore());
+		}
+		return usersConnectionRepository;
+	}
+
+	@Override
+	protected void insertConnection(String userId, String providerId,
+			String providerUserId, int rank, String displayName,
+			String profileUrl, String imageUrl, String accessToken,
+			String secret, String refreshToken, Long expireTime) {
+		usersConnectionRepository.addConnectionData(userId,
+				new ConnectionData(providerId, providerUserId, displayName,
+						profileUrl, imageUrl, accessToken, secret,
+						refreshToken, expireTime), rank);
+	}
+
+}
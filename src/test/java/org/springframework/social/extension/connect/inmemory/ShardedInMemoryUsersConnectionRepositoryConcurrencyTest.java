@@ -0,0 +1,65 @@
+/*
+ * Copyright 2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.social.extension.connect.inmemory;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.springframework.social.connect.ConnectionSignUp;
+import org.springframework.social.extension.connect.jdbc.AbstractUsersConnectionRepositoryConcurrencyTest;
+
+/**
+ * @author Michael Lavelle
+ */
+public class ShardedInMemoryUsersConnectionRepositoryConcurrencyTest
+		extends
+		AbstractUsersConnectionRepositoryConcurrencyTest<ShardedInMemoryUsersConnectionRepository> {
+
+	@Override
+	protected ShardedInMemoryUsersConnectionRepository createUsersConnectionRepository() {
+		return new ShardedInMemoryUsersConnectionRepository(
+				connectionFactoryRegistry, 8);
+	}
+
+	@Override
+	protected void setConnectionSignUpOnUsersConnectionRepository(
+			ShardedInMemoryUsersConnectionRepository usersConnectionRepository,
+			ConnectionSignUp connectionSignUp) {
+		usersConnectionRepository.setConnectionSignUp(connectionSignUp);
+	}
+
+	@Override
+	protected boolean isConnectionSignUpSingleFlight() {
+		return true;
+	}
+
+	@Override
+	protected List<Integer> getRanks(String userId, String providerId) {
+		List<Integer> ranks = new ArrayList<Integer>();
+		InMemoryConnectionRepository connectionRepository = usersConnectionRepository
+				.getShard(userId).findInMemoryConnectionRepository(userId);
+		if (connectionRepository != null) {
+			InMemoryProviderConnectionRepository providerConnectionRepository = connectionRepository
+					.findInMemoryProviderConnectionRepository(providerId);
+			if (providerConnectionRepository != null) {
+				ranks.addAll(providerConnectionRepository.findAllByRank()
+						.keySet());
+			}
+		}
+		return ranks;
+	}
+
+}
@@ -0,0 +1,211 @@
+/*
+ * Copyright 2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.social.extension.connect.inmemory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.springframework.social.connect.ConnectionData;
+import org.springframework.social.connect.ConnectionKey;
+import org.springframework.social.connect.ConnectionSignUp;
+import org.springframework.social.extension.connect.jdbc.AbstractUsersConnectionRepositoryTest;
+
+/**
+ * @author Michael Lavelle
+ */
+public class ShardedInMemoryUsersConnectionRepositoryTest
+		extends
+		AbstractUsersConnectionRepositoryTest<ShardedInMemoryUsersConnectionRepository> {
+
+	@Rule
+	public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+	@Override
+	protected ShardedInMemoryUsersConnectionRepository createUsersConnectionRepository() {
+		return new ShardedInMemoryUsersConnectionRepository(
+				connectionFactoryRegistry, 4);
+	}
+
+	@Test
+	public void usersArePartitionedAcrossShards() {
+		for (int i = 0; i < 100; i++) {
+			insertConnection("user" + i, "facebook", String.valueOf(i), 1,
+					null, null, null, "234567890", null, null, null);
+		}
+		int users = 0;
+		for (InMemoryUsersConnectionRepository shard : usersConnectionRepository
+				.getShards()) {
+			assertTrue(shard.connectionRepositoriesByUserId.size() > 0);
+			users += shard.connectionRepositoriesByUserId.size();
+		}
+		assertEquals(100, users);
+		assertEquals(1, usersConnectionRepository.getShard("user42")
+				.createConnectionRepository("user42")
+				.findConnections("facebook").size());
+	}
+
+	@Test
+	public void usersOfEachShardAreSpreadAcrossItsLockStripes() {
+		ShardedInMemoryUsersConnectionRepository usersConnectionRepository = new ShardedInMemoryUsersConnectionRepository(
+				connectionFactoryRegistry, 64);
+		InMemoryUsersConnectionRepository shard = usersConnectionRepository
+				.getShards().get(0);
+		Set<Object> locks = new HashSet<Object>();
+		for (int i = 0; i < 20000; i++) {
+			if (usersConnectionRepository.getShard("user" + i) == shard) {
+				locks.add(shard.getLock("user" + i));
+			}
+		}
+		assertTrue(locks.size() > 48);
+	}
+
+	@Test
+	public void largeLookupsAreSplitAcrossThreads() {
+		usersConnectionRepository.setParallelismThreshold(10);
+		Set<String> providerUserIds = new HashSet<String>();
+		List<ConnectionKey> connectionKeys = new ArrayList<ConnectionKey>();
+		for (int i = 0; i < 100; i++) {
+			insertConnection("user" + i, "facebook", String.valueOf(i), 1,
+					null, null, null, "234567890", null, null, null);
+			providerUserIds.add(String.valueOf(2 * i));
+			connectionKeys.add(new ConnectionKey("facebook", String
+					.valueOf(2 * i)));
+		}
+		Set<String> userIds = usersConnectionRepository
+				.findUserIdsConnectedTo("facebook", providerUserIds);
+		assertEquals(50, userIds.size());
+		assertTrue(userIds.contains("user98"));
+
+		Map<ConnectionKey, List<String>> userIdsByConnectionKey = usersConnectionRepository
+				.findUserIdsWithConnectionKeys(connectionKeys);
+		assertEquals(connectionKeys,
+				new ArrayList<ConnectionKey>(userIdsByConnectionKey.keySet()));
+		assertEquals("user98",
+				userIdsByConnectionKey.get(connectionKeys.get(49)).get(0));
+		assertTrue(userIdsByConnectionKey.get(connectionKeys.get(50))
+				.isEmpty());
+	}
+
+	@Test
+	public void snapshotsAreWrittenAndReadPerShard() throws IOException {
+		for (int i = 0; i < 100; i++) {
+			insertConnection("user" + i, "facebook", String.valueOf(i), 1,
+					null, null, null, "234567890", null, null, null);
+		}
+		File directory = temporaryFolder.newFolder("snapshots");
+		usersConnectionRepository.writeSnapshots(directory, 7);
+		assertEquals(Arrays.asList("generation-7"),
+				Arrays.asList(directory.list()));
+		assertEquals(4, new File(directory, "generation-7").list().length);
+
+		ShardedInMemoryUsersConnectionRepository restored = createUsersConnectionRepository();
+		assertEquals(7, restored.readSnapshots(directory));
+		for (int i = 0; i < 100; i++) {
+			assertEquals(
+					"user" + i,
+					restored.findUserIdsWithConnectionKeys(
+							Collections.singletonList(new ConnectionKey(
+									"facebook", String.valueOf(i))))
+							.values().iterator().next().get(0));
+		}
+		assertEquals(1, restored.createConnectionRepository("user7")
+				.findConnections("facebook").size());
+	}
+
+	@Test
+	public void interruptedSnapshotsLeavePreviousGeneration()
+			throws IOException {
+		insertConnection("1", "facebook", "9", 1, null, null, null,
+				"234567890", null, null, null);
+		File directory = temporaryFolder.newFolder("snapshots");
+		usersConnectionRepository.writeSnapshots(directory, 1);
+		insertConnection("2", "facebook", "10", 1, null, null, null,
+				"456789012", null, null, null);
+		usersConnectionRepository.writeSnapshots(directory, 2);
+		assertEquals(Arrays.asList("generation-2"),
+				Arrays.asList(directory.list()));
+		// as if interrupted while writing the third generation
+		File interrupted = new File(directory, "generation-3.tmp");
+		assertTrue(interrupted.mkdir());
+		assertTrue(new File(interrupted, "shard-0").createNewFile());
+
+		ShardedInMemoryUsersConnectionRepository restored = createUsersConnectionRepository();
+		assertEquals(2, restored.readSnapshots(directory));
+		assertEquals(1, restored.createConnectionRepository("2")
+				.findConnections("facebook").size());
+
+		usersConnectionRepository.writeSnapshots(directory, 3);
+		assertEquals(Arrays.asList("generation-3"),
+				Arrays.asList(directory.list()));
+	}
+
+	@Test(expected = IOException.class)
+	public void snapshotsRequireSameShardCount() throws IOException {
+		insertConnection("1", "facebook", "9", 1, null, null, null,
+				"234567890", null, null, null);
+		File directory = temporaryFolder.newFolder("snapshots");
+		usersConnectionRepository.writeSnapshots(directory, 1);
+		new ShardedInMemoryUsersConnectionRepository(
+				connectionFactoryRegistry, 2).readSnapshots(directory);
+	}
+
+	@Override
+	protected void setConnectionSignUpOnUsersConnectionRepository(
+			ShardedInMemoryUsersConnectionRepository usersConnectionRepository,
+			ConnectionSignUp connectionSignUp) {
+		usersConnectionRepository.setConnectionSignUp(connectionSignUp);
+	}
+
+	@Override
+	protected void insertConnection(String userId, String providerId,
+			String providerUserId, int rank, String displayName,
+			String profileUrl, String imageUrl, String accessToken,
+			String secret, String refreshToken, Long expireTime) {
+		usersConnectionRepository.addConnectionData(userId,
+				new ConnectionData(providerId, providerUserId, displayName,
+						profileUrl, imageUrl, accessToken, secret,
+						refreshToken, expireTime), rank);
+	}
+
+	@Override
+	protected Boolean checkIfProviderConnectionsExist(String providerId) {
+		for (InMemoryUsersConnectionRepository shard : usersConnectionRepository
+				.getShards()) {
+			for (InMemoryConnectionRepository connectionRepository : shard.connectionRepositoriesByUserId
+					.values()) {
+				if (connectionRepository
+						.findInMemoryProviderConnectionRepository(providerId) != null) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+}
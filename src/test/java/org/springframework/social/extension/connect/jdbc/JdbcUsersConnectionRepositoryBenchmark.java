@@ -0,0 +1,69 @@
+/*
+ * Copyright 2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.social.extension.connect.jdbc;
+
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabase;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabaseFactory;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabaseType;
+import org.springframework.jdbc.datasource.init.ResourceDatabasePopulator;
+import org.springframework.security.crypto.encrypt.Encryptors;
+import org.springframework.social.connect.jdbc.JdbcUsersConnectionRepository;
+
+/**
+ * @author Michael Lavelle
+ */
+public class JdbcUsersConnectionRepositoryBenchmark extends
+		AbstractUsersConnectionRepositoryBenchmark<JdbcUsersConnectionRepository> {
+
+	private JdbcTemplate dataAccessor;
+	private EmbeddedDatabase database;
+
+	@Override
+	protected JdbcUsersConnectionRepository createUsersConnectionRepository() {
+		EmbeddedDatabaseFactory factory = new EmbeddedDatabaseFactory();
+		factory.setDatabaseType(EmbeddedDatabaseType.H2);
+		ResourceDatabasePopulator populator = new ResourceDatabasePopulator();
+		populator.addScript(new ClassPathResource(
+				"JdbcUsersConnectionRepository.sql", getClass()));
+		factory.setDatabasePopulator(populator);
+		database = factory.getDatabase();
+		dataAccessor = new JdbcTemplate(database);
+		return new JdbcUsersConnectionRepository(database,
+				connectionFactoryLocator, Encryptors.noOpText());
+	}
+
+	@Override
+	protected void tearDownUsersConnectionRepository() {
+		if (database != null) {
+			database.shutdown();
+		}
+	}
+
+	@Override
+	protected void insertConnection(String userId, String providerId,
+			String providerUserId, int rank, String displayName,
+			String profileUrl, String imageUrl, String accessToken,
+			String secret, String refreshToken, Long expireTime) {
+		dataAccessor
+				.update("insert into UserConnection (userId, providerId, providerUserId, rank, displayName, profileUrl, imageUrl, accessToken, secret, refreshToken, expireTime) values (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)",
+						userId, providerId, providerUserId, rank, displayName,
+						profileUrl, imageUrl, accessToken, secret,
+						refreshToken, expireTime);
+	}
+
+}
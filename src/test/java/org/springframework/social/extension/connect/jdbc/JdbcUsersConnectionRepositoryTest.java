@@ -33,6 +33,7 @@ import org.springframework.jdbc.datasource.init.ResourceDatabasePopulator;
 import org.springframework.security.crypto.encrypt.Encryptors;
 import org.springframework.social.connect.ConnectionSignUp;
 import org.springframework.social.connect.jdbc.JdbcUsersConnectionRepository;
+import org.springframework.social.extension.connect.BatchUsersConnectionRepository;
 
 /**
  * @author Michael Lavelle
@@ -43,6 +44,7 @@ public class JdbcUsersConnectionRepositoryTest extends
 
 	private JdbcTemplate dataAccessor;
 	private EmbeddedDatabase database;
+	private BatchJdbcUsersConnectionRepository batchUsersConnectionRepository;
 
 	private boolean testMySqlCompatiblity;
 
@@ -68,6 +70,9 @@ public class JdbcUsersConnectionRepositoryTest extends
 		if (!getTablePrefix().equals("")) {
 			usersConnectionRepository.setTablePrefix(getTablePrefix());
 		}
+		batchUsersConnectionRepository = new BatchJdbcUsersConnectionRepository(
+				usersConnectionRepository, database);
+		batchUsersConnectionRepository.setTablePrefix(getTablePrefix());
 		return usersConnectionRepository;
 	}
 
@@ -75,7 +80,12 @@ public class JdbcUsersConnectionRepositoryTest extends
 	protected void setConnectionSignUpOnUsersConnectionRepository(
 			JdbcUsersConnectionRepository usersConnectionRepository,
 			ConnectionSignUp connectionSignUp) {
-		usersConnectionRepository.setConnectionSignUp(connectionSignUp);
+		batchUsersConnectionRepository.setConnectionSignUp(connectionSignUp);
+	}
+
+	@Override
+	protected BatchUsersConnectionRepository getBatchUsersConnectionRepository() {
+		return batchUsersConnectionRepository;
 	}
 
 	@After
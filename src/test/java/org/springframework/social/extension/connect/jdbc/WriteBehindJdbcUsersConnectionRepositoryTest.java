@@ -0,0 +1,362 @@
+/*
+ * Copyright 2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.social.extension.connect.jdbc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.sql.SQLException;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.After;
+import org.junit.Test;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DelegatingDataSource;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabase;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabaseFactory;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabaseType;
+import org.springframework.jdbc.datasource.init.ResourceDatabasePopulator;
+import org.springframework.security.crypto.encrypt.Encryptors;
+import org.springframework.social.connect.Connection;
+import org.springframework.social.connect.ConnectionData;
+import org.springframework.social.connect.ConnectionKey;
+import org.springframework.social.connect.ConnectionRepository;
+import org.springframework.social.connect.ConnectionSignUp;
+import org.springframework.social.connect.jdbc.JdbcUsersConnectionRepository;
+import org.springframework.social.extension.connect.DelegatingConnectionRepository;
+
+/**
+ * @author Michael Lavelle
+ */
+public class WriteBehindJdbcUsersConnectionRepositoryTest
+		extends
+		AbstractUsersConnectionRepositoryTest<WriteBehindJdbcUsersConnectionRepository> {
+
+	private JdbcTemplate dataAccessor;
+
+	private EmbeddedDatabase database;
+
+	@Override
+	protected WriteBehindJdbcUsersConnectionRepository createUsersConnectionRepository() {
+		EmbeddedDatabaseFactory factory = new EmbeddedDatabaseFactory();
+		factory.setDatabaseType(EmbeddedDatabaseType.H2);
+		ResourceDatabasePopulator populator = new ResourceDatabasePopulator();
+		populator.addScript(new ClassPathResource(
+				"JdbcUsersConnectionRepository.sql",
+				JdbcUsersConnectionRepository.class));
+		factory.setDatabasePopulator(populator);
+		database = factory.getDatabase();
+		dataAccessor = new JdbcTemplate(database);
+		return new WriteBehindJdbcUsersConnectionRepository(
+				new JdbcUsersConnectionRepository(database,
+						connectionFactoryRegistry, Encryptors.noOpText()),
+				database, connectionFactoryRegistry, Encryptors.noOpText(),
+				60000);
+	}
+
+	@After
+	public void tearDown() {
+		if (usersConnectionRepository != null) {
+			usersConnectionRepository.destroy();
+		}
+		if (database != null) {
+			database.shutdown();
+		}
+	}
+
+	@Test
+	public void updatesAreCoalescedUntilFlushed() {
+		insertConnection("1", "facebook", "9", 1, null, null, null,
+				"234567890", null, "345678901", null);
+		connectionRepository.updateConnection(createConnection("first"));
+		connectionRepository.updateConnection(createConnection("last"));
+		assertEquals("234567890", getStoredAccessToken());
+		assertEquals("last",
+				connectionRepository.findConnections("facebook").get(0)
+						.createData().getAccessToken());
+
+		usersConnectionRepository.flush();
+		assertEquals("last", getStoredAccessToken());
+		assertEquals("last",
+				connectionRepository
+						.getConnection(new ConnectionKey("facebook", "9"))
+						.createData().getAccessToken());
+	}
+
+	@Test
+	public void removingConnectionDiscardsPendingUpdate() {
+		insertConnection("1", "facebook", "9", 1, null, null, null,
+				"234567890", null, "345678901", null);
+		connectionRepository.updateConnection(createConnection("stale"));
+		connectionRepository.removeConnection(new ConnectionKey("facebook",
+				"9"));
+		connectionRepository.addConnection(createConnection("fresh"));
+		usersConnectionRepository.flush();
+		assertEquals("fresh", getStoredAccessToken());
+	}
+
+	@Test
+	public void removingConnectionKeepsOtherUsersPendingUpdates() {
+		insertConnection("1", "facebook", "9", 1, null, null, null,
+				"234567890", null, "345678901", null);
+		insertConnection("2", "facebook", "9", 1, null, null, null,
+				"234567890", null, "345678901", null);
+		usersConnectionRepository.createConnectionRepository("2")
+				.updateConnection(createConnection("pending"));
+		connectionRepository.updateConnection(createConnection("discarded"));
+		connectionRepository.removeConnection(new ConnectionKey("facebook",
+				"9"));
+		assertEquals("pending", usersConnectionRepository
+				.createConnectionRepository("2").findConnections("facebook")
+				.get(0).createData().getAccessToken());
+		usersConnectionRepository.flush();
+		assertEquals("pending", dataAccessor.queryForObject(
+				"select accessToken from UserConnection where userId = '2'",
+				String.class));
+	}
+
+	@Test
+	public void updatesBeyondMaxPendingAreFlushedByCaller() {
+		usersConnectionRepository.setMaxPendingUpdates(1);
+		insertConnection("1", "facebook", "9", 1, null, null, null,
+				"234567890", null, "345678901", null);
+		connectionRepository.updateConnection(createConnection("flushed"));
+		assertEquals("flushed", getStoredAccessToken());
+	}
+
+	@Test
+	public void destroyFlushesPendingUpdates() {
+		insertConnection("1", "facebook", "9", 1, null, null, null,
+				"234567890", null, "345678901", null);
+		connectionRepository.updateConnection(createConnection("flushed"));
+		usersConnectionRepository.destroy();
+		assertEquals("flushed", getStoredAccessToken());
+	}
+
+	@Test
+	public void readOverlappingFlushSeesPendingUpdate() throws Exception {
+		insertConnection("1", "facebook", "9", 1, null, null, null,
+				"234567890", null, "345678901", null);
+		final Runnable[] afterQuery = new Runnable[1];
+		final WriteBehindJdbcUsersConnectionRepository flushedRepository = new WriteBehindJdbcUsersConnectionRepository(
+				new JdbcUsersConnectionRepository(database,
+						connectionFactoryRegistry, Encryptors.noOpText()) {
+					@Override
+					public ConnectionRepository createConnectionRepository(
+							String userId) {
+						return new DelegatingConnectionRepository(
+								super.createConnectionRepository(userId)) {
+							@Override
+							public List<Connection<?>> findConnections(
+									String providerId) {
+								List<Connection<?>> connections = delegate
+										.findConnections(providerId);
+								Runnable runnable = afterQuery[0];
+								afterQuery[0] = null;
+								if (runnable != null) {
+									runnable.run();
+								}
+								return connections;
+							}
+						};
+					}
+				}, database, connectionFactoryRegistry, Encryptors.noOpText(),
+				60000);
+		try {
+			ConnectionRepository connectionRepository = flushedRepository
+					.createConnectionRepository("1");
+			connectionRepository.updateConnection(createConnection("pending"));
+			afterQuery[0] = new Runnable() {
+				public void run() {
+					Thread flush = new Thread() {
+						public void run() {
+							flushedRepository.flush();
+						}
+					};
+					flush.start();
+					try {
+						flush.join();
+					} catch (InterruptedException e) {
+						throw new IllegalStateException(e);
+					}
+				}
+			};
+			assertEquals("pending",
+					connectionRepository.findConnections("facebook").get(0)
+							.createData().getAccessToken());
+			assertEquals("pending", getStoredAccessToken());
+		} finally {
+			flushedRepository.destroy();
+		}
+	}
+
+	@Test(timeout = 10000)
+	public void updatesDoNotWaitForFlushInProgress() throws Exception {
+		insertConnection("1", "facebook", "9", 1, null, null, null,
+				"234567890", null, "345678901", null);
+		insertConnection("2", "facebook", "9", 1, null, null, null,
+				"234567890", null, "345678901", null);
+		final CountDownLatch flushing = new CountDownLatch(1);
+		final CountDownLatch written = new CountDownLatch(1);
+		final WriteBehindJdbcUsersConnectionRepository blockedRepository = new WriteBehindJdbcUsersConnectionRepository(
+				new JdbcUsersConnectionRepository(database,
+						connectionFactoryRegistry, Encryptors.noOpText()),
+				new DelegatingDataSource(database) {
+					@Override
+					public java.sql.Connection getConnection()
+							throws SQLException {
+						flushing.countDown();
+						try {
+							written.await();
+						} catch (InterruptedException e) {
+							throw new IllegalStateException(e);
+						}
+						return super.getConnection();
+					}
+				}, connectionFactoryRegistry, Encryptors.noOpText(), 60000);
+		try {
+			ConnectionRepository connectionRepository = blockedRepository
+					.createConnectionRepository("1");
+			connectionRepository.updateConnection(createConnection("flushed"));
+			Thread flush = new Thread() {
+				public void run() {
+					blockedRepository.flush();
+				}
+			};
+			flush.start();
+			flushing.await();
+
+			connectionRepository.updateConnection(createConnection("pending"));
+			blockedRepository.createConnectionRepository("2").updateConnection(
+					createConnection("other"));
+			blockedRepository.createConnectionRepository("3").addConnection(
+					createConnection("added"));
+			assertEquals("pending",
+					connectionRepository.findConnections("facebook").get(0)
+							.createData().getAccessToken());
+
+			written.countDown();
+			flush.join();
+			assertEquals("flushed", getStoredAccessToken());
+			blockedRepository.flush();
+			assertEquals("pending", getStoredAccessToken());
+			assertEquals("other", dataAccessor.queryForObject(
+					"select accessToken from UserConnection where userId = '2'",
+					String.class));
+		} finally {
+			written.countDown();
+			blockedRepository.destroy();
+		}
+	}
+
+	@Test(timeout = 10000)
+	public void removalWaitsForFlushOfItsConnection() throws Exception {
+		insertConnection("1", "facebook", "9", 1, null, null, null,
+				"234567890", null, "345678901", null);
+		final CountDownLatch flushing = new CountDownLatch(1);
+		final CountDownLatch written = new CountDownLatch(1);
+		final WriteBehindJdbcUsersConnectionRepository blockedRepository = new WriteBehindJdbcUsersConnectionRepository(
+				new JdbcUsersConnectionRepository(database,
+						connectionFactoryRegistry, Encryptors.noOpText()),
+				new DelegatingDataSource(database) {
+					@Override
+					public java.sql.Connection getConnection()
+							throws SQLException {
+						flushing.countDown();
+						try {
+							written.await();
+						} catch (InterruptedException e) {
+							throw new IllegalStateException(e);
+						}
+						return super.getConnection();
+					}
+				}, connectionFactoryRegistry, Encryptors.noOpText(), 60000);
+		try {
+			final ConnectionRepository connectionRepository = blockedRepository
+					.createConnectionRepository("1");
+			connectionRepository.updateConnection(createConnection("flushed"));
+			Thread flush = new Thread() {
+				public void run() {
+					blockedRepository.flush();
+				}
+			};
+			flush.start();
+			flushing.await();
+			Thread removal = new Thread() {
+				public void run() {
+					connectionRepository.removeConnection(new ConnectionKey(
+							"facebook", "9"));
+				}
+			};
+			removal.start();
+			removal.join(200);
+			assertTrue(removal.isAlive());
+			assertEquals("234567890", getStoredAccessToken());
+
+			written.countDown();
+			removal.join();
+			flush.join();
+			assertEquals(Integer.valueOf(0), dataAccessor.queryForObject(
+					"select count(*) from UserConnection", Integer.class));
+		} finally {
+			written.countDown();
+			blockedRepository.destroy();
+		}
+	}
+
+	private Connection<?> createConnection(String accessToken) {
+		return connectionFactoryRegistry.getConnectionFactory("facebook")
+				.createConnection(
+						new ConnectionData("facebook", "9", null, null, null,
+								accessToken, null, "345678901", null));
+	}
+
+	private String getStoredAccessToken() {
+		return dataAccessor
+				.queryForObject(
+						"select accessToken from UserConnection where userId = '1' and providerId = 'facebook' and providerUserId = '9'",
+						String.class);
+	}
+
+	@Override
+	protected void setConnectionSignUpOnUsersConnectionRepository(
+			WriteBehindJdbcUsersConnectionRepository usersConnectionRepository,
+			ConnectionSignUp connectionSignUp) {
+		((JdbcUsersConnectionRepository) usersConnectionRepository
+				.getDelegate()).setConnectionSignUp(connectionSignUp);
+	}
+
+	@Override
+	protected void insertConnection(String userId, String providerId,
+			String providerUserId, int rank, String displayName,
+			String profileUrl, String imageUrl, String accessToken,
+			String secret, String refreshToken, Long expireTime) {
+		dataAccessor
+				.update("insert into UserConnection (userId, providerId, providerUserId, rank, displayName, profileUrl, imageUrl, accessToken, secret, refreshToken, expireTime) values (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)",
+						userId, providerId, providerUserId, rank, displayName,
+						profileUrl, imageUrl, accessToken, secret, null, null);
+	}
+
+	@Override
+	protected Boolean checkIfProviderConnectionsExist(String providerId) {
+		return dataAccessor.queryForObject(
+				"select exists (select 1 from UserConnection where providerId = ?)",
+				Boolean.class, providerId);
+	}
+
+}
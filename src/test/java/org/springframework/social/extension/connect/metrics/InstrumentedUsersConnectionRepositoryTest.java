@@ -0,0 +1,194 @@
+/*
+ * Copyright 2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.social.extension.connect.metrics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.openmbean.TabularData;
+
+import org.junit.Test;
+import org.springframework.social.connect.Connection;
+import org.springframework.social.connect.ConnectionData;
+import org.springframework.social.connect.ConnectionKey;
+import org.springframework.social.connect.ConnectionSignUp;
+import org.springframework.social.connect.NoSuchConnectionException;
+import org.springframework.social.extension.connect.cache.CachingUsersConnectionRepository;
+import org.springframework.social.extension.connect.inmemory.InMemoryUsersConnectionRepository;
+import org.springframework.social.extension.connect.jdbc.AbstractUsersConnectionRepositoryTest;
+
+/**
+ * Runs the UsersConnectionRepository tests against an
+ * {@link InstrumentedUsersConnectionRepository} in front of an
+ * {@link InMemoryUsersConnectionRepository}
+ * 
+ * @author Michael Lavelle
+ */
+public class InstrumentedUsersConnectionRepositoryTest
+		extends
+		AbstractUsersConnectionRepositoryTest<InstrumentedUsersConnectionRepository> {
+
+	private MetricsRegistry metricsRegistry;
+
+	@Override
+	protected InstrumentedUsersConnectionRepository createUsersConnectionRepository() {
+		metricsRegistry = new MetricsRegistry();
+		return new InstrumentedUsersConnectionRepository(
+				new InMemoryUsersConnectionRepository(connectionFactoryRegistry),
+				metricsRegistry);
+	}
+
+	@Test
+	public void callsAreRecordedWithResultSizes() {
+		insertConnection("1", "facebook", "9", 1, null, null, null,
+				"234567890", null, "345678901", null);
+		insertConnection("1", "facebook", "10", 2, null, null, null,
+				"456789012", null, "56789012", null);
+		connectionRepository.findAllConnections();
+		connectionRepository.findConnections("facebook");
+		connectionRepository.findConnections("twitter");
+
+		OperationMetrics findAllConnections = metricsRegistry
+				.getOperationMetrics(RepositoryOperation.FIND_ALL_CONNECTIONS);
+		assertEquals(1, findAllConnections.getCount());
+		assertEquals(2.0, findAllConnections.getMeanResultSize(), 0);
+		OperationMetrics findConnections = metricsRegistry
+				.getOperationMetrics(RepositoryOperation.FIND_CONNECTIONS);
+		assertEquals(2, findConnections.getCount());
+		assertEquals(1.0, findConnections.getMeanResultSize(), 0);
+		assertTrue(findConnections.getLatencyPercentile(99,
+				TimeUnit.NANOSECONDS) >= findConnections
+				.getMeanLatency(TimeUnit.NANOSECONDS) / 2);
+		assertEquals(Long.valueOf(2),
+				metricsRegistry.getCallCounts().get("findConnections"));
+	}
+
+	@Test
+	public void failuresAreRecorded() {
+		try {
+			connectionRepository.getConnection(new ConnectionKey("facebook",
+					"9"));
+		} catch (NoSuchConnectionException e) {
+		}
+		OperationMetrics getConnection = metricsRegistry
+				.getOperationMetrics(RepositoryOperation.GET_CONNECTION);
+		assertEquals(1, getConnection.getCount());
+		assertEquals(1, getConnection.getFailureCount());
+	}
+
+	@Test
+	public void signUpsAreRecorded() {
+		setConnectionSignUpOnUsersConnectionRepository(
+				usersConnectionRepository, new ConnectionSignUp() {
+					public String execute(Connection<?> connection) {
+						return "batman";
+					}
+				});
+		usersConnectionRepository
+				.findUserIdsWithConnection(connectionFactoryRegistry
+						.getConnectionFactory("facebook").createConnection(
+								new ConnectionData("facebook", "9", null,
+										null, null, "234567890", null, null,
+										null)));
+		OperationMetrics signUp = metricsRegistry
+				.getOperationMetrics(RepositoryOperation.SIGN_UP);
+		assertEquals(1, signUp.getCount());
+		assertEquals(1.0, signUp.getMeanResultSize(), 0);
+	}
+
+	@Test
+	public void cacheHitRatesAreReported() throws Exception {
+		InMemoryUsersConnectionRepository store = new InMemoryUsersConnectionRepository(
+				connectionFactoryRegistry);
+		usersConnectionRepository = new InstrumentedUsersConnectionRepository(
+				new CachingUsersConnectionRepository(store,
+						connectionFactoryRegistry), metricsRegistry);
+		connectionRepository = usersConnectionRepository
+				.createConnectionRepository("1");
+		for (int i = 0; i < 4; i++) {
+			connectionRepository.findConnections("facebook");
+		}
+		assertEquals(0.75,
+				metricsRegistry.getCacheHitRate("CachingUsersConnectionRepository"),
+				0);
+
+		MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+		ObjectName name = new ObjectName(
+				"org.springframework.social:type=MetricsRegistry,name=test");
+		mBeanServer.registerMBean(metricsRegistry, name);
+		try {
+			TabularData hitRates = (TabularData) mBeanServer.getAttribute(
+					name, "CacheHitRates");
+			assertEquals(1, hitRates.size());
+			TabularData callCounts = (TabularData) mBeanServer.getAttribute(
+					name, "CallCounts");
+			assertEquals(RepositoryOperation.values().length,
+					callCounts.size());
+		} finally {
+			mBeanServer.unregisterMBean(name);
+		}
+	}
+
+	@Test
+	public void histogramBucketsArePowersOfTwo() {
+		OperationMetrics metrics = new OperationMetrics(
+				RepositoryOperation.GET_CONNECTION);
+		for (int i = 0; i < 99; i++) {
+			metrics.record(100, 1, false);
+		}
+		metrics.record(5000, 1, false);
+		assertEquals(128.0,
+				metrics.getLatencyPercentile(50, TimeUnit.NANOSECONDS), 0);
+		assertEquals(128.0,
+				metrics.getLatencyPercentile(99, TimeUnit.NANOSECONDS), 0);
+		assertEquals(8192.0,
+				metrics.getLatencyPercentile(100, TimeUnit.NANOSECONDS), 0);
+		assertEquals(149.0, metrics.getMeanLatency(TimeUnit.NANOSECONDS), 0);
+	}
+
+	@Override
+	protected void setConnectionSignUpOnUsersConnectionRepository(
+			InstrumentedUsersConnectionRepository usersConnectionRepository,
+			ConnectionSignUp connectionSignUp) {
+		((InMemoryUsersConnectionRepository) usersConnectionRepository
+				.getDelegate()).setConnectionSignUp(usersConnectionRepository
+				.instrument(connectionSignUp));
+	}
+
+	@Override
+	protected void insertConnection(String userId, String providerId,
+			String providerUserId, int rank, String displayName,
+			String profileUrl, String imageUrl, String accessToken,
+			String secret, String refreshToken, Long expireTime) {
+		((InMemoryUsersConnectionRepository) usersConnectionRepository
+				.getDelegate()).addConnectionData(userId, new ConnectionData(
+				providerId, providerUserId, displayName, profileUrl, imageUrl,
+				accessToken, secret, refreshToken, expireTime), rank);
+	}
+
+	@Override
+	protected Boolean checkIfProviderConnectionsExist(String providerId) {
+		return !usersConnectionRepository.getDelegate()
+				.createConnectionRepository("1").findConnections(providerId)
+				.isEmpty();
+	}
+
+}